@@ -5,19 +5,69 @@ package seedu.addressbook;
  * ====================================================================
  */
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.Normalizer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /* ==============NOTE TO STUDENTS======================================
  * This class header comment below is brief because details of how to
@@ -36,11 +86,118 @@ public class AddressBook {
      */
     private static final String DEFAULT_STORAGE_FILEPATH = "addressbook.txt";
 
+    /**
+     * Storage file paths must end with this extension, optionally followed by {@link #COMPRESSED_FILE_EXTENSION}.
+     */
+    private static final String STORAGE_FILE_EXTENSION = ".txt";
+
+    /**
+     * Storage files whose paths end with this extension are kept gzip-compressed.
+     */
+    private static final String COMPRESSED_FILE_EXTENSION = ".gz";
+
+    /**
+     * Storage files whose paths end with this extension are kept in the slotted format instead of as text,
+     * so that a change to a few persons can be saved by updating just their records where they lie.
+     */
+    private static final String SLOTTED_FILE_EXTENSION = ".slotted";
+
+    /**
+     * Size of the buffers used when streaming person data to and from the storage file.
+     */
+    private static final int STORAGE_BUFFER_SIZE = 1 << 16;
+
     /**
      * Version info of the program.
      */
     private static final String VERSION = "AddessBook Level 1 - Version 1.0";
 
+    /*
+     * These are the names of the JVM system properties used to tune the program
+     * e.g. java -Daddressbook.backend=offheap seedu.addressbook.AddressBook
+     */
+    private static final String PROPERTY_MODEL_BACKEND = "addressbook.backend";
+    private static final String PROPERTY_FOLLOW_MODE = "addressbook.follow";
+    private static final String PROPERTY_UNDO_MEMORY = "addressbook.undo.memory";
+    private static final String PROPERTY_BOOKS_MEMORY = "addressbook.books.memory";
+    private static final String PROPERTY_REPLICATION_PORT = "addressbook.replication.port";
+    private static final String PROPERTY_STANDBY_OF = "addressbook.standby.of";
+    private static final String PROPERTY_FIND_DISTANCE = "addressbook.find.distance";
+    private static final String PROPERTY_MAINTENANCE_IDLE = "addressbook.maintenance.idle";
+    private static final String PROPERTY_WATCH_PORT = "addressbook.watch.port";
+    private static final String PROPERTY_INDEX_FILE = "addressbook.index";
+    private static final String PROPERTY_CACHE_PAGES = "addressbook.cache.pages";
+
+    // These are the accepted values of the model backend property
+    private static final String MODEL_BACKEND_HEAP = "heap";
+    private static final String MODEL_BACKEND_OFF_HEAP = "offheap";
+    private static final String MODEL_BACKEND_TIERED = "tiered";
+
+    /**
+     * Decides how the in-memory model holds person data.
+     * The default keeps every person as a String[] inside {@link #ALL_PERSONS}.
+     */
+    private static final String MODEL_BACKEND = System.getProperty(PROPERTY_MODEL_BACKEND, MODEL_BACKEND_HEAP);
+
+    /**
+     * If true, the storage file is opened read-only and changes made to it by another
+     * process are applied to the in-memory model as they happen.
+     */
+    private static final boolean IS_FOLLOW_MODE = Boolean.getBoolean(PROPERTY_FOLLOW_MODE);
+
+    /**
+     * If not 0, the program is a primary: it accepts standbys on this local port and streams every change
+     * made to the address book to them.
+     */
+    private static final int REPLICATION_PORT = Integer.getInteger(PROPERTY_REPLICATION_PORT, 0);
+
+    /**
+     * If not 0, the program starts as a standby of the primary accepting standbys on this local port.
+     * A standby applies the changes streamed by its primary, and is read-only until it is promoted.
+     */
+    private static final int STANDBY_OF_PORT = Integer.getInteger(PROPERTY_STANDBY_OF, 0);
+
+    /**
+     * Upper bound (in bytes) of the estimated memory held by the undo/redo history.
+     * When it is exceeded, the oldest changes are forgotten first. Defaults to a quarter of the maximum heap.
+     */
+    private static final long UNDO_MEMORY_LIMIT = Long.getLong(PROPERTY_UNDO_MEMORY,
+                                                               Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Upper bound (in bytes) of the estimated memory held by all open address books together, counting
+     * off-heap records too. When it is exceeded, the least recently used books are unloaded first.
+     * Defaults to half of the maximum heap.
+     */
+    private static final long BOOKS_MEMORY_LIMIT = Long.getLong(PROPERTY_BOOKS_MEMORY,
+                                                                Runtime.getRuntime().maxMemory() / 2);
+
+    /**
+     * The most edits (see {@link #getEditDistance(String, String, int)}) that a name word can be away from
+     * a fuzzy find keyword and still match it. Defaults to 2, and is kept between 1 and 2 whatever is set:
+     * the fuzzy query index holds every string left after deleting that many letters from each name word,
+     * so it would grow too big with more.
+     */
+    private static final int FIND_MAX_EDIT_DISTANCE =
+            Math.min(Math.max(Integer.getInteger(PROPERTY_FIND_DISTANCE, 2), 1), 2);
+
+    /**
+     * Background maintenance (see MAINTENANCE LOGIC) runs once no command has been run for this many
+     * milliseconds. 0 turns it off. Defaults to 2 seconds.
+     */
+    private static final long MAINTENANCE_IDLE_MILLIS = Long.getLong(PROPERTY_MAINTENANCE_IDLE, 2000);
+
+    /**
+     * If not 0, the change feed (see CHANGE FEED LOGIC) is streamed to watchers connecting on this local port.
+     */
+    private static final int WATCH_PORT = Integer.getInteger(PROPERTY_WATCH_PORT, 0);
+
+    /**
+     * If true, an index file (see INDEX FILE LOGIC) is kept next to the storage file by maintenance, and the
+     * program starts by answering from it instead of loading the storage file, if it is up to date.
+     */
+    private static final boolean IS_INDEX_FILE_ON = Boolean.getBoolean(PROPERTY_INDEX_FILE);
+
     /**
      * A decorative prefix added to the beginning of lines printed by AddressBook
      */
@@ -62,26 +219,104 @@ public class AddressBook {
      */
     private static final String MESSAGE_ADDED = "New person added: %1$s, Phone: %2$s, Email: %3$s";
     private static final String MESSAGE_ADDRESSBOOK_CLEARED = "Address book has been cleared!";
+    private static final String MESSAGE_BOOK_IN_USE = "Using address book %1$s (%2$d persons): %3$s";
+    private static final String MESSAGE_BOOK_NAME_TAKEN = "Another open address book is already named %1$s: %2$s";
+    private static final String MESSAGE_BOOK_NOT_OPEN = "No open address book is named %1$s";
+    private static final String MESSAGE_BOOKS_IN_SINGLE_BOOK_MODE = "Only the address book the program was started "
+                                                                  + "with can be open in follow and replication modes";
+    private static final String MESSAGE_BOOK_NOT_LOADED = "%1$s (not loaded)";
+    private static final String MESSAGE_BOOK_USED = "%1$s (in use)";
+    private static final String MESSAGE_OPEN_BOOKS_OVERVIEW = "%1$d address books open: %2$s";
     private static final String MESSAGE_COMMAND_HELP = "%1$s: %2$s";
     private static final String MESSAGE_COMMAND_HELP_PARAMETERS = "\tParameters: %1$s";
     private static final String MESSAGE_COMMAND_HELP_EXAMPLE = "\tExample: %1$s";
     private static final String MESSAGE_DELETE_PERSON_SUCCESS = "Deleted Person: %1$s";
+    private static final String MESSAGE_DELETE_PERSONS_SUCCESS = "Deleted %1$d persons";
+    private static final String MESSAGE_DELETE_PERSONS_PARTIAL = "Deleted %1$d persons; "
+                                                            + "%2$d could not be found in address book";
+    private static final String MESSAGE_EDIT_PERSON_SUCCESS = "Edited Person: %1$s";
     private static final String MESSAGE_DISPLAY_PERSON_DATA = "%1$s  Phone Number: %2$s  Email: %3$s";
     private static final String MESSAGE_DISPLAY_LIST_ELEMENT_INDEX = "%1$d. ";
     private static final String MESSAGE_GOODBYE = "Exiting Address Book... Good bye!";
     private static final String MESSAGE_INVALID_COMMAND_FORMAT = "Invalid command format: %1$s " + LS + "%2$s";
+    private static final String MESSAGE_INVALID_QUERY = "Invalid query: %1$s" + LS + "%2$s";
     private static final String MESSAGE_INVALID_FILE = "The given file name [%1$s] is not a valid file name!";
     private static final String MESSAGE_INVALID_PROGRAM_ARGS = "Too many parameters! Correct program argument format:"
                                                             + LS + "\tjava AddressBook"
                                                             + LS + "\tjava AddressBook [custom storage file path]";
+    private static final String MESSAGE_INVALID_MODEL_BACKEND = "Unknown model backend [%1$s]! Accepted values: "
+                                                            + MODEL_BACKEND_HEAP + ", " + MODEL_BACKEND_OFF_HEAP
+                                                            + ", " + MODEL_BACKEND_TIERED;
     private static final String MESSAGE_INVALID_PERSON_DISPLAYED_INDEX = "The person index provided is invalid";
     private static final String MESSAGE_INVALID_STORAGE_FILE_CONTENT = "Storage file has invalid content";
+    private static final String MESSAGE_MAINTENANCE_OFF = "Background maintenance is off";
+    private static final String MESSAGE_MAINTENANCE_OVERVIEW = "Background maintenance runs after %1$d ms "
+                                                             + "without commands:";
+    private static final String MESSAGE_MAINTENANCE_TASK_NEVER_RAN = "\t%1$s: never ran";
+    private static final String MESSAGE_MAINTENANCE_TASK_RAN = "\t%1$s: ran %2$d times, last %3$d s ago "
+                                                             + "(took %4$d ms, %5$s)";
+    private static final String MESSAGE_MAINTENANCE_CHUNKS_RELEASED = "released %1$d chunks";
+    private static final String MESSAGE_MAINTENANCE_PERSONS_WRITTEN = "wrote %1$d persons";
+    private static final String MESSAGE_MAINTENANCE_PERSONS_CHECKED = "checked %1$d persons, already written";
+    private static final String MESSAGE_MAINTENANCE_PERSONS_INDEXED = "indexed %1$d persons";
+    private static final String MESSAGE_MAINTENANCE_INDEX_FILE_WRITTEN = "wrote %1$d persons to %2$s";
+    private static final String MESSAGE_MAINTENANCE_INDEX_FILE_NOT_WRITTEN = "could not write %1$s";
+    private static final String MESSAGE_MAINTENANCE_STORAGE_FILE_NOT_WRITTEN = "could not write %1$s";
     private static final String MESSAGE_PERSON_NOT_IN_ADDRESSBOOK = "Person could not be found in address book";
     private static final String MESSAGE_ERROR_CREATING_STORAGE_FILE = "Error: unable to create file: %1$s";
     private static final String MESSAGE_ERROR_MISSING_STORAGE_FILE = "Storage file missing: %1$s";
     private static final String MESSAGE_ERROR_READING_FROM_FILE = "Unexpected error: unable to read from file: %1$s";
     private static final String MESSAGE_ERROR_WRITING_TO_FILE = "Unexpected error: unable to write to file: %1$s";
+    private static final String MESSAGE_ERROR_WATCHING_FILE = "Unexpected error: unable to watch file: %1$s";
+    private static final String MESSAGE_ERROR_USING_PAGE_FILE = "Unexpected error: unable to use page file: %1$s";
+    private static final String MESSAGE_ERROR_ACCEPTING_STANDBYS = "Unexpected error: unable to accept standbys on "
+                                                                 + "local port %1$d";
+    private static final String MESSAGE_ACCEPTING_STANDBYS = "Streaming changes to standbys on local port %1$d";
+    private static final String MESSAGE_ERROR_ACCEPTING_WATCHERS = "Unexpected error: unable to accept watchers on "
+                                                                 + "local port %1$d";
+    private static final String MESSAGE_ACCEPTING_WATCHERS = "Streaming the change feed to watchers on local port %1$d";
+    private static final String MESSAGE_CHANGE_FEED_OFF = "Change feed is off: nothing has watched it yet";
+    private static final String MESSAGE_CHANGE_FEED_STATUS = "Change feed %1$s is at event #%2$d (events from #%3$d "
+                                                           + "kept for watchers catching up), %4$d watchers";
+    private static final String MESSAGE_STANDING_BY = "Standby of the primary on local port %1$d: changes are "
+                                                    + "applied as they are made there";
+    private static final String MESSAGE_NOT_STANDBY = "Not a standby: there is nothing to promote";
+    private static final String MESSAGE_PROMOTED = "Promoted to primary after change #%1$d from the old primary";
+    private static final String MESSAGE_STANDBY_READ_ONLY = "Address book is a standby: changes can only be made "
+                                                          + "by its primary, until it is promoted";
+    private static final String MESSAGE_FOLLOWING_STORAGE_FILE = "Following storage file read-only: %1$s";
+    private static final String MESSAGE_USING_INDEX_FILE = "Answering from index file %1$s until a command "
+                                                         + "needs the whole address book";
+    private static final String MESSAGE_READ_ONLY_ADDRESS_BOOK = "Address book is read-only: "
+                                                            + "changes can only be made by the process writing %1$s";
+    private static final String MESSAGE_NOTHING_TO_REDO = "Nothing to redo";
+    private static final String MESSAGE_NOTHING_TO_UNDO = "Nothing to undo";
+    private static final String MESSAGE_FIRST_PERSONS_FOUND_OVERVIEW = "First %1$d persons found!";
+    private static final String MESSAGE_PERSONS_COUNTED_OVERVIEW = "%1$d persons match!";
     private static final String MESSAGE_PERSONS_FOUND_OVERVIEW = "%1$d persons found!";
+    private static final String MESSAGE_STATS_OVERVIEW = "%1$d %2$s among %3$d persons:";
+    private static final String MESSAGE_STATS_TOP_OVERVIEW = "Top %1$d of %2$d %3$s among %4$d persons:";
+    private static final String MESSAGE_STATS_GROUP = "\t%1$d. %2$s: %3$d persons";
+    private static final String MESSAGE_STATS_EMAIL_DOMAINS = "email domains";
+    private static final String MESSAGE_STATS_SURNAMES = "surnames";
+    private static final String MESSAGE_STATS_PAGE_CACHE = "Page cache: %1$d of %2$d pages in memory (%3$d KB each, "
+                                                         + "%4$d pages on disk)" + LS
+                                                         + "\t%5$d hits, %6$d misses (%7$.1f%% hit ratio)" + LS
+                                                         + "\t%8$d evictions (%9$d pages written back)";
+    private static final String MESSAGE_STATS_PAGE_CACHE_OFF = "The page cache is only used by the "
+                                                             + MODEL_BACKEND_TIERED + " model backend";
+    private static final String MESSAGE_DEDUPE_NONE_FOUND = "No near-duplicates found among %1$d persons";
+    private static final String MESSAGE_DEDUPE_CLUSTERS_FOUND = "%1$d clusters of near-duplicates found among %2$d "
+                                                              + "persons, as listed: %3$s";
+    private static final String MESSAGE_DEDUPE_MERGED = "Merged %1$d clusters of near-duplicates, "
+                                                      + "deleting %2$d persons";
+    private static final String MESSAGE_DEDUPE_MERGE_PREVIEW = "%1$d clusters of near-duplicates found among %2$d "
+                                                             + "persons, as listed: %3$s" + LS + "Merging keeps "
+                                                             + "the first person of each cluster, with the phone "
+                                                             + "and email of its last person, and deletes the "
+                                                             + "other %4$d persons. Enter '%5$s' to merge.";
+    private static final String MESSAGE_REDONE = "Redone: %1$s";
+    private static final String MESSAGE_UNDONE = "Undone: %1$s";
     private static final String MESSAGE_STORAGE_FILE_CREATED = "Created new empty storage file: %1$s";
     private static final String MESSAGE_WELCOME = "Welcome to your Address Book!";
     private static final String MESSAGE_USING_DEFAULT_FILE = "Using default storage file : " + DEFAULT_STORAGE_FILEPATH;
@@ -93,6 +328,8 @@ public class AddressBook {
     private static final String PERSON_STRING_REPRESENTATION = "%1$s " // name
                                                             + PERSON_DATA_PREFIX_PHONE + "%2$s " // phone
                                                             + PERSON_DATA_PREFIX_EMAIL + "%3$s"; // email
+    private static final String PERSON_STRING_PHONE_SEPARATOR = " " + PERSON_DATA_PREFIX_PHONE;
+    private static final String PERSON_STRING_EMAIL_SEPARATOR = " " + PERSON_DATA_PREFIX_EMAIL;
     private static final String COMMAND_ADD_WORD = "add";
     private static final String COMMAND_ADD_DESC = "Adds a person to the address book.";
     private static final String COMMAND_ADD_PARAMETERS = "NAME "
@@ -100,26 +337,140 @@ public class AddressBook {
                                                       + PERSON_DATA_PREFIX_EMAIL + "EMAIL";
     private static final String COMMAND_ADD_EXAMPLE = COMMAND_ADD_WORD + " John Doe p/98765432 e/johnd@gmail.com";
 
+    private static final String COMMAND_LIMIT_OPTION = "--limit";
+
     private static final String COMMAND_FIND_WORD = "find";
+    private static final String COMMAND_FIND_IGNORE_CASE_FLAG = "-i";
+    private static final String COMMAND_FIND_QUERY_AND = "AND";
+    private static final String COMMAND_FIND_QUERY_OR = "OR";
+    private static final String COMMAND_FIND_QUERY_NOT = "NOT";
+    private static final String COMMAND_FIND_QUERY_FIELD_SEPARATOR = ":";
+    private static final char COMMAND_FIND_QUERY_WILDCARD = '*';
+    private static final String COMMAND_FIND_QUERY_FIELD_NAME = "name";
+    private static final String COMMAND_FIND_QUERY_FIELD_PHONE = "phone";
+    private static final String COMMAND_FIND_QUERY_FIELD_EMAIL = "email";
+    private static final String COMMAND_FIND_FUZZY_MARKER = "~";
     private static final String COMMAND_FIND_DESC = "Finds all persons whose names contain any of the specified "
-                                        + "keywords (case-sensitive) and displays them as a list with index numbers.";
-    private static final String COMMAND_FIND_PARAMETERS = "KEYWORD [MORE_KEYWORDS]";
+                                        + "keywords (case-sensitive, unless " + COMMAND_FIND_IGNORE_CASE_FLAG
+                                        + " is given to ignore case and accents) "
+                                        + "and displays them as a list with index numbers. "
+                                        + "A keyword can also be a FIELD:PATTERN term (FIELD is "
+                                        + COMMAND_FIND_QUERY_FIELD_NAME + ", " + COMMAND_FIND_QUERY_FIELD_PHONE
+                                        + " or " + COMMAND_FIND_QUERY_FIELD_EMAIL + "; "
+                                        + COMMAND_FIND_QUERY_WILDCARD + " in PATTERN matches anything), and terms "
+                                        + "can be combined with " + COMMAND_FIND_QUERY_AND + ", "
+                                        + COMMAND_FIND_QUERY_OR + " and " + COMMAND_FIND_QUERY_NOT + ". "
+                                        + "Keywords starting with " + COMMAND_FIND_FUZZY_MARKER + " find names "
+                                        + "spelt close to them instead (ignoring case and accents), closest first.";
+    private static final String COMMAND_FIND_PARAMETERS = "[" + COMMAND_LIMIT_OPTION + " N] "
+                                                        + "[" + COMMAND_FIND_IGNORE_CASE_FLAG + "] "
+                                                        + "KEYWORD [MORE_KEYWORDS]";
     private static final String COMMAND_FIND_EXAMPLE = COMMAND_FIND_WORD + " alice bob charlie";
 
+    private static final String COMMAND_COUNT_WORD = "count";
+    private static final String COMMAND_COUNT_DESC = "Counts the persons that " + COMMAND_FIND_WORD
+                                        + " would list for the same keywords, without listing them.";
+    private static final String COMMAND_COUNT_PARAMETERS = "[" + COMMAND_FIND_IGNORE_CASE_FLAG + "] "
+                                                         + "KEYWORD [MORE_KEYWORDS]";
+    private static final String COMMAND_COUNT_EXAMPLE = COMMAND_COUNT_WORD + " alice bob charlie";
+
     private static final String COMMAND_LIST_WORD = "list";
-    private static final String COMMAND_LIST_DESC = "Displays all persons as a list with index numbers.";
+    private static final String COMMAND_LIST_DESC = "Displays all persons (or only the first N) as a list with "
+                                                  + "index numbers.";
+    private static final String COMMAND_LIST_PARAMETERS = "[" + COMMAND_LIMIT_OPTION + " N]";
     private static final String COMMAND_LIST_EXAMPLE = COMMAND_LIST_WORD;
 
     private static final String COMMAND_DELETE_WORD = "delete";
-    private static final String COMMAND_DELETE_DESC = "Deletes a person identified by the index number used in "
+    private static final String COMMAND_DELETE_ALL_SHOWN = "all-shown";
+    private static final String COMMAND_DELETE_TARGET_SEPARATOR = ",";
+    private static final String COMMAND_DELETE_RANGE_SEPARATOR = "-";
+    private static final String COMMAND_DELETE_DESC = "Deletes the persons identified by the index numbers used in "
                                                     + "the last find/list call.";
-    private static final String COMMAND_DELETE_PARAMETER = "INDEX";
+    private static final String COMMAND_DELETE_PARAMETER = "INDEX | FROM-TO | INDEX,MORE_INDEXES | "
+                                                    + COMMAND_DELETE_ALL_SHOWN;
     private static final String COMMAND_DELETE_EXAMPLE = COMMAND_DELETE_WORD + " 1";
 
+    private static final String COMMAND_EDIT_WORD = "edit";
+    private static final String COMMAND_EDIT_DESC = "Changes the phone number and/or the email of the person "
+                                                  + "identified by the index number used in the last find/list call, "
+                                                  + "keeping the person in the same place.";
+    private static final String COMMAND_EDIT_PARAMETERS = "INDEX [" + PERSON_DATA_PREFIX_PHONE + "PHONE_NUMBER] "
+                                                        + "[" + PERSON_DATA_PREFIX_EMAIL + "EMAIL]";
+    private static final String COMMAND_EDIT_EXAMPLE =
+            COMMAND_EDIT_WORD + " 1 " + PERSON_DATA_PREFIX_PHONE + "91234567";
+
     private static final String COMMAND_CLEAR_WORD = "clear";
     private static final String COMMAND_CLEAR_DESC = "Clears address book permanently.";
     private static final String COMMAND_CLEAR_EXAMPLE = COMMAND_CLEAR_WORD;
 
+    private static final String COMMAND_UNDO_WORD = "undo";
+    private static final String COMMAND_UNDO_DESC = "Reverts the most recent change to the address book.";
+    private static final String COMMAND_UNDO_EXAMPLE = COMMAND_UNDO_WORD;
+
+    private static final String COMMAND_REDO_WORD = "redo";
+    private static final String COMMAND_REDO_DESC = "Reapplies the most recent change reverted by undo.";
+    private static final String COMMAND_REDO_EXAMPLE = COMMAND_REDO_WORD;
+
+    private static final String COMMAND_OPEN_WORD = "open";
+    private static final String COMMAND_OPEN_DESC = "Opens the address book kept in the given storage file (creating "
+                                                  + "the file if missing) and uses it for the commands that follow.";
+    private static final String COMMAND_OPEN_PARAMETERS = "FILE";
+    private static final String COMMAND_OPEN_EXAMPLE = COMMAND_OPEN_WORD + " team.txt";
+
+    private static final String COMMAND_USE_WORD = "use";
+    private static final String COMMAND_USE_DESC = "Switches to the open address book with the given name (its "
+                                                 + "storage file name without extension), or lists the open "
+                                                 + "address books if no name is given.";
+    private static final String COMMAND_USE_PARAMETERS = "[NAME]";
+    private static final String COMMAND_USE_EXAMPLE = COMMAND_USE_WORD + " team";
+
+    private static final String COMMAND_PROMOTE_WORD = "promote";
+    private static final String COMMAND_PROMOTE_DESC = "Makes a standby address book take over from its primary, "
+                                                     + "so that it can be changed.";
+    private static final String COMMAND_PROMOTE_EXAMPLE = COMMAND_PROMOTE_WORD;
+
+    private static final String COMMAND_STATS_WORD = "stats";
+    private static final int COMMAND_STATS_DEFAULT_TOP_COUNT = 10;
+    private static final String COMMAND_STATS_DOMAINS = "domains";
+    private static final String COMMAND_STATS_SURNAMES = "surnames";
+    private static final String COMMAND_STATS_CACHE = "cache";
+    private static final String COMMAND_STATS_DESC = "Shows the email domains or the surnames (last words of names) "
+                                                   + "shared by the most persons, with how many persons share each "
+                                                   + "(the top " + COMMAND_STATS_DEFAULT_TOP_COUNT + ", or the top N). "
+                                                   + "With " + COMMAND_STATS_CACHE + ", shows how well the page cache "
+                                                   + "of the " + MODEL_BACKEND_TIERED + " model backend is doing.";
+    private static final String COMMAND_STATS_PARAMETERS = "[" + COMMAND_LIMIT_OPTION + " N] "
+                                                         + COMMAND_STATS_DOMAINS + " | " + COMMAND_STATS_SURNAMES
+                                                         + " | " + COMMAND_STATS_CACHE;
+    private static final String COMMAND_STATS_EXAMPLE = COMMAND_STATS_WORD + " " + COMMAND_STATS_DOMAINS;
+
+    private static final String COMMAND_DEDUPE_WORD = "dedupe";
+    private static final String COMMAND_DEDUPE_MERGE = "merge";
+    private static final String COMMAND_DEDUPE_CONFIRM = "confirm";
+    private static final String COMMAND_DEDUPE_DESC = "Lists clusters of persons that are probably the same person: "
+                                                    + "each pair sharing a phone or an email (ignoring case) and "
+                                                    + "with close names, or sharing both. With "
+                                                    + COMMAND_DEDUPE_MERGE + " " + COMMAND_DEDUPE_CONFIRM
+                                                    + ", merges each cluster into its first person, who takes the "
+                                                    + "phone and email of its last person.";
+    private static final String COMMAND_DEDUPE_PARAMETERS = "[" + COMMAND_DEDUPE_MERGE + " ["
+                                                          + COMMAND_DEDUPE_CONFIRM + "]]";
+    private static final String COMMAND_DEDUPE_EXAMPLE = COMMAND_DEDUPE_WORD;
+
+    private static final String COMMAND_WATCH_WORD = "watch";
+    private static final String COMMAND_WATCH_DESC = "Shows the state of the change feed streamed to watchers: "
+                                                   + "the last event, the oldest event kept for watchers catching "
+                                                   + "up, and how many watchers there are.";
+    private static final String COMMAND_WATCH_EXAMPLE = COMMAND_WATCH_WORD;
+
+    private static final String COMMAND_MAINTENANCE_WORD = "maintenance";
+    private static final String COMMAND_MAINTENANCE_STATUS = "status";
+    private static final String COMMAND_MAINTENANCE_DESC = "Shows what the maintenance done in the background "
+                                                         + "while no commands are run did, and how long it took.";
+    private static final String COMMAND_MAINTENANCE_PARAMETERS = COMMAND_MAINTENANCE_STATUS;
+    private static final String COMMAND_MAINTENANCE_EXAMPLE = COMMAND_MAINTENANCE_WORD + " "
+                                                            + COMMAND_MAINTENANCE_STATUS;
+
     private static final String COMMAND_HELP_WORD = "help";
     private static final String COMMAND_HELP_DESC = "Shows program usage instructions.";
     private static final String COMMAND_HELP_EXAMPLE = COMMAND_HELP_WORD;
@@ -128,6 +479,17 @@ public class AddressBook {
     private static final String COMMAND_EXIT_DESC = "Exits the program.";
     private static final String COMMAND_EXIT_EXAMPLE = COMMAND_EXIT_WORD;
 
+    /**
+     * Every command word understood by the program; commands are dispatched by matching their first word
+     * against these, without copying it out of the input.
+     */
+    private static final String[] COMMAND_WORDS = {
+        COMMAND_ADD_WORD, COMMAND_FIND_WORD, COMMAND_COUNT_WORD, COMMAND_LIST_WORD, COMMAND_DELETE_WORD,
+        COMMAND_EDIT_WORD, COMMAND_CLEAR_WORD, COMMAND_UNDO_WORD, COMMAND_REDO_WORD, COMMAND_OPEN_WORD,
+        COMMAND_USE_WORD, COMMAND_STATS_WORD, COMMAND_DEDUPE_WORD, COMMAND_PROMOTE_WORD, COMMAND_WATCH_WORD,
+        COMMAND_MAINTENANCE_WORD, COMMAND_HELP_WORD, COMMAND_EXIT_WORD
+    };
+
     private static final String DIVIDER = "===================================================";
 
 
@@ -145,11 +507,293 @@ public class AddressBook {
      */
     private static final int PERSON_DATA_COUNT = 3;
 
+    /**
+     * Only filled for persons read out of a non-heap model backend, where it holds the
+     * locator of the stored record. It is never encoded into the storage file.
+     */
+    private static final int PERSON_DATA_INDEX_RECORD_LOCATOR = 3;
+
+    /**
+     * Only filled for persons in the heap model, where it holds the name folded for case and accent insensitive
+     * search (see {@link #foldForSearch(String)}). It is computed once, when the person enters the model,
+     * and is never encoded into the storage file.
+     */
+    private static final int PERSON_DATA_INDEX_FOLDED_NAME = 4;
+
+    /**
+     * Matches the combining marks (e.g. accents) left behind when a string is decomposed.
+     */
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Matches runs of whitespace.
+     */
+    private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+    /*
+     * A change made to the address book is remembered in the undo history as an Object array.
+     * The constants given below are the indexes of its elements:
+     *    kind        - CHANGE_KIND_INSERTED, CHANGE_KIND_REMOVED or CHANGE_KIND_REPLACED
+     *    positions   - int[] of the ascending absolute indexes the persons had right after an insertion
+     *                  (or right before a removal, or during a replacement)
+     *    persons     - ArrayList<String[]> of the inserted/removed persons, in the same order as the positions;
+     *                  for a replacement, the persons replaced followed by the persons replacing them
+     *    description - what the change was, shown to the user when it is undone or redone
+     *    memory      - Long estimate of the bytes held by this change
+     *    joined      - Boolean, true if the change is undone and redone together with the change made just
+     *                  before it, as parts of a single command
+     */
+    private static final int CHANGE_DATA_INDEX_KIND = 0;
+    private static final int CHANGE_DATA_INDEX_POSITIONS = 1;
+    private static final int CHANGE_DATA_INDEX_PERSONS = 2;
+    private static final int CHANGE_DATA_INDEX_DESCRIPTION = 3;
+    private static final int CHANGE_DATA_INDEX_MEMORY = 4;
+    private static final int CHANGE_DATA_INDEX_IS_JOINED = 5;
+    private static final int CHANGE_DATA_COUNT = 6;
+
+    private static final String CHANGE_KIND_INSERTED = "inserted";
+    private static final String CHANGE_KIND_REMOVED = "removed";
+    private static final String CHANGE_KIND_REPLACED = "replaced";
+
+    // These are the descriptions of changes in the undo history e.g. "Undone: delete John Doe"
+    private static final String CHANGE_DESCRIPTION_ADD = COMMAND_ADD_WORD + " %1$s";
+    private static final String CHANGE_DESCRIPTION_DELETE = COMMAND_DELETE_WORD + " %1$s";
+    private static final String CHANGE_DESCRIPTION_DELETE_MANY = COMMAND_DELETE_WORD + " (%1$d persons)";
+    private static final String CHANGE_DESCRIPTION_EDIT = COMMAND_EDIT_WORD + " %1$s";
+    private static final String CHANGE_DESCRIPTION_CLEAR = COMMAND_CLEAR_WORD + " (%1$d persons)";
+    private static final String CHANGE_DESCRIPTION_DEDUPE = COMMAND_DEDUPE_WORD + " " + COMMAND_DEDUPE_MERGE
+                                                          + " (%1$d persons)";
+
+    // These are rough sizes (in bytes) used to estimate the memory held by the undo history
+    private static final int CHANGE_MEMORY_OVERHEAD = 96;
+    private static final int PERSON_MEMORY_OVERHEAD = 160;
+
+    /*
+     * An open address book is remembered as an Object array. The constants given below are the indexes
+     * of its elements:
+     *    name              - its storage file name without extension, used to switch to it
+     *    storage file path - the path it was opened with
+     *    saved model       - Object[] holding its model while another book is in use (see the MODEL_DATA
+     *                        constants), or null if the book is in use or is not loaded
+     *    memory            - Long estimate of the bytes held by the saved model
+     */
+    private static final int BOOK_DATA_INDEX_NAME = 0;
+    private static final int BOOK_DATA_INDEX_STORAGE_FILE_PATH = 1;
+    private static final int BOOK_DATA_INDEX_SAVED_MODEL = 2;
+    private static final int BOOK_DATA_INDEX_MEMORY = 3;
+    private static final int BOOK_DATA_COUNT = 4;
+
+    /*
+     * The model of a book that is not in use is saved as an Object array holding, at these indexes,
+     * the values of the model variables of the same names (the heap model, the off-heap model, the last
+     * shown listing, the undo history, what is known about the storage file and the query indexes).
+     */
+    private static final int MODEL_DATA_INDEX_ALL_PERSONS = 0;
+    private static final int MODEL_DATA_INDEX_LATEST_PERSON_LISTING_VIEW = 1;
+    private static final int MODEL_DATA_INDEX_UNDO_HISTORY = 2;
+    private static final int MODEL_DATA_INDEX_REDO_HISTORY = 3;
+    private static final int MODEL_DATA_INDEX_CHANGE_HISTORY_MEMORY = 4;
+    private static final int MODEL_DATA_INDEX_IS_STORAGE_FILE_CANONICAL = 5;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_CHUNKS = 6;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOTS = 7;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOT_COUNTS = 8;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_RECORD_TABLE = 9;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_RECORD_COUNT = 10;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_BUMP_CHUNK = 11;
+    private static final int MODEL_DATA_INDEX_OFF_HEAP_BUMP_OFFSET = 12;
+    private static final int MODEL_DATA_INDEX_NAME_WORD_QUERY_INDEX = 13;
+    private static final int MODEL_DATA_INDEX_PHONE_PREFIX_QUERY_INDEX = 14;
+    private static final int MODEL_DATA_INDEX_EMAIL_DOMAIN_QUERY_INDEX = 15;
+    private static final int MODEL_DATA_INDEX_ARE_QUERY_INDEXES_BUILT = 16;
+    private static final int MODEL_DATA_INDEX_FUZZY_NAME_WORD_QUERY_INDEX = 17;
+    private static final int MODEL_DATA_INDEX_IS_FUZZY_QUERY_INDEX_BUILT = 18;
+    private static final int MODEL_DATA_INDEX_EMAIL_DOMAIN_COUNTS = 19;
+    private static final int MODEL_DATA_INDEX_SURNAME_COUNTS = 20;
+    private static final int MODEL_DATA_INDEX_TIERED_PAGE_FILE = 21;
+    private static final int MODEL_DATA_INDEX_SLOTTED_FILE = 22;
+    private static final int MODEL_DATA_INDEX_QUERY_INDEX_ORDER_KEYS = 23;
+    private static final int MODEL_DATA_COUNT = 24;
+
+    /**
+     * The memory held by a heap model is estimated from at most this many of its persons, spread evenly
+     * through it, so that switching between big books stays quick.
+     */
+    private static final int BOOK_MEMORY_SAMPLE_SIZE = 1024;
+
+    /*
+     * A primary streams changes to a standby as text lines, which start with one of these words:
+     *    snapshot STREAM_ID SEQUENCE COUNT     - followed by COUNT storage lines: all persons, as of change SEQUENCE
+     *    change SEQUENCE KIND COUNT POSITIONS  - followed by COUNT storage lines if KIND is CHANGE_KIND_INSERTED
+     *                                            (or CHANGE_KIND_REPLACED: the persons replacing the others);
+     *                                            POSITIONS are written like delete targets e.g. 0-4,7
+     *    sync SEQUENCE                         - the changes up to SEQUENCE were all sent; apply them together
+     * The standby starts each connection by sending the STREAM_ID and SEQUENCE of the last change it applied.
+     */
+    private static final String REPLICATION_MESSAGE_SNAPSHOT = "snapshot";
+    private static final String REPLICATION_MESSAGE_CHANGE = "change";
+    private static final String REPLICATION_MESSAGE_SYNC = "sync";
+    private static final String REPLICATION_NO_STREAM_ID = "none";
+
+    /**
+     * The most changes sent to a standby at once, when it is catching up; they are applied and saved together.
+     */
+    private static final int REPLICATION_BATCH_SIZE = 256;
+
+    /**
+     * The most recent changes kept by a primary, so that a standby that reconnects can catch up on them
+     * instead of being sent a snapshot. The estimated memory they hold is also kept under {@link #UNDO_MEMORY_LIMIT}.
+     */
+    private static final int REPLICATION_LOG_CAPACITY = 1 << 16;
+
+    /**
+     * How long (in milliseconds) an idle primary waits before telling its standbys that it is still there,
+     * and how long a standby waits before reconnecting to its primary.
+     */
+    private static final int REPLICATION_HEARTBEAT_MILLIS = 1000;
+
+    /*
+     * The change feed is streamed to watchers as text lines, which start with one of these words:
+     *    reset FEED_ID SEQUENCE COUNT BOOK      - followed by COUNT storage lines: all persons in the address book
+     *                                             named BOOK, as of event SEQUENCE
+     *    inserted SEQUENCE COUNT POSITIONS BOOK - followed by COUNT storage lines: the persons inserted into BOOK,
+     *                                             which are now at POSITIONS (written like delete targets e.g. 0-4,7)
+     *    removed SEQUENCE COUNT POSITIONS BOOK  - followed by COUNT storage lines: the persons removed from BOOK,
+     *                                             which were at POSITIONS
+     *    sync SEQUENCE                          - the events up to SEQUENCE were all sent
+     * A watcher starts each connection by sending the FEED_ID and SEQUENCE of the last event it saw (or an empty
+     * line), and is sent a reset first if those events are no longer kept.
+     */
+    private static final String CHANGE_FEED_MESSAGE_RESET = "reset";
+    private static final String CHANGE_FEED_MESSAGE_SYNC = "sync";
+
+    /**
+     * The most events sent to a watcher at once, when it is catching up.
+     */
+    private static final int CHANGE_FEED_BATCH_SIZE = 256;
+
+    /**
+     * The most recent events kept by the change feed, so that a watcher that falls behind or reconnects can
+     * catch up on them instead of being sent a reset. The estimated memory they hold is also kept under
+     * {@link #UNDO_MEMORY_LIMIT}.
+     */
+    private static final int CHANGE_FEED_CAPACITY = 1 << 16;
+
+    // These are the maintenance tasks, in the order they are considered (see MAINTENANCE LOGIC)
+    private static final int MAINTENANCE_TASK_COMPACT_OFF_HEAP_MODEL = 0;
+    private static final int MAINTENANCE_TASK_REWRITE_STORAGE_FILE = 1;
+    private static final int MAINTENANCE_TASK_REBUILD_QUERY_INDEXES = 2;
+    private static final int MAINTENANCE_TASK_WRITE_INDEX_FILE = 3;
+    private static final String[] MAINTENANCE_TASK_NAMES = {
+        "compact off-heap model", "rewrite storage file", "rebuild query indexes", "write index file"
+    };
+
+    /**
+     * Each maintenance task runs at most once per this many milliseconds, however often it is due.
+     */
+    private static final long MAINTENANCE_TASK_MIN_INTERVAL_MILLIS = 10_000;
+
+    /*
+     * The index file of a storage file is named after it, with this extension added.
+     * Its layout is described in INDEX FILE LOGIC. All numbers are ints, except where said otherwise.
+     */
+    private static final String INDEX_FILE_EXTENSION = ".idx";
+    private static final int INDEX_FILE_MAGIC = 0x41424958; // "ABIX"
+    private static final int INDEX_FILE_VERSION = 2;
+    private static final int INDEX_FILE_HEADER_INDEX_MAGIC = 0;
+    private static final int INDEX_FILE_HEADER_INDEX_VERSION = 4;
+    private static final int INDEX_FILE_HEADER_INDEX_STORAGE_FILE_SIZE = 8; // long
+    private static final int INDEX_FILE_HEADER_INDEX_STORAGE_FILE_MODIFIED = 16; // long, in nanoseconds
+    private static final int INDEX_FILE_HEADER_INDEX_RECORD_COUNT = 24;
+    private static final int INDEX_FILE_HEADER_INDEX_WORD_COUNT = 28;
+    private static final int INDEX_FILE_HEADER_INDEX_RECORD_TABLE_START = 32;
+    private static final int INDEX_FILE_HEADER_INDEX_WORD_TABLE_START = 36;
+    private static final int INDEX_FILE_HEADER_INDEX_STORAGE_FILE_CHECKSUM = 40; // long, CRC-32 of its content
+    private static final int INDEX_FILE_HEADER_INDEX_WRITTEN = 48; // long, in nanoseconds
+    private static final int INDEX_FILE_HEADER_SIZE = 56;
+    private static final int INDEX_FILE_WORD_ENTRY_INDEX_WORD_START = 0;
+    private static final int INDEX_FILE_WORD_ENTRY_INDEX_WORD_LENGTH = 4;
+    private static final int INDEX_FILE_WORD_ENTRY_INDEX_POSTINGS_START = 8;
+    private static final int INDEX_FILE_WORD_ENTRY_INDEX_POSTINGS_COUNT = 12;
+    private static final int INDEX_FILE_WORD_ENTRY_SIZE = 16;
+
+    /**
+     * An index file written less than this long after its storage file was last modified is only used if the
+     * storage file still has the checksum in the index file header. File systems keep last modified times only
+     * so precisely, so the storage file may have been changed again since without its time changing.
+     */
+    private static final long INDEX_FILE_CHECKSUM_WINDOW_NANOS = 2_000_000_000L;
+
+    /*
+     * A find query is parsed into a tree of query nodes, each an Object array.
+     * The constants given below are the indexes of their elements:
+     *    kind     - QUERY_NODE_TERM, QUERY_NODE_AND, QUERY_NODE_OR or QUERY_NODE_NOT
+     *    field    - (terms only) Integer PERSON_DATA_INDEX_* of the person field to match
+     *    pattern  - (terms only) what the field must match, where COMMAND_FIND_QUERY_WILDCARD matches anything
+     *    operands - (other kinds) ArrayList<Object[]> of the nodes combined; a single one for QUERY_NODE_NOT
+     */
+    private static final int QUERY_NODE_INDEX_KIND = 0;
+    private static final int QUERY_NODE_INDEX_FIELD = 1;
+    private static final int QUERY_NODE_INDEX_PATTERN = 2;
+    private static final int QUERY_NODE_INDEX_OPERANDS = 1;
+    private static final int QUERY_NODE_DATA_COUNT = 3;
+
+    private static final String QUERY_NODE_TERM = "term";
+    private static final String QUERY_NODE_AND = "and";
+    private static final String QUERY_NODE_OR = "or";
+    private static final String QUERY_NODE_NOT = "not";
+
+    /**
+     * Phones are indexed by this many leading digits, for queries on phone number prefixes.
+     */
+    private static final int QUERY_INDEX_PHONE_PREFIX_LENGTH = 3;
+
+    /**
+     * Candidates taken from the query indexes are only used if the book has at least this many persons
+     * per candidate; otherwise checking every person is cheaper than collecting the candidates.
+     */
+    private static final int QUERY_INDEX_MIN_SELECTIVITY = 4;
+
+    /**
+     * Removing more persons than this at once drops the query indexes (they are rebuilt when next needed)
+     * instead of updating them person by person.
+     */
+    private static final int QUERY_INDEX_MAX_REMOVALS = 64;
+
+    /**
+     * The difference between the order keys of persons next to each other, when the keys are spread out
+     * (see {@link #QUERY_INDEX_ORDER_KEYS}).
+     */
+    private static final long QUERY_INDEX_ORDER_KEY_GAP = 1L << 32;
+
+    /**
+     * A fuzzy find keyword is allowed one edit for each this many of its characters (up to
+     * {@link #FIND_MAX_EDIT_DISTANCE}), so that short keywords are not matched by most short names.
+     */
+    private static final int FUZZY_KEYWORD_LENGTH_PER_EDIT = 3;
+
+    /**
+     * Persons sharing a phone or an email with more persons than this are not compared by it when looking
+     * for near-duplicates, as such a phone or email belongs to a group (e.g. an office), not to a person.
+     */
+    private static final int DEDUPE_MAX_BLOCK_SIZE = 50;
+
     /**
      * Offset required to convert between 1-indexing and 0-indexing.COMMAND_
      */
     private static final int DISPLAYED_INDEX_OFFSET = 1;
 
+    /**
+     * A person listing is written to the output in pieces of about this many characters. Every piece is
+     * written as soon as it is full, which blocks while a slow reader (e.g. a pipe) catches up.
+     */
+    private static final int LISTING_OUTPUT_BUFFER_SIZE = 1 << 13;
+
+    /**
+     * Persons found while a person listing is shown are written to the output at most this long after they are
+     * found, even if the piece of listing holding them is not full. The first person found is written at once.
+     */
+    private static final long LISTING_OUTPUT_MAX_DELAY_NANOS = 20_000_000;
+
 
 
     /**
@@ -157,6 +801,11 @@ public class AddressBook {
      */
     private static final char INPUT_COMMENT_MARKER = '#';
 
+    /**
+     * A number in a command (e.g. an index) may start with this, as numbers read with Integer.parseInt may.
+     */
+    private static final String INPUT_NUMBER_PLUS_SIGN = "+";
+
     /*
      * This variable is declared for the whole class (instead of declaring it
      * inside the readUserCommand() method to facilitate automated testing using
@@ -184,13 +833,374 @@ public class AddressBook {
      * This is a subset of the full list. Deleting persons in the pull list does not delete
      * those persons from this list.
      */
-    private static ArrayList<String[]> latestPersonListingView = getAllPersonsInAddressBook(); // initial view is of all
+    private static ArrayList<String[]> latestPersonListingView = ALL_PERSONS; // initial view is of all
+
+    /**
+     * Holds the part of the person listing being shown that is not yet written to the output.
+     * It is written out whenever it reaches {@link #LISTING_OUTPUT_BUFFER_SIZE}, so its size stays bounded.
+     */
+    private static final StringBuilder LISTING_OUTPUT_BUFFER = new StringBuilder();
+
+    /**
+     * When the person listing being shown was last written to the output, as given by System.nanoTime().
+     */
+    private static long lastListingOutputTime = 0;
+
+    /**
+     * True while a person listing is being shown, i.e. between {@link #startShowingPersonListing()} and
+     * {@link #finishShowingPersonListing()}. Like the listing output buffer, only used while holding its lock.
+     */
+    private static boolean isShowingPersonListing = false;
+
+    /**
+     * True once the thread writing out the persons that waited too long in the listing output buffer is started.
+     */
+    private static boolean isListingOutputWriterStarted = false;
 
     /**
      * The path to the file used for storing person data.
      */
     private static String storageFilePath;
 
+    /*
+     * The variables below hold the state of the command tokenizer: the command being read, and the
+     * bounds [tokenStart, tokenEnd) of its current token within it. See the COMMAND TOKENIZER section.
+     * Like the model, they are only used while running a command, i.e. holding the lock of this class.
+     */
+    private static String tokenizerInput = "";
+    private static int tokenStart = 0;
+    private static int tokenEnd = 0;
+
+    /*
+     * The variables below hold the off-heap model, which is only used if the off-heap backend was chosen.
+     * Records are kept in direct buffers ('chunks') outside the Java heap, in the format:
+     *    [slot size class][name length][phone length][email length][folded name length]
+     *    [name p/phone e/email][folded name]
+     * with all lengths counted in UTF-8 bytes. The folded name is used for case and accent insensitive
+     * search, and is not part of the storage file line. A record is found by its 'locator', which packs
+     * the chunk number into the high 32 bits and the offset within that chunk into the low 32 bits.
+     * Each record lives in a slot whose size is a power of two; slots of deleted records are
+     * kept in free lists (one per size class) and reused by later records of the same size class.
+     */
+    private static final int OFF_HEAP_CHUNK_SIZE = 1 << 24;
+    private static final int OFF_HEAP_MIN_SIZE_CLASS = 5;
+    private static final int OFF_HEAP_MAX_SIZE_CLASS = 30;
+    private static final int OFF_HEAP_WRITE_BUFFER_SIZE = 1 << 16;
+    private static final int OFF_HEAP_HEADER_INDEX_SIZE_CLASS = 0;
+    private static final int OFF_HEAP_HEADER_INDEX_NAME_LENGTH = Integer.BYTES;
+    private static final int OFF_HEAP_HEADER_INDEX_PHONE_LENGTH = 2 * Integer.BYTES;
+    private static final int OFF_HEAP_HEADER_INDEX_EMAIL_LENGTH = 3 * Integer.BYTES;
+    private static final int OFF_HEAP_HEADER_INDEX_FOLDED_NAME_LENGTH = 4 * Integer.BYTES;
+    private static final int OFF_HEAP_HEADER_SIZE = 5 * Integer.BYTES;
+    private static final byte[] OFF_HEAP_PHONE_SEPARATOR =
+            PERSON_STRING_PHONE_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OFF_HEAP_EMAIL_SEPARATOR =
+            PERSON_STRING_EMAIL_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] LINE_SEPARATOR_BYTES = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private static final ArrayList<ByteBuffer> OFF_HEAP_CHUNKS = new ArrayList<>();
+    private static final long[][] OFF_HEAP_FREE_SLOTS = new long[OFF_HEAP_MAX_SIZE_CLASS + 1][];
+    private static final int[] OFF_HEAP_FREE_SLOT_COUNTS = new int[OFF_HEAP_MAX_SIZE_CLASS + 1];
+
+    /**
+     * Locators of all records in the off-heap model, in the same order as {@link #ALL_PERSONS} would be.
+     */
+    private static long[] offHeapRecordTable = new long[16];
+    private static int offHeapRecordCount = 0;
+    private static int offHeapBumpChunk = -1;
+    private static int offHeapBumpOffset = 0;
+    private static byte[] offHeapDecodeBuffer = new byte[256];
+
+    /*
+     * The variables below hold the tiered model, which is only used if the tiered backend was chosen.
+     * It is the off-heap model with its chunks ('pages') kept in a temporary page file on disk instead:
+     * only the pages in the page cache are in memory. The cache has a fixed number of 'frames' of one
+     * page each. When a page that is not in the cache is needed and all frames are in use, the CLOCK
+     * algorithm picks the frame to reuse: the 'hand' goes round the frames, giving a frame whose page
+     * was used since the hand last passed it a second chance, and stopping at the first other frame.
+     * A page changed while in the cache is written back to the page file when its frame is reused.
+     *
+     * The page file of a tiered model is an Object array holding, at these indexes:
+     *    channel       - FileChannel of the page file, which is deleted once closed
+     *    path          - Path of the page file
+     *    page offsets  - long[] position of each page in the file
+     *    page sizes    - int[] size of each page: TIERED_PAGE_SIZE, but for the page of an oversized record
+     *    page frames   - int[] frame holding each page, or -1 if the page is only on disk
+     *    page count    - Integer number of pages in the file
+     */
+    private static final int TIERED_PAGE_SIZE = 1 << 16;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_CHANNEL = 0;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_PATH = 1;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS = 2;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES = 3;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES = 4;
+    private static final int TIERED_PAGE_FILE_DATA_INDEX_PAGE_COUNT = 5;
+    private static final int TIERED_PAGE_FILE_DATA_COUNT = 6;
+    private static final String TIERED_PAGE_FILE_PREFIX = "addressbook-";
+    private static final String TIERED_PAGE_FILE_SUFFIX = ".pages";
+
+    /**
+     * The number of frames in the page cache, which bounds the memory held by the tiered model.
+     */
+    private static final int TIERED_CACHE_FRAME_COUNT = Math.max(1, Integer.getInteger(PROPERTY_CACHE_PAGES, 256));
+
+    private static final ByteBuffer[] TIERED_FRAME_BUFFERS = new ByteBuffer[TIERED_CACHE_FRAME_COUNT];
+    private static final int[] TIERED_FRAME_PAGES = new int[TIERED_CACHE_FRAME_COUNT];
+    private static final boolean[] TIERED_FRAME_REFERENCED = new boolean[TIERED_CACHE_FRAME_COUNT];
+    private static final boolean[] TIERED_FRAME_DIRTY = new boolean[TIERED_CACHE_FRAME_COUNT];
+
+    /**
+     * The page file of the tiered model in use, or null if the model has no pages yet.
+     */
+    private static Object[] tieredPageFile = null;
+    private static int tieredFramesInUse = 0;
+    private static int tieredClockHand = 0;
+    private static long tieredCacheHits = 0;
+    private static long tieredCacheMisses = 0;
+    private static long tieredCacheEvictions = 0;
+    private static long tieredCacheWriteBacks = 0;
+
+    /*
+     * Layout of a slotted storage file (positions are counted from the start of the file):
+     *    header - SLOTTED_FILE_MAGIC, then SLOTTED_FILE_VERSION
+     *    pages  - one after another, each SLOTTED_PAGE_SIZE bytes, or a multiple of it for a page holding
+     *             an oversized record
+     * A page starts with a header (see the SLOTTED_PAGE_HEADER_INDEX constants), followed by its slot table.
+     * The slot table grows towards the end of the page, while the records it points to (storage lines, without
+     * line separators) are put at the end of the page and grow towards its start. A slot entry (see the
+     * SLOTTED_SLOT_ENTRY_INDEX constants) gives the state of the slot, and where its record is. Each record
+     * has some room to spare (its 'capacity'), so that an edit that makes it a little longer still fits.
+     * A record that no longer fits is moved to a new slot at the end of the file, and its old slot is left
+     * 'forwarded': its record is then the 8 byte id of the slot it moved to.
+     *
+     * The id of a slot is its page number (counted from 0) in the upper 32 bits and its slot number in the
+     * lower 32 bits. Persons are in the file in the order of the ids of their slots, which is the address
+     * book order; moved records are found through the slots forwarded to them instead.
+     */
+    private static final int SLOTTED_FILE_MAGIC = 0x4142534C;
+    private static final int SLOTTED_FILE_VERSION = 1;
+    private static final int SLOTTED_FILE_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final int SLOTTED_PAGE_SIZE = 1 << 13;
+    private static final int SLOTTED_PAGE_HEADER_INDEX_LENGTH = 0;
+    private static final int SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT = Integer.BYTES;
+    private static final int SLOTTED_PAGE_HEADER_INDEX_RECORDS_START = 2 * Integer.BYTES;
+    private static final int SLOTTED_PAGE_HEADER_SIZE = 3 * Integer.BYTES;
+    private static final int SLOTTED_SLOT_ENTRY_INDEX_STATE = 0;
+    private static final int SLOTTED_SLOT_ENTRY_INDEX_OFFSET = Integer.BYTES;
+    private static final int SLOTTED_SLOT_ENTRY_INDEX_LENGTH = 2 * Integer.BYTES;
+    private static final int SLOTTED_SLOT_ENTRY_INDEX_CAPACITY = 3 * Integer.BYTES;
+    private static final int SLOTTED_SLOT_ENTRY_SIZE = 4 * Integer.BYTES;
+    private static final int SLOTTED_SLOT_FREE = 0;
+    private static final int SLOTTED_SLOT_LIVE = 1;
+    private static final int SLOTTED_SLOT_FORWARDED = 2;
+    private static final int SLOTTED_SLOT_MOVED = 3;
+
+    /**
+     * Record capacities are rounded up to a multiple of this, which is at least the size of a slot id.
+     */
+    private static final int SLOTTED_RECORD_ALIGNMENT = 16;
+
+    /**
+     * A change to more persons than this is saved by rewriting the whole slotted file, which is then quicker
+     * than updating each of their records where it lies.
+     */
+    private static final int SLOTTED_FILE_MAX_CHANGES_IN_PLACE = 1 << 12;
+
+    /*
+     * What is known about the slotted storage file of the book in use is kept in an Object array holding,
+     * at these indexes:
+     *    record ids      - long[] id of the slot of the person at each absolute index, as far as it is known:
+     *                      SLOTTED_RECORD_NOT_WRITTEN for a person not in the file yet, and an id encoded by
+     *                      markSlottedRecordEdited for a person whose record has to be updated
+     *    record count    - Integer number of persons in the model
+     *    first unsaved   - Integer absolute index of the first person whose record may have to be written
+     *    removed ids     - ArrayList<Long> ids of the slots of the persons removed since the file was saved
+     *    free slots      - TreeSet<Long> ids of the free slots in the file
+     *    forwards        - HashMap<Long, Long> id of the slot each forwarded slot forwards to
+     *    page offsets    - long[] position of each page in the file
+     *    page count      - Integer number of pages in the file
+     *    file length     - Long length of the file as last written
+     */
+    private static final int SLOTTED_FILE_DATA_INDEX_RECORD_IDS = 0;
+    private static final int SLOTTED_FILE_DATA_INDEX_RECORD_COUNT = 1;
+    private static final int SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED = 2;
+    private static final int SLOTTED_FILE_DATA_INDEX_REMOVED_IDS = 3;
+    private static final int SLOTTED_FILE_DATA_INDEX_FREE_SLOTS = 4;
+    private static final int SLOTTED_FILE_DATA_INDEX_FORWARDS = 5;
+    private static final int SLOTTED_FILE_DATA_INDEX_PAGE_OFFSETS = 6;
+    private static final int SLOTTED_FILE_DATA_INDEX_PAGE_COUNT = 7;
+    private static final int SLOTTED_FILE_DATA_INDEX_FILE_LENGTH = 8;
+    private static final int SLOTTED_FILE_DATA_COUNT = 9;
+    private static final long SLOTTED_RECORD_NOT_WRITTEN = -1;
+    private static final long FOLLOWED_FILE_LENGTH_UNKNOWN = -1;
+
+    /**
+     * What is known about the slotted storage file of the book in use, or null if the storage file is not
+     * slotted or has to be rewritten whole on the next save.
+     */
+    private static Object[] slottedFile = null;
+
+    /**
+     * Set by the storage file watcher (in follow mode) when the storage file may have been changed
+     * by another process. The changes are applied by the main thread before the next command.
+     */
+    private static volatile boolean isFollowedStorageFileChanged = false;
+
+    /**
+     * Bytes at the start of the followed storage file (in follow mode) that are known to be in the model, up to
+     * the end of the last complete line read from it; or {@link #FOLLOWED_FILE_LENGTH_UNKNOWN} if the whole file
+     * has to be read to find its changes, e.g. as it is compressed.
+     */
+    private static long followedFileLength = FOLLOWED_FILE_LENGTH_UNKNOWN;
+
+    /**
+     * CRC-32 checksum of the first {@link #followedFileLength} bytes of the followed storage file (in follow
+     * mode), as they were when read, if that length is known.
+     */
+    private static long followedFileChecksum;
+
+    /**
+     * Changes that can be undone, most recent first.
+     */
+    private static final ArrayDeque<Object[]> UNDO_HISTORY = new ArrayDeque<>();
+
+    /**
+     * Changes that were undone and can be redone, most recently undone first.
+     * Cleared whenever a new change is made.
+     */
+    private static final ArrayDeque<Object[]> REDO_HISTORY = new ArrayDeque<>();
+
+    /**
+     * Estimated bytes held by all changes in {@link #UNDO_HISTORY} and {@link #REDO_HISTORY}.
+     */
+    private static long changeHistoryMemory = 0;
+
+    /**
+     * True if the storage file is known to hold exactly the persons in the model, each encoded the way
+     * this program encodes them. Only then can a change be saved by rewriting just the part of the file
+     * after the first changed person.
+     */
+    private static boolean isStorageFileCanonical = false;
+
+    /*
+     * The query indexes map a key to the persons in the heap model having it. They are only used by find
+     * queries (see FIND QUERY METHODS), so they are built by the first query that can use them and then
+     * kept up to date as the model changes.
+     *    NAME_WORD_QUERY_INDEX    - keyed by each word of the folded name
+     *    PHONE_PREFIX_QUERY_INDEX - keyed by the first QUERY_INDEX_PHONE_PREFIX_LENGTH digits of the phone
+     *    EMAIL_DOMAIN_QUERY_INDEX - keyed by the lower-cased part of the email after its last '@'
+     */
+    private static final HashMap<String, HashSet<String[]>> NAME_WORD_QUERY_INDEX = new HashMap<>();
+    private static final HashMap<String, HashSet<String[]>> PHONE_PREFIX_QUERY_INDEX = new HashMap<>();
+    private static final HashMap<String, HashSet<String[]>> EMAIL_DOMAIN_QUERY_INDEX = new HashMap<>();
+    private static boolean areQueryIndexesBuilt = false;
+
+    /**
+     * An order key for each person in the heap model while the query indexes are built: the keys grow along
+     * the model, so that the persons picked from the indexes by a query can be put in address book order by
+     * sorting them, without going through the whole model. Persons put between two others get keys between
+     * theirs, and all keys are spread out again when there is no room left (see assignQueryIndexOrderKeys).
+     */
+    private static final IdentityHashMap<String[], Long> QUERY_INDEX_ORDER_KEYS = new IdentityHashMap<>();
+
+    /**
+     * Maps each string left after deleting at most FIND_MAX_EDIT_DISTANCE characters from a key of
+     * NAME_WORD_QUERY_INDEX (the key itself included) to those keys, for fuzzy find queries.
+     * It is built by the first fuzzy query, after the other query indexes.
+     */
+    private static final HashMap<String, ArrayList<String>> FUZZY_NAME_WORD_QUERY_INDEX = new HashMap<>();
+    private static boolean isFuzzyQueryIndexBuilt = false;
+
+    /*
+     * The stats counters map a group to the number of persons in the model (of either backend) belonging
+     * to it, for the stats command (see STATS METHODS). Unlike the query indexes, they are always kept up to
+     * date as persons enter and leave the model, so that a report never has to look at the persons.
+     *    EMAIL_DOMAIN_COUNTS - keyed like EMAIL_DOMAIN_QUERY_INDEX
+     *    SURNAME_COUNTS      - keyed by the last word of the name, as written
+     */
+    private static final HashMap<String, Integer> EMAIL_DOMAIN_COUNTS = new HashMap<>();
+    private static final HashMap<String, Integer> SURNAME_COUNTS = new HashMap<>();
+
+    /**
+     * All open address books, keyed by name, from the least to the most recently used.
+     * The model variables above hold the model of the one in use.
+     */
+    private static final LinkedHashMap<String, Object[]> OPEN_BOOKS = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The open address book in use, whose storage file is {@link #storageFilePath}.
+     */
+    private static Object[] bookInUse;
+
+    /*
+     * The variables below hold the state of replication. They are used by the main thread and by the threads
+     * streaming changes to and from other processes, always while holding the lock of this class (which the
+     * main thread holds while executing a command).
+     *    REPLICATION_LOG                - ring of the most recent changes made on a primary, by sequence number
+     *    replicationLogStart            - sequence number of the oldest change still in the log
+     *    nextReplicationSequence        - sequence number the next change will get
+     *    isStandby                      - true until a standby is promoted
+     *    primaryStreamId                - identifies the run of the primary that the standby's changes came from
+     *    lastAppliedReplicationSequence - sequence number of the last change a standby applied
+     */
+    private static final String REPLICATION_STREAM_ID = UUID.randomUUID().toString();
+    private static final Object[] REPLICATION_LOG = new Object[REPLICATION_LOG_CAPACITY];
+    private static long replicationLogStart = 1;
+    private static long nextReplicationSequence = 1;
+    private static long replicationLogMemory = 0;
+    private static boolean isStandby = STANDBY_OF_PORT != 0;
+    private static String primaryStreamId = REPLICATION_NO_STREAM_ID;
+    private static long lastAppliedReplicationSequence = 0;
+    private static Socket primaryConnection;
+
+    /*
+     * The variables below hold the state of the change feed. Like those of replication, they are only used
+     * while holding the lock of this class.
+     *    CHANGE_FEED            - ring of the most recent events, by sequence number; each is a change (see the
+     *                             CHANGE_DATA constants) whose description is the name of the address book changed,
+     *                             or a reset, whose kind is CHANGE_FEED_MESSAGE_RESET and whose persons are a
+     *                             snapshot of that address book (see takeSnapshotOfAddressBook)
+     *    changeFeedStart        - sequence number of the oldest event still in the ring
+     *    nextChangeFeedSequence - sequence number the next event will get
+     *    isChangeFeedOn         - true once something may watch the feed; until then no events are kept
+     *    changeFeedWatcherCount - number of watchers being streamed the feed
+     */
+    private static final String CHANGE_FEED_ID = UUID.randomUUID().toString();
+    private static final Object[] CHANGE_FEED = new Object[CHANGE_FEED_CAPACITY];
+    private static long changeFeedStart = 1;
+    private static long nextChangeFeedSequence = 1;
+    private static long changeFeedMemory = 0;
+    private static boolean isChangeFeedOn = WATCH_PORT != 0;
+    private static int changeFeedWatcherCount = 0;
+
+    /*
+     * What each maintenance task did, indexed by MAINTENANCE_TASK_*: how many times it ran, when its last run
+     * finished (as System.nanoTime()), how long that run took (in nanoseconds) and what it did.
+     */
+    private static final int[] MAINTENANCE_TASK_RUN_COUNTS = new int[MAINTENANCE_TASK_NAMES.length];
+    private static final long[] MAINTENANCE_TASK_LAST_RUN_TIMES = new long[MAINTENANCE_TASK_NAMES.length];
+    private static final long[] MAINTENANCE_TASK_LAST_RUN_DURATIONS = new long[MAINTENANCE_TASK_NAMES.length];
+    private static final String[] MAINTENANCE_TASK_LAST_RUN_RESULTS = new String[MAINTENANCE_TASK_NAMES.length];
+
+    /**
+     * When the last command finished (as System.nanoTime()). Maintenance only runs once the program
+     * has been idle for long enough after it.
+     */
+    private static long lastCommandTime = System.nanoTime();
+
+    /*
+     * Set when the query indexes (and the fuzzy query index, if it was built) are dropped because many persons
+     * were removed at once, so that maintenance rebuilds them before a query has to.
+     */
+    private static boolean isQueryIndexRebuildDue = false;
+    private static boolean isFuzzyQueryIndexRebuildDue = false;
+
+    /**
+     * The index file of the address book the program started with, mapped into memory, while commands are
+     * answered from it; null once the model is loaded (the model is not loaded before that).
+     */
+    private static ByteBuffer indexFile = null;
+
     /*
      * ==============NOTE TO STUDENTS======================================
      * Notice how this method solves the whole problem at a very high level.
@@ -255,6 +1265,11 @@ public class AddressBook {
      * @param args full program arguments passed to application main method
      */
     private static void processProgramArgs(String[] args) {
+        if (!isValidModelBackend(MODEL_BACKEND)) {
+            showToUser(String.format(MESSAGE_INVALID_MODEL_BACKEND, MODEL_BACKEND));
+            exitProgram();
+        }
+
         if (args.length >= 2) {
             showToUser(MESSAGE_INVALID_PROGRAM_ARGS);
             exitProgram();
@@ -306,19 +1321,81 @@ public class AddressBook {
 
     /**
      * Returns true if the given file is acceptable.
-     * The file path is acceptable if it ends in '.txt'
+     * The file path is acceptable if it ends in '.txt' or, for a compressed file, '.txt.gz'
+     * (or, for a slotted file, '.txt.slotted')
      * TODO: Implement a more rigorous validity checking.
      */
     private static boolean isValidFilePath(String filePath) {
-        return filePath.endsWith(".txt");
+        return filePath.endsWith(STORAGE_FILE_EXTENSION)
+                || filePath.endsWith(STORAGE_FILE_EXTENSION + COMPRESSED_FILE_EXTENSION)
+                || filePath.endsWith(STORAGE_FILE_EXTENSION + SLOTTED_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns true if the given storage file is kept compressed.
+     */
+    private static boolean isCompressedFilePath(String filePath) {
+        return filePath.endsWith(COMPRESSED_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns true if the given storage file is kept in the slotted format.
+     */
+    private static boolean isSlottedFilePath(String filePath) {
+        return filePath.endsWith(SLOTTED_FILE_EXTENSION);
+    }
+
+    /**
+     * Returns true if the given model backend is one this program knows about.
+     */
+    private static boolean isValidModelBackend(String backend) {
+        return backend.equals(MODEL_BACKEND_HEAP) || backend.equals(MODEL_BACKEND_OFF_HEAP)
+                || backend.equals(MODEL_BACKEND_TIERED);
     }
 
     /**
      * Initialises the in-memory data using the storage file.
+     * Holds the lock of this class meanwhile, so that change feed watchers do not see a partly loaded model.
      * Assumption: The file exists.
      */
-    private static void loadDataFromStorage() {
-        initialiseAddressBookModel(loadPersonsFromFile(storageFilePath));
+    private static synchronized void loadDataFromStorage() {
+        bookInUse = makeOpenBook(getBookNameOfStorageFile(storageFilePath), storageFilePath);
+        OPEN_BOOKS.put(getBookName(bookInUse), bookInUse);
+        if (IS_INDEX_FILE_ON && !isModelNeededInBackground() && openIndexFile(storageFilePath)) {
+            showToUser(String.format(MESSAGE_USING_INDEX_FILE, getIndexFilePath(storageFilePath)));
+        } else {
+            loadModelFromStorageFile();
+        }
+        if (IS_FOLLOW_MODE) {
+            startWatchingStorageFile();
+            showToUser(String.format(MESSAGE_FOLLOWING_STORAGE_FILE, storageFilePath));
+        }
+        if (REPLICATION_PORT != 0) {
+            startAcceptingStandbys();
+            showToUser(String.format(MESSAGE_ACCEPTING_STANDBYS, REPLICATION_PORT));
+        }
+        if (STANDBY_OF_PORT != 0) {
+            startReceivingChangesFromPrimary();
+            showToUser(String.format(MESSAGE_STANDING_BY, STANDBY_OF_PORT));
+        }
+        if (WATCH_PORT != 0) {
+            startAcceptingWatchers();
+            showToUser(String.format(MESSAGE_ACCEPTING_WATCHERS, WATCH_PORT));
+        }
+        startMaintenance();
+    }
+
+    /**
+     * Fills the (empty) model with the persons in the storage file, and shows them all in the latest listing view.
+     * Exits program if the file cannot be read or decoded.
+     */
+    private static void loadModelFromStorageFile() {
+        if (isOffHeapBackend()) {
+            loadPersonsFromFileIntoOffHeapModel(storageFilePath);
+        } else {
+            initialiseAddressBookModel(loadPersonsFromFile(storageFilePath));
+        }
+        latestPersonListingView = getAllPersonsInAddressBook(); // initial view is of all
     }
 
 
@@ -330,25 +1407,65 @@ public class AddressBook {
 
     /**
      * Executes the command as specified by the {@code userInputString}
+     * Holds the lock of this class meanwhile, so that replication and maintenance threads do not change
+     * the model under it.
      *
      * @param userInputString  raw input from user
      * @return  feedback about how the command was executed
      */
-    public static String executeCommand(String userInputString) {
-        final String[] commandTypeAndParams = splitCommandWordAndArgs(userInputString);
-        final String commandType = commandTypeAndParams[0];
-        final String commandArgs = commandTypeAndParams[1];
+    public static synchronized String executeCommand(String userInputString) {
+        final String feedback = dispatchCommand(userInputString);
+        lastCommandTime = System.nanoTime();
+        return feedback;
+    }
+
+    /**
+     * Executes the command as specified by the {@code userInputString}, for {@link #executeCommand(String)}.
+     *
+     * @return  feedback about how the command was executed
+     */
+    private static String dispatchCommand(String userInputString) {
+        if (IS_FOLLOW_MODE) {
+            applyChangesFromFollowedStorageFile();
+        }
+        startTokenizing(userInputString);
+        final String commandType = readCommandWord();
+        if (isUsingIndexFile() && !isCommandAnsweredFromIndexFile(commandType)) {
+            loadModelInsteadOfIndexFile();
+        }
         switch (commandType) {
         case COMMAND_ADD_WORD:
-            return executeAddPerson(commandArgs);
+            return executeAddPerson(getRemainingInput());
         case COMMAND_FIND_WORD:
-            return executeFindPersons(commandArgs);
+            return executeFindPersons();
+        case COMMAND_COUNT_WORD:
+            return executeCountPersons();
         case COMMAND_LIST_WORD:
             return executeListAllPersonsInAddressBook();
         case COMMAND_DELETE_WORD:
-            return executeDeletePerson(commandArgs);
+            return executeDeletePerson();
+        case COMMAND_EDIT_WORD:
+            return executeEditPerson();
         case COMMAND_CLEAR_WORD:
             return executeClearAddressBook();
+        case COMMAND_UNDO_WORD:
+            return executeUndoChange();
+        case COMMAND_REDO_WORD:
+            return executeRedoChange();
+        case COMMAND_OPEN_WORD:
+            return executeOpenBook();
+        case COMMAND_USE_WORD:
+            return executeUseBook();
+        case COMMAND_STATS_WORD:
+            return executeShowStats();
+        case COMMAND_DEDUPE_WORD:
+            return executeDedupe();
+        case COMMAND_PROMOTE_WORD:
+            return executePromoteStandby();
+        case COMMAND_WATCH_WORD:
+            return executeShowChangeFeedStatus();
+        case COMMAND_MAINTENANCE_WORD:
+            return executeShowMaintenanceStatus();
         case COMMAND_HELP_WORD:
             return getUsageInfoForAllCommands();
         case COMMAND_EXIT_WORD:
@@ -359,13 +1476,24 @@ public class AddressBook {
     }
 
     /**
-     * Splits raw user input into command word and command arguments string
-     *
-     * @return  size 2 array; first element is the command type and second element is the arguments string
+     * Returns true if commands that change the address book must be refused.
+     */
+    private static boolean isAddressBookReadOnly() {
+        return IS_FOLLOW_MODE || isStandby;
+    }
+
+    /**
+     * Constructs a feedback message for a command refused because the address book is read-only.
      */
-    private static String[] splitCommandWordAndArgs(String rawUserInput) {
-        final String[] split =  rawUserInput.trim().split("\\s+", 2);
-        return split.length == 2 ? split : new String[] { split[0] , "" }; // else case: no parameters
+    private static String getMessageForReadOnlyAddressBook() {
+        return isStandby ? MESSAGE_STANDBY_READ_ONLY : String.format(MESSAGE_READ_ONLY_ADDRESS_BOOK, storageFilePath);
+    }
+
+    /**
+     * Returns true if no address book other than the one the program was started with can be opened.
+     */
+    private static boolean isSingleBookMode() {
+        return IS_FOLLOW_MODE || REPLICATION_PORT != 0 || STANDBY_OF_PORT != 0;
     }
 
     /**
@@ -378,6 +1506,17 @@ public class AddressBook {
         return String.format(MESSAGE_INVALID_COMMAND_FORMAT, userCommand, correctUsageInfo);
     }
 
+    /**
+     * Constructs a feedback message for a find or count command whose query is not well formed.
+     *
+     * @param queryStart where the query starts in the command being read
+     * @param correctUsageInfo message showing the correct usage
+     * @return invalid query feedback message
+     */
+    private static String getMessageForInvalidQuery(int queryStart, String correctUsageInfo) {
+        return String.format(MESSAGE_INVALID_QUERY, tokenizerInput.substring(queryStart).trim(), correctUsageInfo);
+    }
+
     /**
      * Adds a person (specified by the command args) to the address book.
      * The entire command arguments string is treated as a string representation of the person to add.
@@ -386,6 +1525,9 @@ public class AddressBook {
      * @return feedback display message for the operation result
      */
     private static String executeAddPerson(String commandArgs) {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
         // try decoding a person from the raw args
         final Optional<String[]> decodeResult = decodePersonFromString(commandArgs);
 
@@ -413,406 +1555,6471 @@ public class AddressBook {
     }
 
     /**
-     * Finds and lists all persons in address book whose name contains any of the argument keywords.
-     * Keyword matching is case sensitive.
+     * Finds and lists all persons in address book matching the query in the rest of the command being read.
+     * The query is usually just keywords, matching persons whose name contains any of them; it can also use
+     * FIELD:PATTERN terms and the AND, OR and NOT operators (see {@link #readQueryFromFindPersonArgs(boolean)}).
+     * Matching is case sensitive, unless the query is preceded by {@link #COMMAND_FIND_IGNORE_CASE_FLAG}.
+     * If the command starts with {@link #COMMAND_LIMIT_OPTION}, the search stops once that many persons are found.
+     * Each person is shown as soon as it is found. If the query is made of fuzzy keywords instead, see
+     * {@link #executeFuzzyFindPersons(int)}.
      *
-     * @param commandArgs full command args string from the user
      * @return feedback display message for the operation result
      */
-    private static String executeFindPersons(String commandArgs) {
-        final Set<String> keywords = extractKeywordsFromFindPersonArgs(commandArgs);
-        final ArrayList<String[]> personsFound = getPersonsWithNameContainingAnyKeyword(keywords);
-        showToUser(personsFound);
-        return getMessageForPersonsDisplayedSummary(personsFound);
+    private static String executeFindPersons() {
+        final int limit = readLimitOption();
+        final boolean isIgnoringCase = skipNextTokenIfEqualTo(COMMAND_FIND_IGNORE_CASE_FLAG);
+        if (limit != 0 && isNextTokenFuzzyKeyword()) {
+            return executeFuzzyFindPersons(limit);
+        }
+        final int queryStart = tokenEnd;
+        final Optional<Object[]> readResult = readQueryFromFindPersonArgs(isIgnoringCase);
+        if (limit == 0) {
+            return getMessageForInvalidCommandInput(COMMAND_FIND_WORD, getUsageInfoForFindCommand());
+        }
+        if (!readResult.isPresent()) {
+            return getMessageForInvalidQuery(queryStart, getUsageInfoForFindCommand());
+        }
+        final Object[] query = readResult.get();
+        startShowingPersonListing();
+        if (!isKeywordQuery(query)) {
+            forEachPersonMatchingQuery(query, isIgnoringCase, limit, AddressBook::showPersonInListing);
+        } else if (isIgnoringCase) {
+            forEachPersonWithFoldedNameContainingAnyKeyword(getKeywordsOfKeywordQuery(query), limit,
+                    AddressBook::showPersonInListing);
+        } else {
+            forEachPersonWithNameContainingAnyKeyword(getKeywordsOfKeywordQuery(query), limit,
+                    AddressBook::showPersonInListing);
+        }
+        return getMessageForPersonsDisplayedSummary(finishShowingPersonListing(), limit);
     }
 
     /**
-     * Constructs a feedback message to summarise an operation that displayed a listing of persons.
+     * Finds and lists the persons in address book whose names have a word spelt close to any of the fuzzy
+     * keywords in the rest of the command being read, closest first. Case and accents are always ignored.
+     * As the persons have to be ranked, they are only shown once all of them are found.
      *
-     * @param personsDisplayed used to generate summary
-     * @return summary message for persons displayed
+     * @param limit at most this many persons (the closest) are shown
+     * @return feedback display message for the operation result
      */
-    private static String getMessageForPersonsDisplayedSummary(ArrayList<String[]> personsDisplayed) {
-        return String.format(MESSAGE_PERSONS_FOUND_OVERVIEW, personsDisplayed.size());
+    private static String executeFuzzyFindPersons(int limit) {
+        final Optional<ArrayList<String>> readResult = readFuzzyKeywordsFromFindPersonArgs();
+        if (!readResult.isPresent()) {
+            return getMessageForInvalidCommandInput(COMMAND_FIND_WORD, getUsageInfoForFindCommand());
+        }
+        startShowingPersonListing();
+        forEachPersonWithNameCloseToAnyKeyword(readResult.get(), limit, AddressBook::showPersonInListing);
+        return getMessageForPersonsDisplayedSummary(finishShowingPersonListing(), limit);
     }
 
     /**
-     * Extract keywords from the command arguments given for the find persons command.
+     * Constructs a feedback message to summarise an operation that displayed a listing of persons.
      *
-     * @param findPersonCommandArgs full command args string for the find persons command
-     * @return set of keywords as specified by args
+     * @param personsDisplayedCount number of persons displayed
+     * @param limit the most persons the operation could display
+     * @return summary message for persons displayed
      */
-    private static Set<String> extractKeywordsFromFindPersonArgs(String findPersonCommandArgs) {
-        return new HashSet<>(splitByWhitespace(findPersonCommandArgs.trim()));
+    private static String getMessageForPersonsDisplayedSummary(int personsDisplayedCount, int limit) {
+        return String.format(personsDisplayedCount < limit ? MESSAGE_PERSONS_FOUND_OVERVIEW
+                                                           : MESSAGE_FIRST_PERSONS_FOUND_OVERVIEW,
+                personsDisplayedCount);
     }
 
     /**
-     * Retrieve all persons in the full model whose names contain some of the specified keywords.
+     * Reads the optional {@link #COMMAND_LIMIT_OPTION} and the number after it from the command being read.
      *
-     * @param keywords for searching
-     * @return list of persons in full model with name containing some of the keywords
+     * @return the number given, Integer.MAX_VALUE if there is no limit, or 0 if the number is not valid
      */
-    private static ArrayList<String[]> getPersonsWithNameContainingAnyKeyword(Collection<String> keywords) {
-        final ArrayList<String[]> matchedPersons = new ArrayList<>();
-        for (String[] person : getAllPersonsInAddressBook()) {
-            final Set<String> wordsInName = new HashSet<>(splitByWhitespace(getNameFromPerson(person)));
-            if (!Collections.disjoint(wordsInName, keywords)) {
-                matchedPersons.add(person);
-            }
+    private static int readLimitOption() {
+        if (!skipNextTokenIfEqualTo(COMMAND_LIMIT_OPTION)) {
+            return Integer.MAX_VALUE;
+        }
+        if (!advanceToNextToken()) {
+            return 0;
         }
-        return matchedPersons;
+        return Math.max(parseNumberInInput(tokenStart, tokenEnd), 0);
     }
 
     /**
-     * Deletes person identified using last displayed index.
+     * Counts the persons in address book matching the query in the rest of the command being read,
+     * as {@link #executeFindPersons()} would find them. Nothing is displayed and the last shown listing
+     * is kept, so no list of the matching persons is ever built.
      *
-     * @param commandArgs full command args string from the user
      * @return feedback display message for the operation result
      */
-    private static String executeDeletePerson(String commandArgs) {
-        if (!isDeletePersonArgsValid(commandArgs)) {
-            return getMessageForInvalidCommandInput(COMMAND_DELETE_WORD, getUsageInfoForDeleteCommand());
+    private static String executeCountPersons() {
+        final boolean isIgnoringCase = skipNextTokenIfEqualTo(COMMAND_FIND_IGNORE_CASE_FLAG);
+        if (isNextTokenFuzzyKeyword()) {
+            final Optional<ArrayList<String>> fuzzyKeywords = readFuzzyKeywordsFromFindPersonArgs();
+            if (!fuzzyKeywords.isPresent()) {
+                return getMessageForInvalidCommandInput(COMMAND_COUNT_WORD, getUsageInfoForCountCommand());
+            }
+            return String.format(MESSAGE_PERSONS_COUNTED_OVERVIEW,
+                    forEachPersonWithNameCloseToAnyKeyword(fuzzyKeywords.get(), Integer.MAX_VALUE, person -> { }));
         }
-        final int targetVisibleIndex = extractTargetIndexFromDeletePersonArgs(commandArgs);
-        if (!isDisplayIndexValidForLastPersonListingView(targetVisibleIndex)) {
-            return MESSAGE_INVALID_PERSON_DISPLAYED_INDEX;
+        final int queryStart = tokenEnd;
+        final Optional<Object[]> readResult = readQueryFromFindPersonArgs(isIgnoringCase);
+        if (!readResult.isPresent()) {
+            return getMessageForInvalidQuery(queryStart, getUsageInfoForCountCommand());
         }
-        final String[] targetInModel = getPersonByLastVisibleIndex(targetVisibleIndex);
-        return deletePersonFromAddressBook(targetInModel) ? getMessageForSuccessfulDelete(targetInModel) // success
-                                                          : MESSAGE_PERSON_NOT_IN_ADDRESSBOOK; // not found
+        return String.format(MESSAGE_PERSONS_COUNTED_OVERVIEW,
+                countPersonsMatchingQuery(readResult.get(), isIgnoringCase));
     }
 
     /**
-     * Checks validity of delete person argument string's format.
+     * Reads the query in the rest of the command being read, for the find persons command.
+     * A query is made up of terms combined with the operators NOT (binds tightest), AND, and OR. Terms next
+     * to each other without an operator are combined with OR, so plain keywords mean what they always did.
+     * A NOT between two terms means AND NOT. An operator word that can't be an operator where it is (e.g. alone)
+     * is a keyword, so persons named like an operator can still be found.
      *
-     * @param rawArgs raw command args string for the delete person command
-     * @return whether the input args string is valid
+     * @param isIgnoringCase if true, the name patterns are folded (see {@link #foldForSearch(String)})
+     * @return the query, or empty if it is not well formed
      */
-    private static boolean isDeletePersonArgsValid(String rawArgs) {
-        try {
-            final int extractedIndex = Integer.parseInt(rawArgs.trim()); // use standard libraries to parse
-            return extractedIndex >= DISPLAYED_INDEX_OFFSET;
-        } catch (NumberFormatException nfe) {
-            return false;
+    private static Optional<Object[]> readQueryFromFindPersonArgs(boolean isIgnoringCase) {
+        final ArrayList<Object[]> alternatives = new ArrayList<>();
+        while (!isAtEndOfInput()) {
+            final Optional<Object[]> conjunction = readQueryConjunction(isIgnoringCase);
+            if (!conjunction.isPresent()) {
+                return Optional.empty();
+            }
+            alternatives.add(conjunction.get());
+            skipNextTokenIfQueryOperator(COMMAND_FIND_QUERY_OR);
         }
+        return Optional.of(alternatives.size() == 1 ? alternatives.get(0)
+                                                    : makeQueryNode(QUERY_NODE_OR, alternatives));
     }
 
     /**
-     * Extracts the target's index from the raw delete person args string
+     * Moves past the next token if it is the given query operator and is not the last token, so that an
+     * operator word at the end of a query (e.g. in {@code find OR}, which looks for persons named OR) is
+     * still read as a keyword. Otherwise, stays where it is so that the next token can still be read.
      *
-     * @param rawArgs raw command args string for the delete person command
-     * @return extracted index
+     * @return true if the next token was read as the operator
      */
-    private static int extractTargetIndexFromDeletePersonArgs(String rawArgs) {
-        return Integer.parseInt(rawArgs.trim());
+    private static boolean skipNextTokenIfQueryOperator(String operator) {
+        final int currentStart = tokenStart;
+        final int currentEnd = tokenEnd;
+        if (skipNextTokenIfEqualTo(operator) && !isAtEndOfInput()) {
+            return true;
+        }
+        tokenStart = currentStart;
+        tokenEnd = currentEnd;
+        return false;
     }
 
     /**
-     * Checks that the given index is within bounds and valid for the last shown person list view.
-     *
-     * @param index to check
-     * @return whether it is valid
+     * Returns true if the next token of the command being read is a fuzzy keyword, i.e. it starts with
+     * {@link #COMMAND_FIND_FUZZY_MARKER}.
      */
-    private static boolean isDisplayIndexValidForLastPersonListingView(int index) {
-        return index >= DISPLAYED_INDEX_OFFSET && index < getLatestPersonListingView().size() + DISPLAYED_INDEX_OFFSET;
+    private static boolean isNextTokenFuzzyKeyword() {
+        return isCharInInputAt(skipWhitespaceInInput(tokenEnd), COMMAND_FIND_FUZZY_MARKER);
     }
 
     /**
-     * Constructs a feedback message for a successful delete person command execution.
+     * Reads the fuzzy keywords in the rest of the command being read, for the find persons command.
      *
-     * @see #executeDeletePerson(String)
-     * @param deletedPerson successfully deleted
-     * @return successful delete person feedback message
+     * @return the keywords without their markers, folded (see {@link #foldForSearch(String)}), or empty if
+     *         there are none or some token is not a fuzzy keyword
      */
-    private static String getMessageForSuccessfulDelete(String[] deletedPerson) {
-        return String.format(MESSAGE_DELETE_PERSON_SUCCESS, getMessageForFormattedPersonData(deletedPerson));
+    private static Optional<ArrayList<String>> readFuzzyKeywordsFromFindPersonArgs() {
+        final ArrayList<String> foldedKeywords = new ArrayList<>();
+        while (advanceToNextToken()) {
+            if (!isCharInInputAt(tokenStart, COMMAND_FIND_FUZZY_MARKER) || tokenEnd - tokenStart == 1) {
+                return Optional.empty();
+            }
+            foldedKeywords.add(foldForSearch(tokenizerInput.substring(tokenStart + 1, tokenEnd)));
+        }
+        return foldedKeywords.isEmpty() ? Optional.empty() : Optional.of(foldedKeywords);
     }
 
     /**
-     * Clears all persons in the address book.
+     * Reads query operands joined by AND (or AND NOT), for {@link #readQueryFromFindPersonArgs(boolean)}.
      *
-     * @return feedback display message for the operation result
+     * @return the operands combined with AND, or empty if they are not well formed
      */
-    private static String executeClearAddressBook() {
-        clearAddressBook();
-        return MESSAGE_ADDRESSBOOK_CLEARED;
+    private static Optional<Object[]> readQueryConjunction(boolean isIgnoringCase) {
+        final ArrayList<Object[]> operands = new ArrayList<>();
+        Optional<Object[]> operand = readQueryOperand(isIgnoringCase);
+        while (operand.isPresent()) {
+            operands.add(operand.get());
+            if (skipNextTokenIfQueryOperator(COMMAND_FIND_QUERY_AND)) {
+                operand = readQueryOperand(isIgnoringCase);
+            } else if (skipNextTokenIfQueryOperator(COMMAND_FIND_QUERY_NOT)) {
+                operand = readQueryOperand(isIgnoringCase).map(AddressBook::makeNegatedQuery);
+            } else {
+                return Optional.of(operands.size() == 1 ? operands.get(0) : makeQueryNode(QUERY_NODE_AND, operands));
+            }
+        }
+        return Optional.empty();
     }
 
     /**
-     * Displays all persons in the address book to the user; in added order.
+     * Reads a query term, or a query operand preceded by NOT, for {@link #readQueryFromFindPersonArgs(boolean)}.
+     * An AND or OR where a term is expected is a keyword, as is an operator at the end of the query.
      *
-     * @return feedback display message for the operation result
+     * @return the operand, or empty if it is missing or not well formed
      */
-    private static String executeListAllPersonsInAddressBook() {
-        ArrayList<String[]> toBeDisplayed = getAllPersonsInAddressBook();
-        showToUser(toBeDisplayed);
-        return getMessageForPersonsDisplayedSummary(toBeDisplayed);
+    private static Optional<Object[]> readQueryOperand(boolean isIgnoringCase) {
+        if (skipNextTokenIfQueryOperator(COMMAND_FIND_QUERY_NOT)) {
+            return readQueryOperand(isIgnoringCase).map(AddressBook::makeNegatedQuery);
+        }
+        if (!advanceToNextToken()) {
+            return Optional.empty();
+        }
+        final int separator = tokenizerInput.indexOf(COMMAND_FIND_QUERY_FIELD_SEPARATOR, tokenStart);
+        if (separator < 0 || separator >= tokenEnd) { // a plain keyword is a name term
+            return Optional.of(makeQueryTerm(PERSON_DATA_INDEX_NAME, getToken(), isIgnoringCase));
+        }
+        final int field = getPersonDataIndexOfQueryField(tokenStart, separator);
+        final String pattern = tokenizerInput.substring(separator + 1, tokenEnd);
+        if (field < 0 || pattern.isEmpty()) {
+            return Optional.empty();
+        }
+        return Optional.of(makeQueryTerm(field, pattern, isIgnoringCase));
     }
 
     /**
-     * Request to terminate the program.
+     * Returns the PERSON_DATA_INDEX_* of the query field named by the characters of the command in [start, end),
+     * or -1 if there is no such field.
+     */
+    private static int getPersonDataIndexOfQueryField(int start, int end) {
+        if (isInputRangeEqualTo(start, end, COMMAND_FIND_QUERY_FIELD_NAME)) {
+            return PERSON_DATA_INDEX_NAME;
+        }
+        if (isInputRangeEqualTo(start, end, COMMAND_FIND_QUERY_FIELD_PHONE)) {
+            return PERSON_DATA_INDEX_PHONE;
+        }
+        if (isInputRangeEqualTo(start, end, COMMAND_FIND_QUERY_FIELD_EMAIL)) {
+            return PERSON_DATA_INDEX_EMAIL;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns true if the query is only keywords: name terms without wildcards, combined with OR.
+     * Such a query is answered by the keyword search, which is cheaper than evaluating it as a query.
+     */
+    private static boolean isKeywordQuery(Object[] query) {
+        if (getQueryNodeKind(query).equals(QUERY_NODE_TERM)) {
+            return isKeywordQueryTerm(query);
+        }
+        if (!getQueryNodeKind(query).equals(QUERY_NODE_OR)) {
+            return false;
+        }
+        for (Object[] operand : getQueryOperands(query)) {
+            if (!getQueryNodeKind(operand).equals(QUERY_NODE_TERM) || !isKeywordQueryTerm(operand)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isKeywordQueryTerm(Object[] term) {
+        return getQueryTermField(term) == PERSON_DATA_INDEX_NAME
+                && getQueryTermPattern(term).indexOf(COMMAND_FIND_QUERY_WILDCARD) < 0;
+    }
+
+    /**
+     * @param keywordQuery a query for which {@link #isKeywordQuery(Object[])} is true
+     * @return the keywords in the query
+     */
+    private static ArrayList<String> getKeywordsOfKeywordQuery(Object[] keywordQuery) {
+        final ArrayList<String> keywords = new ArrayList<>();
+        if (getQueryNodeKind(keywordQuery).equals(QUERY_NODE_TERM)) {
+            keywords.add(getQueryTermPattern(keywordQuery));
+            return keywords;
+        }
+        for (Object[] term : getQueryOperands(keywordQuery)) {
+            keywords.add(getQueryTermPattern(term));
+        }
+        return keywords;
+    }
+
+    /**
+     * Passes each person in the full model whose name contains some of the specified keywords to the consumer,
+     * in address book order, as soon as it is found.
      *
-     * @return feedback display message for the operation result
+     * @param keywords for searching
+     * @param limit the search stops as soon as this many persons are found
+     * @param matchConsumer given each person found
+     * @return number of persons found
      */
-    private static void executeExitProgramRequest() {
-        exitProgram();
+    private static int forEachPersonWithNameContainingAnyKeyword(Collection<String> keywords, int limit,
+                                                                 Consumer<String[]> matchConsumer) {
+        if (isUsingIndexFile()) {
+            return forEachIndexFilePersonWithNameContainingAnyKeyword(keywords, false, limit, matchConsumer);
+        }
+        if (isOffHeapBackend()) {
+            return forEachOffHeapPersonWithNameContainingAnyKeyword(keywords, false, limit, matchConsumer);
+        }
+        int found = 0;
+        for (int i = 0; i < ALL_PERSONS.size() && found < limit; i++) {
+            if (isAnyKeywordAWordIn(getNameFromPerson(ALL_PERSONS.get(i)), keywords)) {
+                matchConsumer.accept(ALL_PERSONS.get(i));
+                found++;
+            }
+        }
+        return found;
     }
 
-    /*
-     * ===========================================
-     *               UI LOGIC
-     * ===========================================
+    /**
+     * Passes each person in the full model whose folded name contains some of the specified folded keywords to
+     * the consumer, in address book order, as soon as it is found.
+     * Uses the folded names computed when the persons entered the model, so no name is folded here.
+     *
+     * @param foldedKeywords for searching, already folded
+     * @param limit the search stops as soon as this many persons are found
+     * @param matchConsumer given each person found
+     * @return number of persons found
      */
+    private static int forEachPersonWithFoldedNameContainingAnyKeyword(Collection<String> foldedKeywords, int limit,
+                                                                       Consumer<String[]> matchConsumer) {
+        if (isUsingIndexFile()) {
+            return forEachIndexFilePersonWithNameContainingAnyKeyword(foldedKeywords, true, limit, matchConsumer);
+        }
+        if (isOffHeapBackend()) {
+            return forEachOffHeapPersonWithNameContainingAnyKeyword(foldedKeywords, true, limit, matchConsumer);
+        }
+        int found = 0;
+        for (int i = 0; i < ALL_PERSONS.size() && found < limit; i++) {
+            if (isAnyKeywordAWordIn(ALL_PERSONS.get(i)[PERSON_DATA_INDEX_FOLDED_NAME], foldedKeywords)) {
+                matchConsumer.accept(ALL_PERSONS.get(i));
+                found++;
+            }
+        }
+        return found;
+    }
 
     /**
-     * Prompts for the command and reads the text entered by the user.
-     * Ignores lines with first non-whitespace char equal to {@link #INPUT_COMMENT_MARKER} (considered comments)
+     * Passes the persons in the full model whose folded name has a word close to some of the specified folded
+     * keywords to the consumer, closest first (and persons as close as each other in address book order).
+     * A word is close to a keyword if it is at most {@link #getMaxEditDistanceOfFuzzyKeyword(String)} edits
+     * away from it. With the heap backend, the close words are looked up in the fuzzy query index; otherwise
+     * every person is checked.
      *
-     * @return full line entered by the user
+     * @param foldedKeywords for searching, already folded
+     * @param limit at most this many persons (the closest) are passed to the consumer
+     * @param matchConsumer given each person found
+     * @return number of persons found
      */
-    private static String getUserInput() {
-        System.out.print(LINE_PREFIX + "Enter command: ");
-        String inputLine = SCANNER.nextLine();
-        // silently consume all blank and comment lines
-        while (inputLine.trim().isEmpty() || inputLine.trim().charAt(0) == INPUT_COMMENT_MARKER) {
-            inputLine = SCANNER.nextLine();
+    private static int forEachPersonWithNameCloseToAnyKeyword(Collection<String> foldedKeywords, int limit,
+                                                              Consumer<String[]> matchConsumer) {
+        if (isUsingIndexFile()) {
+            loadModelInsteadOfIndexFile(); // the index file can only look names up by their exact words
         }
-        return inputLine;
+        final ArrayList<ArrayList<String[]>> personsByDistance = new ArrayList<>();
+        for (int distance = 0; distance <= FIND_MAX_EDIT_DISTANCE; distance++) {
+            personsByDistance.add(new ArrayList<>());
+        }
+        if (isOffHeapBackend()) {
+            final HashMap<String, Integer> wordDistances = new HashMap<>(); // many names share words
+            forEachPersonInAddressBook(Integer.MAX_VALUE, person -> {
+                final int distance = getEditDistanceOfClosestWord(getFoldedNameFromPerson(person), foldedKeywords,
+                                                                  wordDistances);
+                if (distance <= FIND_MAX_EDIT_DISTANCE) {
+                    personsByDistance.get(distance).add(person);
+                }
+            });
+        } else {
+            ensureFuzzyQueryIndexBuilt();
+            final HashMap<String[], Integer> distances = new HashMap<>(); // arrays are compared by identity
+            for (String keyword : foldedKeywords) {
+                for (Map.Entry<String, Integer> closeWord : getNameWordsCloseTo(keyword).entrySet()) {
+                    for (String[] person : NAME_WORD_QUERY_INDEX.get(closeWord.getKey())) {
+                        distances.merge(person, closeWord.getValue(), Math::min);
+                    }
+                }
+            }
+            for (String[] person : sortIntoAddressBookOrder(distances.keySet())) {
+                personsByDistance.get(distances.get(person)).add(person);
+            }
+        }
+        int found = 0;
+        for (ArrayList<String[]> persons : personsByDistance) {
+            for (int i = 0; i < persons.size() && found < limit; i++) {
+                matchConsumer.accept(persons.get(i));
+                found++;
+            }
+        }
+        return found;
     }
 
-   /* ==============NOTE TO STUDENTS======================================
-    * Note how the method below uses Java 'Varargs' feature so that the
-    * method can accept a varying number of message parameters.
-    * ====================================================================
-    */
     /**
-     * Shows a message to the user
+     * Returns the fewest edits between a word of the folded name and a folded keyword it is close to, or more
+     * than {@link #FIND_MAX_EDIT_DISTANCE} if no word is close to any keyword.
+     *
+     * @param wordDistances remembers the result for each word already checked
      */
-    private static void showToUser(String... message) {
-        for (String m : message) {
-            System.out.println(LINE_PREFIX + m);
+    private static int getEditDistanceOfClosestWord(String foldedName, Collection<String> foldedKeywords,
+                                                    HashMap<String, Integer> wordDistances) {
+        int closest = FIND_MAX_EDIT_DISTANCE + 1;
+        for (int wordStart = 0, wordEnd; wordStart < foldedName.length(); wordStart = wordEnd + 1) {
+            wordEnd = getEndOfFoldedWord(foldedName, wordStart);
+            final String word = foldedName.substring(wordStart, wordEnd);
+            Integer wordDistance = wordDistances.get(word);
+            if (wordDistance == null) {
+                wordDistance = FIND_MAX_EDIT_DISTANCE + 1;
+                for (String keyword : foldedKeywords) {
+                    final int maxDistance = getMaxEditDistanceOfFuzzyKeyword(keyword);
+                    final int distance = getEditDistance(keyword, word, maxDistance);
+                    if (distance <= maxDistance) {
+                        wordDistance = Math.min(wordDistance, distance);
+                    }
+                }
+                wordDistances.put(word, wordDistance);
+            }
+            closest = Math.min(closest, wordDistance);
         }
+        return closest;
+    }
+
+    /**
+     * Returns the most edits a name word can be away from the folded fuzzy keyword and still match it.
+     */
+    private static int getMaxEditDistanceOfFuzzyKeyword(String foldedKeyword) {
+        return Math.min(FIND_MAX_EDIT_DISTANCE, foldedKeyword.length() / FUZZY_KEYWORD_LENGTH_PER_EDIT);
     }
 
     /**
-     * Shows the list of persons to the user.
-     * The list will be indexed, starting from 1.
+     * Deletes persons identified using last displayed indexes given in the rest of the command being read:
+     * a single index, a range of indexes, a comma-separated list of indexes (or ranges), or all persons shown.
+     * All targets are removed together and the storage file is saved once.
      *
+     * @return feedback display message for the operation result
      */
-    private static void showToUser(ArrayList<String[]> persons) {
-        String listAsString = getDisplayString(persons);
-        showToUser(listAsString);
-        updateLatestViewedPersonListing(persons);
+    private static String executeDeletePerson() {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        final Optional<ArrayList<int[]>> readResult = readTargetIndexRangesFromDeletePersonArgs();
+        if (!readResult.isPresent()) {
+            return getMessageForInvalidCommandInput(COMMAND_DELETE_WORD, getUsageInfoForDeleteCommand());
+        }
+        final ArrayList<int[]> targetIndexRanges = readResult.get();
+        for (int[] range : targetIndexRanges) {
+            if (!isDisplayIndexRangeValidForLastPersonListingView(range)) {
+                return MESSAGE_INVALID_PERSON_DISPLAYED_INDEX;
+            }
+        }
+        final ArrayList<String[]> targetsInModel = getPersonsByLastVisibleIndexRanges(targetIndexRanges);
+        final ArrayList<String[]> deletedPersons = deletePersonsFromAddressBook(targetsInModel);
+        if (targetsInModel.size() == 1) {
+            return deletedPersons.isEmpty() ? MESSAGE_PERSON_NOT_IN_ADDRESSBOOK // not found
+                                            : getMessageForSuccessfulDelete(deletedPersons.get(0)); // success
+        }
+        return getMessageForSuccessfulDeletes(targetsInModel.size(), deletedPersons.size());
     }
 
     /**
-     * Returns the display string representation of the list of persons.
+     * Reads the targets' indexes from the rest of the command being read, for the delete person command.
+     * Checks the format while reading, so each index is parsed only once.
+     * A single index is given as a range with the same first and last index.
+     *
+     * @return if the format is invalid (e.g. a range whose first index is after its last): empty Optional
+     *         else: Optional containing the ranges, each a size 2 array of its first and last index (inclusive)
      */
-    private static String getDisplayString(ArrayList<String[]> persons) {
-        final StringBuilder messageAccumulator = new StringBuilder();
-        for (int i = 0; i < persons.size(); i++) {
-            final String[] person = persons.get(i);
-            final int displayIndex = i + DISPLAYED_INDEX_OFFSET;
-            messageAccumulator.append('\t')
-                              .append(getIndexedPersonListElementMessage(displayIndex, person))
-                              .append(LS);
+    private static Optional<ArrayList<int[]>> readTargetIndexRangesFromDeletePersonArgs() {
+        final ArrayList<int[]> ranges = new ArrayList<>();
+        if (skipNextTokenIfEqualTo(COMMAND_DELETE_ALL_SHOWN)) {
+            ranges.add(new int[] { DISPLAYED_INDEX_OFFSET,
+                                   getLatestPersonListingView().size() + DISPLAYED_INDEX_OFFSET - 1 });
+            return advanceToNextToken() ? Optional.empty() : Optional.of(ranges);
+        }
+        int position = tokenEnd;
+        while (true) {
+            final int firstStart = skipWhitespaceInInput(position);
+            final int firstEnd = skipNumberInInput(firstStart);
+            final int first = parseNumberInInput(firstStart, firstEnd);
+            int last = first;
+            position = skipWhitespaceInInput(firstEnd);
+            if (isCharInInputAt(position, COMMAND_DELETE_RANGE_SEPARATOR)) {
+                final int lastStart = skipWhitespaceInInput(position + 1);
+                final int lastEnd = skipNumberInInput(lastStart);
+                last = parseNumberInInput(lastStart, lastEnd);
+                position = skipWhitespaceInInput(lastEnd);
+            }
+            if (first < DISPLAYED_INDEX_OFFSET || last < first) {
+                return Optional.empty();
+            }
+            ranges.add(new int[] { first, last });
+            if (position == tokenizerInput.length()) {
+                return Optional.of(ranges);
+            }
+            if (!isCharInInputAt(position, COMMAND_DELETE_TARGET_SEPARATOR)) {
+                return Optional.empty();
+            }
+            position++;
         }
-        return messageAccumulator.toString();
     }
 
     /**
-     * Constructs a prettified listing element message to represent a person and their data.
+     * Checks that every index in the given range is valid for the last shown person list view.
+     * An empty range (e.g. all persons shown in an empty listing) is valid.
      *
-     * @param visibleIndex visible index for this listing
-     * @param person to show
-     * @return formatted listing message with index
+     * @param range size 2 array of the first and last index (both inclusive)
+     * @return whether it is valid
      */
-    private static String getIndexedPersonListElementMessage(int visibleIndex, String[] person) {
-        return String.format(MESSAGE_DISPLAY_LIST_ELEMENT_INDEX, visibleIndex) + getMessageForFormattedPersonData(person);
+    private static boolean isDisplayIndexRangeValidForLastPersonListingView(int[] range) {
+        return range[0] > range[1]
+                || isDisplayIndexValidForLastPersonListingView(range[0])
+                        && isDisplayIndexValidForLastPersonListingView(range[1]);
     }
 
     /**
-     * Constructs a prettified string to show the user a person's data.
+     * Constructs a feedback message for a delete persons command execution with more than one target.
      *
-     * @param person to show
-     * @return formatted message showing internal state
+     * @see #executeDeletePerson(String)
+     * @param targetCount number of persons the user asked to delete
+     * @param deletedCount number of them that were still in the address book and got deleted
+     * @return delete persons feedback message
      */
-    private static String getMessageForFormattedPersonData(String[] person) {
-        return String.format(MESSAGE_DISPLAY_PERSON_DATA,
-                getNameFromPerson(person), getPhoneFromPerson(person), getEmailFromPerson(person));
+    private static String getMessageForSuccessfulDeletes(int targetCount, int deletedCount) {
+        return deletedCount == targetCount ? String.format(MESSAGE_DELETE_PERSONS_SUCCESS, deletedCount)
+                                           : String.format(MESSAGE_DELETE_PERSONS_PARTIAL, deletedCount,
+                                                           targetCount - deletedCount);
     }
 
     /**
-     * Updates the latest person listing view the user has seen.
+     * Checks that the given index is within bounds and valid for the last shown person list view.
      *
-     * @param newListing the new listing of persons
+     * @param index to check
+     * @return whether it is valid
      */
-    private static void updateLatestViewedPersonListing(ArrayList<String[]> newListing) {
-        // clone to insulate from future changes to arg list
-        latestPersonListingView = new ArrayList<>(newListing);
+    private static boolean isDisplayIndexValidForLastPersonListingView(int index) {
+        return index >= DISPLAYED_INDEX_OFFSET && index < getLatestPersonListingView().size() + DISPLAYED_INDEX_OFFSET;
     }
 
     /**
-     * Retrieves the person identified by the displayed index from the last shown listing of persons.
+     * Constructs a feedback message for a successful delete person command execution.
      *
-     * @param lastVisibleIndex displayed index from last shown person listing
-     * @return the actual person object in the last shown person listing
+     * @see #executeDeletePerson(String)
+     * @param deletedPerson successfully deleted
+     * @return successful delete person feedback message
      */
-    private static String[] getPersonByLastVisibleIndex(int lastVisibleIndex) {
-       return latestPersonListingView.get(lastVisibleIndex - DISPLAYED_INDEX_OFFSET);
+    private static String getMessageForSuccessfulDelete(String[] deletedPerson) {
+        return String.format(MESSAGE_DELETE_PERSON_SUCCESS, getMessageForFormattedPersonData(deletedPerson));
     }
 
     /**
-     * @return unmodifiable list view of the last person listing view
+     * Changes the phone number and/or the email of the person identified using the last displayed index given
+     * in the rest of the command being read. The person keeps its name and its place in the address book,
+     * so only its own record has to be saved.
+     *
+     * @return feedback display message for the operation result
      */
-    private static ArrayList<String[]> getLatestPersonListingView() {
-        return latestPersonListingView;
+    private static String executeEditPerson() {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        final int targetVisibleIndex = advanceToNextToken() ? parseNumberInInput(tokenStart, tokenEnd) : -1;
+        final Optional<String[]> readResult = readEditedFieldsFromEditPersonArgs();
+        if (targetVisibleIndex < 0 || !readResult.isPresent()) {
+            return getMessageForInvalidCommandInput(COMMAND_EDIT_WORD, getUsageInfoForEditCommand());
+        }
+        if (!isDisplayIndexValidForLastPersonListingView(targetVisibleIndex)) {
+            return MESSAGE_INVALID_PERSON_DISPLAYED_INDEX;
+        }
+        final String[] targetInModel = getPersonByLastVisibleIndex(targetVisibleIndex);
+        final int[] positions = getIndexesOfPersonsInAddressBook(asPersonList(targetInModel));
+        if (positions.length == 0) {
+            return MESSAGE_PERSON_NOT_IN_ADDRESSBOOK;
+        }
+        final String[] editedFields = readResult.get();
+        final String[] editedPerson = makePersonFromData(getNameFromPerson(targetInModel),
+                editedFields[PERSON_DATA_INDEX_PHONE] != null ? editedFields[PERSON_DATA_INDEX_PHONE]
+                                                             : getPhoneFromPerson(targetInModel),
+                editedFields[PERSON_DATA_INDEX_EMAIL] != null ? editedFields[PERSON_DATA_INDEX_EMAIL]
+                                                             : getEmailFromPerson(targetInModel));
+        final String[] editedPersonInModel = editPersonInAddressBook(positions[0], editedPerson);
+        // the listing keeps showing the person, so that it can be edited again by the same index
+        latestPersonListingView.set(targetVisibleIndex - DISPLAYED_INDEX_OFFSET, editedPersonInModel);
+        return String.format(MESSAGE_EDIT_PERSON_SUCCESS, getMessageForFormattedPersonData(editedPersonInModel));
     }
 
+    /**
+     * Reads the new phone number and email from the rest of the command being read, for the edit person command.
+     * Each is given at most once, with its data prefix, in any order.
+     *
+     * @return if the format is invalid (e.g. neither is given, or one is not valid): empty Optional
+     *         else: Optional containing a person array with the given fields set and the others null
+     */
+    private static Optional<String[]> readEditedFieldsFromEditPersonArgs() {
+        final String[] editedFields = new String[PERSON_DATA_COUNT];
+        boolean isAnyFieldGiven = false;
+        while (advanceToNextToken()) {
+            final String token = getToken();
+            if (token.startsWith(PERSON_DATA_PREFIX_PHONE) && editedFields[PERSON_DATA_INDEX_PHONE] == null) {
+                editedFields[PERSON_DATA_INDEX_PHONE] = removePrefixSign(token, PERSON_DATA_PREFIX_PHONE);
+                if (!isPersonPhoneValid(editedFields[PERSON_DATA_INDEX_PHONE])) {
+                    return Optional.empty();
+                }
+            } else if (token.startsWith(PERSON_DATA_PREFIX_EMAIL) && editedFields[PERSON_DATA_INDEX_EMAIL] == null) {
+                editedFields[PERSON_DATA_INDEX_EMAIL] = removePrefixSign(token, PERSON_DATA_PREFIX_EMAIL);
+                if (!isPersonEmailValid(editedFields[PERSON_DATA_INDEX_EMAIL])) {
+                    return Optional.empty();
+                }
+            } else {
+                return Optional.empty();
+            }
+            isAnyFieldGiven = true;
+        }
+        return isAnyFieldGiven ? Optional.of(editedFields) : Optional.empty();
+    }
 
-    /*
-     * ===========================================
-     *             STORAGE LOGIC
-     * ===========================================
+    /**
+     * Clears all persons in the address book.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeClearAddressBook() {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        clearAddressBook();
+        return MESSAGE_ADDRESSBOOK_CLEARED;
+    }
+
+    /**
+     * Reverts the most recent change that has not been undone yet, together with the changes it is joined
+     * with (see {@link #isJoinedWithPreviousChange(Object[])}).
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeUndoChange() {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        if (UNDO_HISTORY.isEmpty()) {
+            return MESSAGE_NOTHING_TO_UNDO;
+        }
+        Object[] change;
+        do {
+            change = UNDO_HISTORY.pop();
+            applyChangeToAddressBook(change, true);
+            REDO_HISTORY.push(change);
+        } while (isJoinedWithPreviousChange(change) && !UNDO_HISTORY.isEmpty());
+        return String.format(MESSAGE_UNDONE, change[CHANGE_DATA_INDEX_DESCRIPTION]);
+    }
+
+    /**
+     * Reapplies the change most recently reverted by {@link #executeUndoChange()}, together with the changes
+     * joined with it.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeRedoChange() {
+        if (isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        if (REDO_HISTORY.isEmpty()) {
+            return MESSAGE_NOTHING_TO_REDO;
+        }
+        Object[] change;
+        do {
+            change = REDO_HISTORY.pop();
+            applyChangeToAddressBook(change, false);
+            UNDO_HISTORY.push(change);
+        } while (!REDO_HISTORY.isEmpty() && isJoinedWithPreviousChange(REDO_HISTORY.peek()));
+        return String.format(MESSAGE_REDONE, change[CHANGE_DATA_INDEX_DESCRIPTION]);
+    }
+
+    /**
+     * Displays all persons in the address book to the user; in added order.
+     * If the command gives {@link #COMMAND_LIMIT_OPTION}, only that many persons are displayed.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeListAllPersonsInAddressBook() {
+        final int limit = readLimitOption();
+        if (limit == 0) {
+            return getMessageForInvalidCommandInput(COMMAND_LIST_WORD, getUsageInfoForViewCommand());
+        }
+        startShowingPersonListing();
+        forEachPersonInAddressBook(limit, AddressBook::showPersonInListing);
+        return getMessageForPersonsDisplayedSummary(finishShowingPersonListing(), limit);
+    }
+
+    /**
+     * Opens the address book kept in the storage file given by the command, creating the file if it is
+     * missing, and uses it from now on. If that book is already open, just switches to it.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeOpenBook() {
+        final String filePath = getRemainingInput();
+        if (filePath.isEmpty()) {
+            return getMessageForInvalidCommandInput(COMMAND_OPEN_WORD, getUsageInfoForOpenCommand());
+        }
+        if (!isValidFilePath(filePath)) {
+            return String.format(MESSAGE_INVALID_FILE, filePath);
+        }
+        final String name = getBookNameOfStorageFile(filePath);
+        Object[] book = OPEN_BOOKS.get(name);
+        if (book != null && !isSameFilePath(getBookStorageFilePath(book), filePath)) {
+            return String.format(MESSAGE_BOOK_NAME_TAKEN, name, getBookStorageFilePath(book));
+        }
+        if (book == null) {
+            if (isSingleBookMode()) {
+                return MESSAGE_BOOKS_IN_SINGLE_BOOK_MODE;
+            }
+            createFileIfMissing(filePath);
+            book = makeOpenBook(name, filePath);
+            OPEN_BOOKS.put(name, book);
+        }
+        useBook(book);
+        return getMessageForBookInUse();
+    }
+
+    /**
+     * Switches to the open address book named by the command, or lists the open address books
+     * if the command names none.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeUseBook() {
+        final String name = getRemainingInput();
+        if (name.isEmpty()) {
+            return getMessageForOpenBooksOverview();
+        }
+        final Object[] book = OPEN_BOOKS.get(name);
+        if (book == null) {
+            return String.format(MESSAGE_BOOK_NOT_OPEN, name);
+        }
+        useBook(book);
+        return getMessageForBookInUse();
+    }
+
+    private static String getMessageForBookInUse() {
+        return String.format(MESSAGE_BOOK_IN_USE, getBookName(bookInUse), getAddressBookSize(), storageFilePath);
+    }
+
+    /**
+     * Constructs a feedback message listing the open address books, least recently used first.
+     */
+    private static String getMessageForOpenBooksOverview() {
+        final ArrayList<String> descriptions = new ArrayList<>();
+        for (Object[] book : OPEN_BOOKS.values()) {
+            descriptions.add(book == bookInUse ? String.format(MESSAGE_BOOK_USED, getBookName(book))
+                             : isBookLoaded(book) ? getBookName(book)
+                             : String.format(MESSAGE_BOOK_NOT_LOADED, getBookName(book)));
+        }
+        return String.format(MESSAGE_OPEN_BOOKS_OVERVIEW, descriptions.size(), String.join(", ", descriptions));
+    }
+
+    /**
+     * Shows the groups of persons (email domains or surnames, as the rest of the command being read asks)
+     * having the most persons, largest first. The counts are kept up to date as the address book changes,
+     * so this takes no longer for a big address book than for a small one.
+     * If the command gives {@link #COMMAND_LIMIT_OPTION}, that many groups are shown instead of
+     * {@link #COMMAND_STATS_DEFAULT_TOP_COUNT}. If the command is {@link #COMMAND_STATS_CACHE} instead,
+     * shows the page cache counters of the tiered model.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeShowStats() {
+        if (skipNextTokenIfEqualTo(COMMAND_STATS_CACHE)) {
+            if (!isAtEndOfInput()) {
+                return getMessageForInvalidCommandInput(COMMAND_STATS_WORD, getUsageInfoForStatsCommand());
+            }
+            return getMessageForPageCacheStats();
+        }
+        final int limit = readLimitOption();
+        final boolean isShowingDomains = skipNextTokenIfEqualTo(COMMAND_STATS_DOMAINS);
+        if (limit == 0 || !isShowingDomains && !skipNextTokenIfEqualTo(COMMAND_STATS_SURNAMES)
+                || !isAtEndOfInput()) {
+            return getMessageForInvalidCommandInput(COMMAND_STATS_WORD, getUsageInfoForStatsCommand());
+        }
+        return getMessageForStats(isShowingDomains ? EMAIL_DOMAIN_COUNTS : SURNAME_COUNTS,
+                isShowingDomains ? MESSAGE_STATS_EMAIL_DOMAINS : MESSAGE_STATS_SURNAMES,
+                limit == Integer.MAX_VALUE ? COMMAND_STATS_DEFAULT_TOP_COUNT : limit);
+    }
+
+    /**
+     * Constructs a feedback message listing the largest groups in the given stats counter, largest first.
+     *
+     * @param counts stats counter of the groups to show
+     * @param groupsName what the groups are, for the user
+     * @param topCount at most this many groups are shown
+     */
+    private static String getMessageForStats(HashMap<String, Integer> counts, String groupsName, int topCount) {
+        final ArrayList<Map.Entry<String, Integer>> topGroups = getLargestGroups(counts, topCount);
+        final StringBuilder stats = new StringBuilder(topGroups.size() < counts.size()
+                ? String.format(MESSAGE_STATS_TOP_OVERVIEW, topGroups.size(), counts.size(), groupsName,
+                                getAddressBookSize())
+                : String.format(MESSAGE_STATS_OVERVIEW, counts.size(), groupsName, getAddressBookSize()));
+        for (int i = 0; i < topGroups.size(); i++) {
+            stats.append(LS).append(String.format(MESSAGE_STATS_GROUP, i + 1, topGroups.get(i).getKey(),
+                                                  topGroups.get(i).getValue()));
+        }
+        return stats.toString();
+    }
+
+    /**
+     * Constructs a feedback message giving the page cache counters of the tiered model, counted since the
+     * program started.
+     */
+    private static String getMessageForPageCacheStats() {
+        if (!isTieredBackend()) {
+            return MESSAGE_STATS_PAGE_CACHE_OFF;
+        }
+        final long accesses = tieredCacheHits + tieredCacheMisses;
+        return String.format(MESSAGE_STATS_PAGE_CACHE, tieredFramesInUse, TIERED_CACHE_FRAME_COUNT,
+                TIERED_PAGE_SIZE / 1024, getTieredPageCount(), tieredCacheHits, tieredCacheMisses,
+                accesses == 0 ? 0.0 : 100.0 * tieredCacheHits / accesses, tieredCacheEvictions,
+                tieredCacheWriteBacks);
+    }
+
+    /**
+     * Finds the clusters of near-duplicates in the address book (see {@link #findNearDuplicateClusters()}) and
+     * lists their persons, cluster by cluster, so that they can be deleted by their displayed index. If the
+     * command is followed by {@link #COMMAND_DEDUPE_MERGE}, also tells what merging them would do, and merges
+     * them only if that is followed by {@link #COMMAND_DEDUPE_CONFIRM}.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeDedupe() {
+        final boolean isMerging = skipNextTokenIfEqualTo(COMMAND_DEDUPE_MERGE);
+        final boolean isConfirmed = isMerging && skipNextTokenIfEqualTo(COMMAND_DEDUPE_CONFIRM);
+        if (!isAtEndOfInput()) {
+            return getMessageForInvalidCommandInput(COMMAND_DEDUPE_WORD, getUsageInfoForDedupeCommand());
+        }
+        if (isConfirmed && isAddressBookReadOnly()) {
+            return getMessageForReadOnlyAddressBook();
+        }
+        final ArrayList<int[]> clusters = findNearDuplicateClusters();
+        if (clusters.isEmpty()) {
+            return String.format(MESSAGE_DEDUPE_NONE_FOUND, getAddressBookSize());
+        }
+        if (isConfirmed) {
+            return mergeNearDuplicateClusters(clusters);
+        }
+        final String clusterIndexRanges = showNearDuplicateClusters(clusters);
+        if (!isMerging) {
+            return String.format(MESSAGE_DEDUPE_CLUSTERS_FOUND, clusters.size(), getAddressBookSize(),
+                                 clusterIndexRanges);
+        }
+        return String.format(MESSAGE_DEDUPE_MERGE_PREVIEW, clusters.size(), getAddressBookSize(), clusterIndexRanges,
+                             getLatestPersonListingView().size() - clusters.size(),
+                             COMMAND_DEDUPE_WORD + " " + COMMAND_DEDUPE_MERGE + " " + COMMAND_DEDUPE_CONFIRM);
+    }
+
+    /**
+     * Lists the persons of the clusters, cluster by cluster, as the latest person listing view.
+     *
+     * @param clusters as found by {@link #findNearDuplicateClusters()}
+     * @return the displayed indexes of each cluster, e.g. "1-2, 3-5"
+     */
+    private static String showNearDuplicateClusters(ArrayList<int[]> clusters) {
+        final StringBuilder clusterIndexRanges = new StringBuilder();
+        startShowingPersonListing();
+        for (int[] cluster : clusters) {
+            final int firstIndex = getLatestPersonListingView().size() + DISPLAYED_INDEX_OFFSET;
+            getPersonsInAddressBookAt(cluster).forEach(AddressBook::showPersonInListing);
+            clusterIndexRanges.append(clusterIndexRanges.length() == 0 ? "" : ", ")
+                              .append(firstIndex).append('-').append(firstIndex + cluster.length - 1);
+        }
+        finishShowingPersonListing();
+        return clusterIndexRanges.toString();
+    }
+
+    /**
+     * Merges each cluster into its first person, which keeps its place and name but takes the phone and email
+     * of the most recently added person of the cluster, whose details are the latest. The other persons of all
+     * clusters are then deleted at once. Both changes are undone together, and saved to the storage file once.
+     *
+     * @param clusters as found by {@link #findNearDuplicateClusters()}
+     * @return feedback display message for the operation result
+     */
+    private static String mergeNearDuplicateClusters(ArrayList<int[]> clusters) {
+        final int[] mergedPositions = new int[clusters.size()];
+        final ArrayList<String[]> mergedPersons = new ArrayList<>();
+        int removedCount = 0;
+        for (int[] cluster : clusters) {
+            final ArrayList<String[]> persons = getPersonsInAddressBookAt(cluster);
+            final String[] first = persons.get(0);
+            final String[] last = persons.get(persons.size() - 1);
+            final String[] merged = makePersonFromData(getNameFromPerson(first), getPhoneFromPerson(last),
+                                                       getEmailFromPerson(last));
+            if (!isSamePersonData(first, merged)) {
+                mergedPositions[mergedPersons.size()] = cluster[0];
+                mergedPersons.add(merged);
+            }
+            removedCount += cluster.length - 1;
+        }
+        final int[] removedPositions = new int[removedCount];
+        removedCount = 0;
+        for (int[] cluster : clusters) {
+            System.arraycopy(cluster, 1, removedPositions, removedCount, cluster.length - 1);
+            removedCount += cluster.length - 1;
+        }
+        Arrays.sort(removedPositions);
+
+        final String changeDescription = String.format(CHANGE_DESCRIPTION_DEDUPE, removedCount);
+        int firstChangedPosition = removedPositions[0];
+        if (!mergedPersons.isEmpty()) {
+            final int[] positions = Arrays.copyOf(mergedPositions, mergedPersons.size());
+            final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+            replacePersonsInModelAt(positions, mergedPersons);
+            persons.addAll(getPersonsInAddressBookAt(positions));
+            recordChange(makeChange(CHANGE_KIND_REPLACED, positions, persons, changeDescription));
+            firstChangedPosition = Math.min(firstChangedPosition, positions[0]);
+        }
+        final ArrayList<String[]> removedPersons = getPersonsInAddressBookAt(removedPositions);
+        removePersonsFromModelAt(removedPositions);
+        final Object[] removal = makeChange(CHANGE_KIND_REMOVED, removedPositions, removedPersons, changeDescription);
+        removal[CHANGE_DATA_INDEX_IS_JOINED] = !mergedPersons.isEmpty();
+        recordChange(removal);
+        saveAddressBookChangesToStorageFile(firstChangedPosition);
+        return String.format(MESSAGE_DEDUPE_MERGED, clusters.size(), removedCount);
+    }
+
+    /**
+     * Makes this standby stop following its primary, so that the address book can be changed.
+     * The model and storage file already hold every change received, so this takes no time.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executePromoteStandby() {
+        if (!isStandby) {
+            return MESSAGE_NOT_STANDBY;
+        }
+        isStandby = false;
+        closeConnectionToPrimary();
+        return String.format(MESSAGE_PROMOTED, lastAppliedReplicationSequence);
+    }
+
+    /**
+     * Shows how far the change feed has got and how many watchers it is streamed to.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeShowChangeFeedStatus() {
+        if (!isChangeFeedOn) {
+            return MESSAGE_CHANGE_FEED_OFF;
+        }
+        return String.format(MESSAGE_CHANGE_FEED_STATUS, CHANGE_FEED_ID, nextChangeFeedSequence - 1, changeFeedStart,
+                             changeFeedWatcherCount);
+    }
+
+    /**
+     * Shows what each maintenance task did, if the rest of the command being read asks for the status.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static String executeShowMaintenanceStatus() {
+        if (!skipNextTokenIfEqualTo(COMMAND_MAINTENANCE_STATUS) || !isAtEndOfInput()) {
+            return getMessageForInvalidCommandInput(COMMAND_MAINTENANCE_WORD, getUsageInfoForMaintenanceCommand());
+        }
+        return getMessageForMaintenanceStatus();
+    }
+
+    /**
+     * Constructs a feedback message listing the maintenance tasks and what each did when it last ran.
+     */
+    private static String getMessageForMaintenanceStatus() {
+        if (MAINTENANCE_IDLE_MILLIS <= 0) {
+            return MESSAGE_MAINTENANCE_OFF;
+        }
+        final StringBuilder status = new StringBuilder(String.format(MESSAGE_MAINTENANCE_OVERVIEW,
+                                                                     MAINTENANCE_IDLE_MILLIS));
+        for (int task = 0; task < MAINTENANCE_TASK_NAMES.length; task++) {
+            status.append(LS);
+            if (MAINTENANCE_TASK_RUN_COUNTS[task] == 0) {
+                status.append(String.format(MESSAGE_MAINTENANCE_TASK_NEVER_RAN, MAINTENANCE_TASK_NAMES[task]));
+                continue;
+            }
+            status.append(String.format(MESSAGE_MAINTENANCE_TASK_RAN, MAINTENANCE_TASK_NAMES[task],
+                    MAINTENANCE_TASK_RUN_COUNTS[task],
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - MAINTENANCE_TASK_LAST_RUN_TIMES[task]),
+                    TimeUnit.NANOSECONDS.toMillis(MAINTENANCE_TASK_LAST_RUN_DURATIONS[task]),
+                    MAINTENANCE_TASK_LAST_RUN_RESULTS[task]));
+        }
+        return status.toString();
+    }
+
+    /**
+     * Request to terminate the program.
+     *
+     * @return feedback display message for the operation result
+     */
+    private static void executeExitProgramRequest() {
+        exitProgram();
+    }
+
+    /*
+     * ===========================================
+     *           COMMAND TOKENIZER
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * The tokenizer only keeps track of where the current token is in the
+     * command, instead of copying tokens into new strings as String.split
+     * would. Reading a command therefore creates no garbage objects, unless
+     * a token is explicitly copied out with getToken().
+     * There is only one command being read at a time: commands are run by
+     * executeCommand, which holds the lock of this class (as background
+     * threads do before touching the model), and none of them starts
+     * reading another command. So the tokenizer keeps its place in static
+     * variables, like the rest of the program's state, instead of in a
+     * new object for each command.
+     * ====================================================================
+     */
+
+    /**
+     * Starts reading tokens (whitespace separated words) from the given command.
+     */
+    private static void startTokenizing(String input) {
+        tokenizerInput = input;
+        tokenStart = 0;
+        tokenEnd = 0;
+    }
+
+    /**
+     * Moves to the next token of the command being read.
+     *
+     * @return true if there was a next token, false if the end of the command was reached
+     */
+    private static boolean advanceToNextToken() {
+        tokenStart = skipWhitespaceInInput(tokenEnd);
+        tokenEnd = tokenStart;
+        while (tokenEnd < tokenizerInput.length() && !isWhitespaceChar(tokenizerInput.charAt(tokenEnd))) {
+            tokenEnd++;
+        }
+        return tokenStart < tokenEnd;
+    }
+
+    /**
+     * Returns true if the current token is exactly the given word.
+     */
+    private static boolean isTokenEqualTo(String word) {
+        return isInputRangeEqualTo(tokenStart, tokenEnd, word);
+    }
+
+    /**
+     * Returns true if there are no more tokens after the current token.
+     */
+    private static boolean isAtEndOfInput() {
+        return skipWhitespaceInInput(tokenEnd) == tokenizerInput.length();
+    }
+
+    /**
+     * Moves past the next token if it is exactly the given word (e.g. an optional flag).
+     * Otherwise, stays where it is so that the next token can still be read.
+     *
+     * @return true if the next token was the given word
+     */
+    private static boolean skipNextTokenIfEqualTo(String word) {
+        final int currentStart = tokenStart;
+        final int currentEnd = tokenEnd;
+        if (advanceToNextToken() && isTokenEqualTo(word)) {
+            return true;
+        }
+        tokenStart = currentStart;
+        tokenEnd = currentEnd;
+        return false;
+    }
+
+    /**
+     * @return a copy of the current token
+     */
+    private static String getToken() {
+        return tokenizerInput.substring(tokenStart, tokenEnd);
+    }
+
+    /**
+     * @return the rest of the command after the current token, without leading and trailing whitespace
+     */
+    private static String getRemainingInput() {
+        final int start = skipWhitespaceInInput(tokenEnd);
+        int end = tokenizerInput.length();
+        while (end > start && isWhitespaceChar(tokenizerInput.charAt(end - 1))) {
+            end--;
+        }
+        return tokenizerInput.substring(start, end);
+    }
+
+    /**
+     * Reads the command word (the first token) of the command being read.
+     *
+     * @return the matching word in {@link #COMMAND_WORDS}, or a copy of the first token if it is not a command word
+     */
+    private static String readCommandWord() {
+        if (!advanceToNextToken()) {
+            return "";
+        }
+        for (String commandWord : COMMAND_WORDS) {
+            if (isTokenEqualTo(commandWord)) {
+                return commandWord;
+            }
+        }
+        return getToken();
+    }
+
+    /**
+     * @return the position of the first non-whitespace character of the command at or after the given position
+     */
+    private static int skipWhitespaceInInput(int position) {
+        while (position < tokenizerInput.length() && isWhitespaceChar(tokenizerInput.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Skips a number (digits, optionally after a plus sign) in the command, from the given position.
+     *
+     * @return the position of the first character of the command at or after the given position that is not
+     *         part of the number
+     */
+    private static int skipNumberInInput(int position) {
+        if (isCharInInputAt(position, INPUT_NUMBER_PLUS_SIGN)) {
+            position++;
+        }
+        while (position < tokenizerInput.length() && isDigitChar(tokenizerInput.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * Returns true if the characters of the command in [start, end) are exactly the given word.
+     */
+    private static boolean isInputRangeEqualTo(int start, int end, String word) {
+        return end - start == word.length() && tokenizerInput.startsWith(word, start);
+    }
+
+    /**
+     * Returns true if the command has the given single character separator at the given position.
+     */
+    private static boolean isCharInInputAt(int position, String separator) {
+        return position < tokenizerInput.length() && tokenizerInput.charAt(position) == separator.charAt(0);
+    }
+
+    /**
+     * Parses the characters of the command in [start, end) as a number, without copying them.
+     * Like {@link Integer#parseInt}, allows a plus sign before the digits.
+     *
+     * @return the number, or -1 if the range is empty, is not all digits or is too big for an int
+     */
+    private static int parseNumberInInput(int start, int end) {
+        if (isCharInInputAt(start, INPUT_NUMBER_PLUS_SIGN) && start < end) {
+            start++;
+        }
+        if (start == end) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            final char c = tokenizerInput.charAt(i);
+            if (!isDigitChar(c)) {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+            if (number > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) number;
+    }
+
+
+    /*
+     * ===========================================
+     *               UI LOGIC
+     * ===========================================
+     */
+
+    /**
+     * Prompts for the command and reads the text entered by the user.
+     * Ignores lines with first non-whitespace char equal to {@link #INPUT_COMMENT_MARKER} (considered comments)
+     *
+     * @return full line entered by the user
+     */
+    private static String getUserInput() {
+        System.out.print(LINE_PREFIX + "Enter command: ");
+        String inputLine = SCANNER.nextLine();
+        // silently consume all blank and comment lines
+        while (isBlankOrCommentLine(inputLine)) {
+            inputLine = SCANNER.nextLine();
+        }
+        return inputLine;
+    }
+
+    /**
+     * Returns true if the line has only whitespace, or its first non-whitespace char is
+     * {@link #INPUT_COMMENT_MARKER}. Unlike trimming the line, this does not create a new string.
+     */
+    private static boolean isBlankOrCommentLine(String inputLine) {
+        for (int i = 0; i < inputLine.length(); i++) {
+            final char c = inputLine.charAt(i);
+            if (c > ' ') { // String.trim() also treats all chars up to ' ' as whitespace
+                return c == INPUT_COMMENT_MARKER;
+            }
+        }
+        return true;
+    }
+
+   /* ==============NOTE TO STUDENTS======================================
+    * Note how the method below uses Java 'Varargs' feature so that the
+    * method can accept a varying number of message parameters.
+    * ====================================================================
+    */
+    /**
+     * Shows a message to the user
+     */
+    private static void showToUser(String... message) {
+        for (String m : message) {
+            System.out.println(LINE_PREFIX + m);
+        }
+    }
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * A list of persons is shown while it is being found, one person at a
+     * time, instead of being built up in full and then shown. The first
+     * person appears as soon as it is found, and a huge listing never has
+     * to fit in memory as a single string.
+     * ====================================================================
+     */
+
+    /**
+     * Starts showing a new list of persons to the user, which becomes the latest person listing view.
+     * Each person is then added with {@link #showPersonInListing(String[])}, and the listing is ended with
+     * {@link #finishShowingPersonListing()}. The list will be indexed, starting from 1.
+     */
+    private static void startShowingPersonListing() {
+        latestPersonListingView = new ArrayList<>();
+        synchronized (LISTING_OUTPUT_BUFFER) {
+            if (!isListingOutputWriterStarted) {
+                startDaemonThread(AddressBook::writeListingOutputThatWaitedTooLong);
+                isListingOutputWriterStarted = true;
+            }
+            LISTING_OUTPUT_BUFFER.setLength(0);
+            LISTING_OUTPUT_BUFFER.append(LINE_PREFIX);
+            lastListingOutputTime = System.nanoTime();
+            isShowingPersonListing = true;
+            LISTING_OUTPUT_BUFFER.notifyAll();
+        }
+    }
+
+    /**
+     * Adds a person to the list of persons being shown, and to the latest person listing view.
+     * The person is written to the output at once if it is the first one, and otherwise once the buffered
+     * part of the listing is full or has waited too long (see {@link #writeListingOutputThatWaitedTooLong()}).
+     */
+    private static void showPersonInListing(String[] person) {
+        latestPersonListingView.add(person);
+        final int displayIndex = latestPersonListingView.size() - 1 + DISPLAYED_INDEX_OFFSET;
+        synchronized (LISTING_OUTPUT_BUFFER) {
+            LISTING_OUTPUT_BUFFER.append('\t')
+                                 .append(getIndexedPersonListElementMessage(displayIndex, person))
+                                 .append(LS);
+            if (displayIndex == DISPLAYED_INDEX_OFFSET || LISTING_OUTPUT_BUFFER.length() >= LISTING_OUTPUT_BUFFER_SIZE
+                    || System.nanoTime() - lastListingOutputTime >= LISTING_OUTPUT_MAX_DELAY_NANOS) {
+                writeListingOutputBuffer();
+            }
+        }
+    }
+
+    /**
+     * Ends the list of persons being shown, writing out the rest of it.
+     *
+     * @return number of persons shown
+     */
+    private static int finishShowingPersonListing() {
+        synchronized (LISTING_OUTPUT_BUFFER) {
+            LISTING_OUTPUT_BUFFER.append(System.lineSeparator());
+            writeListingOutputBuffer();
+            isShowingPersonListing = false;
+        }
+        return latestPersonListingView.size();
+    }
+
+    /**
+     * Waits for person listings to be shown, forever, writing out the persons found while each is shown once
+     * they have waited {@link #LISTING_OUTPUT_MAX_DELAY_NANOS} in the listing output buffer. Without this, a
+     * person found by a long search would only be written out with the next person found, or the end of the
+     * listing. Runs in a thread of its own, as the thread finding the persons holds the lock of this class.
+     */
+    private static void writeListingOutputThatWaitedTooLong() {
+        synchronized (LISTING_OUTPUT_BUFFER) {
+            while (true) {
+                try {
+                    if (!isShowingPersonListing) {
+                        LISTING_OUTPUT_BUFFER.wait();
+                        continue;
+                    }
+                    final long waited = System.nanoTime() - lastListingOutputTime;
+                    if (waited < LISTING_OUTPUT_MAX_DELAY_NANOS) {
+                        TimeUnit.NANOSECONDS.timedWait(LISTING_OUTPUT_BUFFER, LISTING_OUTPUT_MAX_DELAY_NANOS - waited);
+                        continue;
+                    }
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                if (LISTING_OUTPUT_BUFFER.length() > 0) {
+                    writeListingOutputBuffer();
+                } else {
+                    lastListingOutputTime = System.nanoTime();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out the listing output buffer. Must be called while holding its lock.
+     */
+    private static void writeListingOutputBuffer() {
+        System.out.print(LISTING_OUTPUT_BUFFER);
+        System.out.flush();
+        LISTING_OUTPUT_BUFFER.setLength(0);
+        lastListingOutputTime = System.nanoTime();
+    }
+
+    /**
+     * Constructs a prettified listing element message to represent a person and their data.
+     *
+     * @param visibleIndex visible index for this listing
+     * @param person to show
+     * @return formatted listing message with index
+     */
+    private static String getIndexedPersonListElementMessage(int visibleIndex, String[] person) {
+        return String.format(MESSAGE_DISPLAY_LIST_ELEMENT_INDEX, visibleIndex) + getMessageForFormattedPersonData(person);
+    }
+
+    /**
+     * Constructs a prettified string to show the user a person's data.
+     *
+     * @param person to show
+     * @return formatted message showing internal state
+     */
+    private static String getMessageForFormattedPersonData(String[] person) {
+        return String.format(MESSAGE_DISPLAY_PERSON_DATA,
+                getNameFromPerson(person), getPhoneFromPerson(person), getEmailFromPerson(person));
+    }
+
+    /**
+     * Retrieves the person identified by the displayed index from the last shown listing of persons.
+     *
+     * @param lastVisibleIndex displayed index from last shown person listing
+     * @return the actual person object in the last shown person listing
+     */
+    private static String[] getPersonByLastVisibleIndex(int lastVisibleIndex) {
+       return latestPersonListingView.get(lastVisibleIndex - DISPLAYED_INDEX_OFFSET);
+    }
+
+    /**
+     * Retrieves the persons identified by the given ranges of displayed indexes in the last shown listing.
+     * Each person is included once, in listing order, even if the ranges overlap.
+     *
+     * @param lastVisibleIndexRanges valid ranges, each a size 2 array of its first and last index (inclusive)
+     */
+    private static ArrayList<String[]> getPersonsByLastVisibleIndexRanges(ArrayList<int[]> lastVisibleIndexRanges) {
+        final boolean[] isTarget = new boolean[latestPersonListingView.size()];
+        for (int[] range : lastVisibleIndexRanges) {
+            Arrays.fill(isTarget, range[0] - DISPLAYED_INDEX_OFFSET, range[1] - DISPLAYED_INDEX_OFFSET + 1, true);
+        }
+        final ArrayList<String[]> persons = new ArrayList<>();
+        for (int i = 0; i < isTarget.length; i++) {
+            if (isTarget[i]) {
+                persons.add(latestPersonListingView.get(i));
+            }
+        }
+        return persons;
+    }
+
+    /**
+     * @return unmodifiable list view of the last person listing view
+     */
+    private static ArrayList<String[]> getLatestPersonListingView() {
+        return latestPersonListingView;
+    }
+
+
+    /*
+     * ===========================================
+     *             STORAGE LOGIC
+     * ===========================================
+     */
+
+    /**
+     * Creates storage file if it does not exist. Shows feedback to user.
+     *
+     * @param filePath file to create if not present
+     */
+    private static void createFileIfMissing(String filePath) {
+        final File storageFile = new File(filePath);
+        if (storageFile.exists()) {
+            return;
+        }
+
+        showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
+        if (IS_FOLLOW_MODE) {
+            // a follower never writes; the file has to be created by the process it follows
+            exitProgram();
+        }
+
+        try {
+            storageFile.createNewFile();
+            // an empty compressed file still needs the compression header and trailer
+            openStorageFileForWriting(filePath).close();
+            showToUser(String.format(MESSAGE_STORAGE_FILE_CREATED, filePath));
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_CREATING_STORAGE_FILE, filePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Converts contents of a file into a list of persons.
+     * Shows error messages and exits program if any errors in reading or decoding was encountered.
+     *
+     * @param filePath file to load from
+     * @return the list of decoded persons
+     */
+    private static ArrayList<String[]> loadPersonsFromFile(String filePath) {
+        final ArrayList<String[]> persons = new ArrayList<>();
+        forEachPersonInFile(filePath, persons::add);
+        return persons;
+    }
+
+    /**
+     * Decodes the lines of the specified file one at a time, passing each decoded person on as soon
+     * as it is read, so that the lines of the file never have to be held in memory all at once.
+     * A slotted file is read record by record instead, and what is learnt about it is remembered
+     * (see {@link #slottedFile}), so that changes can be saved to it in place.
+     * Shows error messages and exits program if any errors in reading or decoding was encountered.
+     *
+     * @param filePath file to load from
+     * @param personConsumer receives the decoded persons, in file order
+     */
+    private static void forEachPersonInFile(String filePath, Consumer<String[]> personConsumer) {
+        final Consumer<String> lineConsumer = line -> {
+            final Optional<String[]> decodedPerson = decodePersonFromString(line);
+            if (!decodedPerson.isPresent()) {
+                showToUser(MESSAGE_INVALID_STORAGE_FILE_CONTENT);
+                exitProgram();
+            }
+            personConsumer.accept(decodedPerson.get());
+        };
+        if (isSlottedFilePath(filePath)) {
+            try {
+                slottedFile = readSlottedFile(filePath, lineConsumer);
+            } catch (NoSuchFileException e) {
+                showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
+                exitProgram();
+            } catch (IOException ioe) {
+                showToUser(String.format(MESSAGE_ERROR_READING_FROM_FILE, filePath));
+                exitProgram();
+            }
+            return;
+        }
+        try (BufferedReader reader = openStorageFileForReading(filePath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineConsumer.accept(line);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
+            exitProgram();
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_READING_FROM_FILE, filePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Gets all lines in the specified file as a list of strings. Line separators are removed.
+     *
+     * @throws IOException if unable to read from file
+     */
+    private static ArrayList<String> getLinesInFile(String filePath) throws IOException {
+        final ArrayList<String> lines = new ArrayList<>();
+        if (isSlottedFilePath(filePath)) {
+            readSlottedFile(filePath, lines::add);
+            return lines;
+        }
+        try (BufferedReader reader = openStorageFileForReading(filePath)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Opens the specified storage file for reading text, decompressing it on the fly if it is compressed.
+     * Like {@link Files#readAllLines}, the reader rejects bytes that are not valid UTF-8.
+     */
+    private static BufferedReader openStorageFileForReading(String filePath) throws IOException {
+        final InputStream fileStream = Files.newInputStream(Paths.get(filePath));
+        final InputStream dataStream = isCompressedFilePath(filePath)
+                                       ? new GZIPInputStream(fileStream, STORAGE_BUFFER_SIZE)
+                                       : fileStream;
+        return new BufferedReader(new InputStreamReader(dataStream, StandardCharsets.UTF_8.newDecoder()),
+                STORAGE_BUFFER_SIZE);
+    }
+
+    /**
+     * Wraps the given stream so that everything written to it is gzip-compressed.
+     * The fastest compression level is used, as the file is rewritten after every change;
+     * it still shrinks a typical storage file to about a third of its size.
+     */
+    private static OutputStream makeCompressingStream(OutputStream out) throws IOException {
+        return new GZIPOutputStream(out, STORAGE_BUFFER_SIZE) {
+            {
+                def.setLevel(Deflater.BEST_SPEED);
+            }
+        };
+    }
+
+    /**
+     * Opens (and empties) the specified storage file for writing text, compressing it on the fly if
+     * it is meant to be compressed.
+     */
+    private static BufferedWriter openStorageFileForWriting(String filePath) throws IOException {
+        final OutputStream fileStream = Files.newOutputStream(Paths.get(filePath));
+        final OutputStream dataStream = isCompressedFilePath(filePath) ? makeCompressingStream(fileStream)
+                                                                       : fileStream;
+        return new BufferedWriter(new OutputStreamWriter(dataStream, StandardCharsets.UTF_8), STORAGE_BUFFER_SIZE);
+    }
+
+    /**
+     * Saves all persons in the address book to the storage file.
+     * Exits program if there is an error saving to file.
+     */
+    private static void saveAddressBookToStorageFile() {
+        if (isSlottedFilePath(storageFilePath)) {
+            writeSlottedFile(storageFilePath);
+        } else if (isOffHeapBackend()) {
+            saveOffHeapPersonsToFile(storageFilePath);
+        } else {
+            savePersonsToFile(getAllPersonsInAddressBook(), storageFilePath);
+        }
+        isStorageFileCanonical = true;
+    }
+
+    /**
+     * Saves a change to the storage file by rewriting only the persons from the first changed one onwards;
+     * the part of the file before them is kept as it is, so a change near the start of the file (e.g. undoing
+     * the deletion of its first person) still rewrites most of it. A slotted file is instead updated only
+     * where the records of the changed persons are (see {@link #saveChangesToSlottedFile()}).
+     * Falls back to saving the whole address book if the file is compressed or its content is not known.
+     * Exits program if there is an error saving to file.
+     *
+     * @param firstChangedIndex absolute index of the first person that differs from what the file holds
+     */
+    private static void saveAddressBookChangesToStorageFile(int firstChangedIndex) {
+        if (isSlottedFilePath(storageFilePath)) {
+            if (!saveChangesToSlottedFile()) {
+                saveAddressBookToStorageFile();
+            }
+            return;
+        }
+        if (!isStorageFileCanonical || isCompressedFilePath(storageFilePath)) {
+            saveAddressBookToStorageFile();
+            return;
+        }
+        final long unchangedLength = getStorageFileLengthBeforePerson(firstChangedIndex);
+        if (new File(storageFilePath).length() < unchangedLength) { // changed by someone else since we wrote it
+            saveAddressBookToStorageFile();
+            return;
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(storageFilePath), StandardOpenOption.WRITE)) {
+            file.truncate(unchangedLength);
+            file.position(unchangedLength);
+            if (isOffHeapBackend()) {
+                writeOffHeapRecordsToChannel(file, firstChangedIndex);
+                return;
+            }
+            final BufferedWriter writer = new BufferedWriter(Channels.newWriter(file, StandardCharsets.UTF_8.name()),
+                                                             STORAGE_BUFFER_SIZE);
+            for (int i = firstChangedIndex; i < ALL_PERSONS.size(); i++) {
+                writer.write(encodePersonToString(ALL_PERSONS.get(i)));
+                writer.newLine();
+            }
+            writer.flush();
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, storageFilePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Reads as many bytes from the stream as the given bytes hold, and returns true if they are the same bytes.
+     */
+    private static boolean isNextInStream(InputStream stream, byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            if (stream.read() != (b & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes taken up in the storage file by the persons before the given absolute index,
+     * assuming the file was written by this program.
+     */
+    private static long getStorageFileLengthBeforePerson(int index) {
+        long length = (long) index * LINE_SEPARATOR_BYTES.length;
+        for (int i = 0; i < index; i++) {
+            length += isOffHeapBackend() ? getOffHeapLineLength(offHeapRecordTable[i])
+                                         : getEncodedPersonLength(ALL_PERSONS.get(i));
+        }
+        return length;
+    }
+
+    /**
+     * Saves all data to the file.
+     * Exits program if there is an error saving to file.
+     *
+     * @param filePath file for saving
+     */
+    private static void savePersonsToFile(ArrayList<String[]> persons, String filePath) {
+        try (BufferedWriter writer = openStorageFileForWriting(filePath)) {
+            for (String[] person : persons) {
+                writer.write(encodePersonToString(person));
+                writer.newLine();
+            }
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, filePath));
+            exitProgram();
+        }
+    }
+
+
+    /*
+     * ===========================================
+     *         SLOTTED STORAGE FILE LOGIC
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * A text storage file is saved by rewriting it from the first
+     * changed person onwards, so changing a person near the start of a
+     * big book rewrites almost all of it. A slotted file (laid out like
+     * the pages of a database) keeps each person in a record of its own
+     * instead, which a change to that person overwrites where it lies,
+     * with a single positioned write. The slots of removed persons are
+     * marked free, and new persons go into free slots or at the end of
+     * the file, so that the rest of the file is never touched.
+     * ====================================================================
+     */
+
+    /**
+     * Returns true if the slotted file of the book in use has more free slots than persons, so that rewriting
+     * it would make it much smaller, or if it has to be rewritten anyway.
+     */
+    private static boolean isSlottedFileCompactionDue() {
+        return slottedFile == null
+                || ((TreeSet<?>) slottedFile[SLOTTED_FILE_DATA_INDEX_FREE_SLOTS]).size() > getSlottedRecordCount();
+    }
+
+    /**
+     * Creates what is known about a slotted file holding no pages yet.
+     *
+     * @return the slotted file, as an Object array (see the SLOTTED_FILE constants)
+     */
+    private static Object[] makeSlottedFile() {
+        final Object[] slotted = new Object[SLOTTED_FILE_DATA_COUNT];
+        slotted[SLOTTED_FILE_DATA_INDEX_RECORD_IDS] = new long[16];
+        slotted[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT] = 0;
+        slotted[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] = 0;
+        slotted[SLOTTED_FILE_DATA_INDEX_REMOVED_IDS] = new ArrayList<Long>();
+        slotted[SLOTTED_FILE_DATA_INDEX_FREE_SLOTS] = new TreeSet<Long>();
+        slotted[SLOTTED_FILE_DATA_INDEX_FORWARDS] = new HashMap<Long, Long>();
+        slotted[SLOTTED_FILE_DATA_INDEX_PAGE_OFFSETS] = new long[16];
+        slotted[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT] = 0;
+        slotted[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH] = (long) SLOTTED_FILE_HEADER_SIZE;
+        return slotted;
+    }
+
+    private static int getSlottedRecordCount() {
+        return (Integer) slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT];
+    }
+
+    /**
+     * Appends the id of the slot of the next person to the record ids of the slotted file.
+     */
+    private static void addSlottedRecordId(Object[] slotted, long id) {
+        long[] ids = (long[]) slotted[SLOTTED_FILE_DATA_INDEX_RECORD_IDS];
+        final int count = (Integer) slotted[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT];
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            slotted[SLOTTED_FILE_DATA_INDEX_RECORD_IDS] = ids;
+        }
+        ids[count] = id;
+        slotted[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT] = count + 1;
+    }
+
+    /**
+     * Adds a page of the given length at the end of the slotted file (only to what is known about it).
+     *
+     * @return number of the new page
+     */
+    private static int addSlottedPage(Object[] slotted, int length) {
+        long[] offsets = (long[]) slotted[SLOTTED_FILE_DATA_INDEX_PAGE_OFFSETS];
+        final int page = (Integer) slotted[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT];
+        if (page == offsets.length) {
+            offsets = Arrays.copyOf(offsets, page * 2);
+            slotted[SLOTTED_FILE_DATA_INDEX_PAGE_OFFSETS] = offsets;
+        }
+        offsets[page] = (Long) slotted[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH];
+        slotted[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT] = page + 1;
+        slotted[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH] = offsets[page] + length;
+        return page;
+    }
+
+    private static long makeSlotId(int page, int slot) {
+        return (long) page << Integer.SIZE | slot;
+    }
+
+    private static int getPageOfSlot(long id) {
+        return (int) (id >>> Integer.SIZE);
+    }
+
+    /**
+     * Returns the position in the file of the given page of the slotted file.
+     */
+    private static long getSlottedPagePosition(Object[] slotted, int page) {
+        return ((long[]) slotted[SLOTTED_FILE_DATA_INDEX_PAGE_OFFSETS])[page];
+    }
+
+    /**
+     * Returns the position in the file of the entry of the given slot of the slotted file.
+     */
+    private static long getSlotEntryPosition(Object[] slotted, long id) {
+        return getSlottedPagePosition(slotted, getPageOfSlot(id)) + SLOTTED_PAGE_HEADER_SIZE
+                + (long) (int) id * SLOTTED_SLOT_ENTRY_SIZE;
+    }
+
+    /**
+     * Returns the bytes a record of the given length takes up in a slotted file, including room to spare.
+     */
+    private static int getSlottedRecordCapacity(int recordLength) {
+        return Math.max(1, (recordLength + SLOTTED_RECORD_ALIGNMENT - 1) / SLOTTED_RECORD_ALIGNMENT)
+                * SLOTTED_RECORD_ALIGNMENT;
+    }
+
+    /**
+     * Returns the length of a new page that can hold a record of the given capacity: SLOTTED_PAGE_SIZE, unless
+     * the record is too big for such a page.
+     */
+    private static int getSlottedPageLength(int recordCapacity) {
+        final int pageCount = (SLOTTED_PAGE_HEADER_SIZE + SLOTTED_SLOT_ENTRY_SIZE + recordCapacity
+                               + SLOTTED_PAGE_SIZE - 1) / SLOTTED_PAGE_SIZE;
+        return pageCount * SLOTTED_PAGE_SIZE;
+    }
+
+    /**
+     * Returns the bytes left in a page between the end of its slot table and the start of its records.
+     */
+    private static int getSlottedPageFreeSpace(int slotCount, int recordsStart) {
+        return recordsStart - SLOTTED_PAGE_HEADER_SIZE - slotCount * SLOTTED_SLOT_ENTRY_SIZE;
+    }
+
+    /**
+     * Marks the id stored for a person whose record has to be updated on the next save.
+     */
+    private static long markSlottedRecordEdited(long id) {
+        return -id - 2;
+    }
+
+    /**
+     * Returns the id of the slot of a person, as stored in the record ids of the slotted file
+     * (which is not SLOTTED_RECORD_NOT_WRITTEN).
+     */
+    private static long getSlotIdOfRecord(long recordId) {
+        return recordId < 0 ? -recordId - 2 : recordId;
+    }
+
+    /**
+     * Updates what is known about the slotted file for persons being inserted into or removed from the model.
+     * The records of inserted persons are written, and the slots of removed persons are freed, on the next save.
+     *
+     * @param kind CHANGE_KIND_INSERTED or CHANGE_KIND_REMOVED
+     * @param positions ascending absolute indexes of the persons (as in the change feed)
+     */
+    private static void trackChangeInSlottedFile(String kind, int[] positions) {
+        if (slottedFile == null || positions.length == 0) {
+            return;
+        }
+        if (positions.length > SLOTTED_FILE_MAX_CHANGES_IN_PLACE) {
+            slottedFile = null; // the whole file is rewritten on the next save
+            return;
+        }
+        long[] ids = (long[]) slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_IDS];
+        int count = getSlottedRecordCount();
+        if (kind.equals(CHANGE_KIND_REMOVED)) {
+            @SuppressWarnings("unchecked")
+            final ArrayList<Long> removedIds = (ArrayList<Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_REMOVED_IDS];
+            int kept = positions[0];
+            for (int i = positions[0], next = 0; i < count; i++) {
+                if (next < positions.length && positions[next] == i) {
+                    if (ids[i] != SLOTTED_RECORD_NOT_WRITTEN) {
+                        removedIds.add(getSlotIdOfRecord(ids[i]));
+                    }
+                    next++;
+                } else {
+                    ids[kept++] = ids[i];
+                }
+            }
+            count = kept;
+        } else {
+            if (count + positions.length > ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(count + positions.length, ids.length * 2));
+                slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_IDS] = ids;
+            }
+            int nextToMove = count - 1;
+            count += positions.length;
+            int target = count - 1;
+            for (int i = positions.length - 1; i >= 0; target--) {
+                if (target == positions[i]) {
+                    ids[target] = SLOTTED_RECORD_NOT_WRITTEN;
+                    i--;
+                } else {
+                    ids[target] = ids[nextToMove--];
+                }
+            }
+        }
+        slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT] = count;
+        slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] =
+                Math.min((Integer) slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED], positions[0]);
+    }
+
+    /**
+     * Updates what is known about the slotted file for persons being replaced in the model. Their records are
+     * updated on the next save.
+     *
+     * @param positions ascending absolute indexes of the persons
+     */
+    private static void trackEditsInSlottedFile(int[] positions) {
+        if (slottedFile == null || positions.length == 0) {
+            return;
+        }
+        final long[] ids = (long[]) slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_IDS];
+        for (int position : positions) {
+            if (ids[position] >= 0) {
+                ids[position] = markSlottedRecordEdited(ids[position]);
+            }
+        }
+        slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] =
+                Math.min((Integer) slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED], positions[0]);
+    }
+
+    /**
+     * Writes all persons in the address book to the given slotted file, rewriting it whole, and remembers
+     * where each of them now is. The pages are filled one after another, without free slots.
+     * Exits program if there is an error saving to file.
+     *
+     * @param filePath file for saving
+     */
+    private static void writeSlottedFile(String filePath) {
+        final Object[] writtenFile = makeSlottedFile();
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFullyToChannel(file, ByteBuffer.allocate(SLOTTED_FILE_HEADER_SIZE)
+                    .putInt(SLOTTED_FILE_MAGIC).putInt(SLOTTED_FILE_VERSION));
+            ByteBuffer page = null;
+            int pageNumber = -1;
+            int slotCount = 0;
+            int recordsStart = 0;
+            final int count = getAddressBookSize();
+            for (int i = 0; i < count; i++) {
+                final byte[] record = getStorageLineBytesOfPersonAt(i);
+                final int capacity = getSlottedRecordCapacity(record.length);
+                if (page == null
+                        || getSlottedPageFreeSpace(slotCount, recordsStart) < SLOTTED_SLOT_ENTRY_SIZE + capacity) {
+                    if (page != null) {
+                        writeSlottedPage(file, page, slotCount, recordsStart);
+                    }
+                    final int pageLength = getSlottedPageLength(capacity);
+                    page = ByteBuffer.allocate(pageLength);
+                    pageNumber = addSlottedPage(writtenFile, pageLength);
+                    slotCount = 0;
+                    recordsStart = pageLength;
+                }
+                recordsStart -= capacity;
+                page.position(recordsStart);
+                page.put(record);
+                page.position(SLOTTED_PAGE_HEADER_SIZE + slotCount * SLOTTED_SLOT_ENTRY_SIZE);
+                page.putInt(SLOTTED_SLOT_LIVE).putInt(recordsStart).putInt(record.length).putInt(capacity);
+                addSlottedRecordId(writtenFile, makeSlotId(pageNumber, slotCount++));
+            }
+            if (page != null) {
+                writeSlottedPage(file, page, slotCount, recordsStart);
+            }
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, filePath));
+            exitProgram();
+        }
+        writtenFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] = writtenFile[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT];
+        slottedFile = writtenFile;
+    }
+
+    /**
+     * Writes a whole page, filled in by {@link #writeSlottedFile(String)}, at the current position of the file.
+     */
+    private static void writeSlottedPage(FileChannel file, ByteBuffer page, int slotCount, int recordsStart)
+            throws IOException {
+        page.putInt(SLOTTED_PAGE_HEADER_INDEX_LENGTH, page.capacity())
+                .putInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT, slotCount)
+                .putInt(SLOTTED_PAGE_HEADER_INDEX_RECORDS_START, recordsStart);
+        page.position(page.capacity());
+        writeFullyToChannel(file, page);
+    }
+
+    /**
+     * Reads the persons of the given slotted file in address book order, and what is known about the file.
+     * An empty file is read as one holding no persons (it is written in full by the first save).
+     *
+     * @param lineConsumer receives the storage line of each person
+     * @return what is known about the file, as an Object array (see the SLOTTED_FILE constants)
+     * @throws IOException if the file cannot be read, or is not a slotted file
+     */
+    private static Object[] readSlottedFile(String filePath, Consumer<String> lineConsumer) throws IOException {
+        final Object[] readFile = makeSlottedFile();
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            final long fileLength = file.size();
+            if (fileLength == 0) {
+                readFile[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH] = 0L;
+                return readFile;
+            }
+            final ByteBuffer header = ByteBuffer.allocate(SLOTTED_FILE_HEADER_SIZE);
+            readFullyFromFileAt(file, header, 0);
+            if (header.getInt(0) != SLOTTED_FILE_MAGIC || header.getInt(Integer.BYTES) != SLOTTED_FILE_VERSION) {
+                throw new IOException("Not a slotted file of this version: " + filePath);
+            }
+            // find all pages first, as a forwarded slot can lead to any page
+            final ByteBuffer pageLength = ByteBuffer.allocate(Integer.BYTES);
+            for (long position = SLOTTED_FILE_HEADER_SIZE; position < fileLength; ) {
+                pageLength.clear();
+                readFullyFromFileAt(file, pageLength, position);
+                if (pageLength.getInt(0) < SLOTTED_PAGE_SIZE) {
+                    throw new IOException("Invalid page in slotted file: " + filePath);
+                }
+                addSlottedPage(readFile, pageLength.getInt(0));
+                position = (Long) readFile[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH];
+            }
+            final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+            final int pageCount = (Integer) readFile[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT];
+            for (int pageNumber = 0; pageNumber < pageCount; pageNumber++) {
+                final long pageStart = getSlottedPagePosition(readFile, pageNumber);
+                final long pageEnd = pageNumber + 1 < pageCount ? getSlottedPagePosition(readFile, pageNumber + 1)
+                                                                : fileLength;
+                final ByteBuffer page = ByteBuffer.allocate((int) (pageEnd - pageStart));
+                readFullyFromFileAt(file, page, pageStart);
+                readSlottedPage(file, readFile, pageNumber, page, decoder, lineConsumer);
+            }
+        }
+        readFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] = readFile[SLOTTED_FILE_DATA_INDEX_RECORD_COUNT];
+        return readFile;
+    }
+
+    /**
+     * Reads the persons in the slots of a page of a slotted file being read by
+     * {@link #readSlottedFile(String, Consumer)}, and notes its free and forwarded slots.
+     *
+     * @throws IOException if the page is not valid
+     */
+    private static void readSlottedPage(FileChannel file, Object[] readFile, int pageNumber, ByteBuffer page,
+            CharsetDecoder decoder, Consumer<String> lineConsumer) throws IOException {
+        @SuppressWarnings("unchecked")
+        final TreeSet<Long> freeSlots = (TreeSet<Long>) readFile[SLOTTED_FILE_DATA_INDEX_FREE_SLOTS];
+        @SuppressWarnings("unchecked")
+        final HashMap<Long, Long> forwards = (HashMap<Long, Long>) readFile[SLOTTED_FILE_DATA_INDEX_FORWARDS];
+        final int slotCount = page.getInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT);
+        if (slotCount < 0 || getSlottedPageFreeSpace(slotCount, page.capacity()) < 0) {
+            throw new IOException("Invalid slot table in slotted file");
+        }
+        for (int slot = 0; slot < slotCount; slot++) {
+            final int entry = SLOTTED_PAGE_HEADER_SIZE + slot * SLOTTED_SLOT_ENTRY_SIZE;
+            final long id = makeSlotId(pageNumber, slot);
+            switch (page.getInt(entry + SLOTTED_SLOT_ENTRY_INDEX_STATE)) {
+            case SLOTTED_SLOT_LIVE:
+                lineConsumer.accept(decodeSlottedRecord(page, page.getInt(entry + SLOTTED_SLOT_ENTRY_INDEX_OFFSET),
+                        page.getInt(entry + SLOTTED_SLOT_ENTRY_INDEX_LENGTH), decoder));
+                addSlottedRecordId(readFile, id);
+                break;
+            case SLOTTED_SLOT_FORWARDED:
+                final ByteBuffer movedTo = ByteBuffer.wrap(decodeSlottedRecordBytes(page,
+                        page.getInt(entry + SLOTTED_SLOT_ENTRY_INDEX_OFFSET), Long.BYTES));
+                lineConsumer.accept(readMovedSlottedRecord(file, readFile, movedTo.getLong(0), decoder));
+                forwards.put(id, movedTo.getLong(0));
+                addSlottedRecordId(readFile, id);
+                break;
+            case SLOTTED_SLOT_FREE:
+                freeSlots.add(id);
+                break;
+            default:
+                // a moved record is read through the slot forwarded to it, in that slot's place
+            }
+        }
+    }
+
+    /**
+     * Reads the record a forwarded slot of a slotted file being read has moved to.
+     *
+     * @throws IOException if the slot is not valid
+     */
+    private static String readMovedSlottedRecord(FileChannel file, Object[] readFile, long id, CharsetDecoder decoder)
+            throws IOException {
+        if (getPageOfSlot(id) < 0 || getPageOfSlot(id) >= (Integer) readFile[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT]) {
+            throw new IOException("Invalid forwarded slot in slotted file");
+        }
+        final ByteBuffer entry = ByteBuffer.allocate(SLOTTED_SLOT_ENTRY_SIZE);
+        readFullyFromFileAt(file, entry, getSlotEntryPosition(readFile, id));
+        if (entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_STATE) != SLOTTED_SLOT_MOVED
+                || entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_LENGTH) < 0) {
+            throw new IOException("Invalid forwarded slot in slotted file");
+        }
+        final ByteBuffer record = ByteBuffer.allocate(entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_LENGTH));
+        readFullyFromFileAt(file, record, getSlottedPagePosition(readFile, getPageOfSlot(id))
+                + entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_OFFSET));
+        return decodeSlottedRecord(record, 0, record.capacity(), decoder);
+    }
+
+    /**
+     * Decodes the UTF-8 record in the given range of a page, rejecting bytes that are not valid UTF-8.
+     *
+     * @throws IOException if the range is not inside the page, or the record is not valid UTF-8
+     */
+    private static String decodeSlottedRecord(ByteBuffer page, int offset, int length, CharsetDecoder decoder)
+            throws IOException {
+        return decoder.decode(ByteBuffer.wrap(decodeSlottedRecordBytes(page, offset, length))).toString();
+    }
+
+    /**
+     * Copies the bytes in the given range of a page.
+     *
+     * @throws IOException if the range is not inside the page
+     */
+    private static byte[] decodeSlottedRecordBytes(ByteBuffer page, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > page.capacity() - length) {
+            throw new IOException("Invalid slot in slotted file");
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer range = page.duplicate();
+        range.position(offset);
+        range.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Saves the changes made to the model since the slotted file of the book in use was last saved, where they
+     * belong in the file: frees the slots of removed persons, updates the records of edited persons, and writes
+     * each new person into a free slot between its neighbours (or, after the last person, into a new slot at the
+     * end of the file). Exits program if there is an error saving to file.
+     *
+     * @return false if the changes cannot be saved in place (e.g. a person was inserted where there is no free
+     *         slot), so the file has to be rewritten whole
+     */
+    private static boolean saveChangesToSlottedFile() {
+        if (slottedFile == null) {
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(storageFilePath), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            final long fileLength = (Long) slottedFile[SLOTTED_FILE_DATA_INDEX_FILE_LENGTH];
+            if (fileLength < SLOTTED_FILE_HEADER_SIZE || file.size() != fileLength) {
+                return false; // never written by this program, or changed by someone else since
+            }
+            @SuppressWarnings("unchecked")
+            final ArrayList<Long> removedIds = (ArrayList<Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_REMOVED_IDS];
+            for (long id : removedIds) {
+                freeSlottedRecord(file, id);
+            }
+            removedIds.clear();
+
+            final long[] ids = (long[]) slottedFile[SLOTTED_FILE_DATA_INDEX_RECORD_IDS];
+            final int count = getSlottedRecordCount();
+            final int firstUnsaved = (Integer) slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED];
+            long previousId = firstUnsaved == 0 ? -1 : ids[firstUnsaved - 1];
+            int nextWritten = firstUnsaved; // the next person after a new person that is already in the file
+            for (int i = firstUnsaved; i < count; previousId = ids[i++]) {
+                if (ids[i] >= 0) {
+                    continue;
+                }
+                final byte[] record = getStorageLineBytesOfPersonAt(i);
+                if (ids[i] != SLOTTED_RECORD_NOT_WRITTEN) {
+                    ids[i] = getSlotIdOfRecord(ids[i]);
+                    writeSlottedRecord(file, ids[i], record);
+                    continue;
+                }
+                if (nextWritten <= i) {
+                    nextWritten = i + 1;
+                    while (nextWritten < count && ids[nextWritten] == SLOTTED_RECORD_NOT_WRITTEN) {
+                        nextWritten++;
+                    }
+                }
+                final boolean isLast = nextWritten == count;
+                final long freeId = takeFreeSlottedSlot(file, previousId,
+                        isLast ? Long.MAX_VALUE : getSlotIdOfRecord(ids[nextWritten]), isLast ? record.length : 0);
+                if (freeId != SLOTTED_RECORD_NOT_WRITTEN) {
+                    ids[i] = freeId;
+                    writeSlottedRecord(file, freeId, record);
+                } else if (isLast) {
+                    ids[i] = appendSlottedRecord(file, record, SLOTTED_SLOT_LIVE);
+                } else {
+                    return false;
+                }
+            }
+            slottedFile[SLOTTED_FILE_DATA_INDEX_FIRST_UNSAVED] = count;
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, storageFilePath));
+            exitProgram();
+        }
+        return true;
+    }
+
+    /**
+     * Takes the first free slot after the given slot in file order, if it comes before the other given slot
+     * and can hold a record of the given length without moving it.
+     *
+     * @return id of the slot taken, or SLOTTED_RECORD_NOT_WRITTEN if there is no such slot
+     */
+    private static long takeFreeSlottedSlot(FileChannel file, long afterId, long beforeId, int recordLength)
+            throws IOException {
+        @SuppressWarnings("unchecked")
+        final TreeSet<Long> freeSlots = (TreeSet<Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_FREE_SLOTS];
+        final Long freeId = freeSlots.higher(afterId);
+        if (freeId == null || freeId >= beforeId
+                || readSlotEntry(file, freeId).getInt(SLOTTED_SLOT_ENTRY_INDEX_CAPACITY) < recordLength) {
+            return SLOTTED_RECORD_NOT_WRITTEN;
+        }
+        freeSlots.remove(freeId);
+        return freeId;
+    }
+
+    /**
+     * Writes a record into the given slot, which is in use or was just taken from the free slots, over the
+     * record that was there if the new one fits. Otherwise, the record is moved to a new slot at the end of
+     * the file, and the given slot is forwarded to it.
+     */
+    private static void writeSlottedRecord(FileChannel file, long id, byte[] record) throws IOException {
+        @SuppressWarnings("unchecked")
+        final HashMap<Long, Long> forwards = (HashMap<Long, Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_FORWARDS];
+        final Long movedTo = forwards.get(id);
+        final long holderId = movedTo == null ? id : movedTo;
+        final ByteBuffer entry = readSlotEntry(file, holderId);
+        final int offset = entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_OFFSET);
+        final int capacity = entry.getInt(SLOTTED_SLOT_ENTRY_INDEX_CAPACITY);
+        if (record.length <= capacity) {
+            writeFullyToFileAt(file, ByteBuffer.wrap(record),
+                    getSlottedPagePosition(slottedFile, getPageOfSlot(holderId)) + offset);
+            writeSlotEntry(file, holderId, movedTo == null ? SLOTTED_SLOT_LIVE : SLOTTED_SLOT_MOVED, offset,
+                    record.length, capacity);
+            return;
+        }
+        if (movedTo != null) {
+            freeSlottedSlot(file, movedTo);
+        }
+        final long newHolderId = appendSlottedRecord(file, record, SLOTTED_SLOT_MOVED);
+        forwards.put(id, newHolderId);
+        final ByteBuffer forwardedEntry = movedTo == null ? entry : readSlotEntry(file, id);
+        final int forwardedOffset = forwardedEntry.getInt(SLOTTED_SLOT_ENTRY_INDEX_OFFSET);
+        writeFullyToFileAt(file, ByteBuffer.allocate(Long.BYTES).putLong(0, newHolderId),
+                getSlottedPagePosition(slottedFile, getPageOfSlot(id)) + forwardedOffset);
+        writeSlotEntry(file, id, SLOTTED_SLOT_FORWARDED, forwardedOffset, Long.BYTES,
+                forwardedEntry.getInt(SLOTTED_SLOT_ENTRY_INDEX_CAPACITY));
+    }
+
+    /**
+     * Writes a record into a new slot at the end of the file: in the last page if it has room, or else
+     * in a new page.
+     *
+     * @param state SLOTTED_SLOT_LIVE, or SLOTTED_SLOT_MOVED for a record moved out of a forwarded slot
+     * @return id of the new slot
+     */
+    private static long appendSlottedRecord(FileChannel file, byte[] record, int state) throws IOException {
+        final int capacity = getSlottedRecordCapacity(record.length);
+        int page = (Integer) slottedFile[SLOTTED_FILE_DATA_INDEX_PAGE_COUNT] - 1;
+        final ByteBuffer pageHeader = ByteBuffer.allocate(SLOTTED_PAGE_HEADER_SIZE);
+        if (page >= 0) {
+            readFullyFromFileAt(file, pageHeader, getSlottedPagePosition(slottedFile, page));
+        }
+        if (page < 0 || getSlottedPageFreeSpace(pageHeader.getInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT),
+                pageHeader.getInt(SLOTTED_PAGE_HEADER_INDEX_RECORDS_START)) < SLOTTED_SLOT_ENTRY_SIZE + capacity) {
+            final int pageLength = getSlottedPageLength(capacity);
+            page = addSlottedPage(slottedFile, pageLength);
+            pageHeader.putInt(SLOTTED_PAGE_HEADER_INDEX_LENGTH, pageLength)
+                    .putInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT, 0)
+                    .putInt(SLOTTED_PAGE_HEADER_INDEX_RECORDS_START, pageLength);
+            // the whole page is written, so that the file ends where the page does
+            final ByteBuffer emptyPage = ByteBuffer.allocate(pageLength);
+            emptyPage.put(pageHeader.array());
+            emptyPage.clear();
+            writeFullyToFileAt(file, emptyPage, getSlottedPagePosition(slottedFile, page));
+        }
+        final int slot = pageHeader.getInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT);
+        final int offset = pageHeader.getInt(SLOTTED_PAGE_HEADER_INDEX_RECORDS_START) - capacity;
+        final long id = makeSlotId(page, slot);
+        final long pagePosition = getSlottedPagePosition(slottedFile, page);
+        writeFullyToFileAt(file, ByteBuffer.wrap(record), pagePosition + offset);
+        writeSlotEntry(file, id, state, offset, record.length, capacity);
+        pageHeader.putInt(SLOTTED_PAGE_HEADER_INDEX_SLOT_COUNT, slot + 1)
+                .putInt(SLOTTED_PAGE_HEADER_INDEX_RECORDS_START, offset);
+        pageHeader.clear();
+        writeFullyToFileAt(file, pageHeader, pagePosition);
+        return id;
+    }
+
+    /**
+     * Frees the slot of a removed person, and the slot its record moved to if it was forwarded.
+     */
+    private static void freeSlottedRecord(FileChannel file, long id) throws IOException {
+        @SuppressWarnings("unchecked")
+        final HashMap<Long, Long> forwards = (HashMap<Long, Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_FORWARDS];
+        final Long movedTo = forwards.remove(id);
+        if (movedTo != null) {
+            freeSlottedSlot(file, movedTo);
+        }
+        freeSlottedSlot(file, id);
+    }
+
+    private static void freeSlottedSlot(FileChannel file, long id) throws IOException {
+        writeFullyToFileAt(file, ByteBuffer.allocate(Integer.BYTES).putInt(0, SLOTTED_SLOT_FREE),
+                getSlotEntryPosition(slottedFile, id) + SLOTTED_SLOT_ENTRY_INDEX_STATE);
+        @SuppressWarnings("unchecked")
+        final TreeSet<Long> freeSlots = (TreeSet<Long>) slottedFile[SLOTTED_FILE_DATA_INDEX_FREE_SLOTS];
+        freeSlots.add(id);
+    }
+
+    private static ByteBuffer readSlotEntry(FileChannel file, long id) throws IOException {
+        final ByteBuffer entry = ByteBuffer.allocate(SLOTTED_SLOT_ENTRY_SIZE);
+        readFullyFromFileAt(file, entry, getSlotEntryPosition(slottedFile, id));
+        return entry;
+    }
+
+    private static void writeSlotEntry(FileChannel file, long id, int state, int offset, int length, int capacity)
+            throws IOException {
+        final ByteBuffer entry = ByteBuffer.allocate(SLOTTED_SLOT_ENTRY_SIZE);
+        entry.putInt(state).putInt(offset).putInt(length).putInt(capacity).flip();
+        writeFullyToFileAt(file, entry, getSlotEntryPosition(slottedFile, id));
+    }
+
+    /**
+     * Fills the buffer from the file, starting at the given position in the file.
+     *
+     * @throws IOException if the file ends first
+     */
+    private static void readFullyFromFileAt(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer to the file, starting at the given position in the file
+     * (plus the position of the buffer).
+     */
+    private static void writeFullyToFileAt(FileChannel file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            file.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Returns the storage line of the person at the given absolute index, in UTF-8. For the off-heap backend,
+     * the stored bytes are copied without decoding them.
+     */
+    private static byte[] getStorageLineBytesOfPersonAt(int index) {
+        return isOffHeapBackend() ? getOffHeapLineBytes(offHeapRecordTable[index])
+                                  : encodePersonToString(ALL_PERSONS.get(index)).getBytes(StandardCharsets.UTF_8);
+    }
+
+
+    /*
+     * ===========================================
+     *             FOLLOW MODE LOGIC
+     * ===========================================
+     */
+
+    /**
+     * Starts a background thread that flags every change made to the storage file by other processes.
+     * The file is assumed to have been written by this program, so that the persons just loaded from it take up
+     * as many bytes as saving them would, with the same checksum; if not, the whole file is read again on its
+     * first change.
+     * Exits program if the file cannot be watched.
+     */
+    private static void startWatchingStorageFile() {
+        if (!isCompressedFilePath(storageFilePath) && !isSlottedFilePath(storageFilePath)) {
+            final CRC32 checksum = new CRC32();
+            for (int i = 0; i < getAddressBookSize(); i++) {
+                checksum.update(getStorageLineBytesOfPersonAt(i));
+                checksum.update(LINE_SEPARATOR_BYTES);
+            }
+            followedFileLength = getStorageFileLengthBeforePerson(getAddressBookSize());
+            followedFileChecksum = checksum.getValue();
+        }
+        final Path storagePath = Paths.get(storageFilePath).toAbsolutePath();
+        try {
+            final WatchService watchService = storagePath.getFileSystem().newWatchService();
+            storagePath.getParent().register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            final Thread watcher = new Thread(() -> watchStorageFile(watchService, storagePath.getFileName()));
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WATCHING_FILE, storageFilePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Waits for events in the storage file's folder, forever, and flags those affecting the storage file.
+     * Lost events (overflow) are treated as a change, to be safe.
+     */
+    private static void watchStorageFile(WatchService watchService, Path storageFileName) {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || storageFileName.equals(event.context())) {
+                    isFollowedStorageFileChanged = true;
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Brings the model up to date with the storage file, if the file has changed since it was last read.
+     * If lines were only added to the end of the file, only those lines are read (see
+     * {@link #applyLinesAppendedToFollowedStorageFile()}); otherwise the whole file is read again, but only
+     * the persons in its changed region are decoded and replaced.
+     * If the file cannot be read or decoded (e.g. the writer is half way through saving it),
+     * the update is retried before the next command.
+     */
+    private static void applyChangesFromFollowedStorageFile() {
+        if (!isFollowedStorageFileChanged) {
+            return;
+        }
+        // cleared before reading, so that a change made while reading is picked up next time
+        isFollowedStorageFileChanged = false;
+        try {
+            if (!applyLinesAppendedToFollowedStorageFile()) {
+                applyAllChangesFromFollowedStorageFile();
+            }
+        } catch (IOException ioe) {
+            isFollowedStorageFileChanged = true;
+        }
+    }
+
+    /**
+     * Appends the persons in the lines added to the end of the (uncompressed, not slotted) followed storage file
+     * since it was last read to the model, reading only those lines.
+     * Nothing is read if the file is no longer than when it was last read, or if the part of it that was read
+     * no longer has the same checksum, as the writer then changed more than the end of the file (e.g. an edit
+     * that kept every line at the same length, followed by an added person). Checking the checksum reads that
+     * part of the file again, but does not decode it.
+     *
+     * @return false if nothing was read, in which case the whole file has to be read instead
+     * @throws IOException if the file cannot be read
+     */
+    private static boolean applyLinesAppendedToFollowedStorageFile() throws IOException {
+        if (followedFileLength == FOLLOWED_FILE_LENGTH_UNKNOWN) {
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(storageFilePath), StandardOpenOption.READ)) {
+            if (file.size() <= followedFileLength) {
+                return false;
+            }
+            final CRC32 checksum = getChecksumOfFileStart(file, followedFileLength);
+            if (checksum.getValue() != followedFileChecksum) {
+                return false;
+            }
+            final ArrayList<String> lines = new ArrayList<>();
+            final long newLength = readCompleteLinesFromFile(file, followedFileLength, lines, checksum);
+            final Optional<ArrayList<String[]>> addedPersons = decodePersonsFromStrings(lines);
+            if (!addedPersons.isPresent()) {
+                isFollowedStorageFileChanged = true;
+                return true;
+            }
+            insertPersonsIntoModel(getAddressBookSize(), addedPersons.get());
+            followedFileLength = newLength;
+            followedFileChecksum = checksum.getValue();
+            return true;
+        }
+    }
+
+    /**
+     * Reads the complete lines of the file from the given position onwards, i.e. up to the last line separator
+     * in the file; a line the writer has not finished writing is left to be read next time. Lines are split the
+     * same way as {@link BufferedReader#readLine} splits them.
+     *
+     * @param lines receives the lines read, without their line separators
+     * @param checksum is updated with the bytes of the lines read, including their line separators
+     * @return the position in the file just after the lines read
+     * @throws IOException if the file cannot be read, or the lines are not valid UTF-8
+     */
+    private static long readCompleteLinesFromFile(FileChannel file, long position, List<String> lines,
+                                                  CRC32 checksum) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.allocate(Math.toIntExact(file.size() - position));
+        readFullyFromFileAt(file, bytes, position);
+        int end = bytes.capacity();
+        while (end > 0 && bytes.get(end - 1) != '\n') {
+            end--;
+        }
+        checksum.update(bytes.array(), 0, end);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes.array(), 0, end), StandardCharsets.UTF_8.newDecoder()));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lines.add(line);
+        }
+        return position + end;
+    }
+
+    /**
+     * Brings the model up to date with the whole followed storage file, for
+     * {@link #applyChangesFromFollowedStorageFile()}. Only the persons in the changed region of the file (between
+     * the unchanged leading and trailing lines) are decoded and replaced; the rest of the model is left untouched.
+     *
+     * @throws IOException if the file cannot be read
+     */
+    private static void applyAllChangesFromFollowedStorageFile() throws IOException {
+        final ArrayList<String> lines;
+        final long newLength;
+        final CRC32 checksum = new CRC32();
+        if (isCompressedFilePath(storageFilePath) || isSlottedFilePath(storageFilePath)) {
+            lines = getLinesInFile(storageFilePath);
+            newLength = FOLLOWED_FILE_LENGTH_UNKNOWN;
+        } else {
+            lines = new ArrayList<>();
+            try (FileChannel file = FileChannel.open(Paths.get(storageFilePath), StandardOpenOption.READ)) {
+                newLength = readCompleteLinesFromFile(file, 0, lines, checksum);
+            }
+        }
+
+        final int oldSize = getAddressBookSize();
+        final int newSize = lines.size();
+        final int commonSize = Math.min(oldSize, newSize);
+        int unchangedLeading = 0;
+        while (unchangedLeading < commonSize
+                && isPersonInAddressBookEncodedAs(unchangedLeading, lines.get(unchangedLeading))) {
+            unchangedLeading++;
+        }
+        int unchangedTrailing = 0;
+        while (unchangedTrailing < commonSize - unchangedLeading
+                && isPersonInAddressBookEncodedAs(oldSize - 1 - unchangedTrailing,
+                                                  lines.get(newSize - 1 - unchangedTrailing))) {
+            unchangedTrailing++;
+        }
+
+        final Optional<ArrayList<String[]>> changedPersons = decodePersonsFromStrings(
+                new ArrayList<>(lines.subList(unchangedLeading, newSize - unchangedTrailing)));
+        if (!changedPersons.isPresent()) {
+            isFollowedStorageFileChanged = true;
+            return;
+        }
+        removePersonsFromModel(unchangedLeading, oldSize - unchangedTrailing);
+        insertPersonsIntoModel(unchangedLeading, changedPersons.get());
+        followedFileLength = newLength;
+        followedFileChecksum = checksum.getValue();
+    }
+
+
+    /*
+     * ===========================================
+     *             REPLICATION LOGIC
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * Replication keeps a second process (the standby) up to date with
+     * this one (the primary), so that the standby can take over at once
+     * if the primary dies, without loading anything. The primary sends
+     * the changes it makes (the same ones remembered for undo), each
+     * with a sequence number, over a local socket; see the
+     * REPLICATION_MESSAGE constants for the format.
+     * ====================================================================
+     */
+
+    /**
+     * Remembers a change that was just made to the model, so that it is streamed to standbys in order.
+     * Does nothing unless this program accepts standbys.
+     *
+     * @param change that was applied
+     * @param isReverse true if the change was undone, in which case its inverse is remembered
+     */
+    private static void logReplicatedChange(Object[] change, boolean isReverse) {
+        if (REPLICATION_PORT == 0) {
+            return;
+        }
+        final Object[] loggedChange = isReverse ? makeInverseChange(change) : change;
+        if (nextReplicationSequence - replicationLogStart == REPLICATION_LOG_CAPACITY) {
+            forgetOldestReplicatedChange();
+        }
+        REPLICATION_LOG[getReplicationLogSlot(nextReplicationSequence++)] = loggedChange;
+        replicationLogMemory += getChangeMemory(loggedChange);
+        while (replicationLogMemory > UNDO_MEMORY_LIMIT) {
+            forgetOldestReplicatedChange();
+        }
+        AddressBook.class.notifyAll();
+    }
+
+    private static void forgetOldestReplicatedChange() {
+        final int slot = getReplicationLogSlot(replicationLogStart++);
+        replicationLogMemory -= getChangeMemory((Object[]) REPLICATION_LOG[slot]);
+        REPLICATION_LOG[slot] = null;
+    }
+
+    private static int getReplicationLogSlot(long sequence) {
+        return (int) (sequence % REPLICATION_LOG_CAPACITY);
+    }
+
+    /**
+     * Starts a background thread that accepts standbys on {@link #REPLICATION_PORT}, each of which is then
+     * streamed changes by a thread of its own. Exits program if the port cannot be listened on.
+     */
+    private static void startAcceptingStandbys() {
+        try {
+            final ServerSocket serverSocket = new ServerSocket(REPLICATION_PORT, 0, InetAddress.getLoopbackAddress());
+            startDaemonThread(() -> acceptStandbys(serverSocket));
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_ACCEPTING_STANDBYS, REPLICATION_PORT));
+            exitProgram();
+        }
+    }
+
+    private static void acceptStandbys(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                final Socket standby = serverSocket.accept();
+                startDaemonThread(() -> streamChangesToStandby(standby));
+            } catch (IOException ioe) {
+                // the standby gave up connecting; keep waiting for others
+            }
+        }
+    }
+
+    private static void startDaemonThread(Runnable task) {
+        final Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Streams changes to a connected standby until the connection breaks. The standby is first sent the
+     * changes it missed, in batches, if they are still in the log; otherwise it is sent a snapshot.
+     */
+    private static void streamChangesToStandby(Socket standby) {
+        try (Socket connection = standby;
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(
+                     new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8),
+                     STORAGE_BUFFER_SIZE)) {
+            final String[] handshake = String.valueOf(reader.readLine()).split(" ");
+            long nextToSend = handshake.length == 2 && handshake[0].equals(REPLICATION_STREAM_ID)
+                              ? Long.parseLong(handshake[1]) + 1 : 0;
+            final ArrayList<Object[]> batch = new ArrayList<>(REPLICATION_BATCH_SIZE);
+            while (true) {
+                Object[] snapshot = null;
+                synchronized (AddressBook.class) {
+                    if (nextToSend == nextReplicationSequence) {
+                        AddressBook.class.wait(REPLICATION_HEARTBEAT_MILLIS);
+                    }
+                    if (nextToSend < replicationLogStart || nextToSend > nextReplicationSequence) {
+                        // only copied here; encoded and written out after letting go of the lock
+                        snapshot = takeSnapshotOfAddressBook();
+                        nextToSend = nextReplicationSequence;
+                    }
+                    while (nextToSend < nextReplicationSequence && batch.size() < REPLICATION_BATCH_SIZE) {
+                        batch.add((Object[]) REPLICATION_LOG[getReplicationLogSlot(nextToSend++)]);
+                    }
+                }
+                if (snapshot != null) {
+                    writeReplicatedSnapshot(writer, snapshot, nextToSend - batch.size() - 1);
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    writeReplicatedChange(writer, batch.get(i), nextToSend - batch.size() + i);
+                }
+                writer.write(REPLICATION_MESSAGE_SYNC + " " + (nextToSend - 1));
+                writer.newLine();
+                writer.flush();
+                batch.clear();
+            }
+        } catch (IOException | NumberFormatException | InterruptedException e) {
+            // the standby went away or spoke nonsense; it reconnects if it is still there
+        }
+    }
+
+    /**
+     * Writes a snapshot taken by {@link #takeSnapshotOfAddressBook()} to a standby, as of the change with the
+     * given sequence number.
+     */
+    private static void writeReplicatedSnapshot(BufferedWriter writer, Object[] snapshot, long sequence)
+            throws IOException {
+        writer.write(REPLICATION_MESSAGE_SNAPSHOT + " " + REPLICATION_STREAM_ID + " " + sequence + " "
+                + snapshot.length);
+        writer.newLine();
+        for (Object snapshotPerson : snapshot) {
+            writer.write(getStorageLineOfSnapshotPerson(snapshotPerson));
+            writer.newLine();
+        }
+    }
+
+    private static void writeReplicatedChange(BufferedWriter writer, Object[] change, long sequence)
+            throws IOException {
+        final int[] positions = (int[]) change[CHANGE_DATA_INDEX_POSITIONS];
+        final boolean isInsertion = change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_INSERTED);
+        final boolean isReplacement = change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_REPLACED);
+        writer.write(REPLICATION_MESSAGE_CHANGE + " " + sequence + " " + change[CHANGE_DATA_INDEX_KIND] + " "
+                + positions.length + " " + encodePositionsAsRanges(positions));
+        writer.newLine();
+        if (isInsertion || isReplacement) {
+            // the replaced persons are not needed by the standby, which has them already
+            for (String[] person : getReplacingPersons(change)) {
+                writer.write(encodePersonToString(person));
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * Writes ascending positions as comma separated runs e.g. {0, 1, 2, 3, 4, 7} as "0-4,7".
+     */
+    private static String encodePositionsAsRanges(int[] positions) {
+        final StringBuilder ranges = new StringBuilder();
+        for (int i = 0; i < positions.length; i++) {
+            final int from = positions[i];
+            while (i + 1 < positions.length && positions[i + 1] == positions[i] + 1) {
+                i++;
+            }
+            if (ranges.length() > 0) {
+                ranges.append(COMMAND_DELETE_TARGET_SEPARATOR);
+            }
+            ranges.append(from);
+            if (positions[i] != from) {
+                ranges.append(COMMAND_DELETE_RANGE_SEPARATOR).append(positions[i]);
+            }
+        }
+        return ranges.toString();
+    }
+
+    /**
+     * Reads positions written by {@link #encodePositionsAsRanges(int[])}.
+     *
+     * @param count of positions the ranges are expected to hold
+     * @throws IOException if the ranges are malformed or do not hold that many positions
+     */
+    private static int[] decodePositionsFromRanges(String ranges, int count) throws IOException {
+        final int[] positions = new int[count];
+        int decoded = 0;
+        for (String range : ranges.isEmpty() ? new String[0] : ranges.split(COMMAND_DELETE_TARGET_SEPARATOR)) {
+            final String[] bounds = range.split(COMMAND_DELETE_RANGE_SEPARATOR, 2);
+            final int from = Integer.parseInt(bounds[0]);
+            final int to = bounds.length == 2 ? Integer.parseInt(bounds[1]) : from;
+            if (to < from || (long) decoded + to - from + 1 > count) {
+                throw new IOException("Invalid positions in replication stream: " + ranges);
+            }
+            for (int position = from; position <= to; position++) {
+                positions[decoded++] = position;
+            }
+        }
+        if (decoded != count) {
+            throw new IOException("Invalid positions in replication stream: " + ranges);
+        }
+        return positions;
+    }
+
+    /**
+     * Starts a background thread that keeps this standby connected to its primary, applying the changes
+     * streamed by it, until the standby is promoted.
+     */
+    private static void startReceivingChangesFromPrimary() {
+        startDaemonThread(AddressBook::receiveChangesFromPrimary);
+    }
+
+    /**
+     * Connects to the primary (again and again, if it is not there or the connection breaks) and applies
+     * the changes it streams, until this standby is promoted.
+     */
+    private static void receiveChangesFromPrimary() {
+        while (true) {
+            try (Socket connection = new Socket(InetAddress.getLoopbackAddress(), STANDBY_OF_PORT);
+                 BufferedReader reader = new BufferedReader(
+                         new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8),
+                         STORAGE_BUFFER_SIZE);
+                 BufferedWriter writer = new BufferedWriter(
+                         new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8))) {
+                synchronized (AddressBook.class) {
+                    if (!isStandby) {
+                        return;
+                    }
+                    primaryConnection = connection;
+                    writer.write(primaryStreamId + " " + lastAppliedReplicationSequence);
+                }
+                writer.newLine();
+                writer.flush();
+                applyChangesFromPrimary(reader);
+            } catch (IOException | RuntimeException e) {
+                // the primary is not there (yet, or any more) or spoke nonsense; try again shortly
+            }
+            synchronized (AddressBook.class) {
+                if (!isStandby) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(REPLICATION_HEARTBEAT_MILLIS);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads the messages streamed by the primary until the connection ends, applying the changes between
+     * two sync messages together and saving them to the storage file once.
+     *
+     * @throws IOException if the connection breaks or a message cannot be understood
+     */
+    private static void applyChangesFromPrimary(BufferedReader reader) throws IOException {
+        final ArrayList<Object[]> batch = new ArrayList<>();
+        String message;
+        while ((message = reader.readLine()) != null) {
+            final String[] fields = message.split(" ", 5);
+            switch (fields[0]) {
+            case REPLICATION_MESSAGE_SNAPSHOT:
+                final ArrayList<String[]> persons = readReplicatedPersons(reader, Integer.parseInt(fields[3]));
+                synchronized (AddressBook.class) {
+                    if (!isStandby) {
+                        return;
+                    }
+                    initialiseAddressBookModel(persons);
+                    saveAddressBookToStorageFile();
+                    primaryStreamId = fields[1];
+                    lastAppliedReplicationSequence = Long.parseLong(fields[2]);
+                }
+                break;
+            case REPLICATION_MESSAGE_CHANGE:
+                if (Long.parseLong(fields[1]) != lastAppliedReplicationSequence + batch.size() + 1) {
+                    throw new IOException("Change out of sequence: " + message);
+                }
+                if (!fields[2].equals(CHANGE_KIND_INSERTED) && !fields[2].equals(CHANGE_KIND_REMOVED)
+                        && !fields[2].equals(CHANGE_KIND_REPLACED)) {
+                    throw new IOException("Unknown change kind: " + message);
+                }
+                final int[] positions = decodePositionsFromRanges(fields[4], Integer.parseInt(fields[3]));
+                batch.add(makeChange(fields[2], positions, fields[2].equals(CHANGE_KIND_REMOVED)
+                        ? new ArrayList<>() : readReplicatedPersons(reader, positions.length), message));
+                break;
+            case REPLICATION_MESSAGE_SYNC:
+                synchronized (AddressBook.class) {
+                    if (!isStandby) {
+                        return;
+                    }
+                    applyReplicatedChanges(batch);
+                    lastAppliedReplicationSequence = Long.parseLong(fields[1]);
+                }
+                batch.clear();
+                break;
+            default:
+                throw new IOException("Unknown replication message: " + message);
+            }
+        }
+    }
+
+    /**
+     * Reads the given number of storage lines streamed by the primary, and decodes them into persons.
+     *
+     * @throws IOException if the connection breaks or a line is not a valid person
+     */
+    private static ArrayList<String[]> readReplicatedPersons(BufferedReader reader, int count) throws IOException {
+        final ArrayList<String[]> persons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final Optional<String[]> person = decodePersonFromString(String.valueOf(reader.readLine()));
+            if (!person.isPresent()) {
+                throw new IOException("Invalid person in replication stream");
+            }
+            persons.add(person.get());
+        }
+        return persons;
+    }
+
+    /**
+     * Applies changes received from the primary to the model, in order, and saves them to the storage file
+     * with a single write. The changes are also passed on to standbys of this standby, if it accepts any.
+     */
+    private static void applyReplicatedChanges(ArrayList<Object[]> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        int firstChangedIndex = getAddressBookSize();
+        for (Object[] change : changes) {
+            final int[] positions = (int[]) change[CHANGE_DATA_INDEX_POSITIONS];
+            @SuppressWarnings("unchecked")
+            final ArrayList<String[]> persons = (ArrayList<String[]>) change[CHANGE_DATA_INDEX_PERSONS];
+            if (change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_INSERTED)) {
+                insertPersonsIntoModelAt(positions, persons);
+            } else if (change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_REPLACED)) {
+                replacePersonsInModelAt(positions, persons);
+            } else {
+                removePersonsFromModelAt(positions);
+            }
+            firstChangedIndex = Math.min(firstChangedIndex, positions.length == 0 ? getAddressBookSize()
+                                                                                  : positions[0]);
+            logReplicatedChange(change, false);
+        }
+        saveAddressBookChangesToStorageFile(firstChangedIndex);
+    }
+
+    /**
+     * Closes the connection to the primary, if there is one, so that the thread reading from it stops.
+     */
+    private static void closeConnectionToPrimary() {
+        if (primaryConnection == null) {
+            return;
+        }
+        try {
+            primaryConnection.close();
+        } catch (IOException ioe) {
+            // it is not going to be used again anyway
+        }
+    }
+
+
+    /*
+     * ===========================================
+     *             CHANGE FEED LOGIC
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * The change feed lets other programs (and code running in this
+     * one) keep up with every change made to the model, whatever made
+     * it: a command, undo, a followed file or a primary. Each change
+     * is published as an event with a sequence number into a ring of
+     * limited size, and each watcher has a thread of its own copying
+     * events out of it, so that a slow watcher never holds up commands.
+     * See the CHANGE_FEED_MESSAGE constants for the format.
+     * ====================================================================
+     */
+
+    /**
+     * Publishes persons that just entered or left the model in use as an event of the change feed.
+     * Does nothing unless the feed is on.
+     *
+     * @param kind CHANGE_KIND_INSERTED or CHANGE_KIND_REMOVED
+     * @param positions ascending absolute indexes of the persons (while they are in the model)
+     * @param persons inserted or removed, in the same order as the positions; must not be changed afterwards
+     */
+    private static void publishChangeToFeed(String kind, int[] positions, ArrayList<String[]> persons) {
+        if (!isChangeFeedOn || positions.length == 0) {
+            return;
+        }
+        addChangeFeedEvent(makeChange(kind, positions, persons, getBookName(bookInUse)));
+    }
+
+    /**
+     * Publishes that the model in use was just filled anew, e.g. loaded from its storage file, as a reset event
+     * holding a snapshot of all its persons (see {@link #takeSnapshotOfAddressBook()}). Earlier events, of this
+     * book or others, are kept. A snapshot too big to keep makes the feed forget every event instead, so that
+     * each watcher is sent a reset of the address book in use next. Does nothing unless the feed is on.
+     */
+    private static void publishResetToFeed() {
+        if (!isChangeFeedOn) {
+            return;
+        }
+        final Object[] snapshot = takeSnapshotOfAddressBook();
+        final Object[] event = makeChange(CHANGE_FEED_MESSAGE_RESET, new int[0], new ArrayList<>(),
+                                          getBookName(bookInUse));
+        event[CHANGE_DATA_INDEX_PERSONS] = snapshot;
+        event[CHANGE_DATA_INDEX_MEMORY] = getChangeMemory(event) + estimateSnapshotMemory(snapshot);
+        if (getChangeMemory(event) <= UNDO_MEMORY_LIMIT) {
+            addChangeFeedEvent(event);
+            return;
+        }
+        while (changeFeedStart < nextChangeFeedSequence) {
+            forgetOldestChangeFeedEvent();
+        }
+        changeFeedStart = ++nextChangeFeedSequence;
+        AddressBook.class.notifyAll();
+    }
+
+    /**
+     * Adds the event to the ring of the change feed, forgetting the oldest events while the ring is full or
+     * holds more than {@link #UNDO_MEMORY_LIMIT}, and wakes up the watchers.
+     */
+    private static void addChangeFeedEvent(Object[] event) {
+        if (nextChangeFeedSequence - changeFeedStart == CHANGE_FEED_CAPACITY) {
+            forgetOldestChangeFeedEvent();
+        }
+        CHANGE_FEED[getChangeFeedSlot(nextChangeFeedSequence++)] = event;
+        changeFeedMemory += getChangeMemory(event);
+        while (changeFeedMemory > UNDO_MEMORY_LIMIT) {
+            forgetOldestChangeFeedEvent();
+        }
+        AddressBook.class.notifyAll();
+    }
+
+    private static void forgetOldestChangeFeedEvent() {
+        final int slot = getChangeFeedSlot(changeFeedStart++);
+        changeFeedMemory -= getChangeMemory((Object[]) CHANGE_FEED[slot]);
+        CHANGE_FEED[slot] = null;
+    }
+
+    private static int getChangeFeedSlot(long sequence) {
+        return (int) (sequence % CHANGE_FEED_CAPACITY);
+    }
+
+    /**
+     * Passes the events of the change feed after the given one to the watcher, on a thread of its own, from now
+     * until the watcher throws an exception. Each call passes a batch of lines in the format given by the
+     * CHANGE_FEED_MESSAGE constants, ending with a sync line; while there are no new events, a batch holding
+     * just a sync line is passed every {@link #REPLICATION_HEARTBEAT_MILLIS}. A watcher that is too slow to keep
+     * up with the events kept is passed a reset instead of the events it missed.
+     *
+     * @param lastSeenSequence sequence number of the last event the watcher saw in this run of the program,
+     *                         or 0 to be passed a reset first
+     * @param watcher given each batch of lines
+     */
+    public static void watchChanges(long lastSeenSequence, Consumer<List<String>> watcher) {
+        synchronized (AddressBook.class) {
+            isChangeFeedOn = true;
+        }
+        startDaemonThread(() -> streamChangeFeed(lastSeenSequence > 0 ? lastSeenSequence + 1 : 0, watcher));
+    }
+
+    /**
+     * Starts a background thread that accepts watchers on {@link #WATCH_PORT}, each of which is then
+     * streamed the change feed by a thread of its own. Exits program if the port cannot be listened on.
+     */
+    private static void startAcceptingWatchers() {
+        try {
+            final ServerSocket serverSocket = new ServerSocket(WATCH_PORT, 0, InetAddress.getLoopbackAddress());
+            startDaemonThread(() -> acceptWatchers(serverSocket));
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_ACCEPTING_WATCHERS, WATCH_PORT));
+            exitProgram();
+        }
+    }
+
+    private static void acceptWatchers(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                final Socket watcher = serverSocket.accept();
+                startDaemonThread(() -> streamChangeFeedToWatcher(watcher));
+            } catch (IOException ioe) {
+                // the watcher gave up connecting; keep waiting for others
+            }
+        }
+    }
+
+    /**
+     * Streams the change feed to a connected watcher until the connection breaks, starting after the last
+     * event the watcher says it saw.
+     */
+    private static void streamChangeFeedToWatcher(Socket watcher) {
+        try (Socket connection = watcher;
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(
+                     new OutputStreamWriter(connection.getOutputStream(), StandardCharsets.UTF_8),
+                     STORAGE_BUFFER_SIZE)) {
+            final String[] handshake = String.valueOf(reader.readLine()).split(" ");
+            final long nextToSend = handshake.length == 2 && handshake[0].equals(CHANGE_FEED_ID)
+                                    ? Long.parseLong(handshake[1]) + 1 : 0;
+            streamChangeFeed(nextToSend, lines -> {
+                try {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                    writer.flush();
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            });
+        } catch (IOException | NumberFormatException e) {
+            // the watcher went away or spoke nonsense; it reconnects if it is still there
+        }
+    }
+
+    /**
+     * Passes batches of change feed events to the watcher until it throws an exception or the thread is
+     * interrupted (see {@link #watchChanges(long, Consumer)}). Events are copied out of the feed while holding
+     * the lock of this class, but passed to the watcher after letting go of it.
+     *
+     * @param nextToSend sequence number of the first event to pass; a reset is passed first if that event
+     *                   is no longer kept
+     */
+    private static void streamChangeFeed(long nextToSend, Consumer<List<String>> watcher) {
+        synchronized (AddressBook.class) {
+            changeFeedWatcherCount++;
+        }
+        try {
+            final ArrayList<Object[]> batch = new ArrayList<>(CHANGE_FEED_BATCH_SIZE);
+            final ArrayList<String> lines = new ArrayList<>();
+            while (true) {
+                Object[] snapshot = null;
+                String snapshotBookName = null;
+                synchronized (AddressBook.class) {
+                    if (nextToSend == nextChangeFeedSequence || bookInUse == null) {
+                        AddressBook.class.wait(REPLICATION_HEARTBEAT_MILLIS);
+                    }
+                    if (bookInUse == null) { // the program has not loaded its address book yet
+                        continue;
+                    }
+                    if (nextToSend < changeFeedStart || nextToSend > nextChangeFeedSequence) {
+                        nextToSend = nextChangeFeedSequence;
+                        snapshot = takeSnapshotOfAddressBook();
+                        snapshotBookName = getBookName(bookInUse);
+                    }
+                    while (nextToSend < nextChangeFeedSequence && batch.size() < CHANGE_FEED_BATCH_SIZE) {
+                        batch.add((Object[]) CHANGE_FEED[getChangeFeedSlot(nextToSend++)]);
+                    }
+                }
+                if (snapshot != null) {
+                    addChangeFeedResetLines(lines, nextToSend - batch.size() - 1, snapshotBookName, snapshot);
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    addChangeFeedEventLines(lines, batch.get(i), nextToSend - batch.size() + i);
+                }
+                lines.add(CHANGE_FEED_MESSAGE_SYNC + " " + (nextToSend - 1));
+                watcher.accept(lines);
+                lines.clear();
+                batch.clear();
+            }
+        } catch (RuntimeException | InterruptedException e) {
+            // the watcher stopped watching
+        } finally {
+            synchronized (AddressBook.class) {
+                changeFeedWatcherCount--;
+            }
+        }
+    }
+
+    /**
+     * Adds the lines of a reset event holding all persons in the given snapshot of an address book.
+     */
+    private static void addChangeFeedResetLines(ArrayList<String> lines, long sequence, String bookName,
+                                                Object[] snapshot) {
+        lines.add(CHANGE_FEED_MESSAGE_RESET + " " + CHANGE_FEED_ID + " " + sequence + " " + snapshot.length
+                + " " + bookName);
+        for (Object snapshotPerson : snapshot) {
+            lines.add(getStorageLineOfSnapshotPerson(snapshotPerson));
+        }
+    }
+
+    private static void addChangeFeedEventLines(ArrayList<String> lines, Object[] event, long sequence) {
+        if (event[CHANGE_DATA_INDEX_KIND].equals(CHANGE_FEED_MESSAGE_RESET)) {
+            addChangeFeedResetLines(lines, sequence, (String) event[CHANGE_DATA_INDEX_DESCRIPTION],
+                                    (Object[]) event[CHANGE_DATA_INDEX_PERSONS]);
+            return;
+        }
+        final int[] positions = (int[]) event[CHANGE_DATA_INDEX_POSITIONS];
+        lines.add(event[CHANGE_DATA_INDEX_KIND] + " " + sequence + " " + positions.length + " "
+                + encodePositionsAsRanges(positions) + " " + event[CHANGE_DATA_INDEX_DESCRIPTION]);
+        @SuppressWarnings("unchecked")
+        final ArrayList<String[]> persons = (ArrayList<String[]>) event[CHANGE_DATA_INDEX_PERSONS];
+        for (String[] person : persons) {
+            lines.add(encodePersonToString(person));
+        }
+    }
+
+
+    /*
+     * ===========================================
+     *             MAINTENANCE LOGIC
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * Some work does not have to be done when a command asks for it, and
+     * would only make that command slow: e.g. rewriting the whole storage
+     * file, so that later changes can be saved by rewriting its tail only.
+     * Such work is done by maintenance tasks instead, in a background
+     * thread, while the user is not running commands. The tasks are listed
+     * by the MAINTENANCE_TASK constants.
+     * ====================================================================
+     */
+
+    /**
+     * Starts a background thread that runs maintenance while the program is idle, unless maintenance is off.
+     */
+    private static void startMaintenance() {
+        if (MAINTENANCE_IDLE_MILLIS > 0) {
+            startDaemonThread(AddressBook::runMaintenanceWhenIdle);
+        }
+    }
+
+    /**
+     * Waits until no command was run for {@link #MAINTENANCE_IDLE_MILLIS}, then runs the maintenance tasks
+     * that are due one after the other, for as long as no command is run. A task mostly holds the lock of this
+     * class while it runs, so a command entered meanwhile waits for it; letting go of the lock between tasks
+     * keeps such waits short, and the longest task (rewriting a text storage file) lets go of it while it
+     * reads and writes the file.
+     */
+    private static void runMaintenanceWhenIdle() {
+        final long idleTime = TimeUnit.MILLISECONDS.toNanos(MAINTENANCE_IDLE_MILLIS);
+        while (true) {
+            long waitTime;
+            synchronized (AddressBook.class) {
+                waitTime = idleTime - (System.nanoTime() - lastCommandTime);
+            }
+            if (waitTime <= 0) {
+                waitTime = runNextDueMaintenanceTask() ? 0 : idleTime;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitTime);
+            } catch (InterruptedException ie) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the first maintenance task that is due and did not run in the last
+     * {@link #MAINTENANCE_TASK_MIN_INTERVAL_MILLIS}, and remembers what it did. Does nothing if there is none.
+     * The task holds the lock of this class while it runs, except for rewriting a text storage file (see
+     * {@link #rewriteStorageFileFromSnapshot()}), which is not remembered as having run if a command stopped it.
+     *
+     * @return true if a task ran, or was stopped by a command
+     */
+    private static boolean runNextDueMaintenanceTask() {
+        final long minInterval = TimeUnit.MILLISECONDS.toNanos(MAINTENANCE_TASK_MIN_INTERVAL_MILLIS);
+        final long startTime = System.nanoTime();
+        int dueTask = -1;
+        String result = null;
+        synchronized (AddressBook.class) {
+            for (int task = 0; task < MAINTENANCE_TASK_NAMES.length && dueTask < 0; task++) {
+                final boolean hasRunRecently = MAINTENANCE_TASK_RUN_COUNTS[task] > 0
+                        && startTime - MAINTENANCE_TASK_LAST_RUN_TIMES[task] < minInterval;
+                if (!hasRunRecently && isMaintenanceTaskDue(task)) {
+                    dueTask = task;
+                }
+            }
+            if (dueTask < 0) {
+                return false;
+            }
+            if (!isMaintenanceTaskRunWithoutLock(dueTask)) {
+                result = runMaintenanceTask(dueTask);
+            }
+        }
+        if (result == null) {
+            result = rewriteStorageFileFromSnapshot();
+        }
+        synchronized (AddressBook.class) {
+            if (result != null) {
+                MAINTENANCE_TASK_LAST_RUN_RESULTS[dueTask] = result;
+                MAINTENANCE_TASK_LAST_RUN_TIMES[dueTask] = System.nanoTime();
+                MAINTENANCE_TASK_LAST_RUN_DURATIONS[dueTask] = MAINTENANCE_TASK_LAST_RUN_TIMES[dueTask] - startTime;
+                MAINTENANCE_TASK_RUN_COUNTS[dueTask]++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the maintenance task is run by {@link #rewriteStorageFileFromSnapshot()} without holding
+     * the lock of this class, instead of by {@link #runMaintenanceTask(int)}: rewriting a storage file that is
+     * not slotted (nor compressed, as it is then never due).
+     */
+    private static boolean isMaintenanceTaskRunWithoutLock(int task) {
+        return task == MAINTENANCE_TASK_REWRITE_STORAGE_FILE && !isSlottedFilePath(storageFilePath);
+    }
+
+    /**
+     * Returns true if the maintenance task has work to do on the address book in use:
+     * the off-heap model has at least a chunk's worth of free slots in memory, the storage file is not known to be
+     * in the form that lets changes be saved by rewriting its tail, the query indexes were dropped, or the
+     * index file is on and not up to date (though not before the storage file has gone unchanged for
+     * {@link #INDEX_FILE_CHECKSUM_WINDOW_NANOS}, so that the index file can be checked without reading the
+     * storage file). Nothing is due while commands are answered from the index file, as the model is not
+     * loaded then.
+     */
+    private static boolean isMaintenanceTaskDue(int task) {
+        if (isUsingIndexFile()) {
+            return false;
+        }
+        switch (task) {
+        case MAINTENANCE_TASK_COMPACT_OFF_HEAP_MODEL:
+            // the free slots of a tiered model take up disk space only, and are reused all the same
+            return isOffHeapBackend() && !isTieredBackend() && getOffHeapFreeBytes() >= OFF_HEAP_CHUNK_SIZE;
+        case MAINTENANCE_TASK_REWRITE_STORAGE_FILE:
+            if (isSlottedFilePath(storageFilePath)) {
+                return !IS_FOLLOW_MODE && isSlottedFileCompactionDue();
+            }
+            return !IS_FOLLOW_MODE && !isStorageFileCanonical && !isCompressedFilePath(storageFilePath);
+        case MAINTENANCE_TASK_WRITE_INDEX_FILE:
+            return IS_INDEX_FILE_ON && !IS_FOLLOW_MODE && !isCompressedFilePath(storageFilePath)
+                    && isStorageFileUnchangedForChecksumWindow(storageFilePath)
+                    && !isIndexFileUpToDate(storageFilePath);
+        default:
+            return isQueryIndexRebuildDue || isFuzzyQueryIndexRebuildDue;
+        }
+    }
+
+    /**
+     * Runs the maintenance task on the address book in use.
+     *
+     * @return what the task did, for the maintenance status
+     */
+    private static String runMaintenanceTask(int task) {
+        switch (task) {
+        case MAINTENANCE_TASK_COMPACT_OFF_HEAP_MODEL:
+            final int chunkCount = OFF_HEAP_CHUNKS.size();
+            compactOffHeapModel();
+            return String.format(MESSAGE_MAINTENANCE_CHUNKS_RELEASED, chunkCount - OFF_HEAP_CHUNKS.size());
+        case MAINTENANCE_TASK_REWRITE_STORAGE_FILE:
+            // only for slotted files (see isMaintenanceTaskRunWithoutLock)
+            saveAddressBookToStorageFile();
+            return String.format(MESSAGE_MAINTENANCE_PERSONS_WRITTEN, getAddressBookSize());
+        case MAINTENANCE_TASK_WRITE_INDEX_FILE:
+            return writeIndexFile(storageFilePath);
+        default:
+            if (isFuzzyQueryIndexRebuildDue) {
+                ensureFuzzyQueryIndexBuilt();
+            } else {
+                ensureQueryIndexesBuilt();
+            }
+            return String.format(MESSAGE_MAINTENANCE_PERSONS_INDEXED, getAddressBookSize());
+        }
+    }
+
+    /**
+     * Brings the (uncompressed, not slotted) storage file of the book in use into the form that saving the whole
+     * address book gives it, for the rewrite storage file maintenance task. The lock of this class is only held
+     * to take a snapshot of the address book (see {@link #takeSnapshotOfAddressBook()}) and, at the end, to
+     * replace the file; the file is compared with the snapshot, and written anew to a temporary file if they
+     * differ, in between. The work is given up if a command ran, or the book in use or its storage file changed,
+     * in the meantime, so that the task runs again once the program is next idle.
+     *
+     * @return what the task did, for the maintenance status, or null if it was given up
+     */
+    private static String rewriteStorageFileFromSnapshot() {
+        final String filePath;
+        final Object[] snapshot;
+        final long startCommandTime;
+        synchronized (AddressBook.class) {
+            filePath = storageFilePath;
+            snapshot = takeSnapshotOfAddressBook();
+            startCommandTime = lastCommandTime;
+        }
+        final Path path = Paths.get(filePath).toAbsolutePath();
+        Path temporaryPath = null;
+        try {
+            final long fileSize = Files.size(path);
+            final long fileModified = getLastModifiedNanos(path);
+            final boolean isSame = isFileSameAsSnapshot(path, fileSize, snapshot);
+            if (!isSame) {
+                temporaryPath = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+                writeSnapshotToFile(temporaryPath, snapshot);
+            }
+            synchronized (AddressBook.class) {
+                if (lastCommandTime != startCommandTime || !filePath.equals(storageFilePath)
+                        || isStorageFileCanonical || Files.size(path) != fileSize
+                        || getLastModifiedNanos(path) != fileModified) {
+                    return null;
+                }
+                if (!isSame) {
+                    Files.move(temporaryPath, path, StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                    temporaryPath = null;
+                }
+                isStorageFileCanonical = true;
+                return String.format(isSame ? MESSAGE_MAINTENANCE_PERSONS_CHECKED
+                                            : MESSAGE_MAINTENANCE_PERSONS_WRITTEN, snapshot.length);
+            }
+        } catch (IOException ioe) {
+            return String.format(MESSAGE_MAINTENANCE_STORAGE_FILE_NOT_WRITTEN, path.getFileName());
+        } finally {
+            if (temporaryPath != null) {
+                temporaryPath.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the file, of the given size, holds exactly what saving the persons of the snapshot
+     * (see {@link #takeSnapshotOfAddressBook()}) would write to it, e.g. because this program wrote it before
+     * it was loaded. Reads the file to make sure, unless its size already tells otherwise.
+     */
+    private static boolean isFileSameAsSnapshot(Path path, long fileSize, Object[] snapshot) throws IOException {
+        long savedSize = (long) snapshot.length * LINE_SEPARATOR_BYTES.length;
+        for (Object snapshotPerson : snapshot) {
+            savedSize += snapshotPerson instanceof byte[] ? ((byte[]) snapshotPerson).length
+                                                          : getEncodedPersonLength((String[]) snapshotPerson);
+        }
+        if (fileSize != savedSize) {
+            return false;
+        }
+        try (InputStream file = new BufferedInputStream(Files.newInputStream(path), STORAGE_BUFFER_SIZE)) {
+            for (Object snapshotPerson : snapshot) {
+                if (!isNextInStream(file, getStorageLineBytesOfSnapshotPerson(snapshotPerson))
+                        || !isNextInStream(file, LINE_SEPARATOR_BYTES)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the storage lines of the persons of the snapshot (see {@link #takeSnapshotOfAddressBook()})
+     * to a new file.
+     */
+    private static void writeSnapshotToFile(Path path, Object[] snapshot) throws IOException {
+        try (OutputStream file = new BufferedOutputStream(
+                Files.newOutputStream(path, StandardOpenOption.CREATE_NEW), STORAGE_BUFFER_SIZE)) {
+            for (Object snapshotPerson : snapshot) {
+                file.write(getStorageLineBytesOfSnapshotPerson(snapshotPerson));
+                file.write(LINE_SEPARATOR_BYTES);
+            }
+        }
+    }
+
+
+    /*
+     * ===========================================
+     *             INDEX FILE LOGIC
+     * ===========================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * Loading a big storage file takes a while, which is wasted on a
+     * program started just to run a find or two. So maintenance can keep
+     * an index file next to the storage file: a copy of its persons that
+     * can be searched where it lies, without being loaded first. A program
+     * started later maps the index file into memory (sharing the pages
+     * with every other program that maps it) and answers list and find
+     * from it, until some command needs the model after all. An index
+     * file is never changed once written. A newer one replaces it whole,
+     * so a program that mapped the old one keeps reading the old one.
+     * ====================================================================
+     */
+
+    /*
+     * Layout of an index file (positions are counted from the start of the file):
+     *    header       - see the INDEX_FILE_HEADER_INDEX constants; the size and last modified time of the
+     *                   storage file it was written for tell whether it is still up to date, and so does
+     *                   the checksum of its content if the index file was written soon after it changed
+     *    records      - the storage line of each person (without line separators), in address book order
+     *    record table - the position of each record, then the position just after the last record
+     *    words        - the words of the folded names (see foldForSearch), in UTF-8
+     *    word table   - an entry for each word (see the INDEX_FILE_WORD_ENTRY_INDEX constants), sorted by word
+     *    postings     - for each word, the ascending numbers of the records whose folded name has that word
+     */
+
+    private static String getIndexFilePath(String storageFilePath) {
+        return storageFilePath + INDEX_FILE_EXTENSION;
+    }
+
+    /**
+     * Returns true if the model has to be loaded at once, because something running in the background
+     * (following the storage file, replication or the change feed) works on it from the start.
+     */
+    private static boolean isModelNeededInBackground() {
+        return IS_FOLLOW_MODE || REPLICATION_PORT != 0 || STANDBY_OF_PORT != 0 || WATCH_PORT != 0;
+    }
+
+    private static boolean isUsingIndexFile() {
+        return indexFile != null;
+    }
+
+    /**
+     * Returns true if the command can be run while answering from the index file. Of the commands that need
+     * persons, only list and find can; find then loads the model itself if the query is not made of keywords.
+     */
+    private static boolean isCommandAnsweredFromIndexFile(String commandType) {
+        return commandType.equals(COMMAND_LIST_WORD) || commandType.equals(COMMAND_FIND_WORD)
+                || commandType.equals(COMMAND_HELP_WORD) || commandType.equals(COMMAND_EXIT_WORD);
+    }
+
+    /**
+     * Maps the index file of the storage file into memory and answers commands from it from now on,
+     * if it is up to date.
+     *
+     * @return false if there is no usable index file, and the model has to be loaded as usual
+     */
+    private static boolean openIndexFile(String storageFilePath) {
+        if (isCompressedFilePath(storageFilePath)) {
+            return false;
+        }
+        try (FileChannel file = FileChannel.open(Paths.get(getIndexFilePath(storageFilePath)),
+                                                 StandardOpenOption.READ)) {
+            if (file.size() < INDEX_FILE_HEADER_SIZE || file.size() > Integer.MAX_VALUE) {
+                return false;
+            }
+            // the mapping stays valid after the file is closed
+            final ByteBuffer mappedFile = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            if (!isIndexFileHeaderOf(mappedFile, storageFilePath)) {
+                return false;
+            }
+            indexFile = mappedFile;
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the index file of the storage file exists and was written for the storage file as it is now.
+     */
+    private static boolean isIndexFileUpToDate(String storageFilePath) {
+        try (FileChannel file = FileChannel.open(Paths.get(getIndexFilePath(storageFilePath)),
+                                                 StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(INDEX_FILE_HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (file.read(header) < 0) {
+                    return false;
+                }
+            }
+            return isIndexFileHeaderOf(header, storageFilePath);
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the header is that of an index file of this version, written for the storage file
+     * as it is now: with the same size and last modified time and, if the index file was written within
+     * {@link #INDEX_FILE_CHECKSUM_WINDOW_NANOS} of that time, the same checksum. Only then is the storage file
+     * read (but not decoded), so an index file is usually checked without reading the storage file at all.
+     */
+    private static boolean isIndexFileHeaderOf(ByteBuffer header, String storageFilePath) throws IOException {
+        final Path storagePath = Paths.get(storageFilePath);
+        final long storageFileModified = getLastModifiedNanos(storagePath);
+        if (header.getInt(INDEX_FILE_HEADER_INDEX_MAGIC) != INDEX_FILE_MAGIC
+                || header.getInt(INDEX_FILE_HEADER_INDEX_VERSION) != INDEX_FILE_VERSION
+                || header.getLong(INDEX_FILE_HEADER_INDEX_STORAGE_FILE_SIZE) != Files.size(storagePath)
+                || header.getLong(INDEX_FILE_HEADER_INDEX_STORAGE_FILE_MODIFIED) != storageFileModified) {
+            return false;
+        }
+        final long writtenAfterModified = header.getLong(INDEX_FILE_HEADER_INDEX_WRITTEN) - storageFileModified;
+        return writtenAfterModified >= INDEX_FILE_CHECKSUM_WINDOW_NANOS
+                || header.getLong(INDEX_FILE_HEADER_INDEX_STORAGE_FILE_CHECKSUM) == getChecksumOfFile(storagePath);
+    }
+
+    /**
+     * Returns true if the storage file was last modified at least {@link #INDEX_FILE_CHECKSUM_WINDOW_NANOS} ago,
+     * so that an index file written for it now is later checked without reading it.
+     */
+    private static boolean isStorageFileUnchangedForChecksumWindow(String storageFilePath) {
+        try {
+            final long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+            return now - getLastModifiedNanos(Paths.get(storageFilePath)) >= INDEX_FILE_CHECKSUM_WINDOW_NANOS;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static long getLastModifiedNanos(Path path) throws IOException {
+        return Files.getLastModifiedTime(path).to(TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the CRC-32 checksum of the content of the file.
+     */
+    private static long getChecksumOfFile(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            return getChecksumOfFileStart(file, file.size()).getValue();
+        }
+    }
+
+    /**
+     * Returns a CRC-32 checksum updated with the given number of bytes at the start of the file, read
+     * sequentially.
+     *
+     * @throws IOException if the file ends first
+     */
+    private static CRC32 getChecksumOfFileStart(FileChannel file, long length) throws IOException {
+        final CRC32 checksum = new CRC32();
+        final ByteBuffer bytes = ByteBuffer.allocate(STORAGE_BUFFER_SIZE);
+        for (long position = 0; position < length; position += bytes.capacity()) {
+            bytes.clear().limit((int) Math.min(bytes.capacity(), length - position));
+            readFullyFromFileAt(file, bytes, position);
+            checksum.update(bytes.array(), 0, bytes.limit());
+        }
+        return checksum;
+    }
+
+    /**
+     * Stops answering from the index file and loads the model from the storage file instead. The persons of
+     * the latest listing are swapped for the same persons in the model, so that commands can go on referring
+     * to them by their displayed index. Exits program if the storage file cannot be read or decoded.
+     */
+    private static void loadModelInsteadOfIndexFile() {
+        indexFile = null; // unmapped once it is garbage collected
+        final ArrayList<String[]> listedPersons = latestPersonListingView;
+        loadModelFromStorageFile();
+        if (listedPersons != ALL_PERSONS) {
+            latestPersonListingView = findSamePersonsInModel(listedPersons);
+        }
+    }
+
+    /**
+     * Finds the persons in the model with the same data as the given persons, in a single pass over the model.
+     * A person not found is kept as it is, so that it is reported as no longer in the address book.
+     *
+     * @param persons in address book order
+     */
+    private static ArrayList<String[]> findSamePersonsInModel(ArrayList<String[]> persons) {
+        final ArrayList<String[]> samePersons = new ArrayList<>(persons.size());
+        int position = 0;
+        for (String[] person : persons) {
+            String[] samePerson = null;
+            for (int i = position; i < getAddressBookSize() && samePerson == null; i++) {
+                final String[] personInModel = isOffHeapBackend() ? decodeOffHeapPerson(offHeapRecordTable[i])
+                                                                  : ALL_PERSONS.get(i);
+                if (isSamePersonData(personInModel, person)) {
+                    samePerson = personInModel;
+                    position = i + 1;
+                }
+            }
+            samePersons.add(samePerson == null ? person : samePerson);
+        }
+        return samePersons;
+    }
+
+    /**
+     * Passes the first persons in the index file to the consumer, in order, decoding each just before.
+     *
+     * @param limit the most persons to pass on
+     * @param personConsumer given each person
+     */
+    private static void forEachIndexFilePerson(int limit, Consumer<String[]> personConsumer) {
+        final int count = Math.min(limit, indexFile.getInt(INDEX_FILE_HEADER_INDEX_RECORD_COUNT));
+        for (int record = 0; record < count; record++) {
+            personConsumer.accept(readIndexFilePerson(record));
+        }
+    }
+
+    /**
+     * Passes each person in the index file whose name has some of the keywords as a word to the consumer, in
+     * address book order, as soon as it is found. Only the records listed under the keywords in the index file
+     * are decoded: folded keywords are looked up as they are, and others by the first word of their folded form,
+     * which is in the folded name of every person whose name has the keyword.
+     *
+     * @param isFolded if true, the keywords are already folded and are matched against the folded names
+     * @param limit the search stops as soon as this many persons are found
+     * @param matchConsumer given each person found
+     * @return number of persons found
+     */
+    private static int forEachIndexFilePersonWithNameContainingAnyKeyword(Collection<String> keywords,
+                                                                          boolean isFolded, int limit,
+                                                                          Consumer<String[]> matchConsumer) {
+        final BitSet records = new BitSet();
+        for (String keyword : keywords) {
+            final String foldedKeyword = isFolded ? keyword : foldForSearch(keyword);
+            if (!isFolded && foldedKeyword.isEmpty()) {
+                // the names having such a keyword (made of accents only) are not listed under any word
+                loadModelInsteadOfIndexFile();
+                return forEachPersonWithNameContainingAnyKeyword(keywords, limit, matchConsumer);
+            }
+            addIndexFileRecordsOfWord(records, foldedKeyword.substring(0, getEndOfFoldedWord(foldedKeyword, 0)));
+        }
+        int found = 0;
+        for (int record = records.nextSetBit(0); record >= 0 && found < limit;
+                record = records.nextSetBit(record + 1)) {
+            final String[] person = readIndexFilePerson(record);
+            if (isFolded || isAnyKeywordAWordIn(getNameFromPerson(person), keywords)) {
+                matchConsumer.accept(person);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the numbers of the records listed under the word in the index file, if any, to the set.
+     * The word is found by binary search of the word table.
+     */
+    private static void addIndexFileRecordsOfWord(BitSet records, String word) {
+        final int wordTableStart = indexFile.getInt(INDEX_FILE_HEADER_INDEX_WORD_TABLE_START);
+        int low = 0;
+        int high = indexFile.getInt(INDEX_FILE_HEADER_INDEX_WORD_COUNT) - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int entry = wordTableStart + middle * INDEX_FILE_WORD_ENTRY_SIZE;
+            final int comparison = readIndexFileString(indexFile.getInt(entry + INDEX_FILE_WORD_ENTRY_INDEX_WORD_START),
+                    indexFile.getInt(entry + INDEX_FILE_WORD_ENTRY_INDEX_WORD_LENGTH)).compareTo(word);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                final int postingsStart = indexFile.getInt(entry + INDEX_FILE_WORD_ENTRY_INDEX_POSTINGS_START);
+                final int postingsCount = indexFile.getInt(entry + INDEX_FILE_WORD_ENTRY_INDEX_POSTINGS_COUNT);
+                for (int i = 0; i < postingsCount; i++) {
+                    records.set(indexFile.getInt(postingsStart + i * Integer.BYTES));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decodes the person in the given record of the index file.
+     */
+    private static String[] readIndexFilePerson(int record) {
+        final int recordTableStart = indexFile.getInt(INDEX_FILE_HEADER_INDEX_RECORD_TABLE_START);
+        final int recordStart = indexFile.getInt(recordTableStart + record * Integer.BYTES);
+        final int recordEnd = indexFile.getInt(recordTableStart + (record + 1) * Integer.BYTES);
+        // the records were encoded from valid persons, so they always decode
+        return decodePersonFromString(readIndexFileString(recordStart, recordEnd - recordStart)).get();
+    }
+
+    private static String readIndexFileString(int start, int length) {
+        final byte[] bytes = new byte[length];
+        final ByteBuffer source = indexFile.duplicate();
+        source.position(start);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the index file of the storage file from the model in use, which must hold what the storage file
+     * holds. The index file is written under a temporary name first and then renamed, replacing the previous
+     * index file at once, so that no program ever maps an index file that is only partly written.
+     *
+     * @return what was done, for the maintenance status
+     */
+    private static String writeIndexFile(String storageFilePath) {
+        final Path storagePath = Paths.get(storageFilePath).toAbsolutePath();
+        final Path indexPath = Paths.get(getIndexFilePath(storageFilePath)).toAbsolutePath();
+        Path temporaryPath = null;
+        try {
+            final long indexFileWritten = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+            final long storageFileSize = Files.size(storagePath);
+            final long storageFileModified = getLastModifiedNanos(storagePath);
+            final long storageFileChecksum = getChecksumOfFile(storagePath);
+            if (Files.size(storagePath) != storageFileSize
+                    || getLastModifiedNanos(storagePath) != storageFileModified) {
+                throw new IOException("Storage file changed while being read: " + storagePath);
+            }
+            temporaryPath = indexPath.resolveSibling(indexPath.getFileName() + "." + UUID.randomUUID() + ".tmp");
+            try (FileChannel file = FileChannel.open(temporaryPath, StandardOpenOption.CREATE_NEW,
+                                                     StandardOpenOption.WRITE)) {
+                writeIndexFileContent(file, storageFileSize, storageFileModified, storageFileChecksum,
+                                      indexFileWritten);
+            }
+            Files.move(temporaryPath, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return String.format(MESSAGE_MAINTENANCE_INDEX_FILE_WRITTEN, getAddressBookSize(), indexPath.getFileName());
+        } catch (IOException ioe) {
+            if (temporaryPath != null) {
+                temporaryPath.toFile().delete();
+            }
+            return String.format(MESSAGE_MAINTENANCE_INDEX_FILE_NOT_WRITTEN, indexPath.getFileName());
+        }
+    }
+
+    /**
+     * Writes the persons in the model in use to the (empty) file, in the layout of an index file.
+     *
+     * @param storageFileSize size of the storage file the index file is for
+     * @param storageFileModified last modified time of that storage file, in nanoseconds
+     * @param storageFileChecksum CRC-32 checksum of the content of that storage file
+     * @param indexFileWritten when the index file is written, in nanoseconds, on the clock of last modified times
+     * @throws IOException if the file cannot be written, or would be too large to be mapped into memory
+     */
+    private static void writeIndexFileContent(FileChannel file, long storageFileSize, long storageFileModified,
+                                              long storageFileChecksum, long indexFileWritten) throws IOException {
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(file), STORAGE_BUFFER_SIZE));
+        out.write(new byte[INDEX_FILE_HEADER_SIZE]); // filled in last, once all positions are known
+        long position = INDEX_FILE_HEADER_SIZE;
+
+        // the records, noting the words of each folded name as (word number, record number) postings
+        final int recordCount = getAddressBookSize();
+        final long[] recordPositions = new long[recordCount + 1];
+        final HashMap<String, Integer> wordNumbers = new HashMap<>();
+        int[] postingWords = new int[16];
+        int[] postingRecords = new int[16];
+        int postingCount = 0;
+        for (int record = 0; record < recordCount; record++) {
+            final String[] person = isOffHeapBackend() ? decodeOffHeapPerson(offHeapRecordTable[record])
+                                                       : ALL_PERSONS.get(record);
+            final byte[] line = encodePersonToString(person).getBytes(StandardCharsets.UTF_8);
+            recordPositions[record] = position;
+            out.write(line);
+            position += line.length;
+            final String foldedName = getFoldedNameFromPerson(person);
+            final int firstPostingOfRecord = postingCount;
+            for (int wordStart = 0, wordEnd; wordStart < foldedName.length(); wordStart = wordEnd + 1) {
+                wordEnd = getEndOfFoldedWord(foldedName, wordStart);
+                final int wordNumber = wordNumbers.computeIfAbsent(foldedName.substring(wordStart, wordEnd),
+                                                                   word -> wordNumbers.size());
+                if (isIntInRange(wordNumber, postingWords, firstPostingOfRecord, postingCount)) {
+                    continue; // the same word twice in a name
+                }
+                if (postingCount == postingWords.length) {
+                    postingWords = Arrays.copyOf(postingWords, postingCount * 2);
+                    postingRecords = Arrays.copyOf(postingRecords, postingCount * 2);
+                }
+                postingWords[postingCount] = wordNumber;
+                postingRecords[postingCount] = record;
+                postingCount++;
+            }
+        }
+        recordPositions[recordCount] = position;
+
+        // the record table
+        final long recordTableStart = position;
+        for (long recordPosition : recordPositions) {
+            out.writeInt((int) recordPosition);
+        }
+        position += (long) recordPositions.length * Integer.BYTES;
+
+        // the words, then the word table, then the postings grouped by word in the same order as the words
+        final String[] words = wordNumbers.keySet().toArray(new String[0]);
+        Arrays.sort(words);
+        final long[] wordPositions = new long[words.length];
+        final int[] wordLengths = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            final byte[] word = words[i].getBytes(StandardCharsets.UTF_8);
+            wordPositions[i] = position;
+            wordLengths[i] = word.length;
+            out.write(word);
+            position += word.length;
+        }
+        final int[] postingCountsOfWords = new int[words.length]; // by word number
+        for (int i = 0; i < postingCount; i++) {
+            postingCountsOfWords[postingWords[i]]++;
+        }
+        final long wordTableStart = position;
+        final int[] nextPostingsOfWords = new int[words.length]; // by word number, counted from the first posting
+        int postingsOfWordStart = 0;
+        for (int i = 0; i < words.length; i++) {
+            final int wordNumber = wordNumbers.get(words[i]);
+            nextPostingsOfWords[wordNumber] = postingsOfWordStart;
+            out.writeInt((int) wordPositions[i]);
+            out.writeInt(wordLengths[i]);
+            out.writeInt((int) (wordTableStart + (long) words.length * INDEX_FILE_WORD_ENTRY_SIZE
+                                + (long) postingsOfWordStart * Integer.BYTES));
+            out.writeInt(postingCountsOfWords[wordNumber]);
+            postingsOfWordStart += postingCountsOfWords[wordNumber];
+        }
+        final int[] postings = new int[postingCount];
+        for (int i = 0; i < postingCount; i++) {
+            postings[nextPostingsOfWords[postingWords[i]]++] = postingRecords[i];
+        }
+        for (int record : postings) {
+            out.writeInt(record);
+        }
+        position += (long) words.length * INDEX_FILE_WORD_ENTRY_SIZE + (long) postingCount * Integer.BYTES;
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Index file too large: " + position + " bytes");
+        }
+        out.flush();
+
+        final ByteBuffer header = ByteBuffer.allocate(INDEX_FILE_HEADER_SIZE);
+        header.putInt(INDEX_FILE_MAGIC).putInt(INDEX_FILE_VERSION)
+              .putLong(storageFileSize).putLong(storageFileModified)
+              .putInt(recordCount).putInt(words.length)
+              .putInt((int) recordTableStart).putInt((int) wordTableStart)
+              .putLong(storageFileChecksum).putLong(indexFileWritten);
+        header.flip();
+        while (header.hasRemaining()) {
+            file.write(header, header.position());
+        }
+        file.force(true);
+    }
+
+    /**
+     * Returns true if the value is one of the given part of the array.
+     */
+    private static boolean isIntInRange(int value, int[] array, int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            if (array[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /*
+     * ================================================================================
+     *        OPEN ADDRESS BOOKS METHODS
+     * ================================================================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * Only one address book is in use at any time, and all the other
+     * methods work on it through the model variables. Switching to
+     * another book moves the model out of those variables into the
+     * book being left, and moves the model of the other book in.
+     * ====================================================================
+     */
+
+    /**
+     * Creates an open address book that is not loaded yet.
+     */
+    private static Object[] makeOpenBook(String name, String storageFilePath) {
+        final Object[] book = new Object[BOOK_DATA_COUNT];
+        book[BOOK_DATA_INDEX_NAME] = name;
+        book[BOOK_DATA_INDEX_STORAGE_FILE_PATH] = storageFilePath;
+        book[BOOK_DATA_INDEX_SAVED_MODEL] = null;
+        book[BOOK_DATA_INDEX_MEMORY] = 0L;
+        return book;
+    }
+
+    private static String getBookName(Object[] book) {
+        return (String) book[BOOK_DATA_INDEX_NAME];
+    }
+
+    private static String getBookStorageFilePath(Object[] book) {
+        return (String) book[BOOK_DATA_INDEX_STORAGE_FILE_PATH];
+    }
+
+    /**
+     * Returns true if the book's persons are in memory, either in the model variables or in its saved model.
+     */
+    private static boolean isBookLoaded(Object[] book) {
+        return book == bookInUse || book[BOOK_DATA_INDEX_SAVED_MODEL] != null;
+    }
+
+    /**
+     * Returns the name of the address book kept in the given storage file: the file name without its
+     * extensions e.g. "team" for "books/team.txt.gz".
+     */
+    private static String getBookNameOfStorageFile(String filePath) {
+        String fileName = Paths.get(filePath).getFileName().toString();
+        if (isCompressedFilePath(fileName)) {
+            fileName = fileName.substring(0, fileName.length() - COMPRESSED_FILE_EXTENSION.length());
+        }
+        if (isSlottedFilePath(fileName)) {
+            fileName = fileName.substring(0, fileName.length() - SLOTTED_FILE_EXTENSION.length());
+        }
+        return fileName.substring(0, fileName.length() - STORAGE_FILE_EXTENSION.length());
+    }
+
+    /**
+     * Returns true if the two paths lead to the same file, however they are written.
+     */
+    private static boolean isSameFilePath(String filePath, String otherFilePath) {
+        return Paths.get(filePath).toAbsolutePath().normalize()
+                .equals(Paths.get(otherFilePath).toAbsolutePath().normalize());
+    }
+
+    /**
+     * Makes the given open address book the one in use, loading it from its storage file if it is not
+     * loaded. Then unloads the least recently used other books while the open books are estimated to
+     * take up more than {@link #BOOKS_MEMORY_LIMIT}.
+     */
+    private static void useBook(Object[] book) {
+        if (book == bookInUse) {
+            return;
+        }
+        if (bookInUse != null) {
+            bookInUse[BOOK_DATA_INDEX_MEMORY] = estimateMemoryOfModel();
+            bookInUse[BOOK_DATA_INDEX_SAVED_MODEL] = takeModel();
+        }
+        bookInUse = book;
+        storageFilePath = getBookStorageFilePath(book);
+        if (book[BOOK_DATA_INDEX_SAVED_MODEL] == null) {
+            loadModelFromStorageFile();
+        } else {
+            restoreModel((Object[]) book[BOOK_DATA_INDEX_SAVED_MODEL]);
+            book[BOOK_DATA_INDEX_SAVED_MODEL] = null;
+        }
+        unloadBooksOverMemoryLimit();
+    }
+
+    /**
+     * Unloads the least recently used books (other than the one in use) until the open books are estimated
+     * to fit in {@link #BOOKS_MEMORY_LIMIT}. Nothing needs to be written out first, as every change is saved
+     * to the storage file as soon as it is made; an unloaded book is read from that file again when it is
+     * next used, with an empty undo history.
+     */
+    private static void unloadBooksOverMemoryLimit() {
+        long memory = estimateMemoryOfModel();
+        for (Object[] book : OPEN_BOOKS.values()) {
+            if (book[BOOK_DATA_INDEX_SAVED_MODEL] != null) {
+                memory += (Long) book[BOOK_DATA_INDEX_MEMORY];
+            }
+        }
+        for (Object[] book : OPEN_BOOKS.values()) {
+            if (memory <= BOOKS_MEMORY_LIMIT) {
+                return;
+            }
+            if (book[BOOK_DATA_INDEX_SAVED_MODEL] != null) {
+                memory -= (Long) book[BOOK_DATA_INDEX_MEMORY];
+                closePageFileOfModel((Object[]) book[BOOK_DATA_INDEX_SAVED_MODEL]);
+                book[BOOK_DATA_INDEX_SAVED_MODEL] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a rough estimate of the bytes held by the model in use, including its undo history.
+     */
+    private static long estimateMemoryOfModel() {
+        long memory = changeHistoryMemory;
+        if (isOffHeapBackend()) {
+            for (ByteBuffer chunk : OFF_HEAP_CHUNKS) { // none for a tiered model, whose pages are on disk
+                memory += chunk.capacity();
+            }
+            return memory + (long) Long.BYTES * offHeapRecordTable.length;
+        }
+        final int size = ALL_PERSONS.size();
+        final int sampleSize = Math.min(size, BOOK_MEMORY_SAMPLE_SIZE);
+        long sampleMemory = 0;
+        for (int i = 0; i < sampleSize; i++) {
+            sampleMemory += estimatePersonMemory(ALL_PERSONS.get((int) ((long) i * size / sampleSize)));
+        }
+        return sampleSize == 0 ? memory : memory + sampleMemory * size / sampleSize;
+    }
+
+    /**
+     * Moves the model in use out of the model variables, leaving them as they are at startup
+     * (holding an empty address book).
+     *
+     * @return the model that was in use, as an Object array (see the MODEL_DATA constants)
+     */
+    private static Object[] takeModel() {
+        final Object[] model = new Object[MODEL_DATA_COUNT];
+        final ArrayList<String[]> allPersons = new ArrayList<>(ALL_PERSONS);
+        model[MODEL_DATA_INDEX_ALL_PERSONS] = allPersons;
+        // a listing view of all persons is the live model list itself, so it has to move with it
+        model[MODEL_DATA_INDEX_LATEST_PERSON_LISTING_VIEW] = latestPersonListingView == ALL_PERSONS
+                                                             ? allPersons : latestPersonListingView;
+        model[MODEL_DATA_INDEX_UNDO_HISTORY] = new ArrayDeque<>(UNDO_HISTORY);
+        model[MODEL_DATA_INDEX_REDO_HISTORY] = new ArrayDeque<>(REDO_HISTORY);
+        model[MODEL_DATA_INDEX_CHANGE_HISTORY_MEMORY] = changeHistoryMemory;
+        model[MODEL_DATA_INDEX_IS_STORAGE_FILE_CANONICAL] = isStorageFileCanonical;
+        model[MODEL_DATA_INDEX_OFF_HEAP_CHUNKS] = new ArrayList<>(OFF_HEAP_CHUNKS);
+        model[MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOTS] = OFF_HEAP_FREE_SLOTS.clone();
+        model[MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOT_COUNTS] = OFF_HEAP_FREE_SLOT_COUNTS.clone();
+        model[MODEL_DATA_INDEX_OFF_HEAP_RECORD_TABLE] = offHeapRecordTable;
+        model[MODEL_DATA_INDEX_OFF_HEAP_RECORD_COUNT] = offHeapRecordCount;
+        model[MODEL_DATA_INDEX_OFF_HEAP_BUMP_CHUNK] = offHeapBumpChunk;
+        model[MODEL_DATA_INDEX_OFF_HEAP_BUMP_OFFSET] = offHeapBumpOffset;
+        model[MODEL_DATA_INDEX_NAME_WORD_QUERY_INDEX] = new HashMap<>(NAME_WORD_QUERY_INDEX);
+        model[MODEL_DATA_INDEX_PHONE_PREFIX_QUERY_INDEX] = new HashMap<>(PHONE_PREFIX_QUERY_INDEX);
+        model[MODEL_DATA_INDEX_EMAIL_DOMAIN_QUERY_INDEX] = new HashMap<>(EMAIL_DOMAIN_QUERY_INDEX);
+        model[MODEL_DATA_INDEX_ARE_QUERY_INDEXES_BUILT] = areQueryIndexesBuilt;
+        model[MODEL_DATA_INDEX_QUERY_INDEX_ORDER_KEYS] = new IdentityHashMap<>(QUERY_INDEX_ORDER_KEYS);
+        model[MODEL_DATA_INDEX_FUZZY_NAME_WORD_QUERY_INDEX] = new HashMap<>(FUZZY_NAME_WORD_QUERY_INDEX);
+        model[MODEL_DATA_INDEX_IS_FUZZY_QUERY_INDEX_BUILT] = isFuzzyQueryIndexBuilt;
+        model[MODEL_DATA_INDEX_EMAIL_DOMAIN_COUNTS] = new HashMap<>(EMAIL_DOMAIN_COUNTS);
+        model[MODEL_DATA_INDEX_SURNAME_COUNTS] = new HashMap<>(SURNAME_COUNTS);
+        if (tieredPageFile != null) {
+            evictAllTieredFrames(); // the page cache is only for the model in use
+        }
+        model[MODEL_DATA_INDEX_TIERED_PAGE_FILE] = tieredPageFile;
+        tieredPageFile = null;
+        model[MODEL_DATA_INDEX_SLOTTED_FILE] = slottedFile;
+        slottedFile = null;
+
+        ALL_PERSONS.clear();
+        dropQueryIndexes();
+        clearStats();
+        isQueryIndexRebuildDue = false;
+        isFuzzyQueryIndexRebuildDue = false;
+        UNDO_HISTORY.clear();
+        REDO_HISTORY.clear();
+        changeHistoryMemory = 0;
+        isStorageFileCanonical = false;
+        clearOffHeapModel();
+        Arrays.fill(OFF_HEAP_FREE_SLOTS, null); // the free lists now belong to the taken model
+        offHeapRecordTable = new long[16];
+        latestPersonListingView = getAllPersonsInAddressBook();
+        return model;
+    }
+
+    /**
+     * Moves a model taken out by {@link #takeModel()} back into the (empty) model variables.
+     */
+    @SuppressWarnings("unchecked")
+    private static void restoreModel(Object[] model) {
+        final ArrayList<String[]> allPersons = (ArrayList<String[]>) model[MODEL_DATA_INDEX_ALL_PERSONS];
+        ALL_PERSONS.addAll(allPersons);
+        final ArrayList<String[]> listingView =
+                (ArrayList<String[]>) model[MODEL_DATA_INDEX_LATEST_PERSON_LISTING_VIEW];
+        latestPersonListingView = listingView == allPersons ? ALL_PERSONS : listingView;
+        UNDO_HISTORY.addAll((ArrayDeque<Object[]>) model[MODEL_DATA_INDEX_UNDO_HISTORY]);
+        REDO_HISTORY.addAll((ArrayDeque<Object[]>) model[MODEL_DATA_INDEX_REDO_HISTORY]);
+        changeHistoryMemory = (Long) model[MODEL_DATA_INDEX_CHANGE_HISTORY_MEMORY];
+        isStorageFileCanonical = (Boolean) model[MODEL_DATA_INDEX_IS_STORAGE_FILE_CANONICAL];
+        OFF_HEAP_CHUNKS.addAll((ArrayList<ByteBuffer>) model[MODEL_DATA_INDEX_OFF_HEAP_CHUNKS]);
+        System.arraycopy(model[MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOTS], 0, OFF_HEAP_FREE_SLOTS, 0,
+                         OFF_HEAP_FREE_SLOTS.length);
+        System.arraycopy(model[MODEL_DATA_INDEX_OFF_HEAP_FREE_SLOT_COUNTS], 0, OFF_HEAP_FREE_SLOT_COUNTS, 0,
+                         OFF_HEAP_FREE_SLOT_COUNTS.length);
+        offHeapRecordTable = (long[]) model[MODEL_DATA_INDEX_OFF_HEAP_RECORD_TABLE];
+        offHeapRecordCount = (Integer) model[MODEL_DATA_INDEX_OFF_HEAP_RECORD_COUNT];
+        offHeapBumpChunk = (Integer) model[MODEL_DATA_INDEX_OFF_HEAP_BUMP_CHUNK];
+        offHeapBumpOffset = (Integer) model[MODEL_DATA_INDEX_OFF_HEAP_BUMP_OFFSET];
+        NAME_WORD_QUERY_INDEX.putAll(
+                (HashMap<String, HashSet<String[]>>) model[MODEL_DATA_INDEX_NAME_WORD_QUERY_INDEX]);
+        PHONE_PREFIX_QUERY_INDEX.putAll(
+                (HashMap<String, HashSet<String[]>>) model[MODEL_DATA_INDEX_PHONE_PREFIX_QUERY_INDEX]);
+        EMAIL_DOMAIN_QUERY_INDEX.putAll(
+                (HashMap<String, HashSet<String[]>>) model[MODEL_DATA_INDEX_EMAIL_DOMAIN_QUERY_INDEX]);
+        areQueryIndexesBuilt = (Boolean) model[MODEL_DATA_INDEX_ARE_QUERY_INDEXES_BUILT];
+        QUERY_INDEX_ORDER_KEYS.putAll(
+                (IdentityHashMap<String[], Long>) model[MODEL_DATA_INDEX_QUERY_INDEX_ORDER_KEYS]);
+        FUZZY_NAME_WORD_QUERY_INDEX.putAll(
+                (HashMap<String, ArrayList<String>>) model[MODEL_DATA_INDEX_FUZZY_NAME_WORD_QUERY_INDEX]);
+        isFuzzyQueryIndexBuilt = (Boolean) model[MODEL_DATA_INDEX_IS_FUZZY_QUERY_INDEX_BUILT];
+        EMAIL_DOMAIN_COUNTS.putAll((HashMap<String, Integer>) model[MODEL_DATA_INDEX_EMAIL_DOMAIN_COUNTS]);
+        SURNAME_COUNTS.putAll((HashMap<String, Integer>) model[MODEL_DATA_INDEX_SURNAME_COUNTS]);
+        tieredPageFile = (Object[]) model[MODEL_DATA_INDEX_TIERED_PAGE_FILE];
+        slottedFile = (Object[]) model[MODEL_DATA_INDEX_SLOTTED_FILE];
+    }
+
+
+    /*
+     * ================================================================================
+     *        INTERNAL ADDRESS BOOK DATA METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Adds a person to the address book. Remembers the change for undo and saves it to storage file.
+     *
+     * @param person to add
+     */
+    private static void addPersonToAddressBook(String[] person) {
+        final int index = getAddressBookSize();
+        final String[] personInModel = isOffHeapBackend() ? person : withFoldedName(person);
+        if (isOffHeapBackend()) {
+            appendPersonToOffHeapModel(person);
+        } else {
+            ALL_PERSONS.add(personInModel);
+            addPersonToQueryIndexes(personInModel);
+            assignQueryIndexOrderKeys(new int[] { index });
+        }
+        addPersonToStats(person);
+        publishChangeToFeed(CHANGE_KIND_INSERTED, new int[] { index }, asPersonList(person));
+        trackChangeInSlottedFile(CHANGE_KIND_INSERTED, new int[] { index });
+        recordChange(makeChange(CHANGE_KIND_INSERTED, new int[] { index }, asPersonList(personInModel),
+                String.format(CHANGE_DESCRIPTION_ADD, getNameFromPerson(person))));
+        saveAddressBookChangesToStorageFile(index);
+    }
+
+    /**
+     * Deletes a person from the address book, target is identified by it's absolute index in the full list.
+     * Remembers the change for undo and saves it to storage file.
+     *
+     * @param index absolute index of person to delete (index within {@link #ALL_PERSONS})
+     */
+    private static void deletePersonFromAddressBook(int index) {
+        final String[] person;
+        if (isOffHeapBackend()) {
+            person = decodeOffHeapPerson(offHeapRecordTable[index]);
+            removeOffHeapRecordAt(index);
+        } else {
+            person = ALL_PERSONS.remove(index);
+            removePersonsFromQueryIndexes(asPersonList(person));
+        }
+        removePersonFromStats(person);
+        publishChangeToFeed(CHANGE_KIND_REMOVED, new int[] { index }, asPersonList(person));
+        trackChangeInSlottedFile(CHANGE_KIND_REMOVED, new int[] { index });
+        recordChange(makeChange(CHANGE_KIND_REMOVED, new int[] { index }, asPersonList(person),
+                String.format(CHANGE_DESCRIPTION_DELETE, getNameFromPerson(person))));
+        saveAddressBookChangesToStorageFile(index);
+    }
+
+    /**
+     * Deletes the specified persons from the address book, in a single pass over the model.
+     * Persons no longer inside are skipped. Remembers the change for undo and saves it to storage file once.
+     *
+     * @param exactPersons the actual persons inside the address book
+     *                     (as in {@link #deletePersonFromAddressBook(String[])})
+     * @return the persons that were found and deleted, in address book order
+     */
+    private static ArrayList<String[]> deletePersonsFromAddressBook(ArrayList<String[]> exactPersons) {
+        final int[] positions = getIndexesOfPersonsInAddressBook(exactPersons);
+        final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+        if (positions.length == 0) {
+            return persons;
+        }
+        removePersonsFromModelAt(positions);
+        recordChange(makeChange(CHANGE_KIND_REMOVED, positions, persons, persons.size() == 1
+                ? String.format(CHANGE_DESCRIPTION_DELETE, getNameFromPerson(persons.get(0)))
+                : String.format(CHANGE_DESCRIPTION_DELETE_MANY, persons.size())));
+        saveAddressBookChangesToStorageFile(positions[0]);
+        return persons;
+    }
+
+    /**
+     * Deletes the persons at the given positions from the address book, as a single change with the given
+     * description. Remembers the change for undo and saves it to storage file once.
+     *
+     * @param positions ascending absolute indexes of the persons, at least one
+     */
+    private static void deletePersonsFromAddressBookAt(int[] positions, String changeDescription) {
+        final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+        removePersonsFromModelAt(positions);
+        recordChange(makeChange(CHANGE_KIND_REMOVED, positions, persons, changeDescription));
+        saveAddressBookChangesToStorageFile(positions[0]);
+    }
+
+    /**
+     * Replaces the person at the given absolute index with an edited person, who takes the same place.
+     * Remembers the change for undo and saves it to storage file.
+     *
+     * @param index absolute index of the person to replace
+     * @param editedPerson to put in its place
+     * @return the edited person as now in the model
+     */
+    private static String[] editPersonInAddressBook(int index, String[] editedPerson) {
+        final int[] positions = { index };
+        final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+        replacePersonsInModelAt(positions, asPersonList(editedPerson));
+        persons.addAll(getPersonsInAddressBookAt(positions));
+        recordChange(makeChange(CHANGE_KIND_REPLACED, positions, persons,
+                String.format(CHANGE_DESCRIPTION_EDIT, getNameFromPerson(editedPerson))));
+        saveAddressBookChangesToStorageFile(index);
+        return persons.get(1);
+    }
+
+    /**
+     * Deletes the specified person from the addressbook if it is inside. Saves any changes to storage file.
+     *
+     * @param exactPerson the actual person inside the address book (exactPerson == the person to delete in the full list)
+     * @return true if the given person was found and deleted in the model
+     */
+    private static boolean deletePersonFromAddressBook(String[] exactPerson) {
+        final int index = isOffHeapBackend() ? indexOfPersonInOffHeapModel(exactPerson)
+                                             : ALL_PERSONS.indexOf(exactPerson);
+        if (index < 0) {
+            return false;
+        }
+        deletePersonFromAddressBook(index);
+        return true;
+    }
+
+    /**
+     * For the off-heap backend, the returned list is a freshly decoded copy of the model.
+     *
+     * @return unmodifiable list view of all persons in the address book
+     */
+    private static ArrayList<String[]> getAllPersonsInAddressBook() {
+        if (isOffHeapBackend()) {
+            return decodeAllOffHeapPersons();
+        }
+        return ALL_PERSONS;
+    }
+
+    /**
+     * Copies what is needed to write out all persons in the address book later, without holding the lock of
+     * this class meanwhile (see {@link #getStorageLineOfSnapshotPerson}). This is quick for each backend: the
+     * heap model's persons are taken as they are, since persons are never changed once in the model, and the
+     * off-heap model's records are copied as the bytes of their stored lines, without decoding them.
+     * Must be called while holding the lock of this class.
+     *
+     * @return a person, or the UTF-8 bytes of the storage line of a person, for each person in the address book
+     */
+    private static Object[] takeSnapshotOfAddressBook() {
+        if (isUsingIndexFile()) {
+            final ArrayList<String[]> persons = new ArrayList<>();
+            forEachIndexFilePerson(Integer.MAX_VALUE, persons::add);
+            return persons.toArray();
+        }
+        if (!isOffHeapBackend()) {
+            return ALL_PERSONS.toArray();
+        }
+        final Object[] lines = new Object[offHeapRecordCount];
+        for (int i = 0; i < offHeapRecordCount; i++) {
+            lines[i] = getOffHeapLineBytes(offHeapRecordTable[i]);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the storage line of a person of a snapshot taken by {@link #takeSnapshotOfAddressBook()}.
+     */
+    private static String getStorageLineOfSnapshotPerson(Object snapshotPerson) {
+        return snapshotPerson instanceof byte[] ? new String((byte[]) snapshotPerson, StandardCharsets.UTF_8)
+                                                : encodePersonToString((String[]) snapshotPerson);
+    }
+
+    /**
+     * Returns the storage line of a person of a snapshot taken by {@link #takeSnapshotOfAddressBook()}, in UTF-8.
+     */
+    private static byte[] getStorageLineBytesOfSnapshotPerson(Object snapshotPerson) {
+        return snapshotPerson instanceof byte[] ? (byte[]) snapshotPerson
+                : encodePersonToString((String[]) snapshotPerson).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a rough estimate of the heap bytes taken up by a snapshot taken by
+     * {@link #takeSnapshotOfAddressBook()}.
+     */
+    private static long estimateSnapshotMemory(Object[] snapshot) {
+        long memory = (long) Long.BYTES * snapshot.length;
+        for (Object snapshotPerson : snapshot) {
+            memory += snapshotPerson instanceof byte[] ? PERSON_MEMORY_OVERHEAD + ((byte[]) snapshotPerson).length
+                                                       : estimatePersonMemory((String[]) snapshotPerson);
+        }
+        return memory;
+    }
+
+    /**
+     * Passes the first persons in the address book to the consumer, in order. For the off-heap backend,
+     * and while answering from the index file, each person is decoded just before it is passed on.
+     *
+     * @param limit the most persons to pass on
+     * @param personConsumer given each person
+     */
+    private static void forEachPersonInAddressBook(int limit, Consumer<String[]> personConsumer) {
+        if (isUsingIndexFile()) {
+            forEachIndexFilePerson(limit, personConsumer);
+            return;
+        }
+        final int count = Math.min(limit, getAddressBookSize());
+        for (int i = 0; i < count; i++) {
+            personConsumer.accept(isOffHeapBackend() ? decodeOffHeapPerson(offHeapRecordTable[i])
+                                                     : ALL_PERSONS.get(i));
+        }
+    }
+
+    /**
+     * Clears all persons in the address book. Remembers the change for undo and saves it to file.
+     */
+    private static void clearAddressBook() {
+        final ArrayList<String[]> persons = new ArrayList<>(getAllPersonsInAddressBook());
+        final int[] positions = new int[persons.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = i;
+        }
+        if (isOffHeapBackend()) {
+            clearOffHeapModel();
+        } else {
+            ALL_PERSONS.clear();
+            dropQueryIndexes();
+        }
+        clearStats();
+        publishChangeToFeed(CHANGE_KIND_REMOVED, positions, persons);
+        trackChangeInSlottedFile(CHANGE_KIND_REMOVED, positions);
+        recordChange(makeChange(CHANGE_KIND_REMOVED, positions, persons,
+                String.format(CHANGE_DESCRIPTION_CLEAR, persons.size())));
+        saveAddressBookChangesToStorageFile(0);
+    }
+
+    /**
+     * Resets the internal model with the given data. Does not save to file.
+     *
+     * @param persons list of persons to initialise the model with
+     */
+    private static void initialiseAddressBookModel(ArrayList<String[]> persons) {
+        clearStats();
+        addPersonsToStats(persons);
+        if (isOffHeapBackend()) {
+            clearOffHeapModel();
+            for (String[] person : persons) {
+                appendPersonToOffHeapModel(person);
+            }
+        } else {
+            ALL_PERSONS.clear();
+            dropQueryIndexes();
+            ALL_PERSONS.ensureCapacity(persons.size());
+            for (String[] person : persons) {
+                ALL_PERSONS.add(withFoldedName(person));
+            }
+        }
+        publishResetToFeed();
+    }
+
+    /**
+     * @return number of persons in the address book
+     */
+    private static int getAddressBookSize() {
+        return isOffHeapBackend() ? offHeapRecordCount : ALL_PERSONS.size();
+    }
+
+    /**
+     * Returns true if the person at the given absolute index is the one encoded by the given storage line.
+     */
+    private static boolean isPersonInAddressBookEncodedAs(int index, String encodedPerson) {
+        if (isOffHeapBackend()) {
+            return isOffHeapRecordEncodedAs(offHeapRecordTable[index], encodedPerson.getBytes(StandardCharsets.UTF_8));
+        }
+        return isPersonEncodedAs(ALL_PERSONS.get(index), encodedPerson);
+    }
+
+    /**
+     * Removes the persons in the given range of absolute indexes from the model. Does not save to file.
+     *
+     * @param fromIndex absolute index of the first person to remove, inclusive
+     * @param toIndex absolute index of the last person to remove, exclusive
+     */
+    private static void removePersonsFromModel(int fromIndex, int toIndex) {
+        final int[] positions = getConsecutivePositions(fromIndex, toIndex - fromIndex);
+        final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+        removePersonsFromStats(persons);
+        publishChangeToFeed(CHANGE_KIND_REMOVED, positions, persons);
+        trackChangeInSlottedFile(CHANGE_KIND_REMOVED, positions);
+        if (isOffHeapBackend()) {
+            removeOffHeapRecords(fromIndex, toIndex);
+            return;
+        }
+        removePersonsFromQueryIndexes(ALL_PERSONS.subList(fromIndex, toIndex));
+        ALL_PERSONS.subList(fromIndex, toIndex).clear();
+    }
+
+    /**
+     * Inserts persons into the model, starting at the given absolute index. Does not save to file.
+     *
+     * @param index absolute index the first inserted person will have
+     * @param persons to insert, in order
+     */
+    private static void insertPersonsIntoModel(int index, ArrayList<String[]> persons) {
+        final int[] positions = getConsecutivePositions(index, persons.size());
+        addPersonsToStats(persons);
+        publishChangeToFeed(CHANGE_KIND_INSERTED, positions, persons);
+        trackChangeInSlottedFile(CHANGE_KIND_INSERTED, positions);
+        if (isOffHeapBackend()) {
+            insertPersonsIntoOffHeapModel(index, persons);
+            return;
+        }
+        final ArrayList<String[]> personsWithFoldedNames = new ArrayList<>(persons.size());
+        for (String[] person : persons) {
+            final String[] personInModel = withFoldedName(person);
+            personsWithFoldedNames.add(personInModel);
+            addPersonToQueryIndexes(personInModel);
+        }
+        ALL_PERSONS.addAll(index, personsWithFoldedNames);
+        assignQueryIndexOrderKeys(positions);
+    }
+
+    /**
+     * Inserts persons into the model so that each ends up at the matching absolute index. Does not save to file.
+     *
+     * @param positions ascending absolute indexes the persons will have after the insertion
+     * @param persons to insert, in the same order as the positions
+     */
+    private static void insertPersonsIntoModelAt(int[] positions, ArrayList<String[]> persons) {
+        addPersonsToStats(persons);
+        publishChangeToFeed(CHANGE_KIND_INSERTED, positions, persons);
+        trackChangeInSlottedFile(CHANGE_KIND_INSERTED, positions);
+        if (isOffHeapBackend()) {
+            insertPersonsIntoOffHeapModelAt(positions, persons);
+            return;
+        }
+        // grow the list, then move each person to its final place in one pass from the back
+        int nextToMove = ALL_PERSONS.size() - 1;
+        ALL_PERSONS.addAll(Collections.nCopies(positions.length, null));
+        int target = ALL_PERSONS.size() - 1;
+        for (int i = positions.length - 1; i >= 0; target--) {
+            if (target == positions[i]) {
+                ALL_PERSONS.set(target, withFoldedName(persons.get(i--)));
+                addPersonToQueryIndexes(ALL_PERSONS.get(target));
+            } else {
+                ALL_PERSONS.set(target, ALL_PERSONS.get(nextToMove--));
+            }
+        }
+        assignQueryIndexOrderKeys(positions);
+    }
+
+    /**
+     * Removes the persons at the given absolute indexes from the model, in a single pass. Does not save to file.
+     *
+     * @param positions ascending absolute indexes of the persons to remove
+     */
+    private static void removePersonsFromModelAt(int[] positions) {
+        if (positions.length == 0) {
+            return;
+        }
+        final ArrayList<String[]> persons = getPersonsInAddressBookAt(positions);
+        removePersonsFromStats(persons);
+        publishChangeToFeed(CHANGE_KIND_REMOVED, positions, persons);
+        trackChangeInSlottedFile(CHANGE_KIND_REMOVED, positions);
+        if (isOffHeapBackend()) {
+            removeOffHeapRecordsAt(positions);
+            return;
+        }
+        if (areQueryIndexesBuilt) {
+            removePersonsFromQueryIndexes(persons);
+        }
+        // move every kept person after the first removed one to its new place, then cut off the tail
+        int kept = positions[0];
+        for (int i = positions[0], next = 0; i < ALL_PERSONS.size(); i++) {
+            if (next < positions.length && positions[next] == i) {
+                next++;
+            } else {
+                ALL_PERSONS.set(kept++, ALL_PERSONS.get(i));
+            }
+        }
+        ALL_PERSONS.subList(kept, ALL_PERSONS.size()).clear();
+    }
+
+    /**
+     * Replaces the persons at the given absolute indexes of the model with the given persons, which take
+     * the same places. Does not save to file. To the change feed, each replacement is a removal followed
+     * by an insertion.
+     *
+     * @param positions ascending absolute indexes of the persons to replace
+     * @param persons to put in their places, in the same order as the positions
+     */
+    private static void replacePersonsInModelAt(int[] positions, List<String[]> persons) {
+        final ArrayList<String[]> replacedPersons = getPersonsInAddressBookAt(positions);
+        final ArrayList<String[]> replacingPersons = new ArrayList<>(persons);
+        removePersonsFromStats(replacedPersons);
+        addPersonsToStats(replacingPersons);
+        publishChangeToFeed(CHANGE_KIND_REMOVED, positions, replacedPersons);
+        publishChangeToFeed(CHANGE_KIND_INSERTED, positions, replacingPersons);
+        trackEditsInSlottedFile(positions);
+        if (isOffHeapBackend()) {
+            for (int i = 0; i < positions.length; i++) {
+                final long replacedLocator = offHeapRecordTable[positions[i]];
+                offHeapRecordTable[positions[i]] = storePersonOffHeap(replacingPersons.get(i));
+                freeOffHeapSlot(replacedLocator);
+            }
+            return;
+        }
+        removePersonsFromQueryIndexes(replacedPersons);
+        for (int i = 0; i < positions.length; i++) {
+            final String[] personInModel = withFoldedName(replacingPersons.get(i));
+            ALL_PERSONS.set(positions[i], personInModel);
+            addPersonToQueryIndexes(personInModel);
+        }
+        assignQueryIndexOrderKeys(positions);
+    }
+
+    /**
+     * Finds the absolute indexes of the given persons, in a single pass over the model.
+     * Persons no longer in the address book are skipped.
+     *
+     * @param exactPersons the actual persons inside the address book
+     *                     (as in {@link #deletePersonFromAddressBook(String[])})
+     * @return ascending absolute indexes of the persons found
+     */
+    private static int[] getIndexesOfPersonsInAddressBook(ArrayList<String[]> exactPersons) {
+        if (isOffHeapBackend()) {
+            return getIndexesOfPersonsInOffHeapModel(exactPersons);
+        }
+        final Set<String[]> targets = new HashSet<>(exactPersons); // arrays are compared by identity
+        final int[] positions = new int[targets.size()];
+        int found = 0;
+        for (int i = 0; i < ALL_PERSONS.size() && found < positions.length; i++) {
+            if (targets.contains(ALL_PERSONS.get(i))) {
+                positions[found++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, found);
+    }
+
+    /**
+     * @return the ascending absolute indexes from the given one, as many as given
+     */
+    private static int[] getConsecutivePositions(int fromIndex, int count) {
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = fromIndex + i;
+        }
+        return positions;
+    }
+
+    /**
+     * @param positions absolute indexes of persons in the address book
+     * @return the persons at those indexes, in the same order
+     */
+    private static ArrayList<String[]> getPersonsInAddressBookAt(int[] positions) {
+        final ArrayList<String[]> persons = new ArrayList<>(positions.length);
+        for (int position : positions) {
+            persons.add(isOffHeapBackend() ? decodeOffHeapPerson(offHeapRecordTable[position])
+                                           : ALL_PERSONS.get(position));
+        }
+        return persons;
+    }
+
+
+    /*
+     * ================================================================================
+     *        UNDO HISTORY METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Creates a change to be remembered in the undo history.
+     *
+     * @param kind CHANGE_KIND_INSERTED, CHANGE_KIND_REMOVED or CHANGE_KIND_REPLACED
+     * @param positions ascending absolute indexes of the changed persons (while they are in the model)
+     * @param persons inserted or removed, in the same order as the positions (for a replacement, the persons
+     *                replaced followed by the persons replacing them)
+     * @param description of the change, as shown to the user
+     * @return the change as an Object array
+     */
+    private static Object[] makeChange(String kind, int[] positions, ArrayList<String[]> persons, String description) {
+        long memory = CHANGE_MEMORY_OVERHEAD + (long) Integer.BYTES * positions.length;
+        for (String[] person : persons) {
+            memory += estimatePersonMemory(person);
+        }
+        final Object[] change = new Object[CHANGE_DATA_COUNT];
+        change[CHANGE_DATA_INDEX_KIND] = kind;
+        change[CHANGE_DATA_INDEX_POSITIONS] = positions;
+        change[CHANGE_DATA_INDEX_PERSONS] = persons;
+        change[CHANGE_DATA_INDEX_DESCRIPTION] = description;
+        change[CHANGE_DATA_INDEX_MEMORY] = memory;
+        change[CHANGE_DATA_INDEX_IS_JOINED] = false;
+        return change;
+    }
+
+    /**
+     * Returns true if the given change is undone and redone together with the change made just before it.
+     */
+    private static boolean isJoinedWithPreviousChange(Object[] change) {
+        return (Boolean) change[CHANGE_DATA_INDEX_IS_JOINED];
+    }
+
+    /**
+     * Returns a rough estimate of the heap bytes taken up by the given person.
+     */
+    private static long estimatePersonMemory(String[] person) {
+        // the name is counted twice, for the folded name kept with heap persons
+        return PERSON_MEMORY_OVERHEAD + 2 * getNameFromPerson(person).length() + getPhoneFromPerson(person).length()
+                + getEmailFromPerson(person).length();
+    }
+
+    /**
+     * Returns the change that undoes the given change.
+     */
+    private static Object[] makeInverseChange(Object[] change) {
+        final int[] positions = (int[]) change[CHANGE_DATA_INDEX_POSITIONS];
+        @SuppressWarnings("unchecked")
+        final ArrayList<String[]> persons = (ArrayList<String[]>) change[CHANGE_DATA_INDEX_PERSONS];
+        if (change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_REPLACED)) {
+            // the replacing persons are replaced by the persons they replaced
+            final ArrayList<String[]> swappedPersons = new ArrayList<>(getReplacingPersons(change));
+            swappedPersons.addAll(persons.subList(0, persons.size() - positions.length));
+            return makeChange(CHANGE_KIND_REPLACED, positions, swappedPersons,
+                              (String) change[CHANGE_DATA_INDEX_DESCRIPTION]);
+        }
+        final String inverseKind = change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_INSERTED)
+                                   ? CHANGE_KIND_REMOVED : CHANGE_KIND_INSERTED;
+        return makeChange(inverseKind, positions, persons, (String) change[CHANGE_DATA_INDEX_DESCRIPTION]);
+    }
+
+    /**
+     * Returns the persons put in place of others by a replacement: the last of its persons, one for each
+     * position. A replacement received from the primary only has these.
+     */
+    private static List<String[]> getReplacingPersons(Object[] change) {
+        final int[] positions = (int[]) change[CHANGE_DATA_INDEX_POSITIONS];
+        @SuppressWarnings("unchecked")
+        final ArrayList<String[]> persons = (ArrayList<String[]>) change[CHANGE_DATA_INDEX_PERSONS];
+        return persons.subList(persons.size() - positions.length, persons.size());
+    }
+
+    private static long getChangeMemory(Object[] change) {
+        return (Long) change[CHANGE_DATA_INDEX_MEMORY];
+    }
+
+    /**
+     * Remembers a change that was just made to the address book, so that it can be undone.
+     * Forgets all undone changes, and the oldest changes if the history would exceed {@link #UNDO_MEMORY_LIMIT}.
+     */
+    private static void recordChange(Object[] change) {
+        logReplicatedChange(change, false);
+        for (Object[] undone : REDO_HISTORY) {
+            changeHistoryMemory -= getChangeMemory(undone);
+        }
+        REDO_HISTORY.clear();
+        if (getChangeMemory(change) > UNDO_MEMORY_LIMIT) { // too big to keep; older changes can't be undone past it
+            UNDO_HISTORY.clear();
+            changeHistoryMemory = 0;
+            return;
+        }
+        UNDO_HISTORY.push(change);
+        changeHistoryMemory += getChangeMemory(change);
+        while (changeHistoryMemory > UNDO_MEMORY_LIMIT) {
+            changeHistoryMemory -= getChangeMemory(UNDO_HISTORY.removeLast());
+        }
+        // the rest of a command whose first change was forgotten cannot be undone on its own either
+        while (!UNDO_HISTORY.isEmpty() && isJoinedWithPreviousChange(UNDO_HISTORY.peekLast())) {
+            changeHistoryMemory -= getChangeMemory(UNDO_HISTORY.removeLast());
+        }
+    }
+
+    /**
+     * Applies a remembered change (or its inverse) to the model, and saves only the affected part of the
+     * storage file.
+     *
+     * @param change to apply
+     * @param isReverse true to undo the change, false to redo it
+     */
+    private static void applyChangeToAddressBook(Object[] change, boolean isReverse) {
+        final int[] positions = (int[]) change[CHANGE_DATA_INDEX_POSITIONS];
+        @SuppressWarnings("unchecked")
+        final ArrayList<String[]> persons = (ArrayList<String[]>) change[CHANGE_DATA_INDEX_PERSONS];
+        final boolean isInsertion = change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_INSERTED) != isReverse;
+        if (change[CHANGE_DATA_INDEX_KIND].equals(CHANGE_KIND_REPLACED)) {
+            replacePersonsInModelAt(positions, getReplacingPersons(isReverse ? makeInverseChange(change) : change));
+        } else if (isInsertion) {
+            insertPersonsIntoModelAt(positions, persons);
+        } else {
+            removePersonsFromModelAt(positions);
+        }
+        logReplicatedChange(change, isReverse);
+        saveAddressBookChangesToStorageFile(positions.length == 0 ? getAddressBookSize() : positions[0]);
+    }
+
+
+    /*
+     * ================================================================================
+     *        FIND QUERY METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Creates a query term, matching persons whose given field matches the pattern.
+     *
+     * @param field PERSON_DATA_INDEX_* of the person field to match
+     * @param pattern what the field must match; a name matches if any of its words does
+     * @param isIgnoringCase if true, a name pattern is folded (see {@link #foldForSearch(String)})
+     * @return the term as a query node
+     */
+    private static Object[] makeQueryTerm(int field, String pattern, boolean isIgnoringCase) {
+        final Object[] term = new Object[QUERY_NODE_DATA_COUNT];
+        term[QUERY_NODE_INDEX_KIND] = QUERY_NODE_TERM;
+        term[QUERY_NODE_INDEX_FIELD] = field;
+        term[QUERY_NODE_INDEX_PATTERN] = isIgnoringCase && field == PERSON_DATA_INDEX_NAME
+                                         ? foldForSearch(pattern) : pattern;
+        return term;
+    }
+
+    /**
+     * Creates a query node combining the given operands.
+     *
+     * @param kind QUERY_NODE_AND, QUERY_NODE_OR or QUERY_NODE_NOT
+     * @param operands the query nodes combined
+     * @return the query node
+     */
+    private static Object[] makeQueryNode(String kind, ArrayList<Object[]> operands) {
+        final Object[] node = new Object[QUERY_NODE_DATA_COUNT];
+        node[QUERY_NODE_INDEX_KIND] = kind;
+        node[QUERY_NODE_INDEX_OPERANDS] = operands;
+        return node;
+    }
+
+    private static Object[] makeNegatedQuery(Object[] operand) {
+        final ArrayList<Object[]> operands = new ArrayList<>(1);
+        operands.add(operand);
+        return makeQueryNode(QUERY_NODE_NOT, operands);
+    }
+
+    private static String getQueryNodeKind(Object[] node) {
+        return (String) node[QUERY_NODE_INDEX_KIND];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArrayList<Object[]> getQueryOperands(Object[] node) {
+        return (ArrayList<Object[]>) node[QUERY_NODE_INDEX_OPERANDS];
+    }
+
+    private static int getQueryTermField(Object[] term) {
+        return (Integer) term[QUERY_NODE_INDEX_FIELD];
+    }
+
+    private static String getQueryTermPattern(Object[] term) {
+        return (String) term[QUERY_NODE_INDEX_PATTERN];
+    }
+
+    /**
+     * Passes each person in the full model matching the query to the consumer, in address book order,
+     * as soon as it is found.
+     * With the heap backend, the query is planned against the query indexes (see
+     * {@link #getQueryCandidateSets(Object[], boolean)}) so that only the candidates it picks are checked;
+     * otherwise every person is checked.
+     *
+     * @param query to match
+     * @param isIgnoringCase if true, fields are matched ignoring case (and names ignoring accents too)
+     * @param limit the search stops as soon as this many matching persons are found
+     * @param matchConsumer given each person found
+     * @return number of persons found
+     */
+    private static int forEachPersonMatchingQuery(Object[] query, boolean isIgnoringCase, int limit,
+                                                  Consumer<String[]> matchConsumer) {
+        if (isUsingIndexFile()) {
+            loadModelInsteadOfIndexFile(); // the index file can only look names up by their exact words
+        }
+        int found = 0;
+        if (isOffHeapBackend()) {
+            for (int i = 0; i < offHeapRecordCount && found < limit; i++) {
+                final String[] person = decodeOffHeapPerson(offHeapRecordTable[i]);
+                if (isQueryMatchedBy(query, person, isIgnoringCase)) {
+                    matchConsumer.accept(person);
+                    found++;
+                }
+            }
+            return found;
+        }
+        ensureQueryIndexesBuilt();
+        final Optional<ArrayList<Set<String[]>>> candidateSets = getQueryCandidateSets(query, isIgnoringCase);
+        if (!candidateSets.isPresent()
+                || (long) countCandidates(candidateSets.get()) * QUERY_INDEX_MIN_SELECTIVITY > ALL_PERSONS.size()) {
+            for (int i = 0; i < ALL_PERSONS.size() && found < limit; i++) {
+                if (isQueryMatchedBy(query, ALL_PERSONS.get(i), isIgnoringCase)) {
+                    matchConsumer.accept(ALL_PERSONS.get(i));
+                    found++;
+                }
+            }
+            return found;
+        }
+        final Set<String[]> candidates = new HashSet<>(); // arrays are compared by identity
+        for (Set<String[]> candidateSet : candidateSets.get()) {
+            candidates.addAll(candidateSet);
+        }
+        for (String[] person : sortIntoAddressBookOrder(candidates)) {
+            if (found == limit) {
+                break;
+            }
+            if (isQueryMatchedBy(query, person, isIgnoringCase)) {
+                matchConsumer.accept(person);
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Counts the persons in the full model matching the query, without collecting them.
+     * With the heap backend, the query is planned as in
+     * {@link #forEachPersonMatchingQuery(Object[], boolean, int, Consumer)}, but as the order of the matching
+     * persons does not matter, only the candidates picked are visited.
+     *
+     * @param query to match
+     * @param isIgnoringCase if true, fields are matched ignoring case (and names ignoring accents too)
+     * @return number of persons in full model matching the query
+     */
+    private static int countPersonsMatchingQuery(Object[] query, boolean isIgnoringCase) {
+        int count = 0;
+        if (isOffHeapBackend()) {
+            if (isKeywordQuery(query)) {
+                return countOffHeapPersonsWithNameContainingAnyKeyword(getKeywordsOfKeywordQuery(query),
+                                                                       isIgnoringCase);
+            }
+            for (int i = 0; i < offHeapRecordCount; i++) {
+                if (isQueryMatchedBy(query, decodeOffHeapPerson(offHeapRecordTable[i]), isIgnoringCase)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        ensureQueryIndexesBuilt();
+        final Optional<ArrayList<Set<String[]>>> candidateSets = getQueryCandidateSets(query, isIgnoringCase);
+        final Collection<String[]> candidates;
+        if (!candidateSets.isPresent()
+                || (long) countCandidates(candidateSets.get()) * QUERY_INDEX_MIN_SELECTIVITY > ALL_PERSONS.size()) {
+            candidates = ALL_PERSONS;
+        } else if (candidateSets.get().size() == 1) { // an index never lists a person twice under the same key
+            candidates = candidateSets.get().get(0);
+        } else {
+            candidates = new HashSet<>(); // arrays are compared by identity
+            for (Set<String[]> candidateSet : candidateSets.get()) {
+                candidates.addAll(candidateSet);
+            }
+        }
+        for (String[] person : candidates) {
+            if (isQueryMatchedBy(query, person, isIgnoringCase)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Plans which persons must be checked to answer the query, using the query indexes:
+     * a term uses the index of its field if its pattern allows it, AND uses the candidates of its most
+     * selective operand (its other operands are then checked on those candidates only, which is a cheap way
+     * to intersect them), and OR uses the candidates of all its operands together.
+     *
+     * @return the sets of persons that together hold every person matching the query, or empty if
+     *         every person in the model must be checked
+     */
+    private static Optional<ArrayList<Set<String[]>>> getQueryCandidateSets(Object[] query,
+                                                                                  boolean isIgnoringCase) {
+        switch (getQueryNodeKind(query)) {
+        case QUERY_NODE_TERM:
+            return getQueryTermCandidates(query, isIgnoringCase).map(AddressBook::asCandidateSets);
+        case QUERY_NODE_AND:
+            Optional<ArrayList<Set<String[]>>> mostSelective = Optional.empty();
+            for (Object[] operand : getQueryOperands(query)) {
+                final Optional<ArrayList<Set<String[]>>> candidateSets =
+                        getQueryCandidateSets(operand, isIgnoringCase);
+                if (candidateSets.isPresent() && (!mostSelective.isPresent()
+                        || countCandidates(candidateSets.get()) < countCandidates(mostSelective.get()))) {
+                    mostSelective = candidateSets;
+                }
+            }
+            return mostSelective;
+        case QUERY_NODE_OR:
+            final ArrayList<Set<String[]>> union = new ArrayList<>();
+            for (Object[] operand : getQueryOperands(query)) {
+                final Optional<ArrayList<Set<String[]>>> candidateSets =
+                        getQueryCandidateSets(operand, isIgnoringCase);
+                if (!candidateSets.isPresent()) {
+                    return Optional.empty();
+                }
+                union.addAll(candidateSets.get());
+            }
+            return Optional.of(union);
+        default: // persons matching NOT are those missing from an index, which can't be looked up
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Looks up the persons that may match a query term in the index of its field.
+     *
+     * @return a set holding every person matching the term (and maybe others), or empty if the term's
+     *         pattern can't be looked up in an index
+     */
+    private static Optional<Set<String[]>> getQueryTermCandidates(Object[] term, boolean isIgnoringCase) {
+        final String pattern = getQueryTermPattern(term);
+        final int wildcardIndex = pattern.indexOf(COMMAND_FIND_QUERY_WILDCARD);
+        final HashMap<String, HashSet<String[]>> index;
+        final String key;
+        switch (getQueryTermField(term)) {
+        case PERSON_DATA_INDEX_NAME:
+            index = NAME_WORD_QUERY_INDEX;
+            key = isIgnoringCase ? pattern : foldForSearch(pattern);
+            if (wildcardIndex >= 0 || key.isEmpty() || key.indexOf(' ') >= 0) {
+                return Optional.empty();
+            }
+            break;
+        case PERSON_DATA_INDEX_PHONE:
+            index = PHONE_PREFIX_QUERY_INDEX;
+            if (wildcardIndex >= QUERY_INDEX_PHONE_PREFIX_LENGTH
+                    || (wildcardIndex < 0 && pattern.length() >= QUERY_INDEX_PHONE_PREFIX_LENGTH)) {
+                key = pattern.substring(0, QUERY_INDEX_PHONE_PREFIX_LENGTH);
+            } else if (wildcardIndex < 0) {
+                key = pattern;
+            } else {
+                return Optional.empty();
+            }
+            break;
+        default:
+            // only patterns for a whole domain, like *@example.com, can be looked up
+            index = EMAIL_DOMAIN_QUERY_INDEX;
+            final int domainStart = pattern.lastIndexOf('@') + 1;
+            if (wildcardIndex != 0 || domainStart != 2 || pattern.indexOf(COMMAND_FIND_QUERY_WILDCARD, 1) >= 0) {
+                return Optional.empty();
+            }
+            key = toLowerCaseForQuery(pattern.substring(domainStart));
+        }
+        return Optional.of(index.getOrDefault(key, new HashSet<>()));
+    }
+
+    private static ArrayList<Set<String[]>> asCandidateSets(Set<String[]> candidateSet) {
+        final ArrayList<Set<String[]>> candidateSets = new ArrayList<>(1);
+        candidateSets.add(candidateSet);
+        return candidateSets;
+    }
+
+    private static int countCandidates(ArrayList<Set<String[]>> candidateSets) {
+        int count = 0;
+        for (Set<String[]> candidateSet : candidateSets) {
+            count += candidateSet.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if the given person matches the query.
+     *
+     * @param isIgnoringCase if true, fields are matched ignoring case (and names ignoring accents too)
+     */
+    private static boolean isQueryMatchedBy(Object[] query, String[] person, boolean isIgnoringCase) {
+        switch (getQueryNodeKind(query)) {
+        case QUERY_NODE_TERM:
+            if (getQueryTermField(query) == PERSON_DATA_INDEX_NAME) {
+                return isAnyWordInTextMatchedBy(isIgnoringCase ? getFoldedNameFromPerson(person)
+                                                               : getNameFromPerson(person),
+                                                getQueryTermPattern(query));
+            }
+            final String value = person[getQueryTermField(query)];
+            return isWildcardMatch(value, 0, value.length(), getQueryTermPattern(query), isIgnoringCase);
+        case QUERY_NODE_AND:
+            for (Object[] operand : getQueryOperands(query)) {
+                if (!isQueryMatchedBy(operand, person, isIgnoringCase)) {
+                    return false;
+                }
+            }
+            return true;
+        case QUERY_NODE_OR:
+            for (Object[] operand : getQueryOperands(query)) {
+                if (isQueryMatchedBy(operand, person, isIgnoringCase)) {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            return !isQueryMatchedBy(getQueryOperands(query).get(0), person, isIgnoringCase);
+        }
+    }
+
+    /**
+     * Builds the query indexes from the heap model, unless they are already built.
+     */
+    private static void ensureQueryIndexesBuilt() {
+        if (areQueryIndexesBuilt) {
+            return;
+        }
+        areQueryIndexesBuilt = true;
+        isQueryIndexRebuildDue = false;
+        for (String[] person : ALL_PERSONS) {
+            addPersonToQueryIndexes(person);
+        }
+        spreadQueryIndexOrderKeys();
+    }
+
+    /**
+     * Adds a person that just entered the heap model to the query indexes, if they are built.
+     *
+     * @param person as kept in the heap model
+     */
+    private static void addPersonToQueryIndexes(String[] person) {
+        if (!areQueryIndexesBuilt) {
+            return;
+        }
+        final String foldedName = person[PERSON_DATA_INDEX_FOLDED_NAME];
+        for (int wordStart = 0, wordEnd; wordStart < foldedName.length(); wordStart = wordEnd + 1) {
+            wordEnd = getEndOfFoldedWord(foldedName, wordStart);
+            final String word = foldedName.substring(wordStart, wordEnd);
+            if (!NAME_WORD_QUERY_INDEX.containsKey(word)) {
+                addNameWordToFuzzyQueryIndex(word);
+            }
+            addToQueryIndex(NAME_WORD_QUERY_INDEX, word, person);
+        }
+        addToQueryIndex(PHONE_PREFIX_QUERY_INDEX, getPhonePrefixQueryIndexKey(person), person);
+        addToQueryIndex(EMAIL_DOMAIN_QUERY_INDEX, getEmailDomainQueryIndexKey(person), person);
+    }
+
+    /**
+     * Puts the person under the key in the index. A person whose name has the same word twice is still put
+     * under that word only once, as persons are kept in sets (where arrays are compared by identity).
+     */
+    private static void addToQueryIndex(HashMap<String, HashSet<String[]>> index, String key,
+                                        String[] person) {
+        index.computeIfAbsent(key, k -> new HashSet<>()).add(person);
+    }
+
+    /**
+     * Gives order keys (see {@link #QUERY_INDEX_ORDER_KEYS}) to persons just put into the heap model, if the
+     * query indexes are built. Each run of such persons next to each other gets keys spread evenly between
+     * the keys of the persons around it; if there is no room left between them, all keys are spread out again.
+     *
+     * @param positions ascending absolute indexes of the persons
+     */
+    private static void assignQueryIndexOrderKeys(int[] positions) {
+        if (!areQueryIndexesBuilt) {
+            return;
+        }
+        for (int runStart = 0, runEnd; runStart < positions.length; runStart = runEnd) {
+            runEnd = runStart + 1;
+            while (runEnd < positions.length && positions[runEnd] == positions[runEnd - 1] + 1) {
+                runEnd++;
+            }
+            final int before = positions[runStart] - 1;
+            final int after = positions[runEnd - 1] + 1;
+            final long stepCount = runEnd - runStart + 1;
+            final long lowKey;
+            final long highKey;
+            if (after < ALL_PERSONS.size()) {
+                highKey = QUERY_INDEX_ORDER_KEYS.get(ALL_PERSONS.get(after));
+                lowKey = before >= 0 ? QUERY_INDEX_ORDER_KEYS.get(ALL_PERSONS.get(before))
+                                     : highKey - stepCount * QUERY_INDEX_ORDER_KEY_GAP;
+            } else {
+                lowKey = before >= 0 ? QUERY_INDEX_ORDER_KEYS.get(ALL_PERSONS.get(before)) : 0;
+                highKey = lowKey + stepCount * QUERY_INDEX_ORDER_KEY_GAP;
+            }
+            final long step = (highKey - lowKey) / stepCount;
+            if (step == 0) {
+                spreadQueryIndexOrderKeys();
+                return;
+            }
+            for (int i = runStart; i < runEnd; i++) {
+                QUERY_INDEX_ORDER_KEYS.put(ALL_PERSONS.get(positions[i]), lowKey + step * (i - runStart + 1));
+            }
+        }
+    }
+
+    /**
+     * Gives every person in the heap model a new order key (see {@link #QUERY_INDEX_ORDER_KEYS}), the keys
+     * being spread out evenly.
+     */
+    private static void spreadQueryIndexOrderKeys() {
+        for (int i = 0; i < ALL_PERSONS.size(); i++) {
+            QUERY_INDEX_ORDER_KEYS.put(ALL_PERSONS.get(i), i * QUERY_INDEX_ORDER_KEY_GAP);
+        }
+    }
+
+    /**
+     * Returns the given persons of the heap model in address book order, found by sorting them by their order
+     * keys (see {@link #QUERY_INDEX_ORDER_KEYS}), which takes far fewer steps than going through the model when
+     * there are few of them. The query indexes must be built.
+     */
+    private static ArrayList<String[]> sortIntoAddressBookOrder(Collection<String[]> persons) {
+        final ArrayList<String[]> sortedPersons = new ArrayList<>(persons);
+        sortedPersons.sort(Comparator.comparingLong(QUERY_INDEX_ORDER_KEYS::get));
+        return sortedPersons;
+    }
+
+    /**
+     * Removes persons that just left the heap model from the query indexes, if they are built.
+     * If there are many of them, the indexes are dropped instead, to be rebuilt by maintenance or
+     * when next needed.
+     *
+     * @param persons as kept in the heap model
+     */
+    private static void removePersonsFromQueryIndexes(List<String[]> persons) {
+        if (!areQueryIndexesBuilt) {
+            return;
+        }
+        if (persons.size() > QUERY_INDEX_MAX_REMOVALS) {
+            isFuzzyQueryIndexRebuildDue = isFuzzyQueryIndexBuilt;
+            dropQueryIndexes();
+            isQueryIndexRebuildDue = true;
+            return;
+        }
+        for (String[] person : persons) {
+            final String foldedName = person[PERSON_DATA_INDEX_FOLDED_NAME];
+            for (int wordStart = 0, wordEnd; wordStart < foldedName.length(); wordStart = wordEnd + 1) {
+                wordEnd = getEndOfFoldedWord(foldedName, wordStart);
+                final String word = foldedName.substring(wordStart, wordEnd);
+                removeFromQueryIndex(NAME_WORD_QUERY_INDEX, word, person);
+                if (!NAME_WORD_QUERY_INDEX.containsKey(word)) {
+                    removeNameWordFromFuzzyQueryIndex(word);
+                }
+            }
+            removeFromQueryIndex(PHONE_PREFIX_QUERY_INDEX, getPhonePrefixQueryIndexKey(person), person);
+            removeFromQueryIndex(EMAIL_DOMAIN_QUERY_INDEX, getEmailDomainQueryIndexKey(person), person);
+            QUERY_INDEX_ORDER_KEYS.remove(person);
+        }
+    }
+
+    private static void removeFromQueryIndex(HashMap<String, HashSet<String[]>> index, String key,
+                                             String[] person) {
+        final HashSet<String[]> persons = index.get(key);
+        if (persons == null) {
+            return;
+        }
+        persons.remove(person);
+        if (persons.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    /**
+     * Empties the query indexes. They are rebuilt by the next query that can use them.
+     */
+    private static void dropQueryIndexes() {
+        NAME_WORD_QUERY_INDEX.clear();
+        PHONE_PREFIX_QUERY_INDEX.clear();
+        EMAIL_DOMAIN_QUERY_INDEX.clear();
+        QUERY_INDEX_ORDER_KEYS.clear();
+        areQueryIndexesBuilt = false;
+        FUZZY_NAME_WORD_QUERY_INDEX.clear();
+        isFuzzyQueryIndexBuilt = false;
+    }
+
+    /**
+     * Returns the end of the word starting at the given position of a folded name, whose words are always
+     * separated by single spaces.
+     */
+    private static int getEndOfFoldedWord(String foldedName, int wordStart) {
+        final int wordEnd = foldedName.indexOf(' ', wordStart);
+        return wordEnd < 0 ? foldedName.length() : wordEnd;
+    }
+
+    private static String getPhonePrefixQueryIndexKey(String[] person) {
+        final String phone = getPhoneFromPerson(person);
+        return phone.length() > QUERY_INDEX_PHONE_PREFIX_LENGTH
+               ? phone.substring(0, QUERY_INDEX_PHONE_PREFIX_LENGTH) : phone;
+    }
+
+    private static String getEmailDomainQueryIndexKey(String[] person) {
+        final String email = getEmailFromPerson(person);
+        return toLowerCaseForQuery(email.substring(email.lastIndexOf('@') + 1));
+    }
+
+    /**
+     * Builds the fuzzy query index (and the query indexes it is built from), unless it is already built.
+     */
+    private static void ensureFuzzyQueryIndexBuilt() {
+        ensureQueryIndexesBuilt();
+        if (isFuzzyQueryIndexBuilt) {
+            return;
+        }
+        isFuzzyQueryIndexBuilt = true;
+        isFuzzyQueryIndexRebuildDue = false;
+        for (String word : NAME_WORD_QUERY_INDEX.keySet()) {
+            addNameWordToFuzzyQueryIndex(word);
+        }
+    }
+
+    /**
+     * Adds a word that just became a key of the name word query index to the fuzzy query index, if it is built.
+     */
+    private static void addNameWordToFuzzyQueryIndex(String word) {
+        if (!isFuzzyQueryIndexBuilt) {
+            return;
+        }
+        for (String deletionVariant : getDeletionVariants(word, FIND_MAX_EDIT_DISTANCE)) {
+            FUZZY_NAME_WORD_QUERY_INDEX.computeIfAbsent(deletionVariant, k -> new ArrayList<>(1)).add(word);
+        }
+    }
+
+    /**
+     * Removes a word that is no longer a key of the name word query index from the fuzzy query index,
+     * if it is built. Does nothing if the word was already removed.
+     */
+    private static void removeNameWordFromFuzzyQueryIndex(String word) {
+        if (!isFuzzyQueryIndexBuilt) {
+            return;
+        }
+        for (String deletionVariant : getDeletionVariants(word, FIND_MAX_EDIT_DISTANCE)) {
+            final ArrayList<String> words = FUZZY_NAME_WORD_QUERY_INDEX.get(deletionVariant);
+            if (words != null && words.remove(word) && words.isEmpty()) {
+                FUZZY_NAME_WORD_QUERY_INDEX.remove(deletionVariant);
+            }
+        }
+    }
+
+    /**
+     * Looks up the name words in the heap model that are close to the folded fuzzy keyword, in the fuzzy
+     * query index. A word at most N edits away from the keyword has a deletion variant (see
+     * {@link #getDeletionVariants(String, int)}) with at most N deletions in common with it, so only the
+     * words listed under the keyword's own deletion variants need their edit distance computed.
+     *
+     * @return the close words, each with its edit distance from the keyword
+     */
+    private static HashMap<String, Integer> getNameWordsCloseTo(String foldedKeyword) {
+        final int maxDistance = getMaxEditDistanceOfFuzzyKeyword(foldedKeyword);
+        final HashMap<String, Integer> closeWords = new HashMap<>();
+        final HashSet<String> checkedWords = new HashSet<>();
+        for (String deletionVariant : getDeletionVariants(foldedKeyword, maxDistance)) {
+            for (String word : FUZZY_NAME_WORD_QUERY_INDEX.getOrDefault(deletionVariant, new ArrayList<>())) {
+                if (!checkedWords.add(word)) {
+                    continue;
+                }
+                final int distance = getEditDistance(foldedKeyword, word, maxDistance);
+                if (distance <= maxDistance) {
+                    closeWords.put(word, distance);
+                }
+            }
+        }
+        return closeWords;
+    }
+
+    /**
+     * Returns the distinct strings left after deleting at most the given number of characters from the word,
+     * including the word itself.
+     */
+    private static HashSet<String> getDeletionVariants(String word, int maxDeletions) {
+        final HashSet<String> variants = new HashSet<>();
+        variants.add(word);
+        ArrayList<String> variantsWithFewerDeletions = new ArrayList<>(variants);
+        for (int deletions = 1; deletions <= maxDeletions; deletions++) {
+            final ArrayList<String> variantsWithMoreDeletions = new ArrayList<>();
+            for (String variant : variantsWithFewerDeletions) {
+                for (int i = 0; i < variant.length(); i++) {
+                    final String shorterVariant = variant.substring(0, i) + variant.substring(i + 1);
+                    if (variants.add(shorterVariant)) {
+                        variantsWithMoreDeletions.add(shorterVariant);
+                    }
+                }
+            }
+            variantsWithFewerDeletions = variantsWithMoreDeletions;
+        }
+        return variants;
+    }
+
+
+    /*
+     * ================================================================================
+     *        STATS METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Counts the given persons in the stats counters, as they enter the model.
+     */
+    private static void addPersonsToStats(Collection<String[]> persons) {
+        for (String[] person : persons) {
+            addPersonToStats(person);
+        }
+    }
+
+    private static void addPersonToStats(String[] person) {
+        addGroupsToStats(getEmailDomainQueryIndexKey(person), getSurnameFromPerson(person));
+    }
+
+    /**
+     * Counts a person with the given email domain (already in lower case) and surname in the stats counters.
+     */
+    private static void addGroupsToStats(String emailDomain, String surname) {
+        EMAIL_DOMAIN_COUNTS.merge(emailDomain, 1, Integer::sum);
+        SURNAME_COUNTS.merge(surname, 1, Integer::sum);
+    }
+
+    /**
+     * Stops counting the given persons in the stats counters, as they leave the model.
+     */
+    private static void removePersonsFromStats(Collection<String[]> persons) {
+        for (String[] person : persons) {
+            removePersonFromStats(person);
+        }
+    }
+
+    private static void removePersonFromStats(String[] person) {
+        removeFromStatsCounter(EMAIL_DOMAIN_COUNTS, getEmailDomainQueryIndexKey(person));
+        removeFromStatsCounter(SURNAME_COUNTS, getSurnameFromPerson(person));
+    }
+
+    /**
+     * Takes one person off the count of the given group, forgetting the group once it has no persons left.
+     */
+    private static void removeFromStatsCounter(HashMap<String, Integer> counts, String group) {
+        counts.computeIfPresent(group, (key, count) -> count == 1 ? null : count - 1);
+    }
+
+    private static void clearStats() {
+        EMAIL_DOMAIN_COUNTS.clear();
+        SURNAME_COUNTS.clear();
+    }
+
+    /**
+     * Returns the groups having the most persons in the given stats counter, largest first (groups of the
+     * same size in alphabetical order). The groups are passed through a heap holding the largest seen so far,
+     * smallest at its root, so that finding the top N of G groups takes O(G log N) time whatever their sizes.
+     *
+     * @param counts stats counter of the groups
+     * @param topCount at most this many groups are returned
+     */
+    private static ArrayList<Map.Entry<String, Integer>> getLargestGroups(HashMap<String, Integer> counts,
+                                                                          int topCount) {
+        final PriorityQueue<Map.Entry<String, Integer>> largestGroups =
+                new PriorityQueue<>(Math.min(topCount, counts.size()) + 1, AddressBook::compareStatsGroups);
+        for (Map.Entry<String, Integer> group : counts.entrySet()) {
+            largestGroups.add(group);
+            if (largestGroups.size() > topCount) {
+                largestGroups.poll();
+            }
+        }
+        final ArrayList<Map.Entry<String, Integer>> groups = new ArrayList<>(largestGroups.size());
+        while (!largestGroups.isEmpty()) {
+            groups.add(largestGroups.poll());
+        }
+        Collections.reverse(groups);
+        return groups;
+    }
+
+    /**
+     * Orders stats groups from the smallest to the largest; groups of the same size are ordered
+     * alphabetically from the last to the first.
+     */
+    private static int compareStatsGroups(Map.Entry<String, Integer> group, Map.Entry<String, Integer> other) {
+        final int sizeComparison = Integer.compare(group.getValue(), other.getValue());
+        return sizeComparison != 0 ? sizeComparison : other.getKey().compareTo(group.getKey());
+    }
+
+
+    /*
+     * ================================================================================
+     *        DEDUPE METHODS
+     * ================================================================================
+     */
+
+    /*
+     * ==============NOTE TO STUDENTS======================================
+     * Comparing every person with every other person takes n*n/2 steps,
+     * far too many for a large address book. Instead, persons are first
+     * put in blocks of persons sharing a phone or an email, and only
+     * persons in the same block are compared. As every pair of
+     * near-duplicates shares one of them, none is missed, except in
+     * huge blocks: a phone or email shared by very many persons (e.g. an
+     * office's) says nothing about whether they are the same person, and
+     * comparing them all would again take n*n/2 steps, so it is skipped.
+     * The rows of the blocks are compared in parallel, on all processors,
+     * since comparing names is the costly part.
+     * ====================================================================
+     */
+
+    /**
+     * Finds the clusters of near-duplicates in the address book: persons that are each probably the same person
+     * as every other person of their cluster (see {@link #areNearDuplicates}).
+     *
+     * @return the absolute indexes of the persons of each cluster in ascending order, the clusters being
+     *         ordered by their first person
+     */
+    private static ArrayList<int[]> findNearDuplicateClusters() {
+        final ArrayList<String[]> persons = getAllPersonsInAddressBook();
+        final String[] phones = new String[persons.size()];
+        final String[] lowerCaseEmails = new String[persons.size()];
+        final String[] foldedNames = new String[persons.size()];
+        IntStream.range(0, persons.size()).parallel().forEach(i -> {
+            phones[i] = getPhoneFromPerson(persons.get(i));
+            lowerCaseEmails[i] = toLowerCaseForQuery(getEmailFromPerson(persons.get(i)));
+            foldedNames[i] = getFoldedNameFromPerson(persons.get(i));
+        });
+
+        final ArrayList<int[]> blocks = new ArrayList<>();
+        addNearDuplicateBlocks(phones, blocks);
+        final int phoneBlockCount = blocks.size();
+        addNearDuplicateBlocks(lowerCaseEmails, blocks);
+        final int[] firstRows = new int[blocks.size() + 1];
+        for (int b = 0; b < blocks.size(); b++) {
+            firstRows[b + 1] = firstRows[b] + blocks.get(b).length;
+        }
+        final long[] pairs = IntStream.range(0, firstRows[blocks.size()]).parallel()
+                .mapToObj(row -> {
+                    final int blockIndex = getBlockIndexOfRow(firstRows, row);
+                    return findNearDuplicatesInBlockRow(blocks.get(blockIndex), row - firstRows[blockIndex],
+                                                        blockIndex >= phoneBlockCount,
+                                                        phones, lowerCaseEmails, foldedNames);
+                })
+                .flatMapToLong(LongStream::of)
+                .toArray();
+        return getClustersOfNearDuplicatePairs(persons.size(), pairs);
+    }
+
+    /**
+     * Puts the persons with the same key in blocks, adding the blocks of more than one person, but of no more
+     * than DEDUPE_MAX_BLOCK_SIZE persons.
+     *
+     * @param keys the key of the person at each absolute index
+     */
+    private static void addNearDuplicateBlocks(String[] keys, ArrayList<int[]> blocks) {
+        final HashMap<String, ArrayList<Integer>> positionsByKey = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            positionsByKey.computeIfAbsent(keys[i], key -> new ArrayList<>(1)).add(i);
+        }
+        for (ArrayList<Integer> positions : positionsByKey.values()) {
+            if (positions.size() > 1 && positions.size() <= DEDUPE_MAX_BLOCK_SIZE) {
+                blocks.add(positions.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the block a row belongs to, rows being numbered across all blocks.
+     *
+     * @param firstRows the row of the first person of each block, followed by the total number of rows
+     */
+    private static int getBlockIndexOfRow(int[] firstRows, int row) {
+        final int searchResult = Arrays.binarySearch(firstRows, row);
+        return searchResult >= 0 ? searchResult : -searchResult - 2; // blocks are never empty
+    }
+
+    /**
+     * Compares the person at the given row of a block with the persons after it in the same block.
+     * A pair sharing both phone and email is in two blocks; it is only compared in the phone block.
+     *
+     * @param row index of the person in the block
+     * @param isEmailBlock false if the persons in the block share a phone, true if they share an email
+     * @return the pairs of near-duplicates found (see {@link #asNearDuplicatePair})
+     */
+    private static long[] findNearDuplicatesInBlockRow(int[] block, int row, boolean isEmailBlock, String[] phones,
+                                                       String[] lowerCaseEmails, String[] foldedNames) {
+        final int position = block[row];
+        final long[] pairs = new long[block.length - row - 1];
+        int pairCount = 0;
+        for (int i = row + 1; i < block.length; i++) {
+            final int other = block[i];
+            final boolean isSamePhone = phones[position].equals(phones[other]);
+            if (isEmailBlock && isSamePhone) {
+                continue;
+            }
+            final boolean isSameEmail = lowerCaseEmails[position].equals(lowerCaseEmails[other]);
+            if (areNearDuplicates(isSamePhone, isSameEmail, foldedNames[position], foldedNames[other])) {
+                pairs[pairCount++] = asNearDuplicatePair(position, other);
+            }
+        }
+        return Arrays.copyOf(pairs, pairCount);
+    }
+
+    /**
+     * Returns true if two persons are probably the same person: they agree on at least two of the phone,
+     * the email (ignoring case) and the name, names agreeing if they are no more edits apart than a fuzzy
+     * find keyword as long as the shorter name (see {@link #getMaxEditDistanceOfFuzzyKeyword(String)}).
+     */
+    private static boolean areNearDuplicates(boolean isSamePhone, boolean isSameEmail, String foldedName,
+                                             String otherFoldedName) {
+        if (isSamePhone && isSameEmail) {
+            return true;
+        }
+        if (!isSamePhone && !isSameEmail) {
+            return false;
+        }
+        final String shorterName = foldedName.length() <= otherFoldedName.length() ? foldedName : otherFoldedName;
+        final int maxDistance = getMaxEditDistanceOfFuzzyKeyword(shorterName);
+        return getEditDistance(foldedName, otherFoldedName, maxDistance) <= maxDistance;
+    }
+
+    /**
+     * Packs the absolute indexes of two persons in a single long, the first in the high half.
+     */
+    private static long asNearDuplicatePair(int position, int otherPosition) {
+        return (long) position << Integer.SIZE | otherPosition;
+    }
+
+    /**
+     * Groups pairs of near-duplicates into clusters in which every two persons are a pair, as near-duplicates
+     * of near-duplicates need not be near-duplicates (e.g. persons sharing an email, with names each a letter
+     * apart from the next). Going through the persons in order, each person not yet in a cluster starts one,
+     * and the persons after it that pair with it join it if they pair with all of its persons so far.
+     *
+     * @param pairs as packed by {@link #asNearDuplicatePair(int, int)}, the first person before the other
+     * @return the clusters, as described in {@link #findNearDuplicateClusters()}
+     */
+    private static ArrayList<int[]> getClustersOfNearDuplicatePairs(int personCount, long[] pairs) {
+        Arrays.sort(pairs); // by first person, then by other person
+        final HashSet<Long> pairSet = new HashSet<>();
+        for (long pair : pairs) {
+            pairSet.add(pair);
+        }
+        final BitSet clusteredPositions = new BitSet(personCount);
+        final ArrayList<int[]> clusters = new ArrayList<>();
+        final ArrayList<Integer> cluster = new ArrayList<>();
+        for (int start = 0; start < pairs.length; ) {
+            final int position = (int) (pairs[start] >>> Integer.SIZE);
+            int end = start;
+            while (end < pairs.length && (int) (pairs[end] >>> Integer.SIZE) == position) {
+                end++;
+            }
+            if (!clusteredPositions.get(position)) {
+                cluster.clear();
+                cluster.add(position);
+                for (int i = start; i < end; i++) {
+                    final int other = (int) pairs[i];
+                    if (!clusteredPositions.get(other) && isPairedWithAll(other, cluster, pairSet)) {
+                        cluster.add(other);
+                        clusteredPositions.set(other);
+                    }
+                }
+                if (cluster.size() > 1) {
+                    clusteredPositions.set(position);
+                    clusters.add(cluster.stream().mapToInt(Integer::intValue).toArray());
+                }
+            }
+            start = end;
+        }
+        return clusters;
+    }
+
+    /**
+     * Returns true if the given person is a near-duplicate of every person of the cluster, all before it.
+     */
+    private static boolean isPairedWithAll(int position, ArrayList<Integer> cluster, HashSet<Long> pairSet) {
+        for (int member : cluster) {
+            if (!pairSet.contains(asNearDuplicatePair(member, position))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+     * ================================================================================
+     *        OFF-HEAP ADDRESS BOOK DATA METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Returns true if the model keeps person records outside the Java heap, in memory or (for the tiered
+     * backend) in a page file.
+     */
+    private static boolean isOffHeapBackend() {
+        return MODEL_BACKEND.equals(MODEL_BACKEND_OFF_HEAP) || isTieredBackend();
+    }
+
+    /**
+     * Appends a person to the end of the off-heap model. Does not save to file.
+     *
+     * @param person to append
+     */
+    private static void appendPersonToOffHeapModel(String[] person) {
+        final long locator = storePersonOffHeap(person);
+        ensureOffHeapRecordTableCapacity(offHeapRecordCount + 1);
+        offHeapRecordTable[offHeapRecordCount++] = locator;
+    }
+
+    /**
+     * Inserts persons into the off-heap model, starting at the given position. Does not save to file.
+     */
+    private static void insertPersonsIntoOffHeapModel(int index, ArrayList<String[]> persons) {
+        ensureOffHeapRecordTableCapacity(offHeapRecordCount + persons.size());
+        System.arraycopy(offHeapRecordTable, index, offHeapRecordTable, index + persons.size(),
+                offHeapRecordCount - index);
+        for (int i = 0; i < persons.size(); i++) {
+            offHeapRecordTable[index + i] = storePersonOffHeap(persons.get(i));
+        }
+        offHeapRecordCount += persons.size();
+    }
+
+    /**
+     * Inserts persons into the off-heap model so that each ends up at the matching position, in a single pass.
+     * Does not save to file.
+     *
+     * @param positions ascending positions the records will have after the insertion
+     * @param persons to insert, in the same order as the positions
+     */
+    private static void insertPersonsIntoOffHeapModelAt(int[] positions, ArrayList<String[]> persons) {
+        ensureOffHeapRecordTableCapacity(offHeapRecordCount + positions.length);
+        int nextToMove = offHeapRecordCount - 1;
+        offHeapRecordCount += positions.length;
+        int target = offHeapRecordCount - 1;
+        for (int i = positions.length - 1; i >= 0; target--) {
+            offHeapRecordTable[target] = target == positions[i] ? storePersonOffHeap(persons.get(i--))
+                                                                : offHeapRecordTable[nextToMove--];
+        }
+    }
+
+    private static void ensureOffHeapRecordTableCapacity(int capacity) {
+        if (capacity > offHeapRecordTable.length) {
+            offHeapRecordTable = Arrays.copyOf(offHeapRecordTable, Math.max(capacity, offHeapRecordTable.length * 2));
+        }
+    }
+
+    /**
+     * Writes a person into a free off-heap slot. The record is not yet part of the address book order.
+     *
+     * @return locator of the new record
+     */
+    private static long storePersonOffHeap(String[] person) {
+        final byte[] name = getNameFromPerson(person).getBytes(StandardCharsets.UTF_8);
+        final byte[] phone = getPhoneFromPerson(person).getBytes(StandardCharsets.UTF_8);
+        final byte[] email = getEmailFromPerson(person).getBytes(StandardCharsets.UTF_8);
+        final byte[] foldedName = foldForSearch(getNameFromPerson(person)).getBytes(StandardCharsets.UTF_8);
+        final int recordSize = OFF_HEAP_HEADER_SIZE + name.length + OFF_HEAP_PHONE_SEPARATOR.length
+                + phone.length + OFF_HEAP_EMAIL_SEPARATOR.length + email.length + foldedName.length;
+        final int sizeClass = getOffHeapSizeClass(recordSize);
+        final long locator = allocateOffHeapSlot(sizeClass);
+
+        final ByteBuffer record = getOffHeapChunkForWriting(locator).duplicate();
+        record.position(getOffHeapOffset(locator));
+        record.putInt(sizeClass).putInt(name.length).putInt(phone.length).putInt(email.length)
+                .putInt(foldedName.length);
+        record.put(name).put(OFF_HEAP_PHONE_SEPARATOR).put(phone).put(OFF_HEAP_EMAIL_SEPARATOR).put(email);
+        record.put(foldedName);
+        return locator;
+    }
+
+    /**
+     * Removes the record at the given position of the off-heap model and frees its slot. Does not save to file.
+     *
+     * @param index absolute index of the record (index within {@link #offHeapRecordTable})
+     */
+    private static void removeOffHeapRecordAt(int index) {
+        if (index < 0 || index >= offHeapRecordCount) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + offHeapRecordCount);
+        }
+        removeOffHeapRecords(index, index + 1);
+    }
+
+    /**
+     * Removes the records in the given range of positions of the off-heap model and frees their slots.
+     * Does not save to file.
+     */
+    private static void removeOffHeapRecords(int fromIndex, int toIndex) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            freeOffHeapSlot(offHeapRecordTable[i]);
+        }
+        System.arraycopy(offHeapRecordTable, toIndex, offHeapRecordTable, fromIndex, offHeapRecordCount - toIndex);
+        offHeapRecordCount -= toIndex - fromIndex;
+    }
+
+    /**
+     * Removes the records at the given positions of the off-heap model and frees their slots, in a single pass.
+     * Does not save to file.
+     *
+     * @param positions ascending positions of the records to remove
+     */
+    private static void removeOffHeapRecordsAt(int[] positions) {
+        int kept = positions[0];
+        for (int i = positions[0], next = 0; i < offHeapRecordCount; i++) {
+            if (next < positions.length && positions[next] == i) {
+                freeOffHeapSlot(offHeapRecordTable[i]);
+                next++;
+            } else {
+                offHeapRecordTable[kept++] = offHeapRecordTable[i];
+            }
+        }
+        offHeapRecordCount = kept;
+    }
+
+    /**
+     * Returns true if the stored line of the given record is exactly the given UTF-8 encoded line.
+     */
+    private static boolean isOffHeapRecordEncodedAs(long locator, byte[] encodedPerson) {
+        final int lineStart = getOffHeapOffset(locator) + OFF_HEAP_HEADER_SIZE;
+        return isOffHeapRangeEqualTo(getOffHeapChunk(locator), lineStart, lineStart + getOffHeapLineLength(locator),
+                encodedPerson);
+    }
+
+    /**
+     * Returns the number of bytes in the stored line of the given record, not counting a line separator.
+     */
+    private static int getOffHeapLineLength(long locator) {
+        final ByteBuffer chunk = getOffHeapChunk(locator);
+        final int offset = getOffHeapOffset(locator);
+        return chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_NAME_LENGTH)
+                + OFF_HEAP_PHONE_SEPARATOR.length + chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_PHONE_LENGTH)
+                + OFF_HEAP_EMAIL_SEPARATOR.length + chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_EMAIL_LENGTH);
+    }
+
+    /**
+     * Returns a copy of the stored line of the given record, in UTF-8, without decoding it.
+     */
+    private static byte[] getOffHeapLineBytes(long locator) {
+        final byte[] line = new byte[getOffHeapLineLength(locator)];
+        final ByteBuffer chunk = getOffHeapChunk(locator).duplicate();
+        chunk.position(getOffHeapOffset(locator) + OFF_HEAP_HEADER_SIZE);
+        chunk.get(line);
+        return line;
+    }
+
+    /**
+     * Finds the record the given person was decoded from, if it is still in the off-heap model.
+     *
+     * @param exactPerson a person decoded from the off-heap model
+     * @return position of the record in the off-heap model, or -1 if it is no longer there
+     */
+    private static int indexOfPersonInOffHeapModel(String[] exactPerson) {
+        if (exactPerson.length <= PERSON_DATA_INDEX_RECORD_LOCATOR) {
+            return -1;
+        }
+        final long locator = Long.parseLong(exactPerson[PERSON_DATA_INDEX_RECORD_LOCATOR]);
+        for (int i = 0; i < offHeapRecordCount; i++) {
+            // the slot may have been reused by another person since exactPerson was decoded
+            if (offHeapRecordTable[i] == locator && isSamePersonData(decodeOffHeapPerson(locator), exactPerson)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the positions of the records the given persons were decoded from, in a single pass over
+     * the off-heap model. Persons no longer in the off-heap model are skipped.
+     *
+     * @param exactPersons persons decoded from the off-heap model
+     * @return ascending positions of the records found
+     */
+    private static int[] getIndexesOfPersonsInOffHeapModel(ArrayList<String[]> exactPersons) {
+        final HashMap<Long, String[]> targetsByLocator = new HashMap<>();
+        for (String[] person : exactPersons) {
+            if (person.length > PERSON_DATA_INDEX_RECORD_LOCATOR) {
+                targetsByLocator.put(Long.parseLong(person[PERSON_DATA_INDEX_RECORD_LOCATOR]), person);
+            }
+        }
+        final int[] positions = new int[targetsByLocator.size()];
+        int found = 0;
+        for (int i = 0; i < offHeapRecordCount && found < positions.length; i++) {
+            final String[] target = targetsByLocator.get(offHeapRecordTable[i]);
+            // the slot may have been reused by another person since the target was decoded
+            if (target != null && isSamePersonData(decodeOffHeapPerson(offHeapRecordTable[i]), target)) {
+                positions[found++] = i;
+            }
+        }
+        return Arrays.copyOf(positions, found);
+    }
+
+    /**
+     * Moves every record of the off-heap model, in address book order, into new chunks without gaps between
+     * them, so that the memory held by free slots is released. Persons decoded from the model for the last
+     * shown listing are given the new locators of their records. Does not save to file.
+     */
+    private static void compactOffHeapModel() {
+        final HashMap<Long, String[]> listedPersonsByLocator = new HashMap<>();
+        for (String[] person : latestPersonListingView) {
+            if (person.length > PERSON_DATA_INDEX_RECORD_LOCATOR) {
+                listedPersonsByLocator.put(Long.parseLong(person[PERSON_DATA_INDEX_RECORD_LOCATOR]), person);
+            }
+        }
+        final ArrayList<ByteBuffer> oldChunks = new ArrayList<>(OFF_HEAP_CHUNKS);
+        OFF_HEAP_CHUNKS.clear();
+        Arrays.fill(OFF_HEAP_FREE_SLOT_COUNTS, 0);
+        offHeapBumpChunk = -1;
+        offHeapBumpOffset = 0;
+        for (int i = 0; i < offHeapRecordCount; i++) {
+            final long oldLocator = offHeapRecordTable[i];
+            final ByteBuffer slot = oldChunks.get(getOffHeapChunkIndex(oldLocator)).duplicate();
+            final int offset = getOffHeapOffset(oldLocator);
+            final int sizeClass = slot.getInt(offset + OFF_HEAP_HEADER_INDEX_SIZE_CLASS);
+            slot.limit(offset + (1 << sizeClass));
+            slot.position(offset);
+            final long newLocator = allocateOffHeapSlot(sizeClass);
+            final ByteBuffer newSlot = getOffHeapChunk(newLocator).duplicate();
+            newSlot.position(getOffHeapOffset(newLocator));
+            newSlot.put(slot);
+            offHeapRecordTable[i] = newLocator;
+            final String[] listedPerson = listedPersonsByLocator.get(oldLocator);
+            if (listedPerson != null) {
+                listedPerson[PERSON_DATA_INDEX_RECORD_LOCATOR] = Long.toString(newLocator);
+            }
+        }
+    }
+
+    /**
+     * Returns the total size of the free slots of the off-heap model.
+     */
+    private static long getOffHeapFreeBytes() {
+        long freeBytes = 0;
+        for (int sizeClass = 0; sizeClass < OFF_HEAP_FREE_SLOT_COUNTS.length; sizeClass++) {
+            freeBytes += (long) OFF_HEAP_FREE_SLOT_COUNTS[sizeClass] << sizeClass;
+        }
+        return freeBytes;
+    }
+
+    /**
+     * Removes all records from the off-heap model and releases the memory holding them. Does not save to file.
+     */
+    private static void clearOffHeapModel() {
+        OFF_HEAP_CHUNKS.clear();
+        closeTieredPageFile();
+        Arrays.fill(OFF_HEAP_FREE_SLOT_COUNTS, 0);
+        offHeapRecordCount = 0;
+        offHeapBumpChunk = -1;
+        offHeapBumpOffset = 0;
+    }
+
+    /**
+     * Decodes every record in the off-heap model, in address book order.
+     *
+     * @return list of decoded persons
+     */
+    private static ArrayList<String[]> decodeAllOffHeapPersons() {
+        final ArrayList<String[]> persons = new ArrayList<>(offHeapRecordCount);
+        for (int i = 0; i < offHeapRecordCount; i++) {
+            persons.add(decodeOffHeapPerson(offHeapRecordTable[i]));
+        }
+        return persons;
+    }
+
+    /**
+     * Decodes a person out of the off-heap record at the given locator.
+     * The decoded person remembers the locator so that it can be deleted later.
+     *
+     * @param locator of the record to decode
+     * @return decoded person
+     */
+    private static String[] decodeOffHeapPerson(long locator) {
+        final ByteBuffer chunk = getOffHeapChunk(locator);
+        final int offset = getOffHeapOffset(locator);
+        final int nameLength = chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_NAME_LENGTH);
+        final int phoneLength = chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_PHONE_LENGTH);
+        final int emailLength = chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_EMAIL_LENGTH);
+        final int nameStart = offset + OFF_HEAP_HEADER_SIZE;
+        final int phoneStart = nameStart + nameLength + OFF_HEAP_PHONE_SEPARATOR.length;
+        final int emailStart = phoneStart + phoneLength + OFF_HEAP_EMAIL_SEPARATOR.length;
+
+        final String[] person = Arrays.copyOf(makePersonFromData(
+                decodeOffHeapString(chunk, nameStart, nameLength),
+                decodeOffHeapString(chunk, phoneStart, phoneLength),
+                decodeOffHeapString(chunk, emailStart, emailLength)), PERSON_DATA_INDEX_RECORD_LOCATOR + 1);
+        person[PERSON_DATA_INDEX_RECORD_LOCATOR] = Long.toString(locator);
+        return person;
+    }
+
+    /**
+     * Decodes the UTF-8 bytes in the given range of a chunk into a string.
+     */
+    private static String decodeOffHeapString(ByteBuffer chunk, int start, int length) {
+        if (offHeapDecodeBuffer.length < length) {
+            offHeapDecodeBuffer = new byte[Math.max(length, offHeapDecodeBuffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            offHeapDecodeBuffer[i] = chunk.get(start + i);
+        }
+        return new String(offHeapDecodeBuffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Passes each person in the off-heap model whose name contains some of the specified keywords to the
+     * consumer, in address book order, as soon as it is found.
+     * Names are matched against the stored bytes directly; only matching persons are decoded.
+     *
+     * @param keywords for searching
+     * @param limit the search stops as soon as this many persons are found
+     * @param matchConsumer given each person found
+     * @return number of persons found
+     */
+    private static int forEachOffHeapPersonWithNameContainingAnyKeyword(Collection<String> keywords, boolean isFolded,
+                                                                        int limit, Consumer<String[]> matchConsumer) {
+        final byte[][] encodedKeywords = encodeKeywordsForOffHeapSearch(keywords);
+        int found = 0;
+        for (int i = 0; i < offHeapRecordCount && found < limit; i++) {
+            if (isAnyKeywordInOffHeapName(offHeapRecordTable[i], encodedKeywords, isFolded)) {
+                matchConsumer.accept(decodeOffHeapPerson(offHeapRecordTable[i]));
+                found++;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Counts the persons in the off-heap model whose names contain some of the specified keywords.
+     * Names are matched against the stored bytes directly, so no person is decoded.
+     */
+    private static int countOffHeapPersonsWithNameContainingAnyKeyword(Collection<String> keywords, boolean isFolded) {
+        final byte[][] encodedKeywords = encodeKeywordsForOffHeapSearch(keywords);
+        int count = 0;
+        for (int i = 0; i < offHeapRecordCount; i++) {
+            if (isAnyKeywordInOffHeapName(offHeapRecordTable[i], encodedKeywords, isFolded)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[][] encodeKeywordsForOffHeapSearch(Collection<String> keywords) {
+        final byte[][] encodedKeywords = new byte[keywords.size()][];
+        int keywordCount = 0;
+        for (String keyword : keywords) {
+            encodedKeywords[keywordCount++] = keyword.getBytes(StandardCharsets.UTF_8);
+        }
+        return encodedKeywords;
+    }
+
+    /**
+     * Returns true if any whitespace separated word in the name (or the folded name) of the given record
+     * equals one of the keywords.
+     */
+    private static boolean isAnyKeywordInOffHeapName(long locator, byte[][] encodedKeywords, boolean isFolded) {
+        final ByteBuffer chunk = getOffHeapChunk(locator);
+        final int offset = getOffHeapOffset(locator);
+        int wordStart = offset + OFF_HEAP_HEADER_SIZE;
+        int nameEnd = wordStart + chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_NAME_LENGTH);
+        if (isFolded) {
+            wordStart += getOffHeapLineLength(locator);
+            nameEnd = wordStart + chunk.getInt(offset + OFF_HEAP_HEADER_INDEX_FOLDED_NAME_LENGTH);
+        }
+
+        while (wordStart < nameEnd) {
+            if (isWhitespaceByte(chunk.get(wordStart))) {
+                wordStart++;
+                continue;
+            }
+            int wordEnd = wordStart;
+            while (wordEnd < nameEnd && !isWhitespaceByte(chunk.get(wordEnd))) {
+                wordEnd++;
+            }
+            for (byte[] keyword : encodedKeywords) {
+                if (isOffHeapRangeEqualTo(chunk, wordStart, wordEnd, keyword)) {
+                    return true;
+                }
+            }
+            wordStart = wordEnd;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the bytes of the chunk in [start, end) are the same as the given bytes.
+     */
+    private static boolean isOffHeapRangeEqualTo(ByteBuffer chunk, int start, int end, byte[] bytes) {
+        if (end - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (chunk.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the byte is one of the characters matched by the regex {@code \s}.
+     * Multi-byte UTF-8 sequences never contain such bytes, so this is safe to use on encoded text.
+     */
+    private static boolean isWhitespaceByte(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r';
+    }
+
+    /**
+     * Converts contents of a file directly into the off-heap model, one line at a time, so that
+     * the whole book never has to be held on the heap. Shows error messages and exits program
+     * if any errors in reading or decoding was encountered.
+     *
+     * @param filePath file to load from
+     */
+    private static void loadPersonsFromFileIntoOffHeapModel(String filePath) {
+        clearOffHeapModel();
+        clearStats();
+        if (isCompressedFilePath(filePath) || isSlottedFilePath(filePath)) {
+            forEachPersonInFile(filePath, AddressBook::appendLoadedPersonToOffHeapModel);
+        } else {
+            forEachLineOfUncompressedFileIntoOffHeapModel(filePath);
+        }
+        publishResetToFeed();
+    }
+
+    private static void appendLoadedPersonToOffHeapModel(String[] person) {
+        appendPersonToOffHeapModel(person);
+        addPersonToStats(person);
+    }
+
+    /**
+     * Reads the raw bytes of an uncompressed file and loads its lines into the off-heap model without decoding
+     * them into persons where possible (see {@link #appendStorageLineToOffHeapModel}). Lines are split the same
+     * way as {@link BufferedReader#readLine} splits them. Shows error messages and exits program if any errors
+     * in reading or decoding was encountered.
+     *
+     * @param filePath file to load from
+     */
+    private static void forEachLineOfUncompressedFileIntoOffHeapModel(String filePath) {
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            byte[] bytes = new byte[STORAGE_BUFFER_SIZE];
+            int bytesRead = 0;
+            int lineStart = 0;
+            boolean isEndOfFile = false;
+            while (lineStart < bytesRead || !isEndOfFile) {
+                int lineEnd = lineStart;
+                while (lineEnd < bytesRead && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r') {
+                    lineEnd++;
+                }
+                // a line is only complete once its separator is known, and "\r\n" is a single separator
+                final boolean isLineComplete = isEndOfFile
+                        || lineEnd + 1 < bytesRead
+                        || lineEnd < bytesRead && bytes[lineEnd] == '\n';
+                if (!isLineComplete) {
+                    bytesRead -= lineStart;
+                    System.arraycopy(bytes, lineStart, bytes, 0, bytesRead);
+                    lineStart = 0;
+                    if (bytesRead == bytes.length) {
+                        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    }
+                    final int count = file.read(ByteBuffer.wrap(bytes, bytesRead, bytes.length - bytesRead));
+                    isEndOfFile = count < 0;
+                    bytesRead += Math.max(count, 0);
+                    continue;
+                }
+                if (!appendStorageLineToOffHeapModel(bytes, lineStart, lineEnd)) {
+                    final String line = StandardCharsets.UTF_8.newDecoder()
+                            .decode(ByteBuffer.wrap(bytes, lineStart, lineEnd - lineStart)).toString();
+                    final Optional<String[]> decodedPerson = decodePersonFromString(line);
+                    if (!decodedPerson.isPresent()) {
+                        showToUser(MESSAGE_INVALID_STORAGE_FILE_CONTENT);
+                        exitProgram();
+                    }
+                    appendLoadedPersonToOffHeapModel(decodedPerson.get());
+                }
+                final boolean isCrLf = lineEnd + 1 < bytesRead && bytes[lineEnd] == '\r' && bytes[lineEnd + 1] == '\n';
+                lineStart = lineEnd + (isCrLf ? 2 : 1);
+            }
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
+            exitProgram();
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_READING_FROM_FILE, filePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Copies a storage line straight into a new record at the end of the off-heap model, if the line is plain
+     * ASCII in exactly the form the line of a record is saved in: {@code NAME p/PHONE e/EMAIL}, with a name of
+     * letters, digits, underscores and inner spaces, a phone of digits and an email with no spaces or slashes.
+     * Such a line decodes to itself, so it can be stored without being decoded into a person first.
+     *
+     * @param bytes holding the line, without its line separator
+     * @return false (without changing the model) if the line has to be decoded instead
+     */
+    private static boolean appendStorageLineToOffHeapModel(byte[] bytes, int lineStart, int lineEnd) {
+        int firstSlash = lineStart;
+        while (firstSlash < lineEnd && isStorageLineNameByte(bytes[firstSlash])) {
+            firstSlash++;
+        }
+        // the scan above runs through the phone prefix up to its slash, which must be the first one in the line
+        final int nameEnd = firstSlash - OFF_HEAP_PHONE_SEPARATOR.length + 1;
+        if (nameEnd <= lineStart || bytes[nameEnd - 1] == ' ' || bytes[lineStart] == ' '
+                || !isStorageLineSeparatorAt(bytes, nameEnd, lineEnd, OFF_HEAP_PHONE_SEPARATOR)) {
+            return false;
+        }
+        final int phoneStart = nameEnd + OFF_HEAP_PHONE_SEPARATOR.length;
+        int phoneEnd = phoneStart;
+        while (phoneEnd < lineEnd && isDigitChar((char) bytes[phoneEnd])) {
+            phoneEnd++;
+        }
+        if (phoneEnd == phoneStart || !isStorageLineSeparatorAt(bytes, phoneEnd, lineEnd, OFF_HEAP_EMAIL_SEPARATOR)) {
+            return false;
+        }
+        final int emailStart = phoneEnd + OFF_HEAP_EMAIL_SEPARATOR.length;
+        int firstAt = -1;
+        int lastAt = -1;
+        int lastDot = -1;
+        for (int i = emailStart; i < lineEnd; i++) {
+            if (bytes[i] <= ' ' || bytes[i] > '~' || bytes[i] == '/') {
+                return false;
+            }
+            if (bytes[i] == '@') {
+                firstAt = firstAt < 0 ? i : firstAt;
+                lastAt = i;
+            } else if (bytes[i] == '.') {
+                lastDot = i;
+            }
+        }
+        // same as matching the email regex: some text, '@', some text, '.', some text
+        if (firstAt <= emailStart || lastDot < firstAt + 2 || lastDot >= lineEnd - 1) {
+            return false;
+        }
+
+        final int lineLength = lineEnd - lineStart;
+        if (offHeapDecodeBuffer.length < lineLength) {
+            offHeapDecodeBuffer = new byte[Math.max(lineLength, offHeapDecodeBuffer.length * 2)];
+        }
+        int foldedNameLength = 0;
+        for (int i = lineStart; i < nameEnd; i++) {
+            if (bytes[i] != ' ' || bytes[i - 1] != ' ') {
+                offHeapDecodeBuffer[foldedNameLength++] = (byte) toLowerCaseForQuery((char) bytes[i]);
+            }
+        }
+        final int recordSize = OFF_HEAP_HEADER_SIZE + lineLength + foldedNameLength;
+        final int sizeClass = getOffHeapSizeClass(recordSize);
+        final long locator = allocateOffHeapSlot(sizeClass);
+        final ByteBuffer record = getOffHeapChunkForWriting(locator).duplicate();
+        record.position(getOffHeapOffset(locator));
+        record.putInt(sizeClass).putInt(nameEnd - lineStart).putInt(phoneEnd - phoneStart)
+                .putInt(lineEnd - emailStart).putInt(foldedNameLength);
+        record.put(bytes, lineStart, lineLength).put(offHeapDecodeBuffer, 0, foldedNameLength);
+        ensureOffHeapRecordTableCapacity(offHeapRecordCount + 1);
+        offHeapRecordTable[offHeapRecordCount++] = locator;
+
+        int surnameStart = nameEnd;
+        while (surnameStart > lineStart && bytes[surnameStart - 1] != ' ') {
+            surnameStart--;
+        }
+        int domainLength = 0;
+        for (int i = lastAt + 1; i < lineEnd; i++) {
+            offHeapDecodeBuffer[domainLength++] = (byte) toLowerCaseForQuery((char) bytes[i]);
+        }
+        addGroupsToStats(new String(offHeapDecodeBuffer, 0, domainLength, StandardCharsets.US_ASCII),
+                new String(bytes, surnameStart, nameEnd - surnameStart, StandardCharsets.US_ASCII));
+        return true;
+    }
+
+    /**
+     * Returns true if the byte may appear in a name that is stored without being decoded first.
+     * All such names are valid, and are the same once decoded.
+     */
+    private static boolean isStorageLineNameByte(byte b) {
+        return b >= 'a' && b <= 'z' || b >= 'A' && b <= 'Z' || isDigitChar((char) b) || b == '_' || b == ' ';
+    }
+
+    private static boolean isStorageLineSeparatorAt(byte[] bytes, int index, int lineEnd, byte[] separator) {
+        if (index + separator.length > lineEnd) {
+            return false;
+        }
+        for (int i = 0; i < separator.length; i++) {
+            if (bytes[index + i] != separator[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Saves all records of the off-heap model to the file, copying the stored bytes straight into
+     * the file without decoding them. Exits program if there is an error saving to file.
+     *
+     * @param filePath file for saving
+     */
+    private static void saveOffHeapPersonsToFile(String filePath) {
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+             WritableByteChannel channel = isCompressedFilePath(filePath)
+                     ? Channels.newChannel(makeCompressingStream(Channels.newOutputStream(file)))
+                     : file) {
+            writeOffHeapRecordsToChannel(channel, 0);
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, filePath));
+            exitProgram();
+        }
+    }
+
+    /**
+     * Writes the stored lines of the records from the given position onwards to the channel,
+     * each followed by a line separator.
+     */
+    private static void writeOffHeapRecordsToChannel(WritableByteChannel channel, int fromIndex) throws IOException {
+        final ByteBuffer pending = ByteBuffer.allocateDirect(OFF_HEAP_WRITE_BUFFER_SIZE);
+        final ByteBuffer[] chunkViews = new ByteBuffer[OFF_HEAP_CHUNKS.size()];
+        for (int i = fromIndex; i < offHeapRecordCount; i++) {
+            final long locator = offHeapRecordTable[i];
+            final int chunkIndex = getOffHeapChunkIndex(locator);
+            final ByteBuffer line;
+            if (isTieredBackend()) {
+                // a page leaves the cache once its frame is needed for another page, so no view of it is kept
+                line = getOffHeapChunk(locator).duplicate();
+            } else {
+                if (chunkViews[chunkIndex] == null) {
+                    chunkViews[chunkIndex] = OFF_HEAP_CHUNKS.get(chunkIndex).duplicate();
+                }
+                line = chunkViews[chunkIndex];
+            }
+            final int lineStart = getOffHeapOffset(locator) + OFF_HEAP_HEADER_SIZE;
+            final int lineLength = getOffHeapLineLength(locator);
+            line.clear().position(lineStart);
+            line.limit(lineStart + lineLength);
+            if (pending.remaining() < lineLength + LINE_SEPARATOR_BYTES.length) {
+                writeFullyToChannel(channel, pending);
+            }
+            if (pending.remaining() < lineLength + LINE_SEPARATOR_BYTES.length) {
+                // record is bigger than the write buffer; skip the buffer for this one
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            } else {
+                pending.put(line);
+            }
+            if (pending.remaining() < LINE_SEPARATOR_BYTES.length) {
+                writeFullyToChannel(channel, pending);
+            }
+            pending.put(LINE_SEPARATOR_BYTES);
+        }
+        writeFullyToChannel(channel, pending);
+    }
+
+    /**
+     * Writes out everything put into the buffer so far, then empties the buffer for reuse.
+     */
+    private static void writeFullyToChannel(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Returns the smallest size class whose slots can fit a record of the given size.
+     * A slot of size class n is 2^n bytes big.
+     */
+    private static int getOffHeapSizeClass(int recordSize) {
+        final int sizeClass = Integer.SIZE - Integer.numberOfLeadingZeros(recordSize - 1);
+        if (sizeClass > OFF_HEAP_MAX_SIZE_CLASS) {
+            throw new IllegalArgumentException("Record too large for off-heap model: " + recordSize + " bytes");
+        }
+        return Math.max(sizeClass, OFF_HEAP_MIN_SIZE_CLASS);
+    }
+
+    /**
+     * Reserves a slot of the given size class, reusing the slot of a deleted record if one is free.
+     *
+     * @return locator of the reserved slot
+     */
+    private static long allocateOffHeapSlot(int sizeClass) {
+        if (OFF_HEAP_FREE_SLOT_COUNTS[sizeClass] > 0) {
+            return OFF_HEAP_FREE_SLOTS[sizeClass][--OFF_HEAP_FREE_SLOT_COUNTS[sizeClass]];
+        }
+        final int slotSize = 1 << sizeClass;
+        final int chunkSize = isTieredBackend() ? TIERED_PAGE_SIZE : OFF_HEAP_CHUNK_SIZE;
+        if (slotSize > chunkSize) {
+            // an oversized record gets a chunk of its own
+            return makeOffHeapLocator(addOffHeapChunk(slotSize), 0);
+        }
+        if (offHeapBumpChunk < 0 || offHeapBumpOffset + slotSize > chunkSize) {
+            offHeapBumpChunk = addOffHeapChunk(chunkSize);
+            offHeapBumpOffset = 0;
+        }
+        final long locator = makeOffHeapLocator(offHeapBumpChunk, offHeapBumpOffset);
+        offHeapBumpOffset += slotSize;
+        return locator;
+    }
+
+    /**
+     * Returns the slot at the given locator to the free list of its size class.
+     */
+    private static void freeOffHeapSlot(long locator) {
+        final int sizeClass = getOffHeapChunk(locator).getInt(getOffHeapOffset(locator)
+                + OFF_HEAP_HEADER_INDEX_SIZE_CLASS);
+        if (OFF_HEAP_FREE_SLOTS[sizeClass] == null) {
+            OFF_HEAP_FREE_SLOTS[sizeClass] = new long[16];
+        } else if (OFF_HEAP_FREE_SLOT_COUNTS[sizeClass] == OFF_HEAP_FREE_SLOTS[sizeClass].length) {
+            OFF_HEAP_FREE_SLOTS[sizeClass] = Arrays.copyOf(OFF_HEAP_FREE_SLOTS[sizeClass],
+                    OFF_HEAP_FREE_SLOTS[sizeClass].length * 2);
+        }
+        OFF_HEAP_FREE_SLOTS[sizeClass][OFF_HEAP_FREE_SLOT_COUNTS[sizeClass]++] = locator;
+    }
+
+    private static long makeOffHeapLocator(int chunkIndex, int offset) {
+        return ((long) chunkIndex << Integer.SIZE) | offset;
+    }
+
+    private static int getOffHeapChunkIndex(long locator) {
+        return (int) (locator >>> Integer.SIZE);
+    }
+
+    private static int getOffHeapOffset(long locator) {
+        return (int) locator;
+    }
+
+    /**
+     * Adds an empty chunk of the given size to the off-heap model: a direct buffer, or a page in the page file
+     * for the tiered backend.
+     *
+     * @return index of the new chunk
+     */
+    private static int addOffHeapChunk(int size) {
+        if (isTieredBackend()) {
+            return addTieredPage(size);
+        }
+        OFF_HEAP_CHUNKS.add(ByteBuffer.allocateDirect(size));
+        return OFF_HEAP_CHUNKS.size() - 1;
+    }
+
+    /**
+     * Returns the chunk holding the record at the given locator, for reading. For the tiered backend, the
+     * chunk is a page in the page cache, which is only valid until another page is read.
+     */
+    private static ByteBuffer getOffHeapChunk(long locator) {
+        if (isTieredBackend()) {
+            return getTieredPage(getOffHeapChunkIndex(locator), false);
+        }
+        return OFF_HEAP_CHUNKS.get(getOffHeapChunkIndex(locator));
+    }
+
+    /**
+     * Returns the chunk holding the record at the given locator, for changing the record.
+     * For the tiered backend, the page is written back to the page file before it leaves the cache.
+     */
+    private static ByteBuffer getOffHeapChunkForWriting(long locator) {
+        if (isTieredBackend()) {
+            return getTieredPage(getOffHeapChunkIndex(locator), true);
+        }
+        return OFF_HEAP_CHUNKS.get(getOffHeapChunkIndex(locator));
+    }
+
+
+    /*
+     * ================================================================================
+     *        TIERED ADDRESS BOOK DATA METHODS
+     * ================================================================================
+     */
+
+    /**
+     * Returns true if the model keeps person records in a page file, with only a bounded page cache in memory.
      */
+    private static boolean isTieredBackend() {
+        return MODEL_BACKEND.equals(MODEL_BACKEND_TIERED);
+    }
 
     /**
-     * Creates storage file if it does not exist. Shows feedback to user.
+     * Adds a page of the given size at the end of the page file of the model in use, creating the file if the
+     * model has none yet. The new page is put in the page cache, to be written to the file when it leaves it.
      *
-     * @param filePath file to create if not present
+     * @return index of the new page
      */
-    private static void createFileIfMissing(String filePath) {
-        final File storageFile = new File(filePath);
-        if (storageFile.exists()) {
-            return;
+    private static int addTieredPage(int size) {
+        if (tieredPageFile == null) {
+            tieredPageFile = openTieredPageFile();
         }
-
-        showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
-
-        try {
-            storageFile.createNewFile();
-            showToUser(String.format(MESSAGE_STORAGE_FILE_CREATED, filePath));
-        } catch (IOException ioe) {
-            showToUser(String.format(MESSAGE_ERROR_CREATING_STORAGE_FILE, filePath));
-            exitProgram();
+        final int page = getTieredPageCount();
+        long[] offsets = (long[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS];
+        int[] sizes = (int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES];
+        int[] frames = (int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES];
+        if (page == offsets.length) {
+            offsets = Arrays.copyOf(offsets, page * 2);
+            sizes = Arrays.copyOf(sizes, page * 2);
+            frames = Arrays.copyOf(frames, page * 2);
+            tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS] = offsets;
+            tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES] = sizes;
+            tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES] = frames;
         }
+        offsets[page] = page == 0 ? 0 : offsets[page - 1] + sizes[page - 1];
+        sizes[page] = size;
+        tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_COUNT] = page + 1;
+        final int frame = takeTieredFrame(size);
+        frames[page] = frame;
+        TIERED_FRAME_PAGES[frame] = page;
+        TIERED_FRAME_DIRTY[frame] = true;
+        return page;
     }
 
     /**
-     * Converts contents of a file into a list of persons.
-     * Shows error messages and exits program if any errors in reading or decoding was encountered.
+     * Returns the given page of the model in use from the page cache, first reading it from the page file
+     * into a frame if it is not in the cache. The returned buffer is only valid until the next page is read.
      *
-     * @param filePath file to load from
-     * @return the list of decoded persons
+     * @param isWriting true if the page is going to be changed
      */
-    private static ArrayList<String[]> loadPersonsFromFile(String filePath) {
-        final Optional<ArrayList<String[]>> successfullyDecoded = decodePersonsFromStrings(getLinesInFile(filePath));
-        if (!successfullyDecoded.isPresent()) {
-            showToUser(MESSAGE_INVALID_STORAGE_FILE_CONTENT);
-            exitProgram();
+    private static ByteBuffer getTieredPage(int page, boolean isWriting) {
+        final int[] frames = (int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES];
+        int frame = frames[page];
+        if (frame >= 0) {
+            tieredCacheHits++;
+        } else {
+            tieredCacheMisses++;
+            final int size = ((int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES])[page];
+            frame = takeTieredFrame(size);
+            final ByteBuffer buffer = TIERED_FRAME_BUFFERS[frame].duplicate();
+            buffer.limit(size);
+            readFullyFromPageFile(buffer, ((long[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS])[page]);
+            frames[page] = frame;
+            TIERED_FRAME_PAGES[frame] = page;
         }
-        return successfullyDecoded.get();
+        TIERED_FRAME_REFERENCED[frame] = true;
+        TIERED_FRAME_DIRTY[frame] |= isWriting;
+        return TIERED_FRAME_BUFFERS[frame];
     }
 
     /**
-     * Gets all lines in the specified file as a list of strings. Line separators are removed.
-     * Shows error messages and exits program if unable to read from file.
+     * Returns a frame of the page cache able to hold a page of the given size, for a page that is not in the
+     * cache. Uses a frame that was never used if there is one; otherwise the CLOCK hand picks the page to evict,
+     * which is written back to the page file first if it was changed.
      */
-    private static ArrayList<String> getLinesInFile(String filePath) {
-        ArrayList<String> lines = null;
-        try {
-            lines = new ArrayList(Files.readAllLines(Paths.get(filePath)));
-        } catch (FileNotFoundException fnfe) {
-            showToUser(String.format(MESSAGE_ERROR_MISSING_STORAGE_FILE, filePath));
-            exitProgram();
-        } catch (IOException ioe) {
-            showToUser(String.format(MESSAGE_ERROR_READING_FROM_FILE, filePath));
-            exitProgram();
+    private static int takeTieredFrame(int pageSize) {
+        final int frame;
+        if (tieredFramesInUse < TIERED_CACHE_FRAME_COUNT) {
+            frame = tieredFramesInUse++;
+        } else {
+            while (TIERED_FRAME_REFERENCED[tieredClockHand]) {
+                TIERED_FRAME_REFERENCED[tieredClockHand] = false;
+                tieredClockHand = (tieredClockHand + 1) % TIERED_CACHE_FRAME_COUNT;
+            }
+            frame = tieredClockHand;
+            tieredClockHand = (tieredClockHand + 1) % TIERED_CACHE_FRAME_COUNT;
+            evictTieredFrame(frame);
         }
-        return lines;
+        if (TIERED_FRAME_BUFFERS[frame] == null || TIERED_FRAME_BUFFERS[frame].capacity() < pageSize) {
+            TIERED_FRAME_BUFFERS[frame] = ByteBuffer.allocateDirect(Math.max(pageSize, TIERED_PAGE_SIZE));
+        }
+        TIERED_FRAME_REFERENCED[frame] = false;
+        TIERED_FRAME_DIRTY[frame] = false;
+        return frame;
     }
 
     /**
-     * Saves all data to the file.
-     * Exits program if there is an error saving to file.
-     *
-     * @param filePath file for saving
+     * Takes the page in the given frame out of the page cache, writing it back to the page file if it was changed.
      */
-    private static void savePersonsToFile(ArrayList<String[]> persons, String filePath) {
-        final ArrayList<String> linesToWrite = encodePersonsToStrings(persons);
-        try {
-            Files.write(Paths.get(storageFilePath), linesToWrite);
-        } catch (IOException ioe) {
-            showToUser(String.format(MESSAGE_ERROR_WRITING_TO_FILE, filePath));
-            exitProgram();
+    private static void evictTieredFrame(int frame) {
+        final int page = TIERED_FRAME_PAGES[frame];
+        if (TIERED_FRAME_DIRTY[frame]) {
+            final ByteBuffer buffer = TIERED_FRAME_BUFFERS[frame].duplicate();
+            buffer.limit(((int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES])[page]);
+            writeFullyToPageFile(buffer, ((long[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS])[page]);
+            tieredCacheWriteBacks++;
         }
+        ((int[]) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES])[page] = -1;
+        tieredCacheEvictions++;
     }
 
-
-    /*
-     * ================================================================================
-     *        INTERNAL ADDRESS BOOK DATA METHODS
-     * ================================================================================
+    /**
+     * Writes every changed page in the page cache back to the page file of the model in use and empties the
+     * cache, so that the model can be moved out of the model variables.
      */
+    private static void evictAllTieredFrames() {
+        for (int frame = 0; frame < tieredFramesInUse; frame++) {
+            evictTieredFrame(frame);
+        }
+        tieredFramesInUse = 0;
+        tieredClockHand = 0;
+    }
 
     /**
-     * Adds a person to the address book. Saves changes to storage file.
-     *
-     * @param person to add
+     * Returns the number of pages in the page file of the model in use.
      */
-    private static void addPersonToAddressBook(String[] person) {
-        ALL_PERSONS.add(person);
-        savePersonsToFile(getAllPersonsInAddressBook(), storageFilePath);
+    private static int getTieredPageCount() {
+        return tieredPageFile == null ? 0 : (Integer) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_COUNT];
     }
 
     /**
-     * Deletes a person from the address book, target is identified by it's absolute index in the full list.
-     * Saves changes to storage file.
+     * Creates an empty page file in the temporary-file directory. The file is deleted when it is closed, or
+     * when the program exits. Exits program if the file cannot be created.
      *
-     * @param index absolute index of person to delete (index within {@link #ALL_PERSONS})
+     * @return the page file, as an Object array (see the TIERED_PAGE_FILE constants)
      */
-    private static void deletePersonFromAddressBook(int index) {
-        ALL_PERSONS.remove(index);
-        savePersonsToFile(getAllPersonsInAddressBook(), storageFilePath);
+    private static Object[] openTieredPageFile() {
+        final Object[] pageFile = new Object[TIERED_PAGE_FILE_DATA_COUNT];
+        Path path = null;
+        try {
+            path = Files.createTempFile(TIERED_PAGE_FILE_PREFIX, TIERED_PAGE_FILE_SUFFIX);
+            path.toFile().deleteOnExit();
+            pageFile[TIERED_PAGE_FILE_DATA_INDEX_CHANNEL] = FileChannel.open(path, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_USING_PAGE_FILE, path));
+            exitProgram();
+        }
+        pageFile[TIERED_PAGE_FILE_DATA_INDEX_PATH] = path;
+        pageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_OFFSETS] = new long[16];
+        pageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_SIZES] = new int[16];
+        pageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_FRAMES] = new int[16];
+        pageFile[TIERED_PAGE_FILE_DATA_INDEX_PAGE_COUNT] = 0;
+        return pageFile;
     }
 
     /**
-     * Deletes the specified person from the addressbook if it is inside. Saves any changes to storage file.
-     *
-     * @param exactPerson the actual person inside the address book (exactPerson == the person to delete in the full list)
-     * @return true if the given person was found and deleted in the model
+     * Drops the page file of the model in use, together with the pages of it in the page cache.
      */
-    private static boolean deletePersonFromAddressBook(String[] exactPerson) {
-        final boolean changed = ALL_PERSONS.remove(exactPerson);
-        if (changed) {
-            savePersonsToFile(getAllPersonsInAddressBook(), storageFilePath);
+    private static void closeTieredPageFile() {
+        if (tieredPageFile == null) {
+            return;
         }
-        return changed;
+        tieredFramesInUse = 0;
+        tieredClockHand = 0;
+        closePageFile(tieredPageFile);
+        tieredPageFile = null;
     }
 
     /**
-     * @return unmodifiable list view of all persons in the address book
+     * Closes the page file of a model that is not in use, if it has one, deleting the file.
      */
-    private static ArrayList<String[]> getAllPersonsInAddressBook() {
-        return ALL_PERSONS;
+    private static void closePageFileOfModel(Object[] model) {
+        if (model[MODEL_DATA_INDEX_TIERED_PAGE_FILE] != null) {
+            closePageFile((Object[]) model[MODEL_DATA_INDEX_TIERED_PAGE_FILE]);
+        }
+    }
+
+    private static void closePageFile(Object[] pageFile) {
+        try {
+            ((FileChannel) pageFile[TIERED_PAGE_FILE_DATA_INDEX_CHANNEL]).close();
+        } catch (IOException ioe) {
+            // the file is deleted on exit all the same
+        }
     }
 
     /**
-     * Clears all persons in the address book and saves changes to file.
+     * Fills the buffer from the page file of the model in use, starting at the given position in the file.
+     * Exits program if there is an error reading the file.
      */
-    private static void clearAddressBook() {
-        ALL_PERSONS.clear();
-        savePersonsToFile(getAllPersonsInAddressBook(), storageFilePath);
+    private static void readFullyFromPageFile(ByteBuffer buffer, long position) {
+        final FileChannel channel = (FileChannel) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_CHANNEL];
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Page beyond the end of the page file");
+                }
+            }
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_USING_PAGE_FILE, tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PATH]));
+            exitProgram();
+        }
     }
 
     /**
-     * Resets the internal model with the given data. Does not save to file.
-     *
-     * @param persons list of persons to initialise the model with
+     * Writes the buffer to the page file of the model in use, starting at the given position in the file.
+     * Exits program if there is an error writing the file.
      */
-    private static void initialiseAddressBookModel(ArrayList<String[]> persons) {
-        ALL_PERSONS.clear();
-        ALL_PERSONS.addAll(persons);
+    private static void writeFullyToPageFile(ByteBuffer buffer, long position) {
+        final FileChannel channel = (FileChannel) tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_CHANNEL];
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, position + buffer.position());
+            }
+        } catch (IOException ioe) {
+            showToUser(String.format(MESSAGE_ERROR_USING_PAGE_FILE, tieredPageFile[TIERED_PAGE_FILE_DATA_INDEX_PATH]));
+            exitProgram();
+        }
     }
 
 
@@ -822,6 +8029,19 @@ public class AddressBook {
      * ===========================================
      */
 
+    /**
+     * @param person whose surname you want
+     * @return last word of the person's name
+     */
+    private static String getSurnameFromPerson(String[] person) {
+        final String name = getNameFromPerson(person).trim();
+        int surnameStart = name.length();
+        while (surnameStart > 0 && !Character.isWhitespace(name.charAt(surnameStart - 1))) {
+            surnameStart--;
+        }
+        return name.substring(surnameStart);
+    }
+
     /**
      * @param person whose name you want
      * @return person's name
@@ -846,6 +8066,76 @@ public class AddressBook {
         return person[PERSON_DATA_INDEX_EMAIL];
     }
 
+    /**
+     * Returns true if the given string is exactly how the person is encoded in the storage file.
+     * Does the comparison without building the encoded string.
+     */
+    private static boolean isPersonEncodedAs(String[] person, String encodedPerson) {
+        final String name = getNameFromPerson(person);
+        final String phone = getPhoneFromPerson(person);
+        final String email = getEmailFromPerson(person);
+        final int phoneSeparatorStart = name.length();
+        final int phoneStart = phoneSeparatorStart + PERSON_STRING_PHONE_SEPARATOR.length();
+        final int emailSeparatorStart = phoneStart + phone.length();
+        final int emailStart = emailSeparatorStart + PERSON_STRING_EMAIL_SEPARATOR.length();
+        return encodedPerson.length() == emailStart + email.length()
+                && encodedPerson.startsWith(name)
+                && encodedPerson.startsWith(PERSON_STRING_PHONE_SEPARATOR, phoneSeparatorStart)
+                && encodedPerson.startsWith(phone, phoneStart)
+                && encodedPerson.startsWith(PERSON_STRING_EMAIL_SEPARATOR, emailSeparatorStart)
+                && encodedPerson.startsWith(email, emailStart);
+    }
+
+    /**
+     * Returns the person's name folded for case and accent insensitive search (see {@link #foldForSearch(String)}).
+     * Heap model persons already have it; it is computed for the others.
+     */
+    private static String getFoldedNameFromPerson(String[] person) {
+        return person.length > PERSON_DATA_INDEX_FOLDED_NAME ? person[PERSON_DATA_INDEX_FOLDED_NAME]
+                                                             : foldForSearch(getNameFromPerson(person));
+    }
+
+    /**
+     * Returns the person with its folded name filled in, as kept in the heap model.
+     * The same array is returned if the folded name is already there.
+     */
+    private static String[] withFoldedName(String[] person) {
+        if (person.length > PERSON_DATA_INDEX_FOLDED_NAME) {
+            return person;
+        }
+        final String[] personWithFoldedName = Arrays.copyOf(person, PERSON_DATA_INDEX_FOLDED_NAME + 1);
+        personWithFoldedName[PERSON_DATA_INDEX_FOLDED_NAME] = foldForSearch(getNameFromPerson(person));
+        return personWithFoldedName;
+    }
+
+    /**
+     * Returns the number of UTF-8 bytes in the storage file line of the given person, not counting the
+     * line separator. Does the counting without building the encoded string.
+     */
+    private static int getEncodedPersonLength(String[] person) {
+        return getUtf8Length(getNameFromPerson(person)) + PERSON_STRING_PHONE_SEPARATOR.length()
+                + getUtf8Length(getPhoneFromPerson(person)) + PERSON_STRING_EMAIL_SEPARATOR.length()
+                + getUtf8Length(getEmailFromPerson(person));
+    }
+
+    /**
+     * Wraps a single person in a list of persons.
+     */
+    private static ArrayList<String[]> asPersonList(String[] person) {
+        final ArrayList<String[]> persons = new ArrayList<>(1);
+        persons.add(person);
+        return persons;
+    }
+
+    /**
+     * Returns true if both persons have the same name, phone and email.
+     */
+    private static boolean isSamePersonData(String[] person, String[] other) {
+        return getNameFromPerson(person).equals(getNameFromPerson(other))
+                && getPhoneFromPerson(person).equals(getPhoneFromPerson(other))
+                && getEmailFromPerson(person).equals(getEmailFromPerson(other));
+    }
+
     /**
      * Create a person for use in the internal data.
      *
@@ -873,20 +8163,6 @@ public class AddressBook {
                 getNameFromPerson(person), getPhoneFromPerson(person), getEmailFromPerson(person));
     }
 
-    /**
-     * Encodes list of persons into list of decodable and readable string representations.
-     *
-     * @param persons to be encoded
-     * @return encoded strings
-     */
-    private static ArrayList<String> encodePersonsToStrings(ArrayList<String[]> persons) {
-        final ArrayList<String> encoded = new ArrayList<>();
-        for (String[] person : persons) {
-            encoded.add(encodePersonToString(person));
-        }
-        return encoded;
-    }
-
     /*
      * ==============NOTE TO STUDENTS======================================
      * Note the use of Java's new 'Optional' feature to indicate that
@@ -1035,7 +8311,7 @@ public class AddressBook {
      * @return whether arg is a valid person name
      */
     private static boolean isPersonNameValid(String name) {
-        return name.matches("(\\w|\\s)+");  // name is nonempty mixture of alphabets and whitespace
+        return name.matches("[\\w\\p{L}\\p{M}\\s]+");  // nonempty mixture of (accented) alphabets and whitespace
         //TODO: implement a more permissive validation
     }
 
@@ -1074,9 +8350,20 @@ public class AddressBook {
     private static String getUsageInfoForAllCommands() {
         return getUsageInfoForAddCommand() + LS
                 + getUsageInfoForFindCommand() + LS
+                + getUsageInfoForCountCommand() + LS
                 + getUsageInfoForViewCommand() + LS
                 + getUsageInfoForDeleteCommand() + LS
+                + getUsageInfoForEditCommand() + LS
                 + getUsageInfoForClearCommand() + LS
+                + getUsageInfoForUndoCommand() + LS
+                + getUsageInfoForRedoCommand() + LS
+                + getUsageInfoForOpenCommand() + LS
+                + getUsageInfoForUseCommand() + LS
+                + getUsageInfoForStatsCommand() + LS
+                + getUsageInfoForDedupeCommand() + LS
+                + getUsageInfoForPromoteCommand() + LS
+                + getUsageInfoForWatchCommand() + LS
+                + getUsageInfoForMaintenanceCommand() + LS
                 + getUsageInfoForExitCommand() + LS
                 + getUsageInfoForHelpCommand();
     }
@@ -1103,6 +8390,92 @@ public class AddressBook {
                 + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_FIND_EXAMPLE) + LS;
     }
 
+    /**
+     * Builds string for showing 'open' command usage instruction
+     *
+     * @return  'open' command usage instruction
+     */
+    private static String getUsageInfoForOpenCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_OPEN_WORD, COMMAND_OPEN_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_OPEN_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_OPEN_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'use' command usage instruction
+     *
+     * @return  'use' command usage instruction
+     */
+    private static String getUsageInfoForUseCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_USE_WORD, COMMAND_USE_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_USE_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_USE_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'promote' command usage instruction
+     *
+     * @return  'promote' command usage instruction
+     */
+    private static String getUsageInfoForPromoteCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_PROMOTE_WORD, COMMAND_PROMOTE_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_PROMOTE_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'stats' command usage instruction
+     *
+     * @return  'stats' command usage instruction
+     */
+    private static String getUsageInfoForStatsCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_STATS_WORD, COMMAND_STATS_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_STATS_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_STATS_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'dedupe' command usage instruction
+     *
+     * @return  'dedupe' command usage instruction
+     */
+    private static String getUsageInfoForDedupeCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_DEDUPE_WORD, COMMAND_DEDUPE_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_DEDUPE_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_DEDUPE_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'watch' command usage instruction
+     *
+     * @return  'watch' command usage instruction
+     */
+    private static String getUsageInfoForWatchCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_WATCH_WORD, COMMAND_WATCH_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_WATCH_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'maintenance' command usage instruction
+     *
+     * @return  'maintenance' command usage instruction
+     */
+    private static String getUsageInfoForMaintenanceCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_MAINTENANCE_WORD, COMMAND_MAINTENANCE_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_MAINTENANCE_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_MAINTENANCE_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'count' command usage instruction
+     *
+     * @return  'count' command usage instruction
+     */
+    private static String getUsageInfoForCountCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_COUNT_WORD, COMMAND_COUNT_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_COUNT_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_COUNT_EXAMPLE) + LS;
+    }
+
     /**
      * Builds string for showing 'delete' command usage instruction
      *
@@ -1114,6 +8487,17 @@ public class AddressBook {
                 + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_DELETE_EXAMPLE) + LS;
     }
 
+    /**
+     * Builds string for showing 'edit' command usage instruction
+     *
+     * @return  'edit' command usage instruction
+     */
+    private static String getUsageInfoForEditCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_EDIT_WORD, COMMAND_EDIT_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_EDIT_PARAMETERS) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_EDIT_EXAMPLE) + LS;
+    }
+
     /**
      * Builds string for showing 'clear' command usage instruction
      *
@@ -1124,6 +8508,26 @@ public class AddressBook {
                 + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_CLEAR_EXAMPLE) + LS;
     }
 
+    /**
+     * Builds string for showing 'undo' command usage instruction
+     *
+     * @return  'undo' command usage instruction
+     */
+    private static String getUsageInfoForUndoCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_UNDO_WORD, COMMAND_UNDO_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_UNDO_EXAMPLE) + LS;
+    }
+
+    /**
+     * Builds string for showing 'redo' command usage instruction
+     *
+     * @return  'redo' command usage instruction
+     */
+    private static String getUsageInfoForRedoCommand() {
+        return String.format(MESSAGE_COMMAND_HELP, COMMAND_REDO_WORD, COMMAND_REDO_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_REDO_EXAMPLE) + LS;
+    }
+
     /**
      * Builds string for showing 'view' command usage instruction
      *
@@ -1131,6 +8535,7 @@ public class AddressBook {
      */
     private static String getUsageInfoForViewCommand() {
         return String.format(MESSAGE_COMMAND_HELP, COMMAND_LIST_WORD, COMMAND_LIST_DESC) + LS
+                + String.format(MESSAGE_COMMAND_HELP_PARAMETERS, COMMAND_LIST_PARAMETERS) + LS
                 + String.format(MESSAGE_COMMAND_HELP_EXAMPLE, COMMAND_LIST_EXAMPLE) + LS;
     }
 
@@ -1173,14 +8578,230 @@ public class AddressBook {
         return s.replace(sign, "");
     }
 
+
+    /**
+     * Folds text for case and accent insensitive comparison: accents are stripped, letters are lower-cased
+     * (after upper-casing, so that e.g. the German sharp s folds like 'SS') and whitespace runs become
+     * single spaces.
+     */
+    private static String foldForSearch(String text) {
+        if (isAscii(text)) { // the common case; skips the costly normalisation and regexes
+            return foldAsciiForSearch(text);
+        }
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        final String withoutAccents = COMBINING_MARKS.matcher(decomposed).replaceAll("");
+        final String caseFolded = withoutAccents.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+        return WHITESPACE.matcher(caseFolded.trim()).replaceAll(" ");
+    }
+
+    /**
+     * Does the same as {@link #foldForSearch(String)} for text made up of ASCII characters only.
+     */
+    private static String foldAsciiForSearch(String text) {
+        final StringBuilder folded = new StringBuilder(text.length());
+        boolean isAfterWhitespace = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (isWhitespaceChar(c)) {
+                isAfterWhitespace = true;
+                continue;
+            }
+            if (isAfterWhitespace && folded.length() > 0) {
+                folded.append(' ');
+            }
+            isAfterWhitespace = false;
+            folded.append(c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * Returns the fewest edits that turn the text into the other text, where an edit inserts, deletes or
+     * replaces a character, or swaps two adjacent characters (and no character is edited twice).
+     * Stops computing as soon as the distance is known to be more than maxDistance.
+     *
+     * @return the edit distance, or maxDistance + 1 if it is more than maxDistance
+     */
+    private static int getEditDistance(String text, String otherText, int maxDistance) {
+        if (Math.abs(text.length() - otherText.length()) > maxDistance) {
+            return maxDistance + 1;
+        }
+        // distances between prefixes of text (one row per prefix length) and of otherText (one column each)
+        int[] rowBeforePrevious = new int[otherText.length() + 1];
+        int[] previousRow = new int[otherText.length() + 1];
+        int[] row = new int[otherText.length() + 1];
+        for (int j = 0; j <= otherText.length(); j++) {
+            previousRow[j] = j;
+        }
+        for (int i = 1; i <= text.length(); i++) {
+            row[0] = i;
+            int rowMinimum = i;
+            for (int j = 1; j <= otherText.length(); j++) {
+                final int replaceCost = text.charAt(i - 1) == otherText.charAt(j - 1) ? 0 : 1;
+                row[j] = Math.min(previousRow[j - 1] + replaceCost, Math.min(previousRow[j], row[j - 1]) + 1);
+                if (i > 1 && j > 1 && text.charAt(i - 1) == otherText.charAt(j - 2)
+                        && text.charAt(i - 2) == otherText.charAt(j - 1)) {
+                    row[j] = Math.min(row[j], rowBeforePrevious[j - 2] + 1);
+                }
+                rowMinimum = Math.min(rowMinimum, row[j]);
+            }
+            if (rowMinimum > maxDistance) {
+                return maxDistance + 1;
+            }
+            final int[] reusedRow = rowBeforePrevious;
+            rowBeforePrevious = previousRow;
+            previousRow = row;
+            row = reusedRow;
+        }
+        return Math.min(previousRow[otherText.length()], maxDistance + 1);
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if any whitespace separated word in the text equals one of the keywords.
+     * Does the comparison without splitting the text into new strings.
+     */
+    private static boolean isAnyKeywordAWordIn(String text, Collection<String> keywords) {
+        int wordStart = 0;
+        while (wordStart < text.length()) {
+            if (isWhitespaceChar(text.charAt(wordStart))) {
+                wordStart++;
+                continue;
+            }
+            int wordEnd = wordStart;
+            while (wordEnd < text.length() && !isWhitespaceChar(text.charAt(wordEnd))) {
+                wordEnd++;
+            }
+            for (String keyword : keywords) {
+                if (keyword.length() == wordEnd - wordStart && text.startsWith(keyword, wordStart)) {
+                    return true;
+                }
+            }
+            wordStart = wordEnd;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if any whitespace separated word in the text matches the pattern (as in
+     * {@link #isWildcardMatch(String, int, int, String, boolean)}, case sensitively).
+     */
+    private static boolean isAnyWordInTextMatchedBy(String text, String pattern) {
+        int wordStart = 0;
+        while (wordStart < text.length()) {
+            if (isWhitespaceChar(text.charAt(wordStart))) {
+                wordStart++;
+                continue;
+            }
+            int wordEnd = wordStart;
+            while (wordEnd < text.length() && !isWhitespaceChar(text.charAt(wordEnd))) {
+                wordEnd++;
+            }
+            if (isWildcardMatch(text, wordStart, wordEnd, pattern, false)) {
+                return true;
+            }
+            wordStart = wordEnd;
+        }
+        return false;
+    }
+
     /**
-     * Splits a source string into the list of substrings that were separated by whitespace.
+     * Returns true if the characters of the text in [start, end) match the whole pattern, where
+     * {@link #COMMAND_FIND_QUERY_WILDCARD} in the pattern matches any run of characters (even an empty one).
+     * Does the matching without copying the text.
      *
-     * @param toSplit source string
-     * @return split by whitespace
+     * @param isIgnoringCase if true, characters are compared as in {@link #toLowerCaseForQuery(String)}
+     */
+    private static boolean isWildcardMatch(String text, int start, int end, String pattern, boolean isIgnoringCase) {
+        int textPosition = start;
+        int patternPosition = 0;
+        int lastWildcard = -1;
+        int textPositionAtLastWildcard = start;
+        while (textPosition < end) {
+            if (patternPosition < pattern.length() && pattern.charAt(patternPosition) == COMMAND_FIND_QUERY_WILDCARD) {
+                lastWildcard = patternPosition++;
+                textPositionAtLastWildcard = textPosition;
+            } else if (patternPosition < pattern.length()
+                    && isSameCharForQuery(text.charAt(textPosition), pattern.charAt(patternPosition), isIgnoringCase)) {
+                textPosition++;
+                patternPosition++;
+            } else if (lastWildcard >= 0) { // let the last wildcard match one more character, and retry
+                patternPosition = lastWildcard + 1;
+                textPosition = ++textPositionAtLastWildcard;
+            } else {
+                return false;
+            }
+        }
+        while (patternPosition < pattern.length() && pattern.charAt(patternPosition) == COMMAND_FIND_QUERY_WILDCARD) {
+            patternPosition++;
+        }
+        return patternPosition == pattern.length();
+    }
+
+    private static boolean isSameCharForQuery(char c, char other, boolean isIgnoringCase) {
+        return c == other || (isIgnoringCase && toLowerCaseForQuery(c) == toLowerCaseForQuery(other));
+    }
+
+    /**
+     * Lower-cases the text one character at a time, the same way as case insensitive query matching does.
+     */
+    private static String toLowerCaseForQuery(String text) {
+        final char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = toLowerCaseForQuery(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static char toLowerCaseForQuery(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * Returns true if the char is one of the characters matched by the regex {@code \s}.
+     */
+    private static boolean isWhitespaceChar(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+    }
+
+    /**
+     * Returns true if the char is one of the characters matched by the regex {@code \d}.
+     */
+    private static boolean isDigitChar(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Returns the number of bytes in the UTF-8 encoding of the string, as written by the JDK encoders
+     * (which replace an unpaired surrogate with a single '?').
      */
-    private static ArrayList<String> splitByWhitespace(String toSplit) {
-        return new ArrayList(Arrays.asList(toSplit.trim().split("\\s+")));
+    private static int getUtf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (!Character.isSurrogate(c)) {
+                length += 3;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 1;
+            }
+        }
+        return length;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,81 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import seedu.addressbook.AddressBook;
+
+/**
+ * Measures how many bytes the AddressBook command parsing and dispatch path allocates per command.
+ *
+ * Usage (with AddressBook compiled into CLASSPATH):
+ *    java -classpath CLASSPATH:. AllocationBenchmark [ITERATIONS]
+ *
+ * Each command in {@link #COMMANDS} is run against an empty address book, first to warm up the JIT
+ * and then ITERATIONS more times while the bytes allocated by the current thread are counted.
+ * The commands are chosen so that they do not change the address book (which would write to the
+ * storage file), and mostly so that they produce constant feedback messages, which makes the
+ * figures mostly about parsing and dispatch. Output printed by the commands is discarded.
+ */
+public class AllocationBenchmark {
+
+    private static final int DEFAULT_ITERATIONS = 200_000;
+
+    private static final String[] COMMANDS = {
+        "undo",
+        "redo",
+        "   undo    ",
+        "delete 3",
+        "delete 3-5,7",
+        "delete all-shown",
+        "delete not-a-number",
+        "find Alice",
+        "find -i alice Bob",
+        "find name:A* NOT phone:9*",
+        "list",
+        "list --limit 5",
+        "count Alice",
+        "frobnicate"
+    };
+
+    public static void main(String[] args) {
+        final int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().getId();
+        final PrintStream console = System.out;
+        System.setOut(new PrintStream(new DiscardingOutputStream()));
+
+        final long[] bytesPerCommand = new long[COMMANDS.length];
+        for (int i = 0; i < COMMANDS.length; i++) {
+            runCommand(COMMANDS[i], iterations); // warm up
+            final long before = threads.getThreadAllocatedBytes(threadId);
+            runCommand(COMMANDS[i], iterations);
+            bytesPerCommand[i] = (threads.getThreadAllocatedBytes(threadId) - before) / iterations;
+        }
+
+        System.setOut(console);
+        System.out.println(String.format("%-24s %s", "command", "bytes allocated per command"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            System.out.println(String.format("%-24s %d", "'" + COMMANDS[i] + "'", bytesPerCommand[i]));
+        }
+    }
+
+    private static void runCommand(String command, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            AddressBook.executeCommand(command);
+        }
+    }
+
+    /**
+     * Discards everything written to it.
+     */
+    private static class DiscardingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Generates a synthetic AddressBook storage file and a matching command script for load testing.
+ *
+ * Usage:
+ *    java DatasetGenerator OUTPUT_DIR BOOK_SIZE COMMAND_COUNT [COMMAND_MIX] [SEED]
+ *
+ * COMMAND_MIX gives the relative weight of each command, e.g. "add=10,find=60,delete=10,list=20".
+ * The generator writes OUTPUT_DIR/book.txt (a valid storage file) and OUTPUT_DIR/commands.txt
+ * (one command per line, ending with 'exit').
+ */
+public class DatasetGenerator {
+
+    private static final String DEFAULT_COMMAND_MIX = "add=10,find=60,delete=10,list=20";
+    private static final long DEFAULT_SEED = 42;
+
+    private static final String BOOK_FILE_NAME = "book.txt";
+    private static final String COMMANDS_FILE_NAME = "commands.txt";
+
+    /*
+     * Name parts are listed from most to least common. They are drawn with a Zipf-like bias so that
+     * a few names are very common (large find results) and most are rare, like in a real book.
+     */
+    private static final String[] FIRST_NAMES = {
+        "John", "Mary", "David", "Sarah", "Michael", "Wei", "Mohammed", "Anna", "James", "Li",
+        "Robert", "Priya", "Daniel", "Siti", "Thomas", "Emma", "Ahmad", "Olivia", "Kevin", "Mei",
+        "Joseph", "Nur", "Richard", "Chloe", "Charles", "Aisha", "Matthew", "Grace", "Anthony", "Hui",
+        "Mark", "Sophia", "Steven", "Ravi", "Paul", "Isabella", "Andrew", "Farah", "Joshua", "Jia",
+        "Kenneth", "Emily", "Ryan", "Arjun", "Jason", "Hannah", "Eric", "Yan", "Brian", "Lakshmi"
+    };
+    private static final String[] LAST_NAMES = {
+        "Tan", "Lim", "Lee", "Ng", "Wong", "Smith", "Kumar", "Chen", "Ong", "Johnson",
+        "Teo", "Williams", "Goh", "Brown", "Chua", "Rahman", "Koh", "Jones", "Yeo", "Garcia",
+        "Ho", "Miller", "Singh", "Davis", "Low", "Abdullah", "Chong", "Wilson", "Toh", "Taylor",
+        "Sim", "Anderson", "Ismail", "Thomas", "Loh", "Martin", "Pillai", "Lau", "Moore", "Quek"
+    };
+    private static final String[] EMAIL_DOMAINS = {
+        "gmail.com", "yahoo.com", "hotmail.com", "outlook.com", "u.nus.edu", "example.com", "icloud.com"
+    };
+    private static final String[] PHONE_LEADING_DIGITS = { "9", "8", "6" };
+
+    private static final String[] COMMAND_WORDS = { "add", "find", "delete", "list" };
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Number of persons in the simulated book having each name word. Used to keep generated
+     * 'delete INDEX' commands within the size of the listing shown by the preceding command.
+     */
+    private static final HashMap<String, Integer> NAME_WORD_COUNTS = new HashMap<>();
+    private static int simulatedBookSize = 0;
+    private static int simulatedListingSize = 0;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: java DatasetGenerator OUTPUT_DIR BOOK_SIZE COMMAND_COUNT [COMMAND_MIX] [SEED]");
+            System.exit(1);
+        }
+        final Path outputDir = Paths.get(args[0]);
+        final int bookSize = Integer.parseInt(args[1]);
+        final int commandCount = Integer.parseInt(args[2]);
+        final int[] commandWeights = parseCommandMix(args.length >= 4 ? args[3] : DEFAULT_COMMAND_MIX);
+        RANDOM.setSeed(args.length == 5 ? Long.parseLong(args[4]) : DEFAULT_SEED);
+
+        Files.createDirectories(outputDir);
+        writeBook(outputDir.resolve(BOOK_FILE_NAME), bookSize);
+        writeCommands(outputDir.resolve(COMMANDS_FILE_NAME), commandCount, commandWeights);
+        System.out.println("Generated " + bookSize + " persons and " + commandCount + " commands in " + outputDir);
+    }
+
+    /**
+     * Parses a command mix such as "add=10,find=60" into weights ordered as {@link #COMMAND_WORDS}.
+     */
+    private static int[] parseCommandMix(String mix) {
+        final int[] weights = new int[COMMAND_WORDS.length];
+        for (String entry : mix.split(",")) {
+            final String[] wordAndWeight = entry.trim().split("=");
+            final int commandIndex = indexOfCommandWord(wordAndWeight[0]);
+            if (wordAndWeight.length != 2 || commandIndex < 0) {
+                throw new IllegalArgumentException("Invalid command mix entry: " + entry);
+            }
+            weights[commandIndex] = Integer.parseInt(wordAndWeight[1]);
+        }
+        return weights;
+    }
+
+    private static int indexOfCommandWord(String word) {
+        for (int i = 0; i < COMMAND_WORDS.length; i++) {
+            if (COMMAND_WORDS[i].equals(word)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeBook(Path bookFile, int bookSize) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(bookFile, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < bookSize; i++) {
+                writer.write(makePersonString());
+                writer.newLine();
+            }
+        }
+        simulatedListingSize = simulatedBookSize; // the program starts with all persons as its listing
+    }
+
+    private static void writeCommands(Path commandsFile, int commandCount, int[] commandWeights) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(commandsFile, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < commandCount; i++) {
+                writer.write(makeCommand(COMMAND_WORDS[pickWeighted(commandWeights)]));
+                writer.newLine();
+            }
+            writer.write("exit");
+            writer.newLine();
+        }
+    }
+
+    private static String makeCommand(String commandWord) {
+        switch (commandWord) {
+        case "add":
+            return "add " + makePersonString();
+        case "find":
+            return makeFindCommand();
+        case "delete":
+            return makeDeleteCommand();
+        default:
+            simulatedListingSize = simulatedBookSize;
+            return "list";
+        }
+    }
+
+    /**
+     * Makes a find command with one or two popular-biased name words.
+     * The simulated listing size is a lower bound of the real number of matches.
+     */
+    private static String makeFindCommand() {
+        final String firstKeyword = pickNameWord();
+        if (RANDOM.nextInt(4) > 0) {
+            simulatedListingSize = NAME_WORD_COUNTS.getOrDefault(firstKeyword, 0);
+            return "find " + firstKeyword;
+        }
+        final String secondKeyword = pickNameWord();
+        simulatedListingSize = Math.max(NAME_WORD_COUNTS.getOrDefault(firstKeyword, 0),
+                NAME_WORD_COUNTS.getOrDefault(secondKeyword, 0));
+        return "find " + firstKeyword + " " + secondKeyword;
+    }
+
+    private static String makeDeleteCommand() {
+        if (simulatedListingSize == 0) {
+            simulatedListingSize = simulatedBookSize;
+            return "list";
+        }
+        simulatedBookSize--;
+        return "delete " + (1 + RANDOM.nextInt(simulatedListingSize));
+    }
+
+    private static String pickNameWord() {
+        return RANDOM.nextBoolean() ? pickZipf(FIRST_NAMES) : pickZipf(LAST_NAMES);
+    }
+
+    private static String makePersonString() {
+        final String firstName = pickZipf(FIRST_NAMES);
+        final String lastName = pickZipf(LAST_NAMES);
+        NAME_WORD_COUNTS.merge(firstName, 1, Integer::sum);
+        NAME_WORD_COUNTS.merge(lastName, 1, Integer::sum);
+        simulatedBookSize++;
+        return firstName + " " + lastName + " p/" + makePhone() + " e/" + makeEmail(firstName, lastName);
+    }
+
+    private static String makePhone() {
+        final StringBuilder phone = new StringBuilder(pickZipf(PHONE_LEADING_DIGITS));
+        for (int i = 1; i < 8; i++) {
+            phone.append(RANDOM.nextInt(10));
+        }
+        return phone.toString();
+    }
+
+    private static String makeEmail(String firstName, String lastName) {
+        final String localPart;
+        switch (RANDOM.nextInt(3)) {
+        case 0:
+            localPart = firstName.toLowerCase() + "." + lastName.toLowerCase();
+            break;
+        case 1:
+            localPart = firstName.toLowerCase().charAt(0) + lastName.toLowerCase() + RANDOM.nextInt(1000);
+            break;
+        default:
+            localPart = firstName.toLowerCase() + RANDOM.nextInt(100000);
+        }
+        return localPart + "@" + pickZipf(EMAIL_DOMAINS);
+    }
+
+    /**
+     * Picks an element, where the element at position i is picked with probability proportional to 1/(i+1).
+     */
+    private static String pickZipf(String[] elements) {
+        final int[] harmonicWeights = new int[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            harmonicWeights[i] = 1_000_000 / (i + 1);
+        }
+        return elements[pickWeighted(harmonicWeights)];
+    }
+
+    /**
+     * Picks an index into the weights array, with probability proportional to the weight at that index.
+     */
+    private static int pickWeighted(int[] weights) {
+        int total = 0;
+        for (int weight : weights) {
+            total += weight;
+        }
+        int target = RANDOM.nextInt(total);
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target < 0) {
+                return i;
+            }
+        }
+        return weights.length - 1;
+    }
+}
@@ -0,0 +1,317 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Runs the real AddressBook main loop against a storage file and a command script, and reports
+ * throughput, per-command latency percentiles, peak resident memory and bytes written.
+ *
+ * Usage:
+ *    java LoadTestHarness CLASSPATH BOOK_FILE COMMANDS_FILE BASELINE_FILE [OPTIONS]
+ *
+ * Options:
+ *    --save-baseline        save the results of this run as the new baseline
+ *    --tolerance=PERCENT    how much worse than the baseline a metric may get before it is
+ *                           reported as a regression (default 20)
+ *    --jvm-arg=ARG          extra argument for the JVM running AddressBook, e.g. --jvm-arg=-Xmx2g
+ *
+ * The book file is copied before the run, so the same dataset can be reused for many runs.
+ * Latency of a command is measured from the moment AddressBook echoes it to the moment it echoes
+ * the next command. Memory and I/O figures are read from /proc and are only available on Linux.
+ */
+public class LoadTestHarness {
+
+    private static final String MAIN_CLASS = "seedu.addressbook.AddressBook";
+    private static final byte[] COMMAND_ECHO_MARKER = "[Command entered:".getBytes(StandardCharsets.UTF_8);
+    private static final long RESOURCE_SAMPLING_INTERVAL_MILLIS = 20;
+    private static final double DEFAULT_TOLERANCE_PERCENT = 20;
+
+    // Metrics where a bigger value is better; all other metrics are better when smaller
+    private static final List<String> HIGHER_IS_BETTER_METRICS = Arrays.asList("commands_per_second");
+
+    private static volatile long peakResidentKilobytes = -1;
+    private static volatile long storageBytesWritten = -1;
+    private static volatile long totalBytesWritten = -1;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: java LoadTestHarness CLASSPATH BOOK_FILE COMMANDS_FILE BASELINE_FILE "
+                    + "[--save-baseline] [--tolerance=PERCENT] [--jvm-arg=ARG]...");
+            System.exit(1);
+        }
+        final String classpath = args[0];
+        final Path bookFile = Paths.get(args[1]);
+        final Path commandsFile = Paths.get(args[2]);
+        final Path baselineFile = Paths.get(args[3]);
+        boolean isSavingBaseline = false;
+        double tolerancePercent = DEFAULT_TOLERANCE_PERCENT;
+        final ArrayList<String> jvmArgs = new ArrayList<>();
+        for (String option : Arrays.asList(args).subList(4, args.length)) {
+            if (option.equals("--save-baseline")) {
+                isSavingBaseline = true;
+            } else if (option.startsWith("--tolerance=")) {
+                tolerancePercent = Double.parseDouble(option.substring("--tolerance=".length()));
+            } else if (option.startsWith("--jvm-arg=")) {
+                jvmArgs.add(option.substring("--jvm-arg=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+
+        final LinkedHashMap<String, Double> results = runLoadTest(classpath, bookFile, commandsFile, jvmArgs);
+        printResults(results);
+
+        if (isSavingBaseline || !Files.exists(baselineFile)) {
+            saveBaseline(results, baselineFile);
+            System.out.println("Saved baseline to " + baselineFile);
+            return;
+        }
+        final List<String> regressions = findRegressions(results, loadBaseline(baselineFile), tolerancePercent);
+        for (String regression : regressions) {
+            System.out.println("REGRESSION: " + regression);
+        }
+        System.out.println(regressions.isEmpty() ? "No regressions against " + baselineFile
+                                                 : regressions.size() + " regression(s) against " + baselineFile);
+        System.exit(regressions.isEmpty() ? 0 : 2);
+    }
+
+    private static LinkedHashMap<String, Double> runLoadTest(String classpath, Path bookFile, Path commandsFile,
+            List<String> jvmArgs) throws IOException, InterruptedException {
+        final List<String> commandWords = readCommandWords(commandsFile);
+        final Path workDir = Files.createTempDirectory("addressbook-loadtest");
+        // keep the extension, as it decides the storage format (e.g. compressed)
+        final Path storageFile = workDir.resolve(bookFile.toString().endsWith(".txt.gz") ? "addressbook.txt.gz"
+                                                                                         : "addressbook.txt");
+        Files.copy(bookFile, storageFile, StandardCopyOption.REPLACE_EXISTING);
+
+        final ArrayList<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        command.addAll(Arrays.asList("-cp", classpath, MAIN_CLASS, storageFile.toString()));
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectInput(commandsFile.toFile());
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        final long startNanos = System.nanoTime();
+        final Process process = builder.start();
+        final Thread sampler = startResourceSampler(process.pid());
+        final ArrayList<Long> echoNanos = new ArrayList<>();
+        final long outputBytes = readOutputRecordingEchoes(process.getInputStream(), echoNanos);
+        final long endNanos = System.nanoTime();
+        process.waitFor();
+        sampler.interrupt();
+        sampler.join();
+        Files.deleteIfExists(storageFile);
+        Files.deleteIfExists(workDir);
+
+        if (echoNanos.isEmpty()) {
+            throw new IllegalStateException("AddressBook did not execute any command (exit code "
+                    + process.exitValue() + ")");
+        }
+        return computeResults(commandWords, echoNanos, startNanos, endNanos, outputBytes);
+    }
+
+    /**
+     * Returns the command word of each command in the script, in the order AddressBook will execute them.
+     */
+    private static List<String> readCommandWords(Path commandsFile) throws IOException {
+        final ArrayList<String> commandWords = new ArrayList<>();
+        for (String line : Files.readAllLines(commandsFile, StandardCharsets.UTF_8)) {
+            final String trimmed = line.trim();
+            if (!trimmed.isEmpty() && trimmed.charAt(0) != '#') {
+                commandWords.add(trimmed.split("\\s+", 2)[0]);
+            }
+        }
+        return commandWords;
+    }
+
+    /**
+     * Consumes the program output, noting the time at which each command echo appears.
+     *
+     * @return total number of bytes printed by the program
+     */
+    private static long readOutputRecordingEchoes(InputStream output, List<Long> echoNanos) throws IOException {
+        final byte[] buffer = new byte[1 << 16];
+        long totalBytes = 0;
+        int matched = 0;
+        int read;
+        while ((read = output.read(buffer)) != -1) {
+            final long now = System.nanoTime();
+            totalBytes += read;
+            for (int i = 0; i < read; i++) {
+                // the marker has no repeated prefix, so a mismatch can restart matching from this byte
+                if (buffer[i] == COMMAND_ECHO_MARKER[matched]) {
+                    matched++;
+                } else {
+                    matched = buffer[i] == COMMAND_ECHO_MARKER[0] ? 1 : 0;
+                }
+                if (matched == COMMAND_ECHO_MARKER.length) {
+                    echoNanos.add(now);
+                    matched = 0;
+                }
+            }
+        }
+        return totalBytes;
+    }
+
+    /**
+     * Starts a thread that keeps reading the memory and I/O counters of the given process until interrupted.
+     */
+    private static Thread startResourceSampler(long pid) {
+        final Path statusFile = Paths.get("/proc", Long.toString(pid), "status");
+        final Path ioFile = Paths.get("/proc", Long.toString(pid), "io");
+        final Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    final long peakResident = readProcValue(statusFile, "VmHWM:");
+                    final long storageWritten = readProcValue(ioFile, "write_bytes:");
+                    final long totalWritten = readProcValue(ioFile, "wchar:");
+                    // counters only grow; stop updating once the process has gone away
+                    peakResidentKilobytes = Math.max(peakResidentKilobytes, peakResident);
+                    storageBytesWritten = Math.max(storageBytesWritten, storageWritten);
+                    totalBytesWritten = Math.max(totalBytesWritten, totalWritten);
+                    Thread.sleep(RESOURCE_SAMPLING_INTERVAL_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+        return sampler;
+    }
+
+    /**
+     * Reads the first number following the given key in a /proc file, or -1 if it cannot be read.
+     */
+    private static long readProcValue(Path procFile, String key) {
+        try {
+            for (String line : Files.readAllLines(procFile, StandardCharsets.UTF_8)) {
+                if (line.startsWith(key)) {
+                    return Long.parseLong(line.substring(key.length()).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // process has exited or /proc is not available
+        }
+        return -1;
+    }
+
+    private static LinkedHashMap<String, Double> computeResults(List<String> commandWords, List<Long> echoNanos,
+            long startNanos, long endNanos, long outputBytes) {
+        final LinkedHashMap<String, Double> results = new LinkedHashMap<>();
+        final ArrayList<Long> allLatencies = new ArrayList<>();
+        final TreeMap<String, ArrayList<Long>> latenciesByCommand = new TreeMap<>();
+        for (int i = 0; i + 1 < echoNanos.size() && i < commandWords.size(); i++) {
+            final long latency = echoNanos.get(i + 1) - echoNanos.get(i);
+            allLatencies.add(latency);
+            latenciesByCommand.computeIfAbsent(commandWords.get(i), word -> new ArrayList<>()).add(latency);
+        }
+        final double measuredSeconds = (echoNanos.get(echoNanos.size() - 1) - echoNanos.get(0)) / 1e9;
+
+        results.put("startup_ms", (echoNanos.get(0) - startNanos) / 1e6);
+        results.put("total_ms", (endNanos - startNanos) / 1e6);
+        results.put("commands", (double) allLatencies.size());
+        results.put("commands_per_second", measuredSeconds > 0 ? allLatencies.size() / measuredSeconds : 0);
+        putLatencyPercentiles(results, "latency", allLatencies);
+        for (Map.Entry<String, ArrayList<Long>> entry : latenciesByCommand.entrySet()) {
+            putLatencyPercentiles(results, entry.getKey() + "_latency", entry.getValue());
+        }
+        results.put("peak_rss_kb", (double) peakResidentKilobytes);
+        results.put("storage_bytes_written", (double) storageBytesWritten);
+        results.put("total_bytes_written", (double) totalBytesWritten);
+        results.put("output_bytes", (double) outputBytes);
+        return results;
+    }
+
+    private static void putLatencyPercentiles(Map<String, Double> results, String prefix, List<Long> latencies) {
+        final long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        if (sorted.length == 0) {
+            return;
+        }
+        results.put(prefix + "_p50_us", percentile(sorted, 50) / 1e3);
+        results.put(prefix + "_p90_us", percentile(sorted, 90) / 1e3);
+        results.put(prefix + "_p99_us", percentile(sorted, 99) / 1e3);
+        results.put(prefix + "_max_us", sorted[sorted.length - 1] / 1e3);
+    }
+
+    /**
+     * Returns the nearest-rank percentile of a sorted array.
+     */
+    private static long percentile(long[] sorted, double percent) {
+        final int rank = (int) Math.ceil(percent / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    private static void printResults(Map<String, Double> results) {
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            System.out.println(String.format("%-28s %,.1f", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private static void saveBaseline(Map<String, Double> results, Path baselineFile) throws IOException {
+        final Properties baseline = new Properties();
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            baseline.setProperty(entry.getKey(), Double.toString(entry.getValue()));
+        }
+        if (baselineFile.getParent() != null) {
+            Files.createDirectories(baselineFile.getParent());
+        }
+        try (OutputStream out = Files.newOutputStream(baselineFile)) {
+            baseline.store(out, "AddressBook load test baseline");
+        }
+    }
+
+    private static Properties loadBaseline(Path baselineFile) throws IOException {
+        final Properties baseline = new Properties();
+        try (InputStream in = Files.newInputStream(baselineFile)) {
+            baseline.load(in);
+        }
+        return baseline;
+    }
+
+    /**
+     * Compares results with the baseline. Only throughput, latency, startup, memory and
+     * bytes written are compared; counts such as the number of commands are informational.
+     */
+    private static List<String> findRegressions(Map<String, Double> results, Properties baseline,
+            double tolerancePercent) {
+        final ArrayList<String> regressions = new ArrayList<>();
+        for (Map.Entry<String, Double> entry : results.entrySet()) {
+            final String metric = entry.getKey();
+            if (!isComparedMetric(metric) || baseline.getProperty(metric) == null) {
+                continue;
+            }
+            final double baselineValue = Double.parseDouble(baseline.getProperty(metric));
+            final double value = entry.getValue();
+            if (baselineValue <= 0 || value < 0) {
+                continue;
+            }
+            final double changePercent = (value - baselineValue) / baselineValue * 100;
+            final boolean isWorse = HIGHER_IS_BETTER_METRICS.contains(metric) ? -changePercent > tolerancePercent
+                                                                              : changePercent > tolerancePercent;
+            if (isWorse) {
+                regressions.add(String.format("%s went from %,.1f to %,.1f (%+.1f%%)",
+                        metric, baselineValue, value, changePercent));
+            }
+        }
+        return regressions;
+    }
+
+    private static boolean isComparedMetric(String metric) {
+        return metric.equals("commands_per_second") || metric.equals("startup_ms") || metric.startsWith("latency_")
+                || metric.equals("peak_rss_kb") || metric.endsWith("bytes_written");
+    }
+}
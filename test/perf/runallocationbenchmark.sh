@@ -0,0 +1,12 @@
+#!/usr/bin/env bash
+# Usage: ./runallocationbenchmark.sh [ITERATIONS]
+
+# change to script directory
+cd "${0%/*}"
+
+# compile the code into the bin folder, and the benchmark into bin/perf
+mkdir -p ../../bin/perf
+javac ../../src/seedu/addressbook/AddressBook.java -d ../../bin || exit 1
+javac -classpath ../../bin AllocationBenchmark.java -d ../../bin/perf || exit 1
+
+java -classpath ../../bin:../../bin/perf AllocationBenchmark "$@"
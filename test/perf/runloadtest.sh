@@ -0,0 +1,37 @@
+#!/usr/bin/env bash
+# Usage: ./runloadtest.sh [BOOK_SIZE] [COMMAND_COUNT] [COMMAND_MIX] [HARNESS_OPTIONS...]
+# e.g.   ./runloadtest.sh 100000 5000 add=10,find=60,delete=10,list=20 --jvm-arg=-Daddressbook.backend=offheap
+
+# change to script directory
+cd "${0%/*}"
+
+BOOK_SIZE=${1:-10000}
+COMMAND_COUNT=${2:-2000}
+COMMAND_MIX=${3:-add=10,find=60,delete=10,list=20}
+DATA_DIR="data/${BOOK_SIZE}-${COMMAND_COUNT}-${COMMAND_MIX//[,=]/_}"
+
+# runs with different JVM arguments (e.g. another model backend) keep separate baselines
+JVM_ARGS_KEY=""
+for OPTION in "${@:4}"
+do
+    if [[ "$OPTION" == --jvm-arg=* ]]
+    then
+        JVM_ARGS_KEY="${JVM_ARGS_KEY}${OPTION#--jvm-arg=}"
+    fi
+done
+BASELINE_FILE="baselines/${BOOK_SIZE}-${COMMAND_COUNT}-${COMMAND_MIX//[,=]/_}${JVM_ARGS_KEY//[^A-Za-z0-9.]/_}.properties"
+
+# compile the code into the bin folder, and the load test tools into bin/perf
+mkdir -p ../../bin/perf
+javac ../../src/seedu/addressbook/AddressBook.java -d ../../bin || exit 1
+javac DatasetGenerator.java LoadTestHarness.java -d ../../bin/perf || exit 1
+
+# generate the dataset once; the generator is deterministic so it can be reused across runs
+if [ ! -f "$DATA_DIR/commands.txt" ]
+then
+    java -classpath ../../bin/perf DatasetGenerator "$DATA_DIR" "$BOOK_SIZE" "$COMMAND_COUNT" "$COMMAND_MIX" || exit 1
+fi
+
+# run the load test; the first run of a dataset saves the baseline, later runs are compared to it
+java -classpath ../../bin/perf LoadTestHarness ../../bin "$DATA_DIR/book.txt" "$DATA_DIR/commands.txt" \
+    "$BASELINE_FILE" "${@:4}"
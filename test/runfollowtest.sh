@@ -0,0 +1,61 @@
+#!/usr/bin/env bash
+
+# change to script directory
+cd "${0%/*}"
+
+# create ../bin directory if not exists
+if [ ! -d "../bin" ]
+then
+    mkdir ../bin
+fi
+
+# compile the code into the bin folder
+javac  ../src/seedu/addressbook/AddressBook.java -d ../bin
+
+# start with a book of two persons, written as the program writes it
+rm -f followed.txt follower.txt
+printf "Adam Brown p/111111 e/adam@gmail.com\nBetsy Choo p/222222 e/betsy@nus.edu.sg\n" > followed.txt
+
+# the writer changes the book between the follower's commands: first an edit that keeps every line at the same
+# length followed by an added person, then only an added person
+(sleep 2
+ echo "edit 1 p/999999
+add Charlie Dickson p/333333 e/charlie@nus.edu.sg"
+ sleep 3
+ echo "add Dickson Ee p/444444 e/dickson@nus.edu.sg"
+ sleep 3
+ echo exit) \
+    | java -Daddressbook.maintenance.idle=0 -classpath ../bin seedu.addressbook.AddressBook followed.txt \
+    > /dev/null &
+WRITER=$!
+
+# the follower lists the book before the changes, after the first ones, and after the last one
+(sleep 1
+ echo list
+ sleep 3
+ echo list
+ sleep 3
+ echo list
+ echo exit) \
+    | java -Daddressbook.follow=true -classpath ../bin seedu.addressbook.AddressBook followed.txt > follower.txt
+wait $WRITER
+
+# the persons listed by each list command, in order, as NAME PHONE
+LISTED=$(grep -o "[0-9]\. [A-Za-z ]*  Phone Number: [0-9]*" follower.txt | sed "s/^[0-9]*\. //; s/  Phone Number://")
+EXPECTED_LISTED="Adam Brown 111111
+Betsy Choo 222222
+Adam Brown 999999
+Betsy Choo 222222
+Charlie Dickson 333333
+Adam Brown 999999
+Betsy Choo 222222
+Charlie Dickson 333333
+Dickson Ee 444444"
+
+if [ "$LISTED" == "$EXPECTED_LISTED" ]
+then
+    echo "Test result: PASSED"
+else
+    echo "Test result: FAILED"
+fi
+rm -f followed.txt follower.txt
@@ -0,0 +1,58 @@
+#!/usr/bin/env bash
+
+# change to script directory
+cd "${0%/*}"
+
+# create ../bin directory if not exists
+if [ ! -d "../bin" ]
+then
+    mkdir ../bin
+fi
+
+# compile the code into the bin folder
+javac  ../src/seedu/addressbook/AddressBook.java -d ../bin
+
+# start with empty storage files for the primary and the standby
+PORT=${1:-47474}
+rm -f primary.txt standby.txt standby-stopped primary-done
+
+# run the primary on the commands from input.txt (without the exit command), one every 20 ms so that it is still
+# making changes when the standby restarts, then on one more change once the standby has stopped for the second
+# time, giving the standby time to connect first and to catch up before the primary exits
+(sleep 2
+ grep -v "^ *exit" input.txt | while IFS= read -r COMMAND; do echo "$COMMAND"; sleep 0.02; done
+ while [ ! -f standby-stopped ]; do sleep 0.2; done
+ echo "add Yann Young p/888000 e/yann@young.com"
+ touch primary-done
+ sleep 4
+ echo exit) \
+    | java -Daddressbook.replication.port=$PORT -classpath ../bin seedu.addressbook.AddressBook primary.txt \
+    > /dev/null &
+PRIMARY=$!
+
+# run the standby until the primary is part way through the commands, then again after it has missed some of
+# them, to catch up while the primary is still making changes; then again once the primary has made its last
+# change, to catch up with the final address book, which the standby can only be sent whole (a standby that
+# fails to catch up tries again and again, and may only manage it when the address book happens to be empty),
+# and to be promoted once the primary has exited and make a change of its own
+STANDBY="java -Daddressbook.standby.of=$PORT -classpath ../bin seedu.addressbook.AddressBook standby.txt"
+(sleep 3; echo exit) | $STANDBY > /dev/null
+sleep 1
+(sleep 3; echo exit) | $STANDBY > /dev/null
+touch standby-stopped
+while [ ! -f primary-done ]; do sleep 0.2; done
+(while kill -0 $PRIMARY 2> /dev/null; do sleep 1; done
+ echo promote
+ echo "add Zed Zulu p/999999 e/zed@zulu.com"
+ echo exit) \
+    | $STANDBY > /dev/null
+
+# the storage file of the standby must be that of the primary, followed by the person added after promoting it
+(cat primary.txt; echo "Zed Zulu p/999999 e/zed@zulu.com") | cmp -s - standby.txt
+if [ $? -eq 0 ]
+then
+    echo "Test result: PASSED"
+else
+    echo "Test result: FAILED"
+fi
+rm -f primary.txt standby.txt standby-stopped primary-done
@@ -0,0 +1,124 @@
+#!/usr/bin/env bash
+
+# change to script directory
+cd "${0%/*}"
+
+# create ../bin directory if not exists
+if [ ! -d "../bin" ]
+then
+    mkdir ../bin
+fi
+
+# compile the code into the bin folder
+javac  ../src/seedu/addressbook/AddressBook.java -d ../bin
+
+# commands for each run of the program; every run after the first reloads the book saved by the one before,
+# so that a record written in the wrong place shows up as a wrong person
+
+# records edited where they are, and moved out of their slots when they no longer fit
+SESSION_1="add Adam Brown p/111111 e/adam@gmail.com
+add Betsy Choo p/222222 e/betsy@nus.edu.sg
+add Charlie Dickson p/333333 e/charlie@nus.edu.sg
+add Dickson Ee p/444444 e/dickson@nus.edu.sg
+add Esther Potato p/555555 e/esther@potato.com
+list
+edit 2 p/22
+edit 3 e/a.very.long.email.address.that.does.not.fit@somewhere-far-away.example.com
+exit"
+
+# moved records read back through their forwarding slots, moved again, and edited where they were moved to
+SESSION_2="list
+edit 3 e/an.even.longer.email.address.that.does.not.fit.either@somewhere-much-further-away.example.com
+edit 3 e/charlie@nus.edu.sg
+edit 1 e/a.much.longer.address.for.adam@example-domain-name.com
+exit"
+
+# deletes and undos that free slots and reuse them, and adds into a free slot at the end of the file
+SESSION_3="list
+delete 1
+undo
+delete 5
+add Fiona Gold p/666666 e/fiona@gold.com
+delete 4
+undo
+redo
+exit"
+
+# the free slots read back from the file, and reused
+SESSION_4="list
+edit 3 p/999999
+edit 1 e/adam@gmail.com
+delete 2
+add George Hill p/777777 e/george.hill.with.a.long.address@hill-family-domain.example.com
+exit"
+
+# changes too big to save in place, and a file compacted by background maintenance
+SESSION_5="clear
+$(for i in $(seq 1 4200); do echo "add Person$i Extra p/$i e/person$i@extra.com"; done)
+list
+delete 5-4003
+undo
+redo
+list"
+SESSION_5_AFTER_MAINTENANCE="undo
+list
+delete 1-4100
+list
+exit"
+
+SESSION_6="list
+exit"
+
+# wait (up to a minute) until the program has listed the persons left in session 5 into the given output, and
+# the given book has then been compacted by background maintenance to at most 3 pages of a slotted file
+# (before that, the slotted file is over 30 pages long); otherwise, note that the book was not compacted
+wait_for_compaction() {
+    for i in $(seq 1 120)
+    do
+        grep -q "^|| 201 persons found!" $2 && [ $(wc -c < $1) -le $((8 + 3 * 8192)) ] && return
+        sleep 0.5
+    done
+    touch not-compacted-$1
+}
+
+# run the program on the given book for each session, with each model backend, into actual-BACKEND-BOOK.txt
+run_sessions() {
+    for BACKEND in heap offheap tiered
+    do
+        OUTPUT=actual-$BACKEND-$1
+        rm -f $1 $OUTPUT
+        JAVA="java -Daddressbook.backend=$BACKEND -Daddressbook.maintenance.idle=500 -classpath ../bin"
+        for SESSION in "$SESSION_1" "$SESSION_2" "$SESSION_3" "$SESSION_4"
+        do
+            echo "$SESSION" | $JAVA seedu.addressbook.AddressBook $1 >> $OUTPUT
+        done
+        (echo "$SESSION_5"; wait_for_compaction $1 $OUTPUT; echo "$SESSION_5_AFTER_MAINTENANCE") \
+            | $JAVA seedu.addressbook.AddressBook $1 >> $OUTPUT
+        echo "$SESSION_6" | $JAVA seedu.addressbook.AddressBook $1 >> $OUTPUT
+        sed -i "s/$1/BOOK/" $OUTPUT
+    done
+}
+
+run_sessions slotted.txt
+run_sessions slotted.txt.slotted
+
+# the slotted book must behave exactly like the text book, whatever the backend
+RESULT=0
+for BACKEND in heap offheap tiered
+do
+    cmp -s actual-heap-slotted.txt actual-$BACKEND-slotted.txt.slotted || RESULT=1
+    cmp -s actual-heap-slotted.txt actual-$BACKEND-slotted.txt || RESULT=1
+done
+# the books must have been compacted by maintenance once most persons were deleted, and the slotted file
+# must still be one after being rewritten whole
+ls not-compacted-* > /dev/null 2>&1 && RESULT=1
+head -c 4 slotted.txt.slotted | grep -q "ABSL" || RESULT=1
+
+if [ $RESULT -eq 0 ]
+then
+    echo "Test result: PASSED"
+else
+    echo "Test result: FAILED"
+fi
+rm -f slotted.txt slotted.txt.slotted not-compacted-slotted.txt not-compacted-slotted.txt.slotted
+rm -f actual-*-slotted.txt actual-*-slotted.txt.slotted
@@ -2,8 +2,17 @@
 REM compile the code into the bin folder
 javac  ..\src\seedu\addressbook\Addressbook.java -d ..\bin
 
+REM write the book opened by input.txt: persons saved in the form this program saves them, and in other forms
+(ECHO Kelly Lim p/101010 e/kelly@lim.com& ECHO Liam  Ng p/202020 e/liam@ng.com& ECHO Mia Ong e/mia@ong.com p/303030) > loaded.txt
+
 REM run the program, feed commands from input.txt file and redirect the output to the actual.txt
 java -classpath ..\bin seedu.addressbook.AddressBook < input.txt > actual.txt
 
-REM compare the output to the expected output
-FC actual.txt expected.txt
\ No newline at end of file
+REM run the program again with the off-heap backend, which must give the same output
+(ECHO Kelly Lim p/101010 e/kelly@lim.com& ECHO Liam  Ng p/202020 e/liam@ng.com& ECHO Mia Ong e/mia@ong.com p/303030) > loaded.txt
+java -Daddressbook.backend=offheap -classpath ..\bin seedu.addressbook.AddressBook < input.txt > actual-offheap.txt
+DEL loaded.txt
+
+REM compare the output of each run to the expected output
+FC actual.txt expected.txt
+FC actual-offheap.txt expected.txt
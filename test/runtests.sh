@@ -12,11 +12,24 @@ fi
 # compile the code into the bin folder
 javac  ../src/seedu/addressbook/AddressBook.java -d ../bin
 
+# write the book opened by input.txt: persons saved in the form this program saves them, and in other forms
+write_loaded_book() {
+    printf "Kelly Lim p/101010 e/kelly@lim.com\nLiam  Ng p/202020 e/liam@ng.com\nMia Ong e/mia@ong.com p/303030\n" \
+        > loaded.txt
+}
+
 # run the program, feed commands from input.txt file and redirect the output to the actual.txt
+write_loaded_book
 java -classpath ../bin seedu.addressbook.AddressBook < input.txt > actual.txt
 
-# compare the output to the expected output
-diff actual.txt expected.txt
+# run the program again with the off-heap backend, which loads storage lines without decoding them where it can,
+# and must give the same output
+write_loaded_book
+java -Daddressbook.backend=offheap -classpath ../bin seedu.addressbook.AddressBook < input.txt > actual-offheap.txt
+rm -f loaded.txt
+
+# compare the output of each run to the expected output
+diff actual.txt expected.txt && diff actual-offheap.txt expected.txt
 if [ $? -eq 0 ]
 then
     echo "Test result: PASSED"
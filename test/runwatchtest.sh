@@ -0,0 +1,75 @@
+#!/usr/bin/env bash
+
+# change to script directory
+cd "${0%/*}"
+
+# create ../bin directory if not exists
+if [ ! -d "../bin" ]
+then
+    mkdir ../bin
+fi
+
+# compile the code into the bin folder
+javac  ../src/seedu/addressbook/AddressBook.java -d ../bin
+
+# start with a book of two persons, and no second book
+PORT=${1:-47575}
+rm -f watched.txt watched2.txt watched-feed.txt rewatched-feed.txt
+printf "Adam Brown p/111111 e/adam@gmail.com\nBetsy Choo p/222222 e/betsy@nus.edu.sg\n" > watched.txt
+
+# run the program, giving the first watcher time to connect before the commands, and the second watcher time
+# to reconnect after them, before the program exits
+(sleep 2
+ echo "delete 1
+open watched2.txt
+add Zed Zulu p/999999 e/zed@zulu.com
+use watched
+add Fiona Gold p/666666 e/fiona@gold.com"
+ sleep 6
+ echo exit) \
+    | java -Daddressbook.watch.port=$PORT -classpath ../bin seedu.addressbook.AddressBook watched.txt > /dev/null &
+PROGRAM=$!
+
+# read the feed from a new watcher on the given port until the program exits, or for the given seconds,
+# sending the given handshake first, and leaving out the sync lines (sent at times that vary from run to run)
+watch_feed() {
+    exec 3<> /dev/tcp/127.0.0.1/$PORT
+    echo "$1" >&3
+    timeout $2 cat <&3 | grep --line-buffered -v "^sync"
+    exec 3>&-
+}
+
+# the first watcher connects before any command, and sees the events of both books
+sleep 1
+watch_feed "" 10 > watched-feed.txt &
+WATCHER=$!
+
+# the second watcher reconnects after the commands as if it had seen event 2 (delete 1), and must be sent the
+# events after it from the feed, not a reset of the book in use
+sleep 5
+FEED_ID=$(head -1 watched-feed.txt | cut -d " " -f 2)
+watch_feed "$FEED_ID 2" 2 > rewatched-feed.txt
+wait $WATCHER $PROGRAM
+
+EXPECTED_FEED="reset FEED_ID 1 2 watched
+Adam Brown p/111111 e/adam@gmail.com
+Betsy Choo p/222222 e/betsy@nus.edu.sg
+removed 2 1 0 watched
+Adam Brown p/111111 e/adam@gmail.com
+reset FEED_ID 3 0 watched2
+inserted 4 1 0 watched2
+Zed Zulu p/999999 e/zed@zulu.com
+inserted 5 1 1 watched
+Fiona Gold p/666666 e/fiona@gold.com"
+
+# compare what each watcher was sent to what it should have been sent
+RESULT=0
+[ "$(sed "s/$FEED_ID/FEED_ID/" watched-feed.txt)" == "$EXPECTED_FEED" ] || RESULT=1
+[ "$(sed "s/$FEED_ID/FEED_ID/" rewatched-feed.txt)" == "$(echo "$EXPECTED_FEED" | tail -n +6)" ] || RESULT=1
+if [ $RESULT -eq 0 ]
+then
+    echo "Test result: PASSED"
+else
+    echo "Test result: FAILED"
+fi
+rm -f watched.txt watched2.txt watched-feed.txt rewatched-feed.txt